@@ -0,0 +1,197 @@
+package com.kavach.crypto;
+
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+import org.bouncycastle.util.encoders.Base64;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Native counterpart of CA.verifyAadhaarCertificate in src/utils/crypto/ca.ts. Rebuilds the exact
+ * byte string the CA signed (JSON.stringify of the certificate fields in signing order) and checks
+ * the Ed25519 signature against the government public key.
+ */
+public final class CertificateVerifier {
+    // Same order as orderedCertData in ca.ts; changing it breaks every issued certificate
+    private static final String[] SIGNED_FIELDS = {
+        "name", "lastFourAadhaar", "serial", "issuer", "validFrom", "validTo", "publicKey"
+    };
+    private static final int BATCH_THRESHOLD = 4;
+
+    static {
+        // Builds the precomputed tables up front instead of on the first verification
+        Ed25519.precompute();
+    }
+
+    private CertificateVerifier() {
+    }
+
+    public static byte[] parsePublicKeyPem(String pem) {
+        String base64 = pem
+            .replace("-----BEGIN PUBLIC KEY-----", "")
+            .replace("-----END PUBLIC KEY-----", "")
+            .replaceAll("\\s", "");
+        byte[] der = Base64.decode(base64);
+        if (der.length < Ed25519.PUBLIC_KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid Ed25519 public key");
+        }
+        // For Ed25519 SPKI the raw key is the last 32 bytes, same as Signer.parsePublicKeyPEM
+        byte[] key = new byte[Ed25519.PUBLIC_KEY_SIZE];
+        System.arraycopy(der, der.length - key.length, key, 0, key.length);
+        return key;
+    }
+
+    public static boolean verify(String certificateJson, byte[] govPublicKey) {
+        JSONObject certificate;
+        try {
+            certificate = new JSONObject(certificateJson);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Certificate is not valid JSON", e);
+        }
+
+        byte[] signature;
+        try {
+            signature = Base64.decode(certificate.optString("signature", ""));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid base64 signature", e);
+        }
+        if (signature.length != Ed25519.SIGNATURE_SIZE) {
+            return false;
+        }
+
+        byte[] message = canonicalBytes(certificate);
+        return Ed25519.verify(signature, 0, govPublicKey, 0, message, 0, message.length);
+    }
+
+    /**
+     * Verifies every certificate on the given pool. Malformed entries count as invalid rather than
+     * failing the whole batch.
+     */
+    public static boolean[] verifyAll(List<String> certificateJsons, byte[] govPublicKey, ForkJoinPool pool) {
+        boolean[] results = new boolean[certificateJsons.size()];
+        pool.invoke(new VerifyRange(certificateJsons, govPublicKey, results, 0, results.length));
+        return results;
+    }
+
+    static byte[] canonicalBytes(JSONObject certificate) {
+        StringBuilder json = new StringBuilder(512);
+        json.append('{');
+        boolean first = true;
+        for (String field : SIGNED_FIELDS) {
+            Object value = certificate.opt(field);
+            if (value == null || value == JSONObject.NULL) {
+                // JSON.stringify leaves out undefined properties
+                continue;
+            }
+            if (!(value instanceof String)) {
+                throw new IllegalArgumentException("Certificate field " + field + " must be a string");
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendJsonString(json, field);
+            json.append(':');
+            appendJsonString(json, (String) value);
+        }
+        json.append('}');
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Escapes exactly like JSON.stringify so the bytes match what the CA signed
+    static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || isLoneSurrogate(value, i)) {
+                        appendUnicodeEscape(out, c);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private static boolean isLoneSurrogate(String value, int index) {
+        char c = value.charAt(index);
+        if (Character.isHighSurrogate(c)) {
+            return index + 1 >= value.length() || !Character.isLowSurrogate(value.charAt(index + 1));
+        }
+        if (Character.isLowSurrogate(c)) {
+            return index == 0 || !Character.isHighSurrogate(value.charAt(index - 1));
+        }
+        return false;
+    }
+
+    private static void appendUnicodeEscape(StringBuilder out, char c) {
+        String hex = Integer.toHexString(c);
+        out.append("\\u");
+        for (int pad = hex.length(); pad < 4; pad++) {
+            out.append('0');
+        }
+        out.append(hex);
+    }
+
+    private static final class VerifyRange extends RecursiveAction {
+        private final List<String> certificateJsons;
+        private final byte[] govPublicKey;
+        private final boolean[] results;
+        private final int from;
+        private final int to;
+
+        VerifyRange(List<String> certificateJsons, byte[] govPublicKey, boolean[] results, int from, int to) {
+            this.certificateJsons = certificateJsons;
+            this.govPublicKey = govPublicKey;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        results[i] = verify(certificateJsons.get(i), govPublicKey);
+                    } catch (RuntimeException e) {
+                        results[i] = false;
+                    }
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(
+                new VerifyRange(certificateJsons, govPublicKey, results, from, middle),
+                new VerifyRange(certificateJsons, govPublicKey, results, middle, to)
+            );
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.kavach.p2p;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Carries binary payloads between JS and the transport over JSI instead of the bridge, so bytes
+ * are never turned into a String, base64 or a JSON array on the way. {@link #install(long)} puts
+ * {@code global.__kavachP2P} into the JS runtime (see src/main/jni/BinaryBridge.cpp):
+ *
+ * <pre>
+ *   sendBytes(peerId | null, buffer: ArrayBuffer, offset, length, type): number   send id
+ *   takeBytes(handle): ArrayBuffer | undefined
+ * </pre>
+ *
+ * Outbound bytes are copied once, from the ArrayBuffer into the byte[] the frame is built from;
+ * inbound ones once, from the frame into a new ArrayBuffer. Received payloads wait here under a
+ * handle until JS takes them, which it does from the WIFI_P2P_BINARY_MESSAGE listener; the oldest
+ * are dropped if JS stops taking them.
+ */
+final class BinaryBridge {
+    private static final int MAX_WAITING = 256;
+
+    interface Sender {
+        // Queues the payload and returns the id its WIFI_P2P_BINARY_SENT event will carry.
+        // peerId null sends to every connection.
+        int sendBytes(String peerId, byte[] data, String type);
+    }
+
+    private static boolean libraryLoaded = false;
+
+    private final Sender sender;
+    // Received payloads by handle, oldest first
+    private final Map<Integer, byte[]> waiting = new LinkedHashMap<>();
+    private int nextHandle = 1;
+    private int dropped = 0;
+
+    BinaryBridge(Sender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Must run on the JS thread, with the pointer from getJavaScriptContextHolder(). Safe to call
+     * again after a reload; the new runtime gets fresh functions.
+     */
+    void install(long runtimePointer) {
+        if (runtimePointer == 0) {
+            throw new IllegalStateException("JS runtime not available");
+        }
+        synchronized (BinaryBridge.class) {
+            if (!libraryLoaded) {
+                // React Native has normally loaded it already; this only makes sure
+                System.loadLibrary("appmodules");
+                libraryLoaded = true;
+            }
+        }
+        nativeInstall(runtimePointer);
+    }
+
+    // Keeps the payload until JS takes it and returns its handle
+    synchronized int offer(byte[] payload) {
+        int handle = nextHandle++;
+        if (nextHandle <= 0) {
+            nextHandle = 1;
+        }
+        waiting.put(handle, payload);
+        Iterator<byte[]> iterator = waiting.values().iterator();
+        while (waiting.size() > MAX_WAITING) {
+            iterator.next();
+            iterator.remove();
+            dropped++;
+        }
+        return handle;
+    }
+
+    synchronized int getDroppedCount() {
+        return dropped;
+    }
+
+    synchronized void clear() {
+        waiting.clear();
+    }
+
+    // Called from JSI on the JS thread
+    synchronized byte[] takeBytes(int handle) {
+        return waiting.remove(handle);
+    }
+
+    // Called from JSI on the JS thread
+    int sendBytes(String peerId, byte[] data, String type) {
+        return sender.sendBytes(peerId, data, type);
+    }
+
+    private native void nativeInstall(long runtimePointer);
+}
@@ -0,0 +1,400 @@
+package com.kavach.p2p;
+
+import com.kavach.p2p.transport.Backoff;
+import com.kavach.p2p.transport.Cancellable;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Takes a device from discovery to a socket that has finished its handshake:
+ * DISCOVERING -> INVITED -> GROUP_FORMED -> SOCKET_OPEN -> READY. Every transition is timed, so the
+ * slow phase can be told apart from the rest, and both invitations and socket connects are retried
+ * with jittered exponential backoff instead of fixed JS timers.
+ *
+ * <p>A group formed by the other side (we were invited) enters at GROUP_FORMED. While the group is
+ * up, a client whose socket drops goes back to GROUP_FORMED and reconnects on its own.
+ *
+ * <p>An attempt completes only on the handshake of the device it was started for. While a group is
+ * up the owner invites further devices into it; a client cannot join a second group, so an attempt
+ * to anyone but its owner is rejected.
+ *
+ * <p>Inputs arrive on the main looper and the transport I/O thread, so every entry point is
+ * synchronized. The driver and listener are called with the lock held and must not block.
+ */
+class ConnectionStateMachine {
+    enum State { IDLE, DISCOVERING, INVITED, GROUP_FORMED, SOCKET_OPEN, READY }
+
+    interface Driver {
+        void discoverPeers();
+
+        void invite(String deviceAddress);
+
+        void listen();
+
+        void openSocket(String host);
+
+        // Peer id of the open connection whose handshake announced this device address, or null
+        String connectedPeerId(String deviceAddress);
+
+        Cancellable schedule(Runnable task, long delayMs);
+    }
+
+    interface Listener {
+        // phaseMs is how long the previous state lasted, totalMs the time since the attempt began
+        void onTransition(State from, State to, long phaseMs, long totalMs);
+
+        void onReady(Timing timing);
+
+        void onFailed(String reason, boolean timedOut, Timing timing);
+    }
+
+    static final class Timing {
+        final String deviceAddress;
+        final String peerId;
+        final boolean groupOwner;
+        final long totalMs;
+        final Map<State, Long> phaseMs;
+        final int inviteAttempts;
+        final int socketAttempts;
+
+        Timing(String deviceAddress, String peerId, boolean groupOwner, long totalMs,
+                Map<State, Long> phaseMs, int inviteAttempts, int socketAttempts) {
+            this.deviceAddress = deviceAddress;
+            this.peerId = peerId;
+            this.groupOwner = groupOwner;
+            this.totalMs = totalMs;
+            this.phaseMs = phaseMs;
+            this.inviteAttempts = inviteAttempts;
+            this.socketAttempts = socketAttempts;
+        }
+    }
+
+    private static final long INVITE_BACKOFF_INITIAL_MS = 500;
+    private static final long INVITE_BACKOFF_MAX_MS = 4000;
+    // The owner's server usually comes up within a few hundred ms of the group forming
+    private static final long SOCKET_BACKOFF_INITIAL_MS = 100;
+    private static final long SOCKET_BACKOFF_MAX_MS = 2000;
+
+    private final Driver driver;
+    private final Listener listener;
+    private final Backoff inviteBackoff = new Backoff(INVITE_BACKOFF_INITIAL_MS, INVITE_BACKOFF_MAX_MS);
+    private final Backoff socketBackoff = new Backoff(SOCKET_BACKOFF_INITIAL_MS, SOCKET_BACKOFF_MAX_MS);
+
+    private State state = State.IDLE;
+    private String targetAddress;
+    private String ownerAddress;
+    private String peerId;
+    private boolean groupOwner = false;
+    // Set while a connectAndOpen() caller is waiting for READY
+    private boolean attemptPending = false;
+    private boolean invitePending = false;
+    // Set while the owner waits for targetAddress to join the group it already has
+    private boolean joining = false;
+    private boolean joinInviteSent = false;
+    private long startNanos;
+    private long phaseStartNanos;
+    private final Map<State, Long> phaseMs = new EnumMap<>(State.class);
+    private int inviteAttempts = 0;
+    private int socketAttempts = 0;
+    private Cancellable retryTimer;
+    private Cancellable deadlineTimer;
+
+    ConnectionStateMachine(Driver driver, Listener listener) {
+        this.driver = driver;
+        this.listener = listener;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized boolean isAttemptPending() {
+        return attemptPending;
+    }
+
+    // Once a group is up the machine opens, retries and replaces the socket to the owner itself
+    synchronized boolean ownsSocket() {
+        return state == State.GROUP_FORMED || state == State.SOCKET_OPEN || state == State.READY;
+    }
+
+    /**
+     * Starts a connectAndOpen() attempt. A device that is already a connected member is reported
+     * at once. With no group, discovery starts and the device is invited as soon as it shows up;
+     * an owner invites it into the group it has, and a client that is still reaching its owner
+     * waits to see whether that owner is the device.
+     */
+    synchronized void start(String deviceAddress, long timeoutMs) {
+        if (attemptPending) {
+            throw new IllegalStateException("A connection attempt is already in progress");
+        }
+        attemptPending = true;
+        targetAddress = deviceAddress;
+
+        String memberPeerId = driver.connectedPeerId(deviceAddress);
+        if (memberPeerId != null) {
+            peerId = memberPeerId;
+            finishReady();
+            return;
+        }
+        if (state == State.READY && !groupOwner) {
+            // The owner has answered and isn't the device; Wi-Fi Direct allows one group at a time
+            beginTiming();
+            failAttempt("Already in a group with another owner; disconnect before connecting to "
+                + deviceAddress, false);
+            return;
+        }
+        deadlineTimer = driver.schedule(this::onDeadline, timeoutMs);
+        if (state == State.DISCOVERING || state == State.INVITED) {
+            return;
+        }
+        if (state != State.IDLE) {
+            // Timing restarts so the result never carries a peer from before this attempt
+            beginTiming();
+            if (groupOwner) {
+                joining = true;
+                joinInviteSent = false;
+                inviteBackoff.reset();
+                invitePending = false;
+                driver.discoverPeers();
+            }
+            return;
+        }
+
+        beginTiming();
+        inviteBackoff.reset();
+        invitePending = false;
+        transition(State.DISCOVERING);
+        driver.discoverPeers();
+    }
+
+    synchronized void onPeersChanged(Collection<String> deviceAddresses) {
+        if (wantsInvite() && !invitePending && retryTimer == null
+                && deviceAddresses.contains(targetAddress)) {
+            sendInvite();
+        }
+    }
+
+    synchronized void onInviteSent() {
+        invitePending = false;
+        if (state == State.DISCOVERING) {
+            transition(State.INVITED);
+        } else if (joining) {
+            joinInviteSent = true;
+        }
+    }
+
+    synchronized void onInviteFailed(String reason) {
+        invitePending = false;
+        if (!wantsInvite()) {
+            return;
+        }
+        long delayMs = inviteBackoff.nextDelayMs();
+        P2PLog.d("Invite to {} failed ({}), retrying in {}ms", targetAddress, reason, delayMs);
+        retryTimer = driver.schedule(() -> {
+            synchronized (this) {
+                retryTimer = null;
+                if (wantsInvite()) {
+                    sendInvite();
+                }
+            }
+        }, delayMs);
+    }
+
+    synchronized void onGroupFormed(boolean isGroupOwner, String groupOwnerAddress) {
+        // The connection-changed broadcast repeats while the group is up
+        if (state == State.GROUP_FORMED || state == State.SOCKET_OPEN || state == State.READY) {
+            return;
+        }
+        if (state == State.IDLE) {
+            // The other side invited us
+            beginTiming();
+        }
+        cancelRetry();
+        groupOwner = isGroupOwner;
+        ownerAddress = groupOwnerAddress;
+        socketBackoff.reset();
+        transition(State.GROUP_FORMED);
+        if (groupOwner) {
+            driver.listen();
+        } else {
+            openSocket();
+        }
+    }
+
+    synchronized void onGroupRemoved() {
+        // Negotiation fires "not formed" broadcasts of its own, so only a group we had counts
+        if (state == State.GROUP_FORMED || state == State.SOCKET_OPEN || state == State.READY) {
+            cancelRetry();
+            transition(State.IDLE);
+            failAttempt("Group removed", false);
+        }
+    }
+
+    synchronized void onSocketOpen(String connectionPeerId) {
+        if (state != State.GROUP_FORMED) {
+            return;
+        }
+        cancelRetry();
+        peerId = connectionPeerId;
+        transition(State.SOCKET_OPEN);
+    }
+
+    synchronized void onSocketFailed(String connectionPeerId, Exception cause) {
+        if (state != State.GROUP_FORMED || groupOwner || retryTimer != null) {
+            return;
+        }
+        scheduleSocketRetry(cause != null ? cause.getMessage() : "closed");
+    }
+
+    /**
+     * A connection finished its handshake; {@code deviceAddress} is the one the peer announced, or
+     * null for peers that don't send one, which are taken to be the device asked for.
+     */
+    synchronized void onHandshake(String connectionPeerId, String deviceAddress) {
+        if (state == State.SOCKET_OPEN) {
+            transition(State.READY);
+        }
+        if (state != State.READY || !attemptPending) {
+            return;
+        }
+        if (deviceAddress != null && !deviceAddress.equals(targetAddress)) {
+            if (!groupOwner) {
+                failAttempt("Joined a group owned by " + deviceAddress + " instead of " + targetAddress, false);
+            }
+            // Another member joined the owner's group; keep waiting for the target
+            return;
+        }
+        peerId = connectionPeerId;
+        finishReady();
+    }
+
+    synchronized void onSocketClosed(String connectionPeerId, boolean anyOpen) {
+        if ((state != State.SOCKET_OPEN && state != State.READY) || anyOpen) {
+            return;
+        }
+        peerId = null;
+        socketBackoff.reset();
+        transition(State.GROUP_FORMED);
+        if (!groupOwner) {
+            scheduleSocketRetry("connection closed");
+        }
+    }
+
+    // Disconnect or teardown: drop everything and fail a waiting caller
+    synchronized void reset(String reason) {
+        cancelRetry();
+        if (state != State.IDLE) {
+            transition(State.IDLE);
+        }
+        failAttempt(reason, false);
+    }
+
+    private boolean wantsInvite() {
+        return state == State.DISCOVERING || (joining && !joinInviteSent);
+    }
+
+    private void sendInvite() {
+        invitePending = true;
+        inviteAttempts++;
+        driver.invite(targetAddress);
+    }
+
+    private void openSocket() {
+        socketAttempts++;
+        driver.openSocket(ownerAddress);
+    }
+
+    private void scheduleSocketRetry(String reason) {
+        long delayMs = socketBackoff.nextDelayMs();
+        P2PLog.d("Socket to {} failed ({}), retrying in {}ms", ownerAddress, reason, delayMs);
+        retryTimer = driver.schedule(() -> {
+            synchronized (this) {
+                retryTimer = null;
+                if (state == State.GROUP_FORMED && !groupOwner) {
+                    openSocket();
+                }
+            }
+        }, delayMs);
+    }
+
+    private void onDeadline() {
+        synchronized (this) {
+            deadlineTimer = null;
+            if (!attemptPending) {
+                return;
+            }
+            State stuckIn = state;
+            if (joining) {
+                cancelRetry();
+                failAttempt("Timed out waiting for " + targetAddress + " to join the group", true);
+                return;
+            }
+            // Give up on invitations; a group that has formed keeps reconnecting on its own
+            if (state == State.DISCOVERING || state == State.INVITED) {
+                cancelRetry();
+                transition(State.IDLE);
+            }
+            failAttempt("Timed out in " + stuckIn, true);
+        }
+    }
+
+    private void beginTiming() {
+        startNanos = System.nanoTime();
+        phaseStartNanos = startNanos;
+        phaseMs.clear();
+        inviteAttempts = 0;
+        socketAttempts = 0;
+        peerId = null;
+    }
+
+    private void transition(State to) {
+        long now = System.nanoTime();
+        long spentMs = (now - phaseStartNanos) / 1_000_000L;
+        State from = state;
+        if (from != State.IDLE) {
+            phaseMs.merge(from, spentMs, Long::sum);
+        }
+        state = to;
+        phaseStartNanos = now;
+        listener.onTransition(from, to, spentMs, (now - startNanos) / 1_000_000L);
+    }
+
+    private void finishReady() {
+        Timing timing = snapshot();
+        clearAttempt();
+        listener.onReady(timing);
+    }
+
+    private void failAttempt(String reason, boolean timedOut) {
+        if (!attemptPending) {
+            return;
+        }
+        Timing timing = snapshot();
+        clearAttempt();
+        listener.onFailed(reason, timedOut, timing);
+    }
+
+    private void clearAttempt() {
+        attemptPending = false;
+        joining = false;
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel();
+            deadlineTimer = null;
+        }
+    }
+
+    private void cancelRetry() {
+        invitePending = false;
+        if (retryTimer != null) {
+            retryTimer.cancel();
+            retryTimer = null;
+        }
+    }
+
+    private Timing snapshot() {
+        return new Timing(targetAddress, peerId, groupOwner, (System.nanoTime() - startNanos) / 1_000_000L,
+            new EnumMap<>(phaseMs), inviteAttempts, socketAttempts);
+    }
+}
@@ -0,0 +1,150 @@
+package com.kavach.p2p;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects module events for a short window and ships them to JS as a single
+ * WIFI_P2P_EVENT_BATCH event, so a burst of socket reads or peer refreshes costs one bridge crossing
+ * instead of one per event. State events only keep their latest value within a batch.
+ */
+class EventDispatcher {
+    static final String BATCH_EVENT = "WIFI_P2P_EVENT_BATCH";
+    static final int DEFAULT_WINDOW_MS = 16;
+    static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    private final ReactApplicationContext reactContext;
+    private final Set<String> stateEvents;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+    // Held from taking a batch until it is emitted, so the I/O thread and the timer on the main
+    // looper cannot emit batches out of order. Taken before the lock on this, never after.
+    private final Object emitLock = new Object();
+
+    private final List<PendingEvent> pending = new ArrayList<>();
+    private final Map<String, PendingEvent> latestState = new HashMap<>();
+    private int liveEvents = 0;
+    private boolean flushScheduled = false;
+    private volatile int windowMs = DEFAULT_WINDOW_MS;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    EventDispatcher(ReactApplicationContext reactContext, Set<String> stateEvents) {
+        this.reactContext = reactContext;
+        this.stateEvents = stateEvents;
+    }
+
+    void configure(int windowMs, int maxBatchSize) {
+        this.windowMs = Math.max(0, windowMs);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    void dispatch(String eventName, WritableMap params) {
+        if (windowMs == 0) {
+            synchronized (emitLock) {
+                flush();
+                emit(eventName, params);
+            }
+            return;
+        }
+
+        boolean flushNow;
+        synchronized (this) {
+            PendingEvent event = new PendingEvent(eventName, params);
+            if (stateEvents.contains(eventName)) {
+                PendingEvent previous = latestState.put(eventName, event);
+                if (previous != null) {
+                    previous.superseded = true;
+                    liveEvents--;
+                }
+            }
+            pending.add(event);
+            liveEvents++;
+
+            flushNow = liveEvents >= maxBatchSize;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                handler.postDelayed(flushRunnable, windowMs);
+            }
+        }
+
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    void flush() {
+        synchronized (emitLock) {
+            List<PendingEvent> batch;
+            synchronized (this) {
+                if (flushScheduled) {
+                    handler.removeCallbacks(flushRunnable);
+                    flushScheduled = false;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(pending);
+                pending.clear();
+                latestState.clear();
+                liveEvents = 0;
+            }
+            emitBatch(batch);
+        }
+    }
+
+    private void emitBatch(List<PendingEvent> batch) {
+        WritableArray events = Arguments.createArray();
+        for (PendingEvent event : batch) {
+            if (event.superseded) {
+                continue;
+            }
+            WritableMap entry = Arguments.createMap();
+            entry.putString("type", event.name);
+            entry.putMap("payload", event.params);
+            events.pushMap(entry);
+        }
+
+        WritableMap params = Arguments.createMap();
+        params.putArray("events", events);
+        emit(BATCH_EVENT, params);
+    }
+
+    void shutdown() {
+        handler.removeCallbacks(flushRunnable);
+        synchronized (this) {
+            pending.clear();
+            latestState.clear();
+            liveEvents = 0;
+            flushScheduled = false;
+        }
+    }
+
+    private void emit(String eventName, WritableMap params) {
+        reactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(eventName, params);
+    }
+
+    private static final class PendingEvent {
+        final String name;
+        final WritableMap params;
+        boolean superseded = false;
+
+        PendingEvent(String name, WritableMap params) {
+            this.name = name;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.kavach.p2p;
+
+import android.util.Log;
+
+import com.kavach.BuildConfig;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging for the P2P module that stays off the I/O threads. A call below the current level returns
+ * before anything is built; an enabled one drops a record into a lock-free ring and returns, and a
+ * background thread formats the records and writes them to logcat. The ring also keeps the most
+ * recent records for {@link #dumpRecent}, so a field build can hand over its log without adb.
+ *
+ * <p>Messages take {@code {}} placeholders that are filled in on the drain thread. A trailing
+ * Throwable without a placeholder is logged with its stack trace. Message bodies go through
+ * {@link #payload}, which redacts them unless payload logging is on, and truncates them when it is.
+ */
+final class P2PLog {
+    static final String TAG = "WifiP2pModule";
+    static final int NONE = Log.ERROR + 1;
+    // Power of two so a sequence number maps to its slot with a mask
+    static final int RING_SIZE = 1024;
+    static final int MAX_LINE_LENGTH = 1024;
+    static final int DEFAULT_PAYLOAD_CHARS = 64;
+    private static final long DRAIN_INTERVAL_MS = 100;
+
+    private static volatile int level = BuildConfig.DEBUG ? Log.DEBUG : Log.INFO;
+    private static volatile boolean logPayloads = false;
+    private static volatile int payloadChars = DEFAULT_PAYLOAD_CHARS;
+
+    private static final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<>(RING_SIZE);
+    private static final AtomicLong nextSeq = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    // Drain thread only
+    private static long drainedSeq = 0;
+    private static final Thread drainer = new Thread(P2PLog::drainLoop, "p2p-log");
+
+    static {
+        drainer.setDaemon(true);
+        drainer.setPriority(Thread.MIN_PRIORITY);
+        drainer.start();
+    }
+
+    private P2PLog() {
+    }
+
+    static boolean isEnabled(int priority) {
+        return priority >= level;
+    }
+
+    static void setLevel(int priority) {
+        level = priority;
+    }
+
+    static int getLevel() {
+        return level;
+    }
+
+    // Off by default: message bodies are user data and only show up as their length
+    static void setPayloadLogging(boolean enabled, int maxChars) {
+        payloadChars = Math.max(0, maxChars);
+        logPayloads = enabled;
+    }
+
+    static Object payload(CharSequence body) {
+        return new Payload(body);
+    }
+
+    // Records the ring overwrote before the drain thread got to them
+    static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    static void d(String message) {
+        if (isEnabled(Log.DEBUG)) {
+            append(Log.DEBUG, message, null);
+        }
+    }
+
+    static void d(String message, Object arg) {
+        if (isEnabled(Log.DEBUG)) {
+            append(Log.DEBUG, message, new Object[] {arg});
+        }
+    }
+
+    static void d(String message, Object arg1, Object arg2) {
+        if (isEnabled(Log.DEBUG)) {
+            append(Log.DEBUG, message, new Object[] {arg1, arg2});
+        }
+    }
+
+    static void d(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Log.DEBUG)) {
+            append(Log.DEBUG, message, new Object[] {arg1, arg2, arg3});
+        }
+    }
+
+    static void d(String message, Object... args) {
+        if (isEnabled(Log.DEBUG)) {
+            append(Log.DEBUG, message, args);
+        }
+    }
+
+    static void i(String message) {
+        if (isEnabled(Log.INFO)) {
+            append(Log.INFO, message, null);
+        }
+    }
+
+    static void i(String message, Object arg) {
+        if (isEnabled(Log.INFO)) {
+            append(Log.INFO, message, new Object[] {arg});
+        }
+    }
+
+    static void i(String message, Object arg1, Object arg2) {
+        if (isEnabled(Log.INFO)) {
+            append(Log.INFO, message, new Object[] {arg1, arg2});
+        }
+    }
+
+    static void i(String message, Object... args) {
+        if (isEnabled(Log.INFO)) {
+            append(Log.INFO, message, args);
+        }
+    }
+
+    static void w(String message) {
+        if (isEnabled(Log.WARN)) {
+            append(Log.WARN, message, null);
+        }
+    }
+
+    static void w(String message, Object arg) {
+        if (isEnabled(Log.WARN)) {
+            append(Log.WARN, message, new Object[] {arg});
+        }
+    }
+
+    static void w(String message, Object arg1, Object arg2) {
+        if (isEnabled(Log.WARN)) {
+            append(Log.WARN, message, new Object[] {arg1, arg2});
+        }
+    }
+
+    static void w(String message, Object... args) {
+        if (isEnabled(Log.WARN)) {
+            append(Log.WARN, message, args);
+        }
+    }
+
+    static void e(String message) {
+        if (isEnabled(Log.ERROR)) {
+            append(Log.ERROR, message, null);
+        }
+    }
+
+    static void e(String message, Object arg) {
+        if (isEnabled(Log.ERROR)) {
+            append(Log.ERROR, message, new Object[] {arg});
+        }
+    }
+
+    static void e(String message, Object arg1, Object arg2) {
+        if (isEnabled(Log.ERROR)) {
+            append(Log.ERROR, message, new Object[] {arg1, arg2});
+        }
+    }
+
+    static void e(String message, Object... args) {
+        if (isEnabled(Log.ERROR)) {
+            append(Log.ERROR, message, args);
+        }
+    }
+
+    /**
+     * The most recent records still in the ring, oldest first, formatted with a timestamp, level and
+     * thread. Records written while this runs may or may not be included.
+     */
+    static List<String> dumpRecent(int maxLines) {
+        long end = nextSeq.get();
+        long start = Math.max(0, end - Math.min(Math.max(maxLines, 0), RING_SIZE));
+        SimpleDateFormat time = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        List<String> lines = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            Record record = ring.get(slot(seq));
+            // Not written yet, or already overwritten by a newer lap
+            if (record == null || record.seq != seq) {
+                continue;
+            }
+            lines.add(time.format(new Date(record.timeMs)) + " " + levelLetter(record.priority) + " [" +
+                record.thread + "] " + record.line());
+        }
+        return lines;
+    }
+
+    // Wakes the drain thread so everything logged so far reaches logcat soon
+    static void flush() {
+        LockSupport.unpark(drainer);
+    }
+
+    static int parseLevel(String name) {
+        switch (name == null ? "" : name.toLowerCase(Locale.US)) {
+            case "verbose":
+                return Log.VERBOSE;
+            case "debug":
+                return Log.DEBUG;
+            case "info":
+                return Log.INFO;
+            case "warn":
+                return Log.WARN;
+            case "error":
+                return Log.ERROR;
+            case "none":
+                return NONE;
+            default:
+                throw new IllegalArgumentException("Unknown log level: " + name);
+        }
+    }
+
+    private static void append(int priority, String message, Object[] args) {
+        long seq = nextSeq.getAndIncrement();
+        ring.set(slot(seq), new Record(seq, priority, message, args));
+        if (priority >= Log.WARN) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    private static int slot(long seq) {
+        return (int) (seq & (RING_SIZE - 1));
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            drain();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_INTERVAL_MS));
+        }
+    }
+
+    private static void drain() {
+        long end = nextSeq.get();
+        while (drainedSeq < end) {
+            Record record = ring.get(slot(drainedSeq));
+            if (record == null || record.seq < drainedSeq) {
+                // Claimed but not written yet; pick it up on the next pass
+                return;
+            }
+            if (record.seq == drainedSeq) {
+                try {
+                    Log.println(record.priority, TAG, record.line());
+                } catch (RuntimeException e) {
+                    // A toString() that throws must not take the drain thread down with it
+                    dropped.incrementAndGet();
+                }
+            } else {
+                dropped.incrementAndGet();
+            }
+            drainedSeq++;
+        }
+    }
+
+    private static char levelLetter(int priority) {
+        switch (priority) {
+            case Log.VERBOSE:
+                return 'V';
+            case Log.DEBUG:
+                return 'D';
+            case Log.INFO:
+                return 'I';
+            case Log.WARN:
+                return 'W';
+            default:
+                return 'E';
+        }
+    }
+
+    static String format(String message, Object[] args) {
+        if (args == null || args.length == 0) {
+            return truncate(message);
+        }
+        StringBuilder line = new StringBuilder(message.length() + 16 * args.length);
+        int argIndex = 0;
+        int from = 0;
+        int placeholder;
+        while (argIndex < args.length && (placeholder = message.indexOf("{}", from)) >= 0) {
+            line.append(message, from, placeholder).append(args[argIndex++]);
+            from = placeholder + 2;
+        }
+        line.append(message, from, message.length());
+        if (argIndex < args.length && args[args.length - 1] instanceof Throwable) {
+            line.append('\n').append(Log.getStackTraceString((Throwable) args[args.length - 1]));
+        }
+        return truncate(line.toString());
+    }
+
+    private static String truncate(String line) {
+        if (line.length() <= MAX_LINE_LENGTH) {
+            return line;
+        }
+        return line.substring(0, MAX_LINE_LENGTH) + "... (" + (line.length() - MAX_LINE_LENGTH) + " more chars)";
+    }
+
+    private static final class Record {
+        final long seq;
+        final int priority;
+        final long timeMs = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        private final String message;
+        private final Object[] args;
+        private volatile String line;
+
+        Record(long seq, int priority, String message, Object[] args) {
+            this.seq = seq;
+            this.priority = priority;
+            this.message = message;
+            this.args = args;
+        }
+
+        // Formatted once, by whichever of the drain thread and dumpRecent gets there first
+        String line() {
+            String formatted = line;
+            if (formatted == null) {
+                formatted = format(message, args);
+                line = formatted;
+            }
+            return formatted;
+        }
+    }
+
+    // Takes the payload settings at the call, not when the drain thread gets to it
+    private static final class Payload {
+        private final CharSequence body;
+        private final boolean redact = !logPayloads;
+        private final int max = payloadChars;
+
+        Payload(CharSequence body) {
+            this.body = body;
+        }
+
+        @Override
+        public String toString() {
+            if (body == null) {
+                return "null";
+            }
+            if (redact) {
+                return "<" + body.length() + " chars redacted>";
+            }
+            if (body.length() <= max) {
+                return "\"" + body + "\"";
+            }
+            return "\"" + body.subSequence(0, max) + "\"... (" + body.length() + " chars)";
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.kavach.p2p;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every device seen during discovery, keyed by device address. Each peer-list refresh is diffed
+ * against the table, so only devices that appeared, changed name or status, or expired need to
+ * cross the bridge. A device that drops out of the framework's list is kept until it has gone
+ * unseen for the TTL, which keeps peers flickering at the edge of range from churning the UI.
+ *
+ * <p>Connected devices are indexed separately so "who are we connected to" doesn't need a scan.
+ */
+class PeerTable {
+    static final long DEFAULT_TTL_MS = 30000;
+    static final int MAX_STATUS_HISTORY = 8;
+
+    static final class Peer {
+        final String deviceAddress;
+        final long firstSeenMs;
+        String deviceName;
+        int status;
+        long lastSeenMs;
+        // Oldest first, each entry is {status, timeMs}
+        final Deque<long[]> statusHistory = new ArrayDeque<>();
+
+        Peer(String deviceAddress, String deviceName, int status, long nowMs) {
+            this.deviceAddress = deviceAddress;
+            this.deviceName = deviceName;
+            this.status = status;
+            this.firstSeenMs = nowMs;
+            this.lastSeenMs = nowMs;
+            statusHistory.add(new long[] {status, nowMs});
+        }
+    }
+
+    static final class Delta {
+        final List<Peer> added = new ArrayList<>();
+        final List<Peer> changed = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+
+        boolean isEmpty() {
+            return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    // What the framework reported for one device in a peer-list refresh
+    static final class Sighting {
+        final String deviceAddress;
+        final String deviceName;
+        final int status;
+
+        Sighting(String deviceAddress, String deviceName, int status) {
+            this.deviceAddress = deviceAddress;
+            this.deviceName = deviceName;
+            this.status = status;
+        }
+    }
+
+    private final int connectedStatus;
+    private final int unavailableStatus;
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final Map<String, Peer> connected = new LinkedHashMap<>();
+    private long ttlMs = DEFAULT_TTL_MS;
+
+    PeerTable(int connectedStatus, int unavailableStatus) {
+        this.connectedStatus = connectedStatus;
+        this.unavailableStatus = unavailableStatus;
+    }
+
+    synchronized void setTtlMs(long ttlMs) {
+        this.ttlMs = Math.max(0, ttlMs);
+    }
+
+    synchronized long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * Folds a full peer-list refresh into the table. Devices missing from the list are left to the
+     * TTL, except connected ones, which are marked unavailable straight away. A device can show up
+     * as both changed and removed; removals should be applied last.
+     */
+    synchronized Delta update(Collection<Sighting> sightings, long nowMs) {
+        Delta delta = new Delta();
+        Set<String> seen = new HashSet<>();
+        for (Sighting sighting : sightings) {
+            seen.add(sighting.deviceAddress);
+            Peer peer = peers.get(sighting.deviceAddress);
+            if (peer == null) {
+                peer = new Peer(sighting.deviceAddress, sighting.deviceName, sighting.status, nowMs);
+                peers.put(peer.deviceAddress, peer);
+                indexConnected(peer);
+                delta.added.add(peer);
+                continue;
+            }
+
+            peer.lastSeenMs = nowMs;
+            boolean changed = false;
+            if (!equalNames(peer.deviceName, sighting.deviceName)) {
+                peer.deviceName = sighting.deviceName;
+                changed = true;
+            }
+            if (setStatus(peer, sighting.status, nowMs) || changed) {
+                delta.changed.add(peer);
+            }
+        }
+        
+        // The framework always lists the devices we're connected to, so a missing one has gone
+        for (Peer peer : new ArrayList<>(connected.values())) {
+            if (!seen.contains(peer.deviceAddress)) {
+                setStatus(peer, unavailableStatus, nowMs);
+                delta.changed.add(peer);
+            }
+        }
+        evictExpired(nowMs, delta);
+        return delta;
+    }
+
+    synchronized Delta evictExpired(long nowMs) {
+        Delta delta = new Delta();
+        evictExpired(nowMs, delta);
+        return delta;
+    }
+
+    synchronized Peer get(String deviceAddress) {
+        return peers.get(deviceAddress);
+    }
+
+    synchronized boolean isConnected(String deviceAddress) {
+        return connected.containsKey(deviceAddress);
+    }
+
+    // The first connected device, which for a client is the only one
+    synchronized Peer getConnectedPeer() {
+        Iterator<Peer> iterator = connected.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    synchronized List<Peer> getConnectedPeers() {
+        return new ArrayList<>(connected.values());
+    }
+
+    synchronized List<Peer> snapshot() {
+        return new ArrayList<>(peers.values());
+    }
+
+    synchronized boolean isEmpty() {
+        return peers.isEmpty();
+    }
+
+    synchronized void clear() {
+        peers.clear();
+        connected.clear();
+    }
+
+    private void evictExpired(long nowMs, Delta delta) {
+        Iterator<Peer> iterator = peers.values().iterator();
+        while (iterator.hasNext()) {
+            Peer peer = iterator.next();
+            // A connected device stays until the framework reports it as something else
+            if (peer.status != connectedStatus && nowMs - peer.lastSeenMs > ttlMs) {
+                iterator.remove();
+                delta.removed.add(peer.deviceAddress);
+            }
+        }
+    }
+
+    private boolean setStatus(Peer peer, int status, long nowMs) {
+        if (peer.status == status) {
+            return false;
+        }
+        peer.status = status;
+        peer.statusHistory.add(new long[] {status, nowMs});
+        if (peer.statusHistory.size() > MAX_STATUS_HISTORY) {
+            peer.statusHistory.removeFirst();
+        }
+        indexConnected(peer);
+        return true;
+    }
+
+    private void indexConnected(Peer peer) {
+        if (peer.status == connectedStatus) {
+            connected.put(peer.deviceAddress, peer);
+        } else {
+            connected.remove(peer.deviceAddress);
+        }
+    }
+
+    private static boolean equalNames(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
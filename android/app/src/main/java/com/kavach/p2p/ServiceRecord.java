@@ -0,0 +1,106 @@
+package com.kavach.p2p;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What a Kavach device advertises over DNS-SD as {@code _kavach._tcp}. The TXT record is what lets a
+ * client pick the right verifier before forming a group, so keys are kept short: the whole record
+ * has to fit in the service discovery frame alongside the instance name.
+ */
+final class ServiceRecord {
+    static final String SERVICE_TYPE = "_kavach._tcp";
+    static final String ROLE_VERIFIER = "verifier";
+    static final String ROLE_HOLDER = "holder";
+
+    private static final String KEY_ROLE = "role";
+    private static final String KEY_VERSION = "v";
+    private static final String KEY_CAPABILITIES = "caps";
+    private static final String KEY_FINGERPRINT = "fp";
+    // Hex characters of SHA-256 kept in the fingerprint; enough to tell verifiers apart on site
+    private static final int FINGERPRINT_LENGTH = 16;
+
+    final String role;
+    final int protocolVersion;
+    final int capabilities;
+    final String fingerprint;
+
+    ServiceRecord(String role, int protocolVersion, int capabilities, String fingerprint) {
+        if (!ROLE_VERIFIER.equals(role) && !ROLE_HOLDER.equals(role)) {
+            throw new IllegalArgumentException("Unknown role: " + role);
+        }
+        this.role = role;
+        this.protocolVersion = protocolVersion;
+        this.capabilities = capabilities;
+        this.fingerprint = fingerprint;
+    }
+
+    Map<String, String> toTxtRecord() {
+        Map<String, String> txt = new HashMap<>();
+        txt.put(KEY_ROLE, role);
+        txt.put(KEY_VERSION, Integer.toString(protocolVersion));
+        txt.put(KEY_CAPABILITIES, Integer.toHexString(capabilities));
+        if (fingerprint != null) {
+            txt.put(KEY_FINGERPRINT, fingerprint);
+        }
+        return txt;
+    }
+
+    // Returns null for records that aren't from a Kavach device or that it can't make sense of
+    static ServiceRecord fromTxtRecord(Map<String, String> txt) {
+        if (txt == null) {
+            return null;
+        }
+        try {
+            String role = txt.get(KEY_ROLE);
+            int version = Integer.parseInt(txt.get(KEY_VERSION));
+            String capabilities = txt.get(KEY_CAPABILITIES);
+            return new ServiceRecord(role, version,
+                capabilities != null ? (int) Long.parseLong(capabilities, 16) : 0, txt.get(KEY_FINGERPRINT));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // A null role or a version of 0 matches anything
+    boolean matches(String wantedRole, int minVersion) {
+        return (wantedRole == null || wantedRole.equals(role)) && protocolVersion >= minVersion;
+    }
+
+    static String fingerprint(byte[] publicKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(publicKey);
+            StringBuilder hex = new StringBuilder(FINGERPRINT_LENGTH);
+            for (int i = 0; i < FINGERPRINT_LENGTH / 2; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String fingerprint(String publicKey) {
+        return fingerprint(publicKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ServiceRecord)) {
+            return false;
+        }
+        ServiceRecord record = (ServiceRecord) other;
+        return role.equals(record.role) && protocolVersion == record.protocolVersion
+            && capabilities == record.capabilities
+            && (fingerprint == null ? record.fingerprint == null : fingerprint.equals(record.fingerprint));
+    }
+
+    @Override
+    public int hashCode() {
+        return role.hashCode() * 31 + protocolVersion;
+    }
+}
@@ -4,6 +4,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.Uri;
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pDevice;
 import android.net.wifi.p2p.WifiP2pDeviceList;
@@ -12,49 +13,152 @@ import android.net.wifi.p2p.WifiP2pManager;
 import android.net.wifi.WpsInfo;
 import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
 import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceRequest;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.kavach.BuildConfig;
+import com.kavach.crypto.CertificateVerifier;
+import com.kavach.crypto.PayloadCodec;
+import com.kavach.p2p.transport.Cancellable;
+import com.kavach.p2p.transport.DuplicateFilter;
+import com.kavach.p2p.transport.FileTransferManager;
+import com.kavach.p2p.transport.Frame;
+import com.kavach.p2p.transport.Handshake;
+import com.kavach.p2p.transport.Identity;
+import com.kavach.p2p.transport.Lane;
+import com.kavach.p2p.transport.LatencyHistogram;
+import com.kavach.p2p.transport.MessageId;
+import com.kavach.p2p.transport.Outbox;
+import com.kavach.p2p.transport.OutboxFullException;
+import com.kavach.p2p.transport.PeerConnection;
+import com.kavach.p2p.transport.PeerLostException;
+import com.kavach.p2p.transport.RequestManager;
+import com.kavach.p2p.transport.RequestTimeoutException;
+import com.kavach.p2p.transport.RoutingTable;
+import com.kavach.p2p.transport.SendCallback;
+import com.kavach.p2p.transport.SendQueueFullException;
+import com.kavach.p2p.transport.TransportEngine;
+import com.kavach.p2p.transport.TransportMetrics;
 
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WifiP2pModule extends ReactContextBaseJavaModule {
     private static final String MODULE_NAME = "WifiP2pModule";
     private static final int SERVER_PORT = 8888;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    // connectAndOpen() retries failed sockets, so each attempt can give up much sooner
+    private static final int SOCKET_ATTEMPT_TIMEOUT_MS = 3000;
+    private static final int CONNECT_AND_OPEN_TIMEOUT_MS = 30000;
+    // How long sendMessage() waits for the peer to acknowledge a message
+    private static final int ACK_TIMEOUT_MS = 10000;
+    private static final String DEVICE_NAME_PREFIX = "Kavach-";
+    private static final String WIFI_ERROR_PREFIX = "wifiError.";
+    
+    // Events that describe current state; only the latest one per batch reaches JS
+    private static final Set<String> STATE_EVENTS = new HashSet<>(Arrays.asList(
+        "WIFI_P2P_STATE_CHANGED",
+        "WIFI_P2P_CONNECTION_CHANGED"
+    ));
     
     private final ReactApplicationContext reactContext;
+    private final EventDispatcher eventDispatcher;
     private WifiP2pManager manager;
     private WifiP2pManager.Channel channel;
     private BroadcastReceiver receiver;
     private IntentFilter intentFilter;
     
-    private ServerSocket serverSocket;
-    private Socket clientSocket; // For client connections to server
-    private Socket serverConnectionSocket; // For server-side accepted connections
+    // Single selector thread that owns every socket
+    private final TransportEngine transport = new TransportEngine(new TransportListener());
+    // Every open socket, keyed by the remote peer's IP. A client only ever has the group owner in here.
+    private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final FileTransferManager fileTransfers;
+    private final RequestManager requests = new RequestManager(transport, new RequestListener());
+    // Binary payloads to and from JS over JSI; send ids tie WIFI_P2P_BINARY_SENT back to sendBytes
+    private final BinaryBridge binaryBridge = new BinaryBridge(this::sendBytes);
+    private final AtomicInteger nextBinarySendId = new AtomicInteger(1);
+    // Every outgoing message is written here before it is sent and kept until the peer has it.
+    // Opened on first use; see getOutbox().
+    private Outbox outbox;
+    private boolean outboxClosed = false;
+    // Outbox entries being sent right now, and the connection carrying each
+    private final Map<Long, PeerConnection> outboxInFlight = new ConcurrentHashMap<>();
+    // Ids of messages already passed to JS, so a second copy is dropped
+    private final DuplicateFilter duplicates = new DuplicateFilter();
+    // Group members by device address; the group owner relays between its clients through it
+    private final RoutingTable routes = new RoutingTable();
+    // This device's Wi-Fi Direct address, once the framework has told us
+    private volatile String localAddress;
+    // Identity key (base64) each device address must authenticate with, set from JS
+    private final Map<String, String> pinnedIdentities = new ConcurrentHashMap<>();
+    // When set, a peer whose device address has no pin is turned away as well
+    private volatile boolean requirePinnedIdentity = false;
+    private final ConnectionStateMachine connectionMachine;
+    private volatile Promise pendingConnectAndOpen;
+    // Promises waiting on a file transfer, keyed by transfer id
+    private final Map<String, Promise> pendingFileSends = new ConcurrentHashMap<>();
+    private final Map<String, List<Promise>> pendingFileReceives = new ConcurrentHashMap<>();
+    // Sized to the device's cores, created on first certificate check
+    private ForkJoinPool verificationPool;
     private boolean isGroupOwner = false;
     private String groupOwnerAddress;
     
-    private final List<WifiP2pDevice> peers = new ArrayList<>();
+    // Every device seen recently; only the differences between refreshes are sent to JS
+    private final PeerTable peerTable = new PeerTable(WifiP2pDevice.CONNECTED, WifiP2pDevice.UNAVAILABLE);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable peerSweep = this::sweepPeers;
+    private boolean peerSweepScheduled = false;
+    private final Runnable metricsTick = this::emitMetrics;
+    private int metricsIntervalMs = 0;
+    
+    // Kavach services seen during service discovery, keyed by device address
+    private final Map<String, ServiceRecord> discoveredServices = new ConcurrentHashMap<>();
+    private volatile String serviceFilterRole;
+    private volatile int serviceFilterMinVersion = 0;
+    private String deviceName;
 
     public WifiP2pModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
+        this.eventDispatcher = new EventDispatcher(reactContext, STATE_EVENTS);
+        this.fileTransfers = new FileTransferManager(
+            new File(reactContext.getFilesDir(), "p2p-transfers"), new FileTransferListener());
+        this.connectionMachine = new ConnectionStateMachine(new ConnectionDriver(), new ConnectionPhaseListener());
+        transport.setLocalHandshake(Handshake.empty().withCapabilities(
+            Handshake.CAP_DEFLATE | Handshake.CAP_HEARTBEAT | Handshake.CAP_REQUESTS | Handshake.CAP_BINARY
+                | Handshake.CAP_MESSAGE_ID | Handshake.CAP_RELAY));
+        transport.setIdentityVerifier(this::isTrustedPeer);
+        if (BuildConfig.DEBUG) {
+            transport.getBufferPool().setLeakDetection((capacity, heldMs, acquiredAt) ->
+                P2PLog.w("Transport buffer of {} bytes held for {}ms without release", capacity, heldMs, acquiredAt));
+        }
     }
 
     @Override
@@ -88,6 +192,7 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
 
                 @Override
                 public void onFailure(int reasonCode) {
+                    recordFailure("discoverPeers", reasonCode);
                     promise.reject("DISCOVERY_ERROR", "Failed to start peer discovery: " + reasonCode);
                 }
             });
@@ -107,6 +212,7 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
 
                 @Override
                 public void onFailure(int reasonCode) {
+                    recordFailure("stopPeerDiscovery", reasonCode);
                     promise.reject("STOP_DISCOVERY_ERROR", "Failed to stop peer discovery: " + reasonCode);
                 }
             });
@@ -122,30 +228,67 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
             return;
         }
 
-        WifiP2pConfig config = new WifiP2pConfig();
-        config.deviceAddress = deviceAddress;
-        
-        // Set connection preferences for better reliability
-        config.wps.setup = WpsInfo.PBC; // Push button configuration
-        config.groupOwnerIntent = 15; // High intent to become group owner
-
-        android.util.Log.d("WifiP2pModule", "Attempting connection to: " + deviceAddress);
-
-        manager.connect(channel, config, new WifiP2pManager.ActionListener() {
+        invite(deviceAddress, new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
-                android.util.Log.d("WifiP2pModule", "Connection initiated successfully");
+                P2PLog.d("Connection initiated successfully");
                 promise.resolve(true);
             }
 
             @Override
             public void onFailure(int reasonCode) {
+                recordFailure("connect", reasonCode);
                 String errorMsg = getConnectionErrorMessage(reasonCode);
-                android.util.Log.e("WifiP2pModule", "Connection failed: " + errorMsg + " (code: " + reasonCode + ")");
+                P2PLog.e("Connection failed: {} (code: {})", errorMsg, reasonCode);
                 promise.reject("CONNECT_ERROR", "Failed to connect: " + errorMsg + " (code: " + reasonCode + ")");
             }
         });
     }
+
+    private void invite(String deviceAddress, WifiP2pManager.ActionListener listener) {
+        WifiP2pConfig config = new WifiP2pConfig();
+        config.deviceAddress = deviceAddress;
+        
+        // Set connection preferences for better reliability
+        config.wps.setup = WpsInfo.PBC; // Push button configuration
+        config.groupOwnerIntent = 15; // High intent to become group owner
+
+        P2PLog.d("Attempting connection to: {}", deviceAddress);
+        manager.connect(channel, config, listener);
+    }
+
+    // Discovery, invitation, group formation and the socket handshake in one call. Resolves once
+    // the channel is usable, with how long each phase took; WIFI_P2P_CONNECTION_PHASE reports
+    // every transition as it happens.
+    @ReactMethod
+    public void connectAndOpen(String deviceAddress, Promise promise) {
+        if (manager == null || channel == null) {
+            promise.reject("NOT_INITIALIZED", "WiFi P2P not initialized");
+            return;
+        }
+        
+        try {
+            // The transport owns the retry and deadline timers
+            transport.start();
+        } catch (IOException e) {
+            promise.reject("CONNECT_ERROR", "Failed to start transport: " + e.getMessage(), e);
+            return;
+        }
+        
+        synchronized (connectionMachine) {
+            if (connectionMachine.isAttemptPending()) {
+                promise.reject("CONNECT_IN_PROGRESS", "Another connection attempt is still in progress");
+                return;
+            }
+            pendingConnectAndOpen = promise;
+            connectionMachine.start(deviceAddress, CONNECT_AND_OPEN_TIMEOUT_MS);
+        }
+    }
+    
+    // Framework failures are counted per operation and reason code for getTransportMetrics()
+    private void recordFailure(String operation, int reasonCode) {
+        transport.getMetrics().increment(WIFI_ERROR_PREFIX + operation + "." + reasonCode);
+    }
     
     private String getConnectionErrorMessage(int reasonCode) {
         switch (reasonCode) {
@@ -167,11 +310,13 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
                 @Override
                 public void onSuccess() {
                     closeConnections();
+                    connectionMachine.reset("Disconnected");
                     promise.resolve(true);
                 }
 
                 @Override
                 public void onFailure(int reasonCode) {
+                    recordFailure("removeGroup", reasonCode);
                     promise.reject("DISCONNECT_ERROR", "Failed to disconnect: " + reasonCode);
                 }
             });
@@ -180,109 +325,1397 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
         }
     }
 
+    // type is the P2PMessage type ("consent", "verification", "system" or "chat") and picks the
+    // outbound lane, so consent and verification traffic goes ahead of chat and files. messageId is
+    // the P2PMessage id, which receivers use to drop repeats; null gets a generated one.
     @ReactMethod
-    public void sendMessage(String message, Promise promise) {
-        new Thread(() -> {
-            try {
-                android.util.Log.d("WifiP2pModule", "Sending message: " + message + " (isGroupOwner: " + isGroupOwner + ")");
-                
+    public void sendMessage(String message, String type, String messageId, Promise promise) {
+        try {
+            P2PLog.d("Sending message {} (isGroupOwner: {})", P2PLog.payload(message), isGroupOwner);
+            
+            if (connections.isEmpty()) {
+                // Not kept for whichever device connects next: nothing says it is the one meant
                 if (isGroupOwner) {
-                    // Group owner sends to connected client
-                    if (serverConnectionSocket != null && serverConnectionSocket.isConnected()) {
-                        sendMessageToClient(message);
-                        promise.resolve(true);
-                    } else {
-                        android.util.Log.e("WifiP2pModule", "No client connected to server. serverConnectionSocket: " + 
-                            (serverConnectionSocket != null ? "exists but not connected" : "null"));
-                        promise.reject("NO_CLIENT", "No client connected. Wait for a device to connect.");
-                    }
+                    P2PLog.e("No client connected to server");
+                    promise.reject("NO_CLIENT", "No client connected. Wait for a device to connect.");
                 } else {
-                    // Client sends to group owner
-                    if (clientSocket != null && clientSocket.isConnected()) {
-                        sendMessageToServer(message);
-                        promise.resolve(true);
-                    } else {
-                        android.util.Log.e("WifiP2pModule", "Not connected to server. clientSocket: " + 
-                            (clientSocket != null ? "exists but not connected" : "null"));
-                        promise.reject("NO_CONNECTION", "Not connected to group owner server");
-                    }
+                    P2PLog.e("Not connected to server");
+                    promise.reject("NO_CONNECTION", "Not connected to group owner server");
                 }
-            } catch (Exception e) {
-                android.util.Log.e("WifiP2pModule", "Send message error: " + e.getMessage());
-                promise.reject("SEND_ERROR", "Failed to send message: " + e.getMessage(), e);
+                return;
             }
-        }).start();
+            
+            // Group owner sends to every connected client, a client only has the group owner
+            sendToAll(withMessageId(messageId, message), Lane.forMessageType(type), promise, false);
+        } catch (Exception e) {
+            P2PLog.e("Send message error: {}", e.getMessage());
+            promise.reject("SEND_ERROR", "Failed to send message: " + e.getMessage(), e);
+        }
     }
 
+    // peerId is a socket address, which the next group may give to another device, so a peer
+    // that isn't connected is an error here; sendToMember() queues by device address instead
     @ReactMethod
-    public void checkPermissions(Promise promise) {
+    public void sendTo(String peerId, String message, String type, String messageId, Promise promise) {
+        Lane lane = Lane.forMessageType(type);
+        byte[] body = withMessageId(messageId, message);
+        PeerConnection connection = connections.get(peerId);
+        if (connection == null || !connection.isOpen()) {
+            promise.reject("NO_PEER", "No open connection to peer: " + peerId);
+            return;
+        }
+        
         try {
-            WritableMap result = Arguments.createMap();
-            
-            // Check location permissions
-            boolean fineLocation = checkSelfPermission("android.permission.ACCESS_FINE_LOCATION");
-            boolean coarseLocation = checkSelfPermission("android.permission.ACCESS_COARSE_LOCATION");
-            
-            result.putBoolean("fineLocation", fineLocation);
-            result.putBoolean("coarseLocation", coarseLocation);
-            
-            // Check location services enabled
-            android.location.LocationManager locationManager = (android.location.LocationManager) 
-                reactContext.getSystemService(Context.LOCATION_SERVICE);
-            boolean locationEnabled = locationManager.isLocationEnabled();
-            result.putBoolean("locationServicesEnabled", locationEnabled);
-            
-            // Check WiFi state
-            android.net.wifi.WifiManager wifiManager = (android.net.wifi.WifiManager) 
-                reactContext.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-            boolean wifiEnabled = wifiManager.isWifiEnabled();
-            result.putBoolean("wifiEnabled", wifiEnabled);
+            sendRecorded(connection, tryRecord(peerKeyOf(connection), lane, Frame.FLAG_MESSAGE_ID, body), body,
+                Frame.FLAG_MESSAGE_ID, lane, true, promiseCallback(promise));
+        } catch (Exception e) {
+            P2PLog.e("Send to {} error: {}", peerId, e.getMessage());
+            promise.reject("SEND_ERROR", "Failed to send message to " + peerId + ": " + e.getMessage(), e);
+        }
+    }
+
+    @ReactMethod
+    public void broadcast(String message, String type, String messageId, Promise promise) {
+        try {
+            sendToAll(withMessageId(messageId, message), Lane.forMessageType(type), promise, true);
+        } catch (Exception e) {
+            P2PLog.e("Broadcast error: {}", e.getMessage());
+            promise.reject("SEND_ERROR", "Failed to broadcast message: " + e.getMessage(), e);
+        }
+    }
+
+    // Sends to a group member by its device address (P2PMessage.toDevice). Clients have no socket
+    // to each other, so unless the member is directly connected the message goes through the group
+    // owner, which relays it. With nowhere to send it yet it waits in the outbox.
+    @ReactMethod
+    public void sendToMember(String deviceAddress, String message, String type, String messageId, Promise promise) {
+        try {
+            Lane lane = Lane.forMessageType(type);
+            byte[] body = withMessageId(messageId, message);
+            PeerConnection direct = routes.lookup(deviceAddress);
+            if (direct != null) {
+                sendRecorded(direct, tryRecord(deviceAddress, lane, Frame.FLAG_MESSAGE_ID, body), body,
+                    Frame.FLAG_MESSAGE_ID, lane, true, promiseCallback(promise));
+                return;
+            }
             
-            android.util.Log.d("WifiP2pModule", "Permission check - Fine Location: " + fineLocation + 
-                ", Coarse Location: " + coarseLocation + ", Location Services: " + locationEnabled + 
-                ", WiFi: " + wifiEnabled);
-                
-            promise.resolve(result);
+            byte flags = Frame.FLAG_MESSAGE_ID | Frame.FLAG_ROUTED;
+            byte[] routed = RoutingTable.addRoute(lane, deviceAddress, localAddress != null ? localAddress : "", body);
+            List<PeerConnection> unaddressed = unaddressedPeers();
+            if (!unaddressed.isEmpty()) {
+                // An older build doesn't say who it is and may be the one. It gets the plain message;
+                // members that did announce themselves are not the target and get nothing.
+                sendToAll(unaddressed, body, Frame.FLAG_MESSAGE_ID, lane, (delivered, queued, lastError) ->
+                    settle(promise, delivered, queued, lastError, false));
+                return;
+            }
+            if (isGroupOwner) {
+                // Not in the group right now; goes out when it joins
+                if (!queueForLater(deviceAddress, lane, flags, routed, promise)) {
+                    promise.reject("NO_PEER", "Member " + deviceAddress + " is not connected");
+                }
+                return;
+            }
+            if (connections.isEmpty()) {
+                // Not kept for whichever group owner we reach next; it would read the message too
+                promise.reject("NO_CONNECTION", "Not connected to group owner server");
+                return;
+            }
+            for (PeerConnection connection : connections.values()) {
+                Handshake remote = connection.getRemoteHandshake();
+                if (connection.isOpen() && remote != null && remote.has(Handshake.CAP_RELAY)) {
+                    sendRecorded(connection, tryRecord(peerKeyOf(connection), lane, flags, routed), routed, flags, lane,
+                        true, promiseCallback(promise));
+                    return;
+                }
+            }
+            promise.reject("NO_ROUTE", "No route to " + deviceAddress);
         } catch (Exception e) {
-            promise.reject("PERMISSION_CHECK_ERROR", "Failed to check permissions", e);
+            P2PLog.e("Send to member {} error: {}", deviceAddress, e.getMessage());
+            promise.reject("SEND_ERROR", "Failed to send message to " + deviceAddress + ": " + e.getMessage(), e);
         }
     }
-    
-    private boolean checkSelfPermission(String permission) {
-        return reactContext.checkSelfPermission(permission) == android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+    // Who a direct message came from, for duplicate suppression: the device address the peer
+    // announced, which survives reconnects, or else its peer id
+    private static String senderOf(PeerConnection connection) {
+        Handshake remote = connection.getRemoteHandshake();
+        String address = remote != null ? remote.get(RoutingTable.ATTRIBUTE_ADDRESS) : null;
+        return address != null ? address : connection.getPeerId();
+    }
+
+    // The key a peer's outbox entries are kept under: the device address it announced, which
+    // outlives the connection. Socket addresses are handed out again with every group (the owner is
+    // always 192.168.49.1), so they never are one; null means nothing is kept for this peer.
+    private static String peerKeyOf(PeerConnection connection) {
+        Handshake remote = connection.getRemoteHandshake();
+        return remote != null ? remote.get(RoutingTable.ATTRIBUTE_ADDRESS) : null;
+    }
+
+    // Open connections whose peer didn't announce its device address in the handshake
+    private List<PeerConnection> unaddressedPeers() {
+        List<PeerConnection> unaddressed = new ArrayList<>();
+        for (PeerConnection connection : connections.values()) {
+            Handshake remote = connection.getRemoteHandshake();
+            if (connection.isOpen() && remote != null && remote.get(RoutingTable.ATTRIBUTE_ADDRESS) == null) {
+                unaddressed.add(connection);
+            }
+        }
+        return unaddressed;
+    }
+
+    // Passes a routed message on, as the same bytes, to the member it is addressed to. It is kept
+    // in the outbox until that member acknowledges it, like anything this device sends.
+    private void relay(PeerConnection from, byte flags, byte[] body, RoutingTable.Route route) {
+        PeerConnection target = routes.lookup(route.getDestination());
+        Handshake remote = target != null ? target.getRemoteHandshake() : null;
+        if (target == null || target == from || !isGroupOwner
+                || ((flags & Frame.FLAG_BINARY) != 0 && (remote == null || !remote.has(Handshake.CAP_BINARY)))) {
+            transport.getMetrics().increment("relayUnroutable");
+            P2PLog.w("No route from {} to {}", from.getPeerId(), route.getDestination());
+            return;
+        }
+        byte forwarded = (byte) (flags & (Frame.FLAG_BINARY | Frame.FLAG_MESSAGE_ID | Frame.FLAG_ROUTED));
+        transport.getMetrics().increment("relayForwarded");
+        sendRecorded(target, tryRecord(route.getDestination(), route.getLane(), forwarded, body), body, forwarded,
+            route.getLane(), false, new DeliveryCallback() {
+                @Override
+                public void onSent() {
+                }
+
+                @Override
+                public void onQueued() {
+                }
+
+                @Override
+                public void onFailed(Exception cause) {
+                    P2PLog.w("Relay to {} failed: {}", route.getDestination(), cause.getMessage());
+                }
+            });
+    }
+
+    // Installs global.__kavachP2P (sendBytes/takeBytes, see BinaryBridge) into the JS runtime.
+    // Synchronous so it runs on the JS thread, which is the only place the runtime may be touched.
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public boolean installBinaryApi() {
+        try {
+            binaryBridge.install(reactContext.getJavaScriptContextHolder().get());
+            return true;
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            P2PLog.e("Binary API unavailable: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    // Called by BinaryBridge on the JS thread. Never throws: failures, including a missing peer,
+    // arrive as WIFI_P2P_BINARY_SENT with ok false, like any other send result.
+    private int sendBytes(String peerId, byte[] data, String type) {
+        int sendId = nextBinarySendId.getAndIncrement();
+        byte flags = Frame.FLAG_BINARY | Frame.FLAG_MESSAGE_ID;
+        byte[] body = MessageId.prefix(MessageId.generate(), data);
+        List<PeerConnection> targets = new ArrayList<>();
+        if (peerId == null) {
+            targets.addAll(connections.values());
+        } else {
+            PeerConnection connection = connections.get(peerId);
+            if (connection != null) {
+                targets.add(connection);
+            }
+        }
+        String unsupported = null;
+        for (PeerConnection connection : targets) {
+            Handshake remote = connection.getRemoteHandshake();
+            if (remote == null || !remote.has(Handshake.CAP_BINARY)) {
+                unsupported = connection.getPeerId();
+            }
+        }
+        if (targets.isEmpty()) {
+            // Like sendTo(), nothing is kept for a socket address or for whoever connects next
+            emitBinarySent(sendId, 0, "NO_PEER",
+                peerId != null ? "No open connection to peer: " + peerId : "No connected peers");
+        } else if (unsupported != null) {
+            emitBinarySent(sendId, 0, "UNSUPPORTED", "Peer " + unsupported + " does not support binary messages");
+        } else {
+            sendToAll(targets, body, flags, Lane.forMessageType(type), (delivered, queued, lastError) -> {
+                if (delivered == 0 && queued == 0 && lastError != null) {
+                    emitBinarySent(sendId, 0, sendErrorCode(lastError), lastError.getMessage());
+                } else {
+                    emitBinarySent(sendId, delivered, null, null);
+                }
+            });
+        }
+        return sendId;
+    }
+
+    private void emitBinarySent(int sendId, int delivered, String code, String error) {
+        WritableMap params = Arguments.createMap();
+        params.putInt("sendId", sendId);
+        params.putBoolean("ok", code == null);
+        params.putInt("delivered", delivered);
+        if (code != null) {
+            params.putString("code", code);
+            params.putString("error", error);
+        }
+        sendEvent("WIFI_P2P_BINARY_SENT", params);
+    }
+
+    // Sends a request and resolves with the peer's response: {peerId, requestId, payload, latencyMs}.
+    // Up to the request window's worth are pipelined per peer, the rest wait their turn.
+    @ReactMethod
+    public void request(String peerId, String payload, int timeoutMs, Promise promise) {
+        PeerConnection connection = connections.get(peerId);
+        if (connection == null || !connection.isOpen()) {
+            promise.reject("NO_PEER", "No open connection to peer: " + peerId);
+            return;
+        }
+        Handshake remote = connection.getRemoteHandshake();
+        if (remote == null || !remote.has(Handshake.CAP_REQUESTS)) {
+            promise.reject("UNSUPPORTED", "Peer " + peerId + " does not support requests");
+            return;
+        }
+        
+        requests.request(connection, payload.getBytes(StandardCharsets.UTF_8), timeoutMs,
+            new RequestManager.ResponseCallback() {
+                @Override
+                public void onResponse(byte[] body, long latencyNanos) {
+                    WritableMap response = Arguments.createMap();
+                    response.putString("peerId", peerId);
+                    response.putString("payload", new String(body, StandardCharsets.UTF_8));
+                    response.putDouble("latencyMs", latencyNanos / 1e6);
+                    promise.resolve(response);
+                }
+
+                @Override
+                public void onFailed(Exception cause) {
+                    String code = cause instanceof RequestTimeoutException ? "REQUEST_TIMEOUT"
+                        : cause instanceof SendQueueFullException ? "QUEUE_FULL" : "REQUEST_ERROR";
+                    promise.reject(code, "Request to " + peerId + " failed: " + cause.getMessage(), cause);
+                }
+            });
+    }
+
+    // Answers a WIFI_P2P_REQUEST_RECEIVED event
+    @ReactMethod
+    public void respond(String peerId, int requestId, String payload, Promise promise) {
+        PeerConnection connection = connections.get(peerId);
+        if (connection == null || !connection.isOpen()) {
+            promise.reject("NO_PEER", "No open connection to peer: " + peerId);
+            return;
+        }
+        
+        try {
+            requests.respond(connection, requestId, payload.getBytes(StandardCharsets.UTF_8));
+            promise.resolve(true);
+        } catch (IOException e) {
+            promise.reject(e instanceof SendQueueFullException ? "QUEUE_FULL" : "SEND_ERROR",
+                "Failed to respond to " + peerId + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Requests and acknowledged messages in flight per peer at once
+    @ReactMethod
+    public void setRequestWindow(int window, Promise promise) {
+        requests.setWindow(window);
+        promise.resolve(requests.getWindow());
+    }
+
+    // Resolves the promise once the peer has acknowledged the message, or for peers that can't
+    // acknowledge, once it has been written to the socket
+    private DeliveryCallback promiseCallback(Promise promise) {
+        return new DeliveryCallback() {
+            @Override
+            public void onSent() {
+                promise.resolve(true);
+            }
+
+            @Override
+            public void onQueued() {
+                promise.resolve(queuedResult());
+            }
+
+            @Override
+            public void onFailed(Exception cause) {
+                promise.reject(sendErrorCode(cause), "Failed to send message: " + cause.getMessage(), cause);
+            }
+        };
+    }
+
+    private static String sendErrorCode(Exception cause) {
+        if (cause instanceof SendQueueFullException) {
+            return "QUEUE_FULL";
+        }
+        return cause instanceof RequestTimeoutException ? "SEND_TIMEOUT" : "SEND_ERROR";
+    }
+
+    // Sends an acknowledged message when the peer supports it; the callback then fires on the ack.
+    // flags is 0 or Frame.FLAG_BINARY, plus Frame.FLAG_MESSAGE_ID when body starts with an id and
+    // Frame.FLAG_ROUTED when a route header comes before that; both are taken off again for peers
+    // that don't understand them.
+    private void send(PeerConnection connection, byte[] body, byte flags, Lane lane, SendCallback callback)
+            throws IOException {
+        Handshake remote = connection.getRemoteHandshake();
+        if ((flags & Frame.FLAG_ROUTED) != 0 && (remote == null || !remote.has(Handshake.CAP_RELAY))) {
+            body = RoutingTable.stripRoute(body, RoutingTable.readRoute(body));
+            flags &= ~Frame.FLAG_ROUTED;
+        }
+        if ((flags & Frame.FLAG_MESSAGE_ID) != 0 && (flags & Frame.FLAG_ROUTED) == 0
+                && (remote == null || !remote.has(Handshake.CAP_MESSAGE_ID))) {
+            body = MessageId.strip(body);
+            flags &= ~Frame.FLAG_MESSAGE_ID;
+        }
+        if (remote == null || !remote.has(Handshake.CAP_REQUESTS)) {
+            connection.send(new Frame(Frame.TYPE_MESSAGE, flags, body), lane, callback);
+            return;
+        }
+        requests.sendAcked(connection, body, flags, lane, ACK_TIMEOUT_MS,
+            new RequestManager.ResponseCallback() {
+                @Override
+                public void onResponse(byte[] response, long latencyNanos) {
+                    callback.onSent();
+                }
+
+                @Override
+                public void onFailed(Exception cause) {
+                    callback.onFailed(cause);
+                }
+            });
+    }
+
+    // A send that can also end with the message kept in the outbox: the connection dropped before
+    // it was acknowledged, and it goes out again when the same peer reconnects
+    private interface DeliveryCallback extends SendCallback {
+        void onQueued();
+    }
+
+    private interface SendOutcome {
+        // queued counts peers whose copy waits in the outbox; lastError is the last failure, or
+        // null if there was none
+        void onDone(int delivered, int queued, Exception lastError);
+    }
+
+    // What a send resolves with when the message is only kept for later, so that it can't be
+    // taken for delivered
+    private static WritableMap queuedResult() {
+        WritableMap result = Arguments.createMap();
+        result.putBoolean("queued", true);
+        return result;
+    }
+
+    // Rejects only if nobody got the message or kept it; {queued: true} if it only waits in the
+    // outbox, otherwise true or, with resolveWithCount, the number of peers reached
+    private static void settle(Promise promise, int delivered, int queued, Exception lastError,
+            boolean resolveWithCount) {
+        if (delivered == 0 && queued == 0 && lastError != null) {
+            promise.reject(sendErrorCode(lastError), "Failed to send message: " + lastError.getMessage(), lastError);
+        } else if (resolveWithCount) {
+            promise.resolve(delivered);
+        } else if (delivered == 0 && queued > 0) {
+            promise.resolve(queuedResult());
+        } else {
+            promise.resolve(true);
+        }
+    }
+
+    // Sends to every open connection and settles the promise once every peer has acknowledged (or
+    // the write went out, for peers that can't, or the connection dropped and the message waits
+    // in the outbox).
+    private void sendToAll(byte[] body, Lane lane, Promise promise, boolean resolveWithCount) {
+        List<PeerConnection> targets = new ArrayList<>(connections.values());
+        if (targets.isEmpty()) {
+            if (resolveWithCount) {
+                promise.resolve(0);
+            } else {
+                promise.reject("NO_CONNECTION", "No connected peers");
+            }
+            return;
+        }
+        
+        sendToAll(targets, body, Frame.FLAG_MESSAGE_ID, lane, (delivered, queued, lastError) ->
+            settle(promise, delivered, queued, lastError, resolveWithCount));
+    }
+
+    // Sends the same body to every target and reports once all of them have finished
+    private void sendToAll(List<PeerConnection> targets, byte[] body, byte flags, Lane lane, SendOutcome outcome) {
+        AtomicInteger remaining = new AtomicInteger(targets.size());
+        AtomicInteger delivered = new AtomicInteger(0);
+        AtomicInteger queued = new AtomicInteger(0);
+        DeliveryCallback callback = new DeliveryCallback() {
+            private volatile Exception lastError;
+
+            @Override
+            public void onSent() {
+                delivered.incrementAndGet();
+                finishOne();
+            }
+
+            @Override
+            public void onQueued() {
+                queued.incrementAndGet();
+                finishOne();
+            }
+
+            @Override
+            public void onFailed(Exception cause) {
+                lastError = cause;
+                finishOne();
+            }
+
+            private void finishOne() {
+                if (remaining.decrementAndGet() == 0) {
+                    outcome.onDone(delivered.get(), queued.get(), lastError);
+                }
+            }
+        };
+        
+        for (PeerConnection connection : targets) {
+            sendRecorded(connection, tryRecord(peerKeyOf(connection), lane, flags, body), body, flags, lane, true,
+                callback);
+        }
+    }
+
+    // Opened on first use. Null if it can't be (or the module is gone), and sends then go out
+    // without a durable copy.
+    private synchronized Outbox getOutbox() {
+        if (outbox == null && !outboxClosed) {
+            try {
+                outbox = new Outbox(new File(reactContext.getFilesDir(), "p2p-outbox"));
+                P2PLog.d("Outbox opened with {} pending messages", outbox.getPendingCount());
+            } catch (IOException e) {
+                P2PLog.e("Outbox unavailable: {}", e.getMessage());
+            }
+        }
+        return outbox;
+    }
+
+    // The UTF-8 message behind its MessageId
+    private static byte[] withMessageId(String messageId, String message) {
+        String id = messageId != null && !messageId.isEmpty() ? messageId : MessageId.generate();
+        return MessageId.prefix(id, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String outboxErrorCode(IOException cause) {
+        return cause instanceof OutboxFullException ? "OUTBOX_FULL" : "OUTBOX_ERROR";
+    }
+
+    // Writes the message to the outbox ahead of sending it. Null if that fails or the peer has no
+    // key (see peerKeyOf); it is then sent anyway, just not kept.
+    private Outbox.Entry tryRecord(String peerKey, Lane lane, byte flags, byte[] body) {
+        Outbox outbox = getOutbox();
+        if (outbox == null || peerKey == null) {
+            return null;
+        }
+        try {
+            return outbox.append(peerKey, lane, flags, body);
+        } catch (IOException e) {
+            P2PLog.w("Sending to {} without an outbox copy: {}", peerKey, e.getMessage());
+            return null;
+        }
+    }
+
+    // Keeps a message for a member that isn't connected, by its device address, and resolves the
+    // promise with {queued: true}; false if there is no outbox to keep it in
+    private boolean queueForLater(String peerKey, Lane lane, byte flags, byte[] body, Promise promise) {
+        Outbox outbox = getOutbox();
+        if (outbox == null) {
+            return false;
+        }
+        try {
+            outbox.append(peerKey, lane, flags, body);
+            P2PLog.d("Queued message for {} until it connects", peerKey);
+            promise.resolve(queuedResult());
+        } catch (IOException e) {
+            promise.reject(outboxErrorCode(e), "Failed to queue message for " + peerKey + ": " + e.getMessage(), e);
+        }
+        return true;
     }
 
-    @ReactMethod
-    public void forceClientConnection(String serverAddress, Promise promise) {
-        android.util.Log.d("WifiP2pModule", "Force connecting to server: " + serverAddress);
-        connectToServer(serverAddress);
-        promise.resolve(true);
+    // Sends an outbox entry (or a plain message, when entry is null) and settles the entry with the
+    // send. If the connection drops first the entry stays for replayOutbox and the callback hears
+    // onQueued; any other failure discards it when discardOnFailure is set, as the caller is told.
+    private void sendRecorded(PeerConnection connection, Outbox.Entry entry, byte[] body, byte flags, Lane lane,
+            boolean discardOnFailure, DeliveryCallback callback) {
+        SendCallback settling = callback;
+        if (entry != null) {
+            long seq = entry.getSequence();
+            outboxInFlight.put(seq, connection);
+            settling = new SendCallback() {
+                @Override
+                public void onSent() {
+                    outboxInFlight.remove(seq, connection);
+                    settleOutboxEntry(seq);
+                    callback.onSent();
+                }
+
+                @Override
+                public void onFailed(Exception cause) {
+                    outboxInFlight.remove(seq, connection);
+                    if (!connection.isOpen()) {
+                        P2PLog.d("Keeping message {} for {} until it reconnects", seq, connection.getPeerId());
+                        callback.onQueued();
+                        return;
+                    }
+                    if (discardOnFailure) {
+                        settleOutboxEntry(seq);
+                    }
+                    callback.onFailed(cause);
+                }
+            };
+        }
+        try {
+            send(connection, body, flags, lane, settling);
+        } catch (IOException e) {
+            P2PLog.e("Failed to send to {}: {}", connection.getPeerId(), e.getMessage());
+            settling.onFailed(e);
+        }
+    }
+
+    private void settleOutboxEntry(long seq) {
+        Outbox outbox = getOutbox();
+        if (outbox == null) {
+            return;
+        }
+        try {
+            outbox.acknowledge(seq);
+        } catch (IOException e) {
+            // Worst case it is sent again after a restart
+            P2PLog.w("Failed to settle outbox entry {}: {}", seq, e.getMessage());
+        }
+    }
+
+    // Resends, oldest first, whatever the outbox holds for this peer's key (see peerKeyOf), straight
+    // from the log. Entries already on their way over another open connection are left to it. The
+    // request window paces the replay; whatever fails stays for the next handshake.
+    private void replayOutbox(PeerConnection connection) {
+        Outbox outbox = getOutbox();
+        String peerKey = peerKeyOf(connection);
+        if (outbox == null || peerKey == null) {
+            return;
+        }
+        Handshake remote = connection.getRemoteHandshake();
+        boolean binary = remote.has(Handshake.CAP_BINARY);
+        boolean relay = remote.has(Handshake.CAP_RELAY);
+        DeliveryCallback logFailure = new DeliveryCallback() {
+            @Override
+            public void onSent() {
+            }
+
+            @Override
+            public void onQueued() {
+            }
+
+            @Override
+            public void onFailed(Exception cause) {
+                P2PLog.w("Replay to {} failed: {}", connection.getPeerId(), cause.getMessage());
+            }
+        };
+        int replayed = 0;
+        for (Outbox.Entry entry : outbox.pendingFor(peerKey)) {
+            PeerConnection carrier = outboxInFlight.get(entry.getSequence());
+            if ((carrier != null && carrier.isOpen()) || ((entry.getFlags() & Frame.FLAG_BINARY) != 0 && !binary)
+                    || ((entry.getFlags() & Frame.FLAG_ROUTED) != 0 && !relay)) {
+                continue;
+            }
+            sendRecorded(connection, entry, outbox.read(entry), entry.getFlags(), entry.getLane(), false, logFailure);
+            replayed++;
+        }
+        if (replayed > 0) {
+            P2PLog.d("Replaying {} queued messages to {}", replayed, connection.getPeerId());
+        }
+    }
+
+    // {pending, byPeer: {device address: count}, segments, bytes, expired}
+    @ReactMethod
+    public void getOutboxStats(Promise promise) {
+        Outbox outbox = getOutbox();
+        if (outbox == null) {
+            promise.reject("OUTBOX_ERROR", "Outbox unavailable");
+            return;
+        }
+        WritableMap byPeer = Arguments.createMap();
+        for (Map.Entry<String, Integer> peer : outbox.getPendingCountByPeer().entrySet()) {
+            byPeer.putInt(peer.getKey(), peer.getValue());
+        }
+        WritableMap stats = Arguments.createMap();
+        stats.putInt("pending", outbox.getPendingCount());
+        stats.putMap("byPeer", byPeer);
+        stats.putInt("segments", outbox.getSegmentCount());
+        stats.putDouble("bytes", outbox.getMappedBytes());
+        stats.putDouble("expired", outbox.getExpiredCount());
+        promise.resolve(stats);
+    }
+
+    // Drops undelivered messages for the member with this device address, or all of them when it
+    // is null. Resolves with how many were dropped.
+    @ReactMethod
+    public void clearOutbox(String peerId, Promise promise) {
+        Outbox outbox = getOutbox();
+        if (outbox == null) {
+            promise.resolve(0);
+            return;
+        }
+        try {
+            promise.resolve(outbox.clear(peerId));
+        } catch (IOException e) {
+            promise.reject("OUTBOX_ERROR", "Failed to clear outbox: " + e.getMessage(), e);
+        }
+    }
+
+    // Streams a file to the peer in chunks. Passing the same transferId again (or null for the same
+    // uri) resumes from whatever the receiver already has.
+    @ReactMethod
+    public void sendFile(String peerId, String uriString, String transferId, Promise promise) {
+        PeerConnection connection = connections.get(peerId);
+        if (connection == null || !connection.isOpen()) {
+            promise.reject("NO_PEER", "No open connection to peer: " + peerId);
+            return;
+        }
+        
+        FileChannel source = null;
+        String id = null;
+        try {
+            Uri uri = Uri.parse(uriString);
+            String name = uri.getLastPathSegment() != null ? uri.getLastPathSegment() : "file";
+            if ("content".equals(uri.getScheme())) {
+                ParcelFileDescriptor descriptor = reactContext.getContentResolver().openFileDescriptor(uri, "r");
+                if (descriptor == null) {
+                    throw new IOException("Cannot open " + uriString);
+                }
+                source = new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+            } else {
+                String path = "file".equals(uri.getScheme()) ? uri.getPath() : uriString;
+                name = new File(path).getName();
+                source = new RandomAccessFile(path, "r").getChannel();
+            }
+            long size = source.size();
+            
+            id = transferId != null ? transferId
+                : UUID.nameUUIDFromBytes((uriString + ":" + size).getBytes(StandardCharsets.UTF_8)).toString();
+            pendingFileSends.put(id, promise);
+            P2PLog.d("Offering file {} ({} bytes) to {} as {}", name, size, peerId, id);
+            fileTransfers.sendFile(connection, id, name, source, size);
+        } catch (Exception e) {
+            if (id != null) {
+                // Settled here; nothing will come back for a transfer that never got offered
+                pendingFileSends.remove(id, promise);
+            }
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException ignored) {
+                    // Already failing
+                }
+            }
+            promise.reject("FILE_SEND_ERROR", "Failed to send file: " + e.getMessage(), e);
+        }
+    }
+
+    // Resolves once the given incoming transfer has been fully written to disk
+    @ReactMethod
+    public void receiveFile(String transferId, Promise promise) {
+        File completed = fileTransfers.findCompletedFile(transferId);
+        if (completed != null) {
+            promise.resolve(receivedFileInfo(transferId, null, completed.getName(), completed, completed.length()));
+            return;
+        }
+        pendingFileReceives.computeIfAbsent(transferId, id -> new ArrayList<>()).add(promise);
+    }
+
+    private WritableMap receivedFileInfo(String transferId, String peerId, String name, File file, long size) {
+        WritableMap result = Arguments.createMap();
+        result.putString("transferId", transferId);
+        if (peerId != null) {
+            result.putString("peerId", peerId);
+        }
+        result.putString("name", name);
+        result.putString("uri", Uri.fromFile(file).toString());
+        result.putDouble("size", size);
+        return result;
+    }
+
+    // Callbacks arrive on the transport's I/O thread
+    private class FileTransferListener implements FileTransferManager.Listener {
+        @Override
+        public void onOffered(String peerId, String transferId, String name, long size, long resumeOffset) {
+            WritableMap params = Arguments.createMap();
+            params.putString("peerId", peerId);
+            params.putString("transferId", transferId);
+            params.putString("name", name);
+            params.putDouble("size", size);
+            params.putDouble("resumeOffset", resumeOffset);
+            sendEvent("WIFI_P2P_FILE_OFFERED", params);
+        }
+
+        @Override
+        public void onProgress(String peerId, String transferId, boolean sending, long bytesTransferred, long totalBytes) {
+            WritableMap params = Arguments.createMap();
+            params.putString("peerId", peerId);
+            params.putString("transferId", transferId);
+            params.putString("direction", sending ? "send" : "receive");
+            params.putDouble("bytesTransferred", bytesTransferred);
+            params.putDouble("totalBytes", totalBytes);
+            sendEvent("WIFI_P2P_FILE_PROGRESS", params);
+        }
+
+        @Override
+        public void onSendComplete(String transferId, long size) {
+            Promise promise = pendingFileSends.remove(transferId);
+            if (promise != null) {
+                WritableMap result = Arguments.createMap();
+                result.putString("transferId", transferId);
+                result.putDouble("size", size);
+                promise.resolve(result);
+            }
+        }
+
+        @Override
+        public void onReceiveComplete(String peerId, String transferId, String name, File file, long size) {
+            P2PLog.d("Received file {} ({} bytes) from {}", name, size, peerId);
+            sendEvent("WIFI_P2P_FILE_RECEIVED", receivedFileInfo(transferId, peerId, name, file, size));
+            
+            List<Promise> waiting = pendingFileReceives.remove(transferId);
+            if (waiting != null) {
+                for (Promise promise : waiting) {
+                    promise.resolve(receivedFileInfo(transferId, peerId, name, file, size));
+                }
+            }
+        }
+
+        @Override
+        public void onFailed(String transferId, boolean sending, Exception cause) {
+            P2PLog.e("File transfer {} failed: {}", transferId, cause.getMessage());
+            WritableMap params = Arguments.createMap();
+            params.putString("transferId", transferId);
+            params.putString("direction", sending ? "send" : "receive");
+            params.putString("error", cause.getMessage());
+            sendEvent("WIFI_P2P_FILE_FAILED", params);
+            
+            if (sending) {
+                Promise promise = pendingFileSends.remove(transferId);
+                if (promise != null) {
+                    promise.reject("FILE_SEND_ERROR", "File transfer failed: " + cause.getMessage(), cause);
+                }
+            }
+        }
+    }
+
+    // Only affects connections opened afterwards; compression is agreed in the handshake
+    @ReactMethod
+    public void setCompressionEnabled(boolean enabled, Promise promise) {
+        Handshake local = transport.getLocalHandshake();
+        int capabilities = enabled
+            ? local.getCapabilities() | Handshake.CAP_DEFLATE
+            : local.getCapabilities() & ~Handshake.CAP_DEFLATE;
+        transport.setLocalHandshake(local.withCapabilities(capabilities));
+        promise.resolve(true);
+    }
+
+    // The device's Ed25519 key (PKCS#8 PEM, as Signer takes it). From now on every new connection
+    // is authenticated and encrypted, and peers that can't do that are disconnected.
+    @ReactMethod
+    public void setIdentityKey(String privateKeyPem, Promise promise) {
+        Identity identity;
+        try {
+            identity = Identity.fromPrivateKeyPem(privateKeyPem);
+        } catch (RuntimeException e) {
+            promise.reject("INVALID_KEY", "Invalid identity key: " + e.getMessage(), e);
+            return;
+        }
+        transport.setIdentity(identity, true);
+        promise.resolve(true);
+    }
+
+    // Requires the member with this device address to authenticate with identityKey (its Ed25519
+    // public key, base64, as WIFI_P2P_PEER_READY reports it); null removes the pin. Checked
+    // on every new connection, so an open one to the wrong device is closed here too.
+    @ReactMethod
+    public void pinPeerIdentity(String deviceAddress, String identityKey, Promise promise) {
+        if (identityKey == null) {
+            pinnedIdentities.remove(deviceAddress);
+            promise.resolve(true);
+            return;
+        }
+        try {
+            if (Base64.decode(identityKey).length != Identity.PUBLIC_KEY_SIZE) {
+                throw new IllegalArgumentException("expected " + Identity.PUBLIC_KEY_SIZE + " bytes");
+            }
+        } catch (RuntimeException e) {
+            promise.reject("INVALID_KEY", "Invalid identity key: " + e.getMessage(), e);
+            return;
+        }
+        pinnedIdentities.put(deviceAddress, identityKey);
+        for (PeerConnection connection : connections.values()) {
+            if (!isTrustedPeer(connection, connection.getRemoteHandshake(), connection.getRemoteIdentity())) {
+                connection.close();
+            }
+        }
+        promise.resolve(true);
+    }
+
+    // With required set, only devices pinned with pinPeerIdentity() can connect at all
+    @ReactMethod
+    public void setRequirePinnedIdentity(boolean required, Promise promise) {
+        requirePinnedIdentity = required;
+        promise.resolve(true);
+    }
+
+    // The transport's IdentityVerifier. A pinned device address must come with its pinned key, on
+    // an encrypted connection; the address is the one the peer announced in its HELLO.
+    private boolean isTrustedPeer(PeerConnection connection, Handshake handshake, byte[] identityKey) {
+        String address = handshake != null ? handshake.get(RoutingTable.ATTRIBUTE_ADDRESS) : null;
+        String pinned = address != null ? pinnedIdentities.get(address) : null;
+        if (pinned == null) {
+            if (requirePinnedIdentity) {
+                P2PLog.w("Rejecting {} ({}): no pinned identity", connection.getPeerId(), address);
+                return false;
+            }
+            return true;
+        }
+        if (identityKey == null || !pinned.equals(Base64.toBase64String(identityKey))) {
+            P2PLog.w("Rejecting {}: {} did not authenticate with its pinned identity", connection.getPeerId(),
+                address);
+            return false;
+        }
+        return true;
+    }
+
+    // A peer that sends nothing for about intervalMs * maxMissed is reported as WIFI_P2P_PEER_LOST
+    @ReactMethod
+    public void setHeartbeat(int intervalMs, int maxMissed, Promise promise) {
+        transport.setHeartbeat(intervalMs, maxMissed);
+        promise.resolve(true);
+    }
+
+    // Counters, latency histograms and per-connection numbers, for the module as a whole
+    @ReactMethod
+    public void getTransportMetrics(Promise promise) {
+        try {
+            promise.resolve(buildMetrics());
+        } catch (Exception e) {
+            promise.reject("METRICS_ERROR", "Failed to collect transport metrics: " + e.getMessage(), e);
+        }
+    }
+
+    // Emits WIFI_P2P_METRICS every intervalMs; 0 stops it
+    @ReactMethod
+    public void setMetricsInterval(int intervalMs, Promise promise) {
+        mainHandler.post(() -> {
+            mainHandler.removeCallbacks(metricsTick);
+            metricsIntervalMs = Math.max(0, intervalMs);
+            if (metricsIntervalMs > 0) {
+                mainHandler.postDelayed(metricsTick, metricsIntervalMs);
+            }
+        });
+        promise.resolve(true);
+    }
+
+    // Main looper only
+    private void emitMetrics() {
+        sendEvent("WIFI_P2P_METRICS", buildMetrics());
+        if (metricsIntervalMs > 0) {
+            mainHandler.postDelayed(metricsTick, metricsIntervalMs);
+        }
+    }
+
+    private WritableMap buildMetrics() {
+        TransportMetrics metrics = transport.getMetrics();
+        WritableMap result = metricsToMap(metrics);
+        
+        // Framework failures, broken out by operation and reason
+        WritableArray errors = Arguments.createArray();
+        for (Map.Entry<String, Long> counter : metrics.getCounters().entrySet()) {
+            if (!counter.getKey().startsWith(WIFI_ERROR_PREFIX)) {
+                continue;
+            }
+            String key = counter.getKey().substring(WIFI_ERROR_PREFIX.length());
+            int split = key.lastIndexOf('.');
+            int reasonCode = Integer.parseInt(key.substring(split + 1));
+            WritableMap error = Arguments.createMap();
+            error.putString("operation", key.substring(0, split));
+            error.putInt("reasonCode", reasonCode);
+            error.putString("reason", getConnectionErrorMessage(reasonCode));
+            error.putDouble("count", counter.getValue());
+            errors.pushMap(error);
+        }
+        result.putArray("wifiErrors", errors);
+        
+        WritableArray peerArray = Arguments.createArray();
+        for (PeerConnection connection : connections.values()) {
+            WritableMap peerMap = metricsToMap(connection.getMetrics());
+            peerMap.putString("peerId", connection.getPeerId());
+            peerMap.putInt("sendQueueDepth", connection.getQueuedFrameCount());
+            peerMap.putInt("sendQueueHighWater", connection.getQueueHighWater());
+            peerMap.putBoolean("secure", connection.isSecure());
+            peerMap.putBoolean("resumed", connection.isResumed());
+            peerArray.pushMap(peerMap);
+        }
+        result.putArray("peers", peerArray);
+        result.putInt("openConnections", transport.getOpenConnectionCount());
+        // Received binary payloads JS never took
+        result.putInt("binaryDropped", binaryBridge.getDroppedCount());
+        // Hits and misses are under counters (bufferPool*); this is what sits ready for reuse
+        result.putInt("bufferPoolFree", transport.getBufferPool().getFreeCount());
+        // Log records overwritten in the ring before they reached logcat
+        result.putDouble("logsDropped", P2PLog.getDroppedCount());
+        result.putString("connectionState", connectionMachine.getState().name());
+        result.putDouble("timestamp", System.currentTimeMillis());
+        return result;
+    }
+
+    private WritableMap metricsToMap(TransportMetrics metrics) {
+        WritableMap counters = Arguments.createMap();
+        for (Map.Entry<String, Long> counter : metrics.getCounters().entrySet()) {
+            if (!counter.getKey().startsWith(WIFI_ERROR_PREFIX)) {
+                counters.putDouble(counter.getKey(), counter.getValue());
+            }
+        }
+        
+        WritableMap histograms = Arguments.createMap();
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : metrics.getHistograms().entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue();
+            WritableMap histogram = Arguments.createMap();
+            histogram.putDouble("count", snapshot.getCount());
+            histogram.putDouble("meanMs", snapshot.getMeanMs());
+            histogram.putDouble("p50Ms", snapshot.getPercentileMs(0.50));
+            histogram.putDouble("p90Ms", snapshot.getPercentileMs(0.90));
+            histogram.putDouble("p99Ms", snapshot.getPercentileMs(0.99));
+            histogram.putDouble("maxMs", snapshot.getMaxMs());
+            histograms.putMap(entry.getKey(), histogram);
+        }
+        
+        WritableMap result = Arguments.createMap();
+        result.putMap("counters", counters);
+        result.putMap("histograms", histograms);
+        return result;
+    }
+
+    @ReactMethod
+    public void setEventBatching(int windowMs, int maxBatchSize, Promise promise) {
+        // A window of 0 turns batching off and emits every event on its own again
+        eventDispatcher.configure(windowMs, maxBatchSize);
+        promise.resolve(true);
+    }
+
+    // Level is verbose, debug, info, warn, error or none; message bodies stay redacted unless
+    // logPayloads is set, and are then cut to their first P2PLog.DEFAULT_PAYLOAD_CHARS characters
+    @ReactMethod
+    public void setLogLevel(String level, boolean logPayloads, Promise promise) {
+        try {
+            P2PLog.setLevel(P2PLog.parseLevel(level));
+            P2PLog.setPayloadLogging(logPayloads, P2PLog.DEFAULT_PAYLOAD_CHARS);
+            promise.resolve(true);
+        } catch (IllegalArgumentException e) {
+            promise.reject("INVALID_LOG_LEVEL", e.getMessage(), e);
+        }
+    }
+
+    // The last maxLines log lines this module kept in memory, oldest first
+    @ReactMethod
+    public void dumpRecentLogs(int maxLines, Promise promise) {
+        WritableArray lines = Arguments.createArray();
+        for (String line : P2PLog.dumpRecent(maxLines)) {
+            lines.pushString(line);
+        }
+        promise.resolve(lines);
+    }
+
+    @ReactMethod
+    public void verifyCertificate(String certificateJson, String govPublicKeyPem, Promise promise) {
+        getVerificationPool().execute(() -> {
+            try {
+                byte[] govPublicKey = CertificateVerifier.parsePublicKeyPem(govPublicKeyPem);
+                promise.resolve(CertificateVerifier.verify(certificateJson, govPublicKey));
+            } catch (Exception e) {
+                promise.reject("VERIFY_ERROR", "Failed to verify certificate: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void verifyCertificates(ReadableArray certificateJsons, String govPublicKeyPem, Promise promise) {
+        List<String> certificates = new ArrayList<>(certificateJsons.size());
+        for (int i = 0; i < certificateJsons.size(); i++) {
+            certificates.add(certificateJsons.getString(i));
+        }
+        
+        ForkJoinPool pool = getVerificationPool();
+        pool.execute(() -> {
+            try {
+                byte[] govPublicKey = CertificateVerifier.parsePublicKeyPem(govPublicKeyPem);
+                boolean[] results = CertificateVerifier.verifyAll(certificates, govPublicKey, pool);
+                
+                WritableArray resultArray = Arguments.createArray();
+                for (boolean valid : results) {
+                    resultArray.pushBoolean(valid);
+                }
+                promise.resolve(resultArray);
+            } catch (Exception e) {
+                promise.reject("VERIFY_ERROR", "Failed to verify certificates: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    private synchronized ForkJoinPool getVerificationPool() {
+        if (verificationPool == null) {
+            verificationPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return verificationPool;
+    }
+
+    // Packed payload codec. Bytes cross the bridge as number arrays, like signatureWithEncodedData.
+    @ReactMethod
+    public void encodeAadhaarPayload(int version, String gender, double aadhaar, ReadableMap dob, String name, Promise promise) {
+        try {
+            byte[] payload = PayloadCodec.encodeAadhaar(
+                new PayloadCodec.AadhaarData(version, gender, (long) aadhaar, readDob(dob), name));
+            promise.resolve(toByteArray(payload));
+        } catch (Exception e) {
+            promise.reject("ENCODE_ERROR", "Failed to encode Aadhaar payload: " + e.getMessage(), e);
+        }
+    }
+
+    @ReactMethod
+    public void decodeAadhaarPayload(ReadableArray bytes, Promise promise) {
+        try {
+            PayloadCodec.AadhaarData data = PayloadCodec.decodeAadhaar(fromByteArray(bytes));
+            WritableMap result = Arguments.createMap();
+            result.putInt("version", data.version);
+            result.putString("gender", data.gender);
+            result.putDouble("aadhaar", data.aadhaar);
+            result.putMap("dob", writeDob(data.dob));
+            result.putString("name", data.name);
+            promise.resolve(result);
+        } catch (Exception e) {
+            promise.reject("DECODE_ERROR", "Failed to decode Aadhaar payload: " + e.getMessage(), e);
+        }
+    }
+
+    @ReactMethod
+    public void encodePanPayload(int version, String name, ReadableMap dob, String pan, String fathersName, Promise promise) {
+        try {
+            byte[] payload = PayloadCodec.encodePan(
+                new PayloadCodec.PanData(version, name, readDob(dob), pan, fathersName));
+            promise.resolve(toByteArray(payload));
+        } catch (Exception e) {
+            promise.reject("ENCODE_ERROR", "Failed to encode PAN payload: " + e.getMessage(), e);
+        }
+    }
+
+    @ReactMethod
+    public void decodePanPayload(ReadableArray bytes, Promise promise) {
+        try {
+            PayloadCodec.PanData data = PayloadCodec.decodePan(fromByteArray(bytes));
+            WritableMap result = Arguments.createMap();
+            result.putInt("version", data.version);
+            result.putString("name", data.name);
+            result.putMap("dob", writeDob(data.dob));
+            result.putString("pan", data.pan);
+            result.putString("fathersName", data.fathersName);
+            promise.resolve(result);
+        } catch (Exception e) {
+            promise.reject("DECODE_ERROR", "Failed to decode PAN payload: " + e.getMessage(), e);
+        }
+    }
+
+    private PayloadCodec.Dob readDob(ReadableMap dob) {
+        return new PayloadCodec.Dob(dob.getInt("day"), dob.getInt("month"), dob.getInt("year"));
+    }
+
+    private WritableMap writeDob(PayloadCodec.Dob dob) {
+        WritableMap result = Arguments.createMap();
+        result.putInt("day", dob.day);
+        result.putInt("month", dob.month);
+        result.putInt("year", dob.year);
+        return result;
+    }
+
+    private WritableArray toByteArray(byte[] bytes) {
+        WritableArray array = Arguments.createArray();
+        for (byte b : bytes) {
+            array.pushInt(b & 0xFF);
+        }
+        return array;
+    }
+
+    private byte[] fromByteArray(ReadableArray array) {
+        byte[] bytes = new byte[array.size()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) array.getInt(i);
+        }
+        return bytes;
+    }
+
+    @ReactMethod
+    public void checkPermissions(Promise promise) {
+        try {
+            WritableMap result = Arguments.createMap();
+            
+            // Check location permissions
+            boolean fineLocation = checkSelfPermission("android.permission.ACCESS_FINE_LOCATION");
+            boolean coarseLocation = checkSelfPermission("android.permission.ACCESS_COARSE_LOCATION");
+            
+            result.putBoolean("fineLocation", fineLocation);
+            result.putBoolean("coarseLocation", coarseLocation);
+            
+            // Check location services enabled
+            android.location.LocationManager locationManager = (android.location.LocationManager) 
+                reactContext.getSystemService(Context.LOCATION_SERVICE);
+            boolean locationEnabled = locationManager.isLocationEnabled();
+            result.putBoolean("locationServicesEnabled", locationEnabled);
+            
+            // Check WiFi state
+            android.net.wifi.WifiManager wifiManager = (android.net.wifi.WifiManager) 
+                reactContext.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+            boolean wifiEnabled = wifiManager.isWifiEnabled();
+            result.putBoolean("wifiEnabled", wifiEnabled);
+            
+            P2PLog.d("Permission check - Fine Location: {}, Coarse Location: {}, Location Services: {}, WiFi: {}",
+                fineLocation, coarseLocation, locationEnabled, wifiEnabled);
+                
+            promise.resolve(result);
+        } catch (Exception e) {
+            promise.reject("PERMISSION_CHECK_ERROR", "Failed to check permissions", e);
+        }
+    }
+    
+    private boolean checkSelfPermission(String permission) {
+        return reactContext.checkSelfPermission(permission) == android.content.pm.PackageManager.PERMISSION_GRANTED;
+    }
+
+    @ReactMethod
+    public void forceClientConnection(String serverAddress, Promise promise) {
+        // A second socket would replace the ready connection and redo the handshake
+        PeerConnection existing = connections.get(serverAddress);
+        if (connectionMachine.ownsSocket() || (existing != null && existing.isOpen())) {
+            P2PLog.d("Connection to {} is already handled, not forcing another", serverAddress);
+            promise.resolve(true);
+            return;
+        }
+        P2PLog.d("Force connecting to server: {}", serverAddress);
+        connectToServer(serverAddress);
+        promise.resolve(true);
+    }
+    
+    @ReactMethod
+    public void requestConnectionInfo(Promise promise) {
+        if (manager != null && channel != null) {
+            P2PLog.d("Manually requesting connection info...");
+            manager.requestConnectionInfo(channel, new WifiP2pManager.ConnectionInfoListener() {
+                @Override
+                public void onConnectionInfoAvailable(WifiP2pInfo info) {
+                    P2PLog.d("Manual connection info - Group formed: {}, Is Group Owner: {}, Address: {}", info.groupFormed,
+                        info.isGroupOwner, info.groupOwnerAddress != null ? info.groupOwnerAddress.getHostAddress() : "null");
+                    
+                    WritableMap result = Arguments.createMap();
+                    result.putBoolean("groupFormed", info.groupFormed);
+                    result.putBoolean("isGroupOwner", info.isGroupOwner);
+                    if (info.groupOwnerAddress != null) {
+                        result.putString("groupOwnerAddress", info.groupOwnerAddress.getHostAddress());
+                    }
+                    promise.resolve(result);
+                }
+            });
+        } else {
+            promise.reject("NOT_INITIALIZED", "WiFi P2P not initialized");
+        }
+    }
+    
+    // WifiP2pManager.setDeviceName is hidden, so it has to be reached through reflection
+    @ReactMethod
+    public void setDeviceName(String name, Promise promise) {
+        if (manager == null || channel == null) {
+            promise.reject("NOT_INITIALIZED", "WiFi P2P not initialized");
+            return;
+        }
+        
+        String fullName = name.startsWith(DEVICE_NAME_PREFIX) ? name : DEVICE_NAME_PREFIX + name;
+        // Also used as the service instance name, which works even where renaming the device doesn't
+        deviceName = fullName;
+        try {
+            java.lang.reflect.Method setDeviceName = manager.getClass().getMethod(
+                "setDeviceName", WifiP2pManager.Channel.class, String.class, WifiP2pManager.ActionListener.class);
+            setDeviceName.invoke(manager, channel, fullName, new WifiP2pManager.ActionListener() {
+                @Override
+                public void onSuccess() {
+                    P2PLog.d("Device name set to {}", fullName);
+                    promise.resolve(fullName);
+                }
+
+                @Override
+                public void onFailure(int reasonCode) {
+                    recordFailure("setDeviceName", reasonCode);
+                    promise.reject("SET_NAME_ERROR", "Failed to set device name: " + getConnectionErrorMessage(reasonCode));
+                }
+            });
+        } catch (ReflectiveOperationException | SecurityException e) {
+            promise.reject("SET_NAME_UNSUPPORTED", "Setting the device name is not supported on this device", e);
+        }
+    }
+
+    // Advertises this device as a Kavach peer. options: role ("verifier" or "holder") and an
+    // optional publicKey (PEM) whose fingerprint goes into the TXT record.
+    @ReactMethod
+    public void advertiseService(ReadableMap options, Promise promise) {
+        if (manager == null || channel == null) {
+            promise.reject("NOT_INITIALIZED", "WiFi P2P not initialized");
+            return;
+        }
+        
+        ServiceRecord record;
+        try {
+            String fingerprint = null;
+            if (options.hasKey("publicKey") && !options.isNull("publicKey")) {
+                String publicKey = options.getString("publicKey");
+                fingerprint = publicKey.contains("BEGIN PUBLIC KEY")
+                    ? ServiceRecord.fingerprint(CertificateVerifier.parsePublicKeyPem(publicKey))
+                    : ServiceRecord.fingerprint(publicKey);
+            }
+            record = new ServiceRecord(options.getString("role"), Frame.VERSION,
+                transport.getLocalHandshake().getCapabilities(), fingerprint);
+        } catch (RuntimeException e) {
+            promise.reject("ADVERTISE_ERROR", "Invalid service options: " + e.getMessage(), e);
+            return;
+        }
+        
+        String instanceName = deviceName != null ? deviceName : DEVICE_NAME_PREFIX + record.role;
+        WifiP2pDnsSdServiceInfo serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(
+            instanceName, ServiceRecord.SERVICE_TYPE, record.toTxtRecord());
+        
+        // Only one advertisement at a time; a new role or key replaces the old one
+        manager.clearLocalServices(channel, new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                addLocalService(serviceInfo, instanceName, promise);
+            }
+
+            @Override
+            public void onFailure(int reasonCode) {
+                addLocalService(serviceInfo, instanceName, promise);
+            }
+        });
+    }
+
+    private void addLocalService(WifiP2pDnsSdServiceInfo serviceInfo, String instanceName, Promise promise) {
+        manager.addLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                P2PLog.d("Advertising {} as {}", ServiceRecord.SERVICE_TYPE, instanceName);
+                promise.resolve(true);
+            }
+
+            @Override
+            public void onFailure(int reasonCode) {
+                recordFailure("addLocalService", reasonCode);
+                promise.reject("ADVERTISE_ERROR", "Failed to advertise service: " + getConnectionErrorMessage(reasonCode));
+            }
+        });
+    }
+
+    @ReactMethod
+    public void stopAdvertising(Promise promise) {
+        if (manager == null || channel == null) {
+            promise.reject("NOT_INITIALIZED", "WiFi P2P not initialized");
+            return;
+        }
+        manager.clearLocalServices(channel, resolvingListener(promise, "STOP_ADVERTISE_ERROR", "Failed to stop advertising"));
+    }
+
+    // Like startPeerDiscovery, but only devices advertising a matching Kavach service are reported,
+    // through WIFI_P2P_SERVICE_FOUND. filter: optional role and minVersion.
+    @ReactMethod
+    public void startServiceDiscovery(ReadableMap filter, Promise promise) {
+        if (manager == null || channel == null) {
+            promise.reject("NOT_INITIALIZED", "WiFi P2P not initialized");
+            return;
+        }
+        
+        serviceFilterRole = filter != null && filter.hasKey("role") && !filter.isNull("role") ? filter.getString("role") : null;
+        serviceFilterMinVersion = filter != null && filter.hasKey("minVersion") ? filter.getInt("minVersion") : 0;
+        discoveredServices.clear();
+        
+        manager.setDnsSdResponseListeners(channel, null, serviceTxtListener);
+        manager.clearServiceRequests(channel, new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                addServiceRequest(promise);
+            }
+
+            @Override
+            public void onFailure(int reasonCode) {
+                addServiceRequest(promise);
+            }
+        });
     }
-    
-    @ReactMethod
-    public void requestConnectionInfo(Promise promise) {
-        if (manager != null && channel != null) {
-            android.util.Log.d("WifiP2pModule", "Manually requesting connection info...");
-            manager.requestConnectionInfo(channel, new WifiP2pManager.ConnectionInfoListener() {
+
+    private void addServiceRequest(Promise promise) {
+        manager.addServiceRequest(channel, WifiP2pDnsSdServiceRequest.newInstance(ServiceRecord.SERVICE_TYPE),
+            new WifiP2pManager.ActionListener() {
                 @Override
-                public void onConnectionInfoAvailable(WifiP2pInfo info) {
-                    android.util.Log.d("WifiP2pModule", "Manual connection info - Group formed: " + info.groupFormed + 
-                        ", Is Group Owner: " + info.isGroupOwner + ", Address: " + 
-                        (info.groupOwnerAddress != null ? info.groupOwnerAddress.getHostAddress() : "null"));
-                    
-                    WritableMap result = Arguments.createMap();
-                    result.putBoolean("groupFormed", info.groupFormed);
-                    result.putBoolean("isGroupOwner", info.isGroupOwner);
-                    if (info.groupOwnerAddress != null) {
-                        result.putString("groupOwnerAddress", info.groupOwnerAddress.getHostAddress());
-                    }
-                    promise.resolve(result);
+                public void onSuccess() {
+                    manager.discoverServices(channel, resolvingListener(promise, "DISCOVERY_ERROR", "Failed to start service discovery"));
+                }
+
+                @Override
+                public void onFailure(int reasonCode) {
+                    recordFailure("addServiceRequest", reasonCode);
+                    promise.reject("DISCOVERY_ERROR", "Failed to add service request: " + getConnectionErrorMessage(reasonCode));
                 }
             });
-        } else {
+    }
+
+    @ReactMethod
+    public void stopServiceDiscovery(Promise promise) {
+        if (manager == null || channel == null) {
             promise.reject("NOT_INITIALIZED", "WiFi P2P not initialized");
+            return;
         }
+        manager.clearServiceRequests(channel, resolvingListener(promise, "STOP_DISCOVERY_ERROR", "Failed to stop service discovery"));
+    }
+
+    private WifiP2pManager.ActionListener resolvingListener(Promise promise, String errorCode, String errorMessage) {
+        return new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                promise.resolve(true);
+            }
+
+            @Override
+            public void onFailure(int reasonCode) {
+                recordFailure(errorCode, reasonCode);
+                promise.reject(errorCode, errorMessage + ": " + getConnectionErrorMessage(reasonCode));
+            }
+        };
     }
+
+    private final WifiP2pManager.DnsSdTxtRecordListener serviceTxtListener = new WifiP2pManager.DnsSdTxtRecordListener() {
+        @Override
+        public void onDnsSdTxtRecordAvailable(String fullDomainName, Map<String, String> txtRecordMap, WifiP2pDevice srcDevice) {
+            if (fullDomainName == null || !fullDomainName.contains(ServiceRecord.SERVICE_TYPE)) {
+                return;
+            }
+            ServiceRecord record = ServiceRecord.fromTxtRecord(txtRecordMap);
+            if (record == null || !record.matches(serviceFilterRole, serviceFilterMinVersion)) {
+                return;
+            }
+            // The framework repeats responses; only report a device the first time or when its record changes
+            if (record.equals(discoveredServices.put(srcDevice.deviceAddress, record))) {
+                return;
+            }
+            
+            P2PLog.d("Found {} {} ({})", record.role, srcDevice.deviceName, srcDevice.deviceAddress);
+            WritableMap params = Arguments.createMap();
+            params.putString("deviceName", srcDevice.deviceName);
+            params.putString("deviceAddress", srcDevice.deviceAddress);
+            params.putString("status", getDeviceStatus(srcDevice.status));
+            params.putString("instanceName", fullDomainName.substring(0, Math.max(0, fullDomainName.indexOf("." + ServiceRecord.SERVICE_TYPE))));
+            params.putString("role", record.role);
+            params.putInt("protocolVersion", record.protocolVersion);
+            params.putInt("capabilities", record.capabilities);
+            if (record.fingerprint != null) {
+                params.putString("fingerprint", record.fingerprint);
+            }
+            sendEvent("WIFI_P2P_SERVICE_FOUND", params);
+        }
+    };
     
     @ReactMethod
     public void getDeviceName(Promise promise) {
@@ -304,20 +1737,36 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
             WritableMap result = Arguments.createMap();
             result.putBoolean("isGroupOwner", isGroupOwner);
             result.putString("groupOwnerAddress", groupOwnerAddress);
+            result.putString("connectionState", connectionMachine.getState().name());
+            
+            WritableArray peerArray = Arguments.createArray();
+            int openConnections = 0;
+            for (PeerConnection connection : connections.values()) {
+                WritableMap peerMap = Arguments.createMap();
+                peerMap.putString("peerId", connection.getPeerId());
+                peerMap.putString("remoteAddress", connection.getRemoteAddress());
+                peerMap.putBoolean("connected", connection.isOpen());
+                peerMap.putBoolean("compression", connection.isCompressionEnabled());
+                peerMap.putDouble("rttMs", connection.getLastRttMs());
+                peerMap.putDouble("smoothedRttMs", connection.getSmoothedRttMs());
+                putIdentity(peerMap, connection);
+                peerArray.pushMap(peerMap);
+                if (connection.isOpen()) {
+                    openConnections++;
+                }
+            }
+            result.putArray("peers", peerArray);
+            result.putInt("connectedPeerCount", openConnections);
             
             if (isGroupOwner) {
-                boolean hasClient = serverConnectionSocket != null && serverConnectionSocket.isConnected();
-                result.putBoolean("hasConnectedClient", hasClient);
-                result.putBoolean("serverRunning", serverSocket != null && !serverSocket.isClosed());
+                result.putBoolean("hasConnectedClient", openConnections > 0);
+                result.putBoolean("serverRunning", transport.isListening());
             } else {
-                boolean connectedToServer = clientSocket != null && clientSocket.isConnected();
-                result.putBoolean("connectedToServer", connectedToServer);
+                result.putBoolean("connectedToServer", openConnections > 0);
             }
             
-            android.util.Log.d("WifiP2pModule", "Connection status - isGroupOwner: " + isGroupOwner + 
-                ", clientSocket connected: " + (clientSocket != null && clientSocket.isConnected()) +
-                ", serverConnectionSocket connected: " + (serverConnectionSocket != null && serverConnectionSocket.isConnected()) +
-                ", serverSocket open: " + (serverSocket != null && !serverSocket.isClosed()));
+            P2PLog.d("Connection status - isGroupOwner: {}, open connections: {}, server listening: {}", isGroupOwner,
+                openConnections, transport.isListening());
             
             promise.resolve(result);
         } catch (Exception e) {
@@ -325,6 +1774,16 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
         }
     }
 
+    // deviceAddress as announced, and identityKey (base64) once the peer has authenticated with it;
+    // both null when unknown
+    private static void putIdentity(WritableMap map, PeerConnection connection) {
+        Handshake remote = connection.getRemoteHandshake();
+        byte[] identity = connection.getRemoteIdentity();
+        map.putString("deviceAddress", remote != null ? remote.get(RoutingTable.ATTRIBUTE_ADDRESS) : null);
+        map.putBoolean("secure", connection.isSecure());
+        map.putString("identityKey", identity != null ? Base64.toBase64String(identity) : null);
+    }
+
     private void setupBroadcastReceiver() {
         intentFilter = new IntentFilter();
         intentFilter.addAction(WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION);
@@ -336,44 +1795,50 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
             @Override
             public void onReceive(Context context, Intent intent) {
                 String action = intent.getAction();
-                android.util.Log.d("WifiP2pModule", "Broadcast received: " + action);
+                P2PLog.d("Broadcast received: {}", action);
 
                 try {
                     if (WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION.equals(action)) {
                         int state = intent.getIntExtra(WifiP2pManager.EXTRA_WIFI_STATE, -1);
-                        android.util.Log.d("WifiP2pModule", "WiFi P2P State: " + state);
+                        P2PLog.d("WiFi P2P State: {}", state);
                         WritableMap params = Arguments.createMap();
                         params.putBoolean("isEnabled", state == WifiP2pManager.WIFI_P2P_STATE_ENABLED);
                         sendEvent("WIFI_P2P_STATE_CHANGED", params);
                         
                     } else if (WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION.equals(action)) {
-                        android.util.Log.d("WifiP2pModule", "Peers changed - requesting peer list");
+                        P2PLog.d("Peers changed - requesting peer list");
                         if (manager != null) {
                             manager.requestPeers(channel, peerListListener);
                         } else {
-                            android.util.Log.e("WifiP2pModule", "Manager is null when peers changed");
+                            P2PLog.e("Manager is null when peers changed");
                         }
                         
                     } else if (WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION.equals(action)) {
-                        android.util.Log.d("WifiP2pModule", "Connection changed - requesting connection info");
+                        P2PLog.d("Connection changed - requesting connection info");
                         
                         // Also log the connection info from the intent
                         WifiP2pInfo p2pInfo = intent.getParcelableExtra(WifiP2pManager.EXTRA_WIFI_P2P_INFO);
                         if (p2pInfo != null) {
-                            android.util.Log.d("WifiP2pModule", "P2P Info from intent - Group formed: " + p2pInfo.groupFormed + 
-                                ", Group owner: " + p2pInfo.isGroupOwner + ", Address: " + 
-                                (p2pInfo.groupOwnerAddress != null ? p2pInfo.groupOwnerAddress.getHostAddress() : "null"));
+                            P2PLog.d("P2P Info from intent - Group formed: {}, Group owner: {}, Address: {}", p2pInfo.groupFormed,
+                                p2pInfo.isGroupOwner,
+                                p2pInfo.groupOwnerAddress != null ? p2pInfo.groupOwnerAddress.getHostAddress() : "null");
                         }
                         
                         if (manager != null) {
                             manager.requestConnectionInfo(channel, connectionInfoListener);
                         } else {
-                            android.util.Log.e("WifiP2pModule", "Manager is null when connection changed");
+                            P2PLog.e("Manager is null when connection changed");
+                        }
+                        
+                    } else if (WifiP2pManager.WIFI_P2P_THIS_DEVICE_CHANGED_ACTION.equals(action)) {
+                        WifiP2pDevice device = intent.getParcelableExtra(WifiP2pManager.EXTRA_WIFI_P2P_DEVICE);
+                        if (device != null) {
+                            setLocalAddress(device.deviceAddress);
                         }
                     }
                 } catch (SecurityException e) {
-                    android.util.Log.e("WifiP2pModule", "Security exception in broadcast receiver: " + e.getMessage());
-                    android.util.Log.e("WifiP2pModule", "This usually indicates missing location permissions or AppOps denial");
+                    P2PLog.e("Security exception in broadcast receiver: {}", e.getMessage());
+                    P2PLog.e("This usually indicates missing location permissions or AppOps denial");
                     
                     // Notify React Native about permission issues
                     WritableMap params = Arguments.createMap();
@@ -381,35 +1846,121 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
                     params.putString("message", "Location permission required for WiFi Direct. Please check app settings.");
                     sendEvent("WIFI_P2P_ERROR", params);
                 } catch (Exception e) {
-                    android.util.Log.e("WifiP2pModule", "Unexpected error in broadcast receiver: " + e.getMessage());
+                    P2PLog.e("Unexpected error in broadcast receiver: {}", e.getMessage());
                 }
             }
         };
     }
 
+    // Announced in the handshake so the group owner can route other members' messages here
+    private void setLocalAddress(String address) {
+        // What the framework reports without the location/nearby permission
+        if (address == null || address.isEmpty() || "02:00:00:00:00:00".equals(address) || address.equals(localAddress)) {
+            return;
+        }
+        P2PLog.d("This device is {}", address);
+        localAddress = address;
+        transport.setLocalHandshake(transport.getLocalHandshake().withAttribute(RoutingTable.ATTRIBUTE_ADDRESS, address));
+    }
+
     private final WifiP2pManager.PeerListListener peerListListener = new WifiP2pManager.PeerListListener() {
         @Override
         public void onPeersAvailable(WifiP2pDeviceList peerList) {
             Collection<WifiP2pDevice> refreshedPeers = peerList.getDeviceList();
             
-            peers.clear();
-            peers.addAll(refreshedPeers);
-            
-            WritableArray deviceArray = Arguments.createArray();
-            for (WifiP2pDevice device : peers) {
-                WritableMap deviceMap = Arguments.createMap();
-                deviceMap.putString("deviceName", device.deviceName);
-                deviceMap.putString("deviceAddress", device.deviceAddress);
-                deviceMap.putString("status", getDeviceStatus(device.status));
-                deviceArray.pushMap(deviceMap);
+            List<String> addresses = new ArrayList<>(refreshedPeers.size());
+            List<PeerTable.Sighting> sightings = new ArrayList<>(refreshedPeers.size());
+            for (WifiP2pDevice device : refreshedPeers) {
+                addresses.add(device.deviceAddress);
+                sightings.add(new PeerTable.Sighting(device.deviceAddress, device.deviceName, device.status));
             }
+            connectionMachine.onPeersChanged(addresses);
             
-            WritableMap params = Arguments.createMap();
-            params.putArray("devices", deviceArray);
-            sendEvent("WIFI_P2P_PEERS_CHANGED", params);
+            emitPeerDelta(peerTable.update(sightings, System.currentTimeMillis()));
+            schedulePeerSweep();
         }
     };
 
+    // Main looper only
+    private void emitPeerDelta(PeerTable.Delta delta) {
+        if (delta.isEmpty()) {
+            return;
+        }
+        
+        WritableMap params = Arguments.createMap();
+        synchronized (peerTable) {
+            WritableArray added = Arguments.createArray();
+            for (PeerTable.Peer peer : delta.added) {
+                added.pushMap(peerToMap(peer, false));
+            }
+            WritableArray changed = Arguments.createArray();
+            for (PeerTable.Peer peer : delta.changed) {
+                changed.pushMap(peerToMap(peer, false));
+            }
+            params.putArray("added", added);
+            params.putArray("changed", changed);
+        }
+        WritableArray removed = Arguments.createArray();
+        for (String deviceAddress : delta.removed) {
+            removed.pushString(deviceAddress);
+        }
+        params.putArray("removed", removed);
+        sendEvent("WIFI_P2P_PEERS_DELTA", params);
+    }
+
+    // Call with the peer table locked
+    private WritableMap peerToMap(PeerTable.Peer peer, boolean withHistory) {
+        WritableMap deviceMap = Arguments.createMap();
+        deviceMap.putString("deviceName", peer.deviceName);
+        deviceMap.putString("deviceAddress", peer.deviceAddress);
+        deviceMap.putString("status", getDeviceStatus(peer.status));
+        deviceMap.putDouble("firstSeen", peer.firstSeenMs);
+        deviceMap.putDouble("lastSeen", peer.lastSeenMs);
+        if (withHistory) {
+            WritableArray history = Arguments.createArray();
+            for (long[] entry : peer.statusHistory) {
+                WritableMap change = Arguments.createMap();
+                change.putString("status", getDeviceStatus((int) entry[0]));
+                change.putDouble("at", entry[1]);
+                history.pushMap(change);
+            }
+            deviceMap.putArray("statusHistory", history);
+        }
+        return deviceMap;
+    }
+
+    // Peers that stop showing up in refreshes still have to expire, so sweep while any are cached
+    private void schedulePeerSweep() {
+        if (!peerSweepScheduled && !peerTable.isEmpty()) {
+            peerSweepScheduled = true;
+            mainHandler.postDelayed(peerSweep, Math.max(1000, peerTable.getTtlMs() / 2));
+        }
+    }
+
+    private void sweepPeers() {
+        peerSweepScheduled = false;
+        emitPeerDelta(peerTable.evictExpired(System.currentTimeMillis()));
+        schedulePeerSweep();
+    }
+
+    // Full snapshot of the peer table, for JS to start from before applying WIFI_P2P_PEERS_DELTA
+    @ReactMethod
+    public void getPeers(Promise promise) {
+        WritableArray deviceArray = Arguments.createArray();
+        synchronized (peerTable) {
+            for (PeerTable.Peer peer : peerTable.snapshot()) {
+                deviceArray.pushMap(peerToMap(peer, true));
+            }
+        }
+        promise.resolve(deviceArray);
+    }
+
+    @ReactMethod
+    public void setPeerCacheTtl(int ttlMs, Promise promise) {
+        peerTable.setTtlMs(ttlMs);
+        promise.resolve(true);
+    }
+
     private final WifiP2pManager.ConnectionInfoListener connectionInfoListener = new WifiP2pManager.ConnectionInfoListener() {
         @Override
         public void onConnectionInfoAvailable(WifiP2pInfo info) {
@@ -421,8 +1972,8 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
                 groupOwnerAddress = null;
             }
             
-            android.util.Log.d("WifiP2pModule", "Connection info - Group formed: " + info.groupFormed + 
-                ", Is Group Owner: " + isGroupOwner + ", Group Owner Address: " + groupOwnerAddress);
+            P2PLog.d("Connection info - Group formed: {}, Is Group Owner: {}, Group Owner Address: {}", info.groupFormed,
+                isGroupOwner, groupOwnerAddress);
             
             WritableMap params = Arguments.createMap();
             params.putBoolean("isConnected", info.groupFormed);
@@ -431,44 +1982,31 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
                 params.putString("groupOwnerAddress", groupOwnerAddress);
             }
             
-            // Add actual connected device info from peers list
+            // Add actual connected device info from the peer table
             if (info.groupFormed) {
-                // Find the connected device from the peers list
-                WritableMap deviceInfo = null;
-                for (WifiP2pDevice peer : peers) {
-                    if (peer.status == WifiP2pDevice.CONNECTED) {
-                        deviceInfo = Arguments.createMap();
+                synchronized (peerTable) {
+                    PeerTable.Peer peer = peerTable.getConnectedPeer();
+                    if (peer != null) {
+                        WritableMap deviceInfo = Arguments.createMap();
                         deviceInfo.putString("deviceName", peer.deviceName);
                         deviceInfo.putString("deviceAddress", peer.deviceAddress);
                         deviceInfo.putString("status", getDeviceStatus(peer.status));
-                        break;
-                    }
-                }
-                
-                // If we found a connected device, add it to params
-                if (deviceInfo != null) {
-                    params.putMap("device", deviceInfo);
-                    // Find the connected peer again for logging (can't read from WritableMap)
-                    for (WifiP2pDevice peer : peers) {
-                        if (peer.status == WifiP2pDevice.CONNECTED) {
-                            android.util.Log.d("WifiP2pModule", "Connected to device: " + peer.deviceName + 
-                                " (" + peer.deviceAddress + ")");
-                            break;
-                        }
+                        params.putMap("device", deviceInfo);
+                        P2PLog.d("Connected to device: {} ({})", peer.deviceName, peer.deviceAddress);
                     }
                 }
                 
                 if (isGroupOwner) {
-                    android.util.Log.d("WifiP2pModule", "Starting server as group owner");
-                    startServer();
+                    P2PLog.d("Starting server as group owner");
                 } else {
-                    android.util.Log.d("WifiP2pModule", "Connected as client to group owner: " + groupOwnerAddress);
-                    // Automatically connect to the group owner's server
-                    connectToServer(groupOwnerAddress);
+                    P2PLog.d("Connected as client to group owner: {}", groupOwnerAddress);
                 }
+                // Starts the server, or connects to the group owner's server with retries
+                connectionMachine.onGroupFormed(isGroupOwner, groupOwnerAddress);
             } else {
-                android.util.Log.d("WifiP2pModule", "Group not formed or connection lost");
+                P2PLog.d("Group not formed or connection lost");
                 closeConnections();
+                connectionMachine.onGroupRemoved();
             }
             
             sendEvent("WIFI_P2P_CONNECTION_CHANGED", params);
@@ -476,160 +2014,349 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
     };
 
     private void startServer() {
-        new Thread(() -> {
-            try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
-                }
-                
-                android.util.Log.d("WifiP2pModule", "Starting server on port " + SERVER_PORT);
-                serverSocket = new ServerSocket(SERVER_PORT);
-                
-                android.util.Log.d("WifiP2pModule", "Server started successfully, waiting for client connection...");
-                
-                // Accept client connections in a loop
-                while (serverSocket != null && !serverSocket.isClosed()) {
-                    try {
-                        Socket client = serverSocket.accept();
-                        android.util.Log.d("WifiP2pModule", "Client connected: " + client.getRemoteSocketAddress());
-                        
-                        // Store the client socket for sending messages (use separate variable for server connections)
-                        serverConnectionSocket = client;
-                        
-                        // Handle incoming messages from this client
-                        handleClientMessages(client);
-                        
-                    } catch (java.net.SocketTimeoutException e) {
-                        // Timeout is normal, just continue listening
-                        android.util.Log.d("WifiP2pModule", "Server accept timeout, continuing to listen...");
-                    } catch (Exception e) {
-                        android.util.Log.e("WifiP2pModule", "Error accepting client connection: " + e.getMessage());
-                        break;
-                    }
-                }
-                
-            } catch (Exception e) {
-                android.util.Log.e("WifiP2pModule", "Server error: " + e.getMessage());
-            }
-        }).start();
+        try {
+            transport.start();
+            P2PLog.d("Starting server on port {}", SERVER_PORT);
+            transport.listen(SERVER_PORT);
+        } catch (IOException e) {
+            P2PLog.e("Server error: {}", e.getMessage());
+        }
     }
     
     private void connectToServer(String serverAddress) {
-        new Thread(() -> {
-            try {
-                android.util.Log.d("WifiP2pModule", "Connecting to server at: " + serverAddress + ":" + SERVER_PORT);
-                
-                // Close existing client socket if any
-                if (clientSocket != null && !clientSocket.isClosed()) {
-                    clientSocket.close();
-                }
-                
-                clientSocket = new Socket();
-                clientSocket.connect(new java.net.InetSocketAddress(serverAddress, SERVER_PORT), 10000); // 10s timeout
-                
-                android.util.Log.d("WifiP2pModule", "Successfully connected to server");
-                
-                // Listen for incoming messages from server
-                handleServerMessages(clientSocket);
-                
-            } catch (Exception e) {
-                android.util.Log.e("WifiP2pModule", "Failed to connect to server: " + e.getMessage());
-                clientSocket = null;
-            }
-        }).start();
+        connectToServer(serverAddress, CONNECT_TIMEOUT_MS);
     }
     
-    private void handleServerMessages(Socket socket) {
-        new Thread(() -> {
-            try {
-                InputStream inputStream = socket.getInputStream();
-                byte[] buffer = new byte[1024];
-                int bytes;
-                
-                while ((bytes = inputStream.read(buffer)) != -1) {
-                    String message = new String(buffer, 0, bytes);
-                    android.util.Log.d("WifiP2pModule", "Client received message: " + message);
-                    
-                    WritableMap params = Arguments.createMap();
-                    params.putString("message", message);
-                    sendEvent("WIFI_P2P_MESSAGE_RECEIVED", params);
-                }
-            } catch (Exception e) {
-                android.util.Log.e("WifiP2pModule", "Error reading from server: " + e.getMessage());
-            }
-        }).start();
+    private void connectToServer(String serverAddress, int timeoutMs) {
+        try {
+            transport.start();
+            P2PLog.d("Connecting to server at: {}:{}", serverAddress, SERVER_PORT);
+            transport.connect(serverAddress, serverAddress, SERVER_PORT, timeoutMs);
+        } catch (IOException e) {
+            P2PLog.e("Failed to connect to server: {}", e.getMessage());
+            connectionMachine.onSocketFailed(serverAddress, e);
+        }
     }
-    
-    private void handleClientMessages(Socket client) {
-        new Thread(() -> {
-            try {
-                InputStream inputStream = client.getInputStream();
-                byte[] buffer = new byte[1024];
-                int bytes;
-                
-                while ((bytes = inputStream.read(buffer)) != -1) {
-                    String message = new String(buffer, 0, bytes);
-                    android.util.Log.d("WifiP2pModule", "Server received message: " + message);
-                    
-                    WritableMap params = Arguments.createMap();
-                    params.putString("message", message);
-                    sendEvent("WIFI_P2P_MESSAGE_RECEIVED", params);
+
+    private class ConnectionDriver implements ConnectionStateMachine.Driver {
+        @Override
+        public void discoverPeers() {
+            manager.discoverPeers(channel, new WifiP2pManager.ActionListener() {
+                @Override
+                public void onSuccess() {
+                    manager.requestPeers(channel, peerListListener);
                 }
-            } catch (java.net.SocketTimeoutException e) {
-                android.util.Log.w("WifiP2pModule", "Server socket timeout - no client connected");
-            } catch (IOException e) {
-                android.util.Log.e("WifiP2pModule", "Server error: " + e.getMessage());
-                e.printStackTrace();
-            }
-        }).start();
+
+                @Override
+                public void onFailure(int reasonCode) {
+                    recordFailure("discoverPeers", reasonCode);
+                    // Usually BUSY because discovery is already running; the cached list may still have it
+                    P2PLog.d("Discovery not started: {}", getConnectionErrorMessage(reasonCode));
+                    manager.requestPeers(channel, peerListListener);
+                }
+            });
+        }
+
+        @Override
+        public void invite(String deviceAddress) {
+            WifiP2pModule.this.invite(deviceAddress, new WifiP2pManager.ActionListener() {
+                @Override
+                public void onSuccess() {
+                    connectionMachine.onInviteSent();
+                }
+
+                @Override
+                public void onFailure(int reasonCode) {
+                    recordFailure("connect", reasonCode);
+                    connectionMachine.onInviteFailed(getConnectionErrorMessage(reasonCode) + " (code: " + reasonCode + ")");
+                }
+            });
+        }
+
+        @Override
+        public void listen() {
+            startServer();
+        }
+
+        @Override
+        public void openSocket(String host) {
+            transport.getMetrics().increment("socketConnectAttempts");
+            connectToServer(host, SOCKET_ATTEMPT_TIMEOUT_MS);
+        }
+
+        @Override
+        public String connectedPeerId(String deviceAddress) {
+            PeerConnection member = deviceAddress != null ? routes.lookup(deviceAddress) : null;
+            return member != null ? member.getPeerId() : null;
+        }
+
+        @Override
+        public Cancellable schedule(Runnable task, long delayMs) {
+            return transport.schedule(task, delayMs);
+        }
     }
 
+    private class ConnectionPhaseListener implements ConnectionStateMachine.Listener {
+        @Override
+        public void onTransition(ConnectionStateMachine.State from, ConnectionStateMachine.State to, long phaseMs, long totalMs) {
+            P2PLog.d("Connection {} -> {} after {}ms ({}ms total)", from, to, phaseMs, totalMs);
+            TransportMetrics metrics = transport.getMetrics();
+            if (from != ConnectionStateMachine.State.IDLE) {
+                metrics.histogram("phase." + from.name()).recordMillis(phaseMs);
+            }
+            if (to == ConnectionStateMachine.State.GROUP_FORMED
+                    && (from == ConnectionStateMachine.State.SOCKET_OPEN || from == ConnectionStateMachine.State.READY)) {
+                metrics.increment("reconnects");
+            }
+            WritableMap params = Arguments.createMap();
+            params.putString("state", to.name());
+            params.putString("previousState", from.name());
+            params.putDouble("phaseMs", phaseMs);
+            params.putDouble("totalMs", totalMs);
+            sendEvent("WIFI_P2P_CONNECTION_PHASE", params);
+        }
 
+        @Override
+        public void onReady(ConnectionStateMachine.Timing timing) {
+            Promise promise = pendingConnectAndOpen;
+            pendingConnectAndOpen = null;
+            if (promise != null) {
+                promise.resolve(timingToMap(timing));
+            }
+        }
 
-    private void sendMessageToServer(String message) throws IOException {
-        if (clientSocket != null && clientSocket.isConnected()) {
-            android.util.Log.d("WifiP2pModule", "Sending message to server: " + message);
-            OutputStream outputStream = clientSocket.getOutputStream();
-            outputStream.write(message.getBytes());
-            outputStream.flush();
-            android.util.Log.d("WifiP2pModule", "Message sent to server successfully");
-        } else {
-            throw new IOException("Not connected to server");
+        @Override
+        public void onFailed(String reason, boolean timedOut, ConnectionStateMachine.Timing timing) {
+            P2PLog.e("connectAndOpen to {} failed: {}", timing.deviceAddress, reason);
+            WritableMap params = timingToMap(timing);
+            params.putString("error", reason);
+            sendEvent("WIFI_P2P_CONNECT_FAILED", params);
+            
+            Promise promise = pendingConnectAndOpen;
+            pendingConnectAndOpen = null;
+            if (promise != null) {
+                promise.reject(timedOut ? "CONNECT_TIMEOUT" : "CONNECT_ERROR", "Failed to connect: " + reason);
+            }
         }
     }
 
-    private void sendMessageToClient(String message) throws IOException {
-        // Send to connected client (serverConnectionSocket contains the accepted client connection)
-        if (serverConnectionSocket != null && serverConnectionSocket.isConnected()) {
-            android.util.Log.d("WifiP2pModule", "Sending message to client: " + message);
-            OutputStream outputStream = serverConnectionSocket.getOutputStream();
-            outputStream.write(message.getBytes());
-            outputStream.flush();
-            android.util.Log.d("WifiP2pModule", "Message sent to client successfully");
-        } else {
-            throw new IOException("No client connected to send message to");
+    private WritableMap timingToMap(ConnectionStateMachine.Timing timing) {
+        WritableMap result = Arguments.createMap();
+        result.putString("deviceAddress", timing.deviceAddress);
+        if (timing.peerId != null) {
+            result.putString("peerId", timing.peerId);
         }
+        result.putBoolean("isGroupOwner", timing.groupOwner);
+        result.putDouble("totalMs", timing.totalMs);
+        WritableMap phases = Arguments.createMap();
+        for (Map.Entry<ConnectionStateMachine.State, Long> phase : timing.phaseMs.entrySet()) {
+            phases.putDouble(phase.getKey().name(), phase.getValue());
+        }
+        result.putMap("phases", phases);
+        result.putInt("inviteAttempts", timing.inviteAttempts);
+        result.putInt("socketAttempts", timing.socketAttempts);
+        return result;
     }
 
-    private void closeConnections() {
-        try {
-            if (clientSocket != null) {
-                clientSocket.close();
-                clientSocket = null;
+    // Callbacks arrive on the transport's I/O thread
+    private class RequestListener implements RequestManager.Listener {
+        @Override
+        public void onRequest(PeerConnection connection, int requestId, byte[] body) {
+            WritableMap params = Arguments.createMap();
+            params.putString("peerId", connection.getPeerId());
+            params.putInt("requestId", requestId);
+            params.putString("payload", new String(body, StandardCharsets.UTF_8));
+            sendEvent("WIFI_P2P_REQUEST_RECEIVED", params);
+        }
+    }
+
+    private class TransportListener implements TransportEngine.Listener {
+        @Override
+        public void onConnected(PeerConnection connection, boolean accepted) {
+            String peerId = connection.getPeerId();
+            P2PLog.d(accepted ? "Client connected: {}" : "Successfully connected to server: {}", connection.getRemoteAddress());
+            
+            PeerConnection previous = connections.put(peerId, connection);
+            if (previous != null) {
+                P2PLog.d("Replacing stale connection to {}", peerId);
+                previous.close();
+            }
+            connectionMachine.onSocketOpen(peerId);
+            
+            WritableMap params = Arguments.createMap();
+            params.putString("peerId", peerId);
+            params.putInt("peerCount", connections.size());
+            sendEvent("WIFI_P2P_PEER_CONNECTED", params);
+        }
+
+        @Override
+        public void onConnectFailed(String peerId, Exception cause) {
+            P2PLog.e("Failed to connect to {}: {}", peerId, cause != null ? cause.getMessage() : "closed");
+            connectionMachine.onSocketFailed(peerId, cause);
+        }
+
+        @Override
+        public void onHandshake(PeerConnection connection, Handshake handshake) {
+            P2PLog.d("Handshake from {}, compression: {}, secure: {}{}", connection.getPeerId(),
+                connection.isCompressionEnabled(), connection.isSecure(), connection.isResumed() ? " (resumed)" : "");
+            if (!routes.register(connection, handshake)) {
+                // Someone else already holds that address; taking it would let this peer receive
+                // and send as that member
+                transport.getMetrics().increment("addressConflicts");
+                P2PLog.w("{} announced {}, which another connection holds; closing", connection.getPeerId(),
+                    peerKeyOf(connection));
+                connection.close();
+                return;
+            }
+            connectionMachine.onHandshake(connection.getPeerId(), peerKeyOf(connection));
+            
+            WritableMap params = Arguments.createMap();
+            params.putString("peerId", connection.getPeerId());
+            params.putBoolean("resumed", connection.isResumed());
+            putIdentity(params, connection);
+            sendEvent("WIFI_P2P_PEER_READY", params);
+            replayOutbox(connection);
+        }
+
+        @Override
+        public void onFrame(PeerConnection connection, Frame frame) {
+            if (FileTransferManager.isFileFrame(frame.getType())) {
+                fileTransfers.onFrame(connection, frame);
+                return;
             }
-            if (serverConnectionSocket != null) {
-                serverConnectionSocket.close();
-                serverConnectionSocket = null;
+            if (RequestManager.isRequestFrame(frame.getType())) {
+                try {
+                    requests.onFrame(connection, frame);
+                } catch (IOException e) {
+                    P2PLog.w("Bad request frame from {}: {}", connection.getPeerId(), e.getMessage());
+                }
+                return;
             }
-            if (serverSocket != null) {
-                serverSocket.close();
-                serverSocket = null;
+            if (frame.getType() != Frame.TYPE_MESSAGE) {
+                P2PLog.w("Ignoring frame of unknown type {} from {}", frame.getType(), connection.getPeerId());
+                return;
             }
-        } catch (IOException e) {
-            android.util.Log.e("WifiP2pModule", "Error closing connections: " + e.getMessage());
+            
+            byte[] body;
+            // Device address of the member that sent it, when it came through the group owner
+            String origin = null;
+            try {
+                // Acknowledged even when it turns out to be a repeat, so the sender stops resending
+                body = requests.acceptMessage(connection, frame);
+                RoutingTable.Route route = null;
+                byte[] payload = body;
+                if (frame.hasFlag(Frame.FLAG_ROUTED)) {
+                    route = RoutingTable.readRoute(body);
+                    if (isGroupOwner) {
+                        // The owner vouches for the origin: the member this connection registered as
+                        String registered = routes.addressOf(connection);
+                        String sender = registered != null ? registered : "";
+                        if (!sender.equals(route.getOrigin())) {
+                            transport.getMetrics().increment("routeOriginReplaced");
+                            body = RoutingTable.replaceOrigin(body, route, sender);
+                            route = RoutingTable.readRoute(body);
+                        }
+                    }
+                    payload = RoutingTable.stripRoute(body, route);
+                }
+                // Checked before relaying, so a repeat of a relayed message stops at the group owner
+                if (frame.hasFlag(Frame.FLAG_MESSAGE_ID)) {
+                    String messageId = MessageId.read(payload);
+                    String sender = route != null && !route.getOrigin().isEmpty()
+                        ? route.getOrigin() : senderOf(connection);
+                    if (duplicates.isDuplicate(sender, messageId)) {
+                        transport.getMetrics().increment("duplicatesSuppressed");
+                        connection.getMetrics().increment("duplicatesSuppressed");
+                        P2PLog.d("Dropped repeat of message {} from {}", messageId, sender);
+                        return;
+                    }
+                    payload = MessageId.strip(payload);
+                }
+                if (route != null) {
+                    if (!route.getDestination().equals(localAddress)) {
+                        relay(connection, frame.getFlags(), body, route);
+                        return;
+                    }
+                    origin = route.getOrigin();
+                }
+                body = payload;
+            } catch (IOException e) {
+                P2PLog.w("Bad message from {}: {}", connection.getPeerId(), e.getMessage());
+                return;
+            }
+            if (frame.hasFlag(Frame.FLAG_BINARY)) {
+                // JS takes the bytes with __kavachP2P.takeBytes(handle)
+                WritableMap params = Arguments.createMap();
+                params.putString("peerId", connection.getPeerId());
+                params.putInt("handle", binaryBridge.offer(body));
+                params.putInt("size", body.length);
+                if (origin != null) {
+                    params.putString("originAddress", origin);
+                }
+                sendEvent("WIFI_P2P_BINARY_MESSAGE", params);
+                return;
+            }
+            String message = new String(body, StandardCharsets.UTF_8);
+            P2PLog.d("Received message {} from {}", P2PLog.payload(message), connection.getPeerId());
+            
+            WritableMap params = Arguments.createMap();
+            params.putString("message", message);
+            params.putString("peerId", connection.getPeerId());
+            if (origin != null) {
+                params.putString("originAddress", origin);
+            }
+            sendEvent("WIFI_P2P_MESSAGE_RECEIVED", params);
+        }
+
+        @Override
+        public void onClosed(PeerConnection connection, Exception cause) {
+            // Only drop the entry if it hasn't already been replaced by a newer connection
+            connections.remove(connection.getPeerId(), connection);
+            routes.unregister(connection);
+            fileTransfers.onConnectionClosed(connection);
+            requests.onConnectionClosed(connection);
+            P2PLog.d("Connection to {} closed{}", connection.getPeerId(), cause != null ? ": " + cause.getMessage() : "");
+            connectionMachine.onSocketClosed(connection.getPeerId(), !connections.isEmpty());
+            
+            if (cause instanceof PeerLostException) {
+                WritableMap lostParams = Arguments.createMap();
+                lostParams.putString("peerId", connection.getPeerId());
+                lostParams.putString("reason", cause.getMessage());
+                lostParams.putDouble("lastRttMs", connection.getLastRttMs());
+                sendEvent("WIFI_P2P_PEER_LOST", lostParams);
+            }
+            
+            WritableMap params = Arguments.createMap();
+            params.putString("peerId", connection.getPeerId());
+            params.putInt("peerCount", connections.size());
+            sendEvent("WIFI_P2P_PEER_DISCONNECTED", params);
+        }
+
+        @Override
+        public void onServerError(Exception cause) {
+            P2PLog.e("Transport error: {}", cause.getMessage());
+        }
+
+        // JS should hold back sends in this lane until it clears, or they start failing with QUEUE_FULL
+        @Override
+        public void onBackpressure(PeerConnection connection, Lane lane, boolean congested) {
+            P2PLog.d("Lane {} to {}{}", lane.label(), connection.getPeerId(), congested ? " congested" : " clear");
+            WritableMap params = Arguments.createMap();
+            params.putString("peerId", connection.getPeerId());
+            params.putString("lane", lane.label());
+            params.putBoolean("congested", congested);
+            sendEvent("WIFI_P2P_BACKPRESSURE", params);
         }
     }
 
+    private void closeConnections() {
+        transport.stopListening();
+        for (PeerConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
     private String getDeviceStatus(int status) {
         switch (status) {
             case WifiP2pDevice.AVAILABLE:
@@ -648,9 +2375,7 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
     }
 
     private void sendEvent(String eventName, WritableMap params) {
-        reactContext
-                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                .emit(eventName, params);
+        eventDispatcher.dispatch(eventName, params);
     }
 
     @Override
@@ -664,5 +2389,27 @@ public class WifiP2pModule extends ReactContextBaseJavaModule {
             }
         }
         closeConnections();
+        connectionMachine.reset("Module destroyed");
+        mainHandler.removeCallbacks(peerSweep);
+        mainHandler.removeCallbacks(metricsTick);
+        transport.shutdown();
+        fileTransfers.shutdown();
+        requests.shutdown();
+        binaryBridge.clear();
+        synchronized (this) {
+            outboxClosed = true;
+            if (outbox != null) {
+                outbox.close();
+                outbox = null;
+            }
+        }
+        eventDispatcher.shutdown();
+        P2PLog.flush();
+        synchronized (this) {
+            if (verificationPool != null) {
+                verificationPool.shutdown();
+                verificationPool = null;
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+// JSI side of com.kavach.p2p.BinaryBridge: moves P2P payloads between ArrayBuffers and the
+// Java transport without going through the bridge's String/JSON serialization.
+
+#include <jni.h>
+#include <jsi/jsi.h>
+
+#include <memory>
+#include <string>
+
+using namespace facebook;
+
+namespace {
+
+// The Java BinaryBridge, kept alive for as long as the functions installed with it
+class BridgeRef {
+ public:
+  BridgeRef(JNIEnv* env, jobject bridge) {
+    env->GetJavaVM(&vm_);
+    bridge_ = env->NewGlobalRef(bridge);
+    jclass type = env->GetObjectClass(bridge);
+    sendBytes_ = env->GetMethodID(type, "sendBytes", "(Ljava/lang/String;[BLjava/lang/String;)I");
+    takeBytes_ = env->GetMethodID(type, "takeBytes", "(I)[B");
+    env->DeleteLocalRef(type);
+  }
+
+  ~BridgeRef() {
+    JNIEnv* jni = env();
+    if (jni != nullptr) {
+      jni->DeleteGlobalRef(bridge_);
+    }
+  }
+
+  // The JS thread is a Java thread, so it is always attached
+  JNIEnv* env() const {
+    JNIEnv* jni = nullptr;
+    vm_->GetEnv(reinterpret_cast<void**>(&jni), JNI_VERSION_1_6);
+    return jni;
+  }
+
+  jobject bridge() const { return bridge_; }
+  jmethodID sendBytesMethod() const { return sendBytes_; }
+  jmethodID takeBytesMethod() const { return takeBytes_; }
+
+ private:
+  JavaVM* vm_ = nullptr;
+  jobject bridge_ = nullptr;
+  jmethodID sendBytes_ = nullptr;
+  jmethodID takeBytes_ = nullptr;
+};
+
+// Turns a pending Java exception into a JS one
+void rethrow(jsi::Runtime& runtime, JNIEnv* env, const char* what) {
+  if (!env->ExceptionCheck()) {
+    return;
+  }
+  env->ExceptionClear();
+  throw jsi::JSError(runtime, std::string(what) + " failed in the native transport");
+}
+
+jstring toJavaString(JNIEnv* env, jsi::Runtime& runtime, const jsi::Value& value) {
+  if (value.isNull() || value.isUndefined()) {
+    return nullptr;
+  }
+  // Peer ids and message types are ASCII, where modified UTF-8 and UTF-8 agree
+  return env->NewStringUTF(value.asString(runtime).utf8(runtime).c_str());
+}
+
+// sendBytes(peerId | null, buffer, offset, length, type) -> send id
+jsi::Value sendBytes(jsi::Runtime& runtime, const BridgeRef& ref, const jsi::Value* args, size_t count) {
+  if (count < 5 || !args[1].isObject() || !args[1].asObject(runtime).isArrayBuffer(runtime)) {
+    throw jsi::JSError(runtime, "sendBytes(peerId, buffer, offset, length, type) needs an ArrayBuffer");
+  }
+  jsi::ArrayBuffer buffer = args[1].asObject(runtime).getArrayBuffer(runtime);
+  double offset = args[2].asNumber();
+  double length = args[3].asNumber();
+  size_t size = buffer.size(runtime);
+  if (offset < 0 || length < 0 || offset + length > static_cast<double>(size)) {
+    throw jsi::JSError(runtime, "sendBytes: offset and length are outside the buffer");
+  }
+
+  JNIEnv* env = ref.env();
+  jstring peerId = toJavaString(env, runtime, args[0]);
+  jstring type = toJavaString(env, runtime, args[4]);
+  jbyteArray data = env->NewByteArray(static_cast<jsize>(length));
+  jint sendId = -1;
+  if (data != nullptr) {
+    env->SetByteArrayRegion(data, 0, static_cast<jsize>(length),
+        reinterpret_cast<const jbyte*>(buffer.data(runtime) + static_cast<size_t>(offset)));
+    sendId = env->CallIntMethod(ref.bridge(), ref.sendBytesMethod(), peerId, data, type);
+    env->DeleteLocalRef(data);
+  }
+  if (peerId != nullptr) {
+    env->DeleteLocalRef(peerId);
+  }
+  if (type != nullptr) {
+    env->DeleteLocalRef(type);
+  }
+  rethrow(runtime, env, "sendBytes");
+  return jsi::Value(static_cast<int>(sendId));
+}
+
+// takeBytes(handle) -> ArrayBuffer, or undefined if it was already taken or dropped
+jsi::Value takeBytes(jsi::Runtime& runtime, const BridgeRef& ref, const jsi::Value* args, size_t count) {
+  if (count < 1 || !args[0].isNumber()) {
+    throw jsi::JSError(runtime, "takeBytes(handle) needs a number");
+  }
+  JNIEnv* env = ref.env();
+  auto bytes = static_cast<jbyteArray>(
+      env->CallObjectMethod(ref.bridge(), ref.takeBytesMethod(), static_cast<jint>(args[0].asNumber())));
+  rethrow(runtime, env, "takeBytes");
+  if (bytes == nullptr) {
+    return jsi::Value::undefined();
+  }
+  jsize length = env->GetArrayLength(bytes);
+  jsi::Function constructor = runtime.global().getPropertyAsFunction(runtime, "ArrayBuffer");
+  jsi::ArrayBuffer buffer = constructor.callAsConstructor(runtime, static_cast<int>(length))
+      .asObject(runtime).getArrayBuffer(runtime);
+  env->GetByteArrayRegion(bytes, 0, length, reinterpret_cast<jbyte*>(buffer.data(runtime)));
+  env->DeleteLocalRef(bytes);
+  return jsi::Value(runtime, buffer);
+}
+
+}  // namespace
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_kavach_p2p_BinaryBridge_nativeInstall(JNIEnv* env, jobject bridge, jlong runtimePointer) {
+  auto& runtime = *reinterpret_cast<jsi::Runtime*>(runtimePointer);
+  auto ref = std::make_shared<BridgeRef>(env, bridge);
+
+  jsi::Object api(runtime);
+  api.setProperty(runtime, "sendBytes", jsi::Function::createFromHostFunction(
+      runtime, jsi::PropNameID::forAscii(runtime, "sendBytes"), 5,
+      [ref](jsi::Runtime& rt, const jsi::Value&, const jsi::Value* args, size_t count) {
+        return sendBytes(rt, *ref, args, count);
+      }));
+  api.setProperty(runtime, "takeBytes", jsi::Function::createFromHostFunction(
+      runtime, jsi::PropNameID::forAscii(runtime, "takeBytes"), 1,
+      [ref](jsi::Runtime& rt, const jsi::Value&, const jsi::Value* args, size_t count) {
+        return takeBytes(rt, *ref, args, count);
+      }));
+  runtime.global().setProperty(runtime, "__kavachP2P", std::move(api));
+}
@@ -0,0 +1,81 @@
+package com.kavach.p2p.bench;
+
+import com.kavach.p2p.transport.Frame;
+import com.kavach.p2p.transport.FrameDecoder;
+import com.kavach.p2p.transport.FrameFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Frame encode and decode throughput. Decoding feeds a buffer of back-to-back frames in 16 KB
+ * slices, the same size PeerConnection reads from the socket, so frames straddle reads the way
+ * they do on a real connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+    private static final int FRAMES_PER_BUFFER = 64;
+    private static final int READ_SIZE = 16 * 1024;
+
+    @Param({"64", "1024", "16384"})
+    int payloadSize;
+
+    private Frame frame;
+    private ByteBuffer direct;
+    private byte[] stream;
+    private FrameDecoder decoder;
+    private Blackhole sink;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        frame = new Frame(Frame.TYPE_MESSAGE, (byte) 0, payload);
+        direct = ByteBuffer.allocateDirect(frame.getEncodedSize());
+
+        ByteBuffer all = ByteBuffer.allocate(frame.getEncodedSize() * FRAMES_PER_BUFFER);
+        for (int i = 0; i < FRAMES_PER_BUFFER; i++) {
+            frame.encodeTo(all);
+        }
+        stream = all.array();
+        sink = blackhole;
+        decoder = new FrameDecoder(decoded -> sink.consume(decoded));
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return frame.encode();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeToDirect() {
+        direct.clear();
+        frame.encodeTo(direct);
+        return direct;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES_PER_BUFFER)
+    public void decode() throws FrameFormatException {
+        for (int offset = 0; offset < stream.length; offset += READ_SIZE) {
+            decoder.feed(stream, offset, Math.min(READ_SIZE, stream.length - offset));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.kavach.p2p.bench;
+
+import com.kavach.p2p.transport.Frame;
+import com.kavach.p2p.transport.Handshake;
+import com.kavach.p2p.transport.PeerConnection;
+import com.kavach.p2p.transport.TransportEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message round trip between two engines over loopback TCP: send, echoed back by the other engine,
+ * received. Covers framing, the write queue, the selector loop and the kernel, but none of the
+ * radio, so it is the floor for what a Wi-Fi Direct round trip can cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackRoundTripBenchmark {
+    @Param({"128", "4096"})
+    int payloadSize;
+
+    @Param({"false", "true"})
+    boolean compression;
+
+    private TransportEngine server;
+    private TransportEngine client;
+    private PeerConnection connection;
+    private Frame frame;
+    private final BlockingQueue<PeerConnection> connected = new ArrayBlockingQueue<>(1);
+    private final BlockingQueue<Frame> replies = new ArrayBlockingQueue<>(16);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Handshake handshake = Handshake.empty().withCapabilities(compression ? Handshake.CAP_DEFLATE : 0);
+        server = new TransportEngine(new Listener() {
+            @Override
+            public void onFrame(PeerConnection peer, Frame received) {
+                try {
+                    peer.send(received);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        server.setLocalHandshake(handshake);
+        server.start();
+        server.listen(0);
+
+        client = new TransportEngine(new Listener() {
+            @Override
+            public void onHandshake(PeerConnection peer, Handshake remote) {
+                connected.add(peer);
+            }
+
+            @Override
+            public void onFrame(PeerConnection peer, Frame received) {
+                replies.add(received);
+            }
+        });
+        client.setLocalHandshake(handshake);
+        client.start();
+        client.connect("server", "127.0.0.1", awaitPort(server), 5000);
+        connection = connected.poll(5, TimeUnit.SECONDS);
+        if (connection == null) {
+            throw new IllegalStateException("Loopback connection did not come up");
+        }
+
+        // Text-like bytes so compression has something to work with
+        byte[] payload = new byte[payloadSize];
+        Random random = new Random(7);
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(12));
+        }
+        frame = new Frame(Frame.TYPE_MESSAGE, (byte) 0, payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public Frame roundTrip() throws Exception {
+        connection.send(frame);
+        Frame reply = replies.poll(5, TimeUnit.SECONDS);
+        if (reply == null) {
+            throw new IllegalStateException("No echo within 5 s");
+        }
+        return reply;
+    }
+
+    private static int awaitPort(TransportEngine engine) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            int port = engine.getLocalPort();
+            if (port > 0) {
+                return port;
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("Server did not start listening");
+    }
+
+    private static class Listener implements TransportEngine.Listener {
+        @Override
+        public void onConnected(PeerConnection connection, boolean accepted) {
+        }
+
+        @Override
+        public void onConnectFailed(String peerId, Exception cause) {
+        }
+
+        @Override
+        public void onHandshake(PeerConnection connection, Handshake handshake) {
+        }
+
+        @Override
+        public void onFrame(PeerConnection connection, Frame frame) {
+        }
+
+        @Override
+        public void onClosed(PeerConnection connection, Exception cause) {
+        }
+
+        @Override
+        public void onServerError(Exception cause) {
+        }
+    }
+}
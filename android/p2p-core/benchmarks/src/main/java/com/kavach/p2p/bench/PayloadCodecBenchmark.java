@@ -0,0 +1,61 @@
+package com.kavach.p2p.bench;
+
+import com.kavach.crypto.PayloadCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of packing and unpacking the Aadhaar and PAN payloads carried in QR codes and messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadCodecBenchmark {
+    private PayloadCodec.AadhaarData aadhaar;
+    private PayloadCodec.PanData pan;
+    private byte[] aadhaarBytes;
+    private byte[] panBytes;
+
+    @Setup
+    public void setUp() {
+        PayloadCodec.Dob dob = new PayloadCodec.Dob(14, 8, 1990);
+        aadhaar = new PayloadCodec.AadhaarData(1, "M", 123456789012L, dob, "RAHUL KUMAR SHARMA");
+        pan = new PayloadCodec.PanData(1, "PRIYA VERMA", dob, "ABCDE1234F", "SURESH VERMA");
+        aadhaarBytes = PayloadCodec.encodeAadhaar(aadhaar);
+        panBytes = PayloadCodec.encodePan(pan);
+    }
+
+    @Benchmark
+    public byte[] encodeAadhaar() {
+        return PayloadCodec.encodeAadhaar(aadhaar);
+    }
+
+    @Benchmark
+    public PayloadCodec.AadhaarData decodeAadhaar() {
+        return PayloadCodec.decodeAadhaar(aadhaarBytes);
+    }
+
+    @Benchmark
+    public byte[] encodePan() {
+        return PayloadCodec.encodePan(pan);
+    }
+
+    @Benchmark
+    public PayloadCodec.PanData decodePan() {
+        return PayloadCodec.decodePan(panBytes);
+    }
+}
@@ -0,0 +1,85 @@
+package com.kavach.p2p.transport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deflate cost and ratio for the kind of messages P2PService actually sends. Lives in the transport
+ * package because {@link FrameCompressor} is internal to it. The ratio is reported through the
+ * originalBytes and compressedBytes counters next to the timing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    // A chat message and a verification message carrying a certificate, as P2PService sends them
+    private static final String CHAT = "{\"id\":\"1718123456789-ab12cd\",\"fromDevice\":\"Kavach-Device-7QX2LM\","
+        + "\"toDevice\":\"broadcast\",\"message\":\"Please show your Aadhaar certificate to the verifier at counter 3\","
+        + "\"timestamp\":1718123456789,\"type\":\"chat\"}";
+    private static final String VERIFICATION = "{\"id\":\"1718123456790-ef34gh\",\"fromDevice\":\"Kavach-Device-7QX2LM\","
+        + "\"toDevice\":\"broadcast\",\"message\":\"{\\\"name\\\":\\\"RAHUL KUMAR SHARMA\\\",\\\"lastFourAadhaar\\\":\\\"9012\\\","
+        + "\\\"serial\\\":\\\"5f0c9a7e-1b2d-4c3e-8f90-a1b2c3d4e5f6\\\",\\\"issuer\\\":\\\"Kavach Government CA\\\","
+        + "\\\"validFrom\\\":\\\"2024-06-11T10:30:56.789Z\\\",\\\"validTo\\\":\\\"2025-06-11T10:30:56.789Z\\\","
+        + "\\\"publicKey\\\":\\\"-----BEGIN PUBLIC KEY-----\\\\nMCowBQYDK2VwAyEAq3Yx0bW2f8fGkVQ1n9s8yT0m1lJqk1y5u6e2b3c4d5E=\\\\n-----END PUBLIC KEY-----\\\","
+        + "\\\"signature\\\":\\\"3q2+7w8gGm0p0S6v9Hk2m4F7e1c5b3a9d8f7e6d5c4b3a2f1e0d9c8b7a6f5e4d3c2b1a0f9e8d7c6b5a4f3e2d1c0b9a8==\\\"}\","
+        + "\"timestamp\":1718123456790,\"type\":\"verification\"}";
+
+    @Param({"chat", "verification"})
+    String message;
+
+    private FrameCompressor compressor;
+    private Frame frame;
+    private Frame compressed;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Ratio {
+        public long originalBytes;
+        public long compressedBytes;
+    }
+
+    @Setup
+    public void setUp() throws FrameFormatException {
+        compressor = new FrameCompressor();
+        frame = Frame.message("chat".equals(message) ? CHAT : VERIFICATION);
+        compressed = compressor.compress(frame);
+        if (compressor.decompress(compressed).getPayload().length != frame.getPayload().length) {
+            throw new IllegalStateException("Round trip changed the payload");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        compressor.close();
+    }
+
+    @Benchmark
+    public Frame compress(Ratio ratio) {
+        Frame result = compressor.compress(frame);
+        ratio.originalBytes += frame.getPayload().length;
+        ratio.compressedBytes += result.getPayload().length;
+        return result;
+    }
+
+    @Benchmark
+    public Frame decompress() throws FrameFormatException {
+        return compressor.decompress(compressed);
+    }
+}
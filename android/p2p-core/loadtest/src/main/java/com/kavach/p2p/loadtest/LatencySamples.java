@@ -0,0 +1,63 @@
+package com.kavach.p2p.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Every latency a run measures, kept as recorded. The transport's LatencyHistogram reports the
+ * upper bound of a bucket, which is fine for dashboards but turns a p99 of 11 ms into 25 ms, too
+ * coarse for the pass/fail thresholds; here a percentile is one of the recorded values. A long per
+ * answered message is a few MB even for long runs.
+ */
+final class LatencySamples {
+    private long[] nanos = new long[4096];
+    private int count = 0;
+
+    synchronized void recordNanos(long sample) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = Math.max(0, sample);
+    }
+
+    synchronized Snapshot snapshot() {
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return new Snapshot(sorted);
+    }
+
+    static final class Snapshot {
+        private final long[] sorted;
+
+        Snapshot(long[] sorted) {
+            this.sorted = sorted;
+        }
+
+        long getCount() {
+            return sorted.length;
+        }
+
+        double getMeanMs() {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (long sample : sorted) {
+                sum += sample;
+            }
+            return sum / sorted.length / 1_000_000.0;
+        }
+
+        double getMaxMs() {
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1_000_000.0;
+        }
+
+        // Nearest rank: the smallest sample with at least that fraction (0..1) of samples at or below it
+        double getPercentileMs(double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(quantile * sorted.length);
+            return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1] / 1_000_000.0;
+        }
+    }
+}
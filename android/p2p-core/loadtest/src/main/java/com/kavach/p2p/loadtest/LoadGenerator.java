@@ -0,0 +1,559 @@
+package com.kavach.p2p.loadtest;
+
+import com.kavach.p2p.transport.Frame;
+import com.kavach.p2p.transport.Handshake;
+import com.kavach.p2p.transport.Identity;
+import com.kavach.p2p.transport.Lane;
+import com.kavach.p2p.transport.PeerConnection;
+import com.kavach.p2p.transport.SendCallback;
+import com.kavach.p2p.transport.SendQueueFullException;
+import com.kavach.p2p.transport.TransportEngine;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load test for the group-owner side of the transport. A server engine is set up the way
+ * WifiP2pModule.startServer() sets it up and listens on 127.0.0.1; N simulated peers connect to it
+ * through a few client engines and send P2PMessage-shaped JSON at a fixed rate. The server answers
+ * every message by sending it back, standing in for the app's reply, and latency is measured from
+ * the client's send() to the answer arriving, so it includes both write queues and the selector
+ * loops on each side.
+ *
+ * <p>Sending is open loop: a slow server makes messages queue up rather than slowing the peers
+ * down, which is what a room full of phones does too. Thread count and heap are for the whole JVM,
+ * client engines and sender threads included.
+ *
+ * <p>Exit status is 0 when every threshold given holds, 1 when one doesn't, 2 on bad arguments or
+ * when the run could not be set up.
+ */
+public final class LoadGenerator {
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final long READY_TIMEOUT_MS = 30000;
+    // How long to wait after the last send for answers still on their way
+    private static final long DRAIN_TIMEOUT_MS = 5000;
+    private static final long HEAP_SAMPLE_INTERVAL_MS = 100;
+
+    private final LoadOptions options;
+    private final SimulatedPeer[] peers;
+    private final Map<String, SimulatedPeer> peersById = new ConcurrentHashMap<>();
+    private final List<PeerConnection> serverConnections = new CopyOnWriteArrayList<>();
+    private final CountDownLatch ready;
+    private final byte[] padding;
+
+    private final LatencySamples latency = new LatencySamples();
+    private final LatencySamples[] latencyByType = new LatencySamples[LoadOptions.MESSAGE_TYPES.length];
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder queueFull = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder droppedConnections = new LongAdder();
+    private final LongAdder serverErrors = new LongAdder();
+    private final AtomicLong heapPeakBytes = new AtomicLong();
+
+    private TransportEngine server;
+    private final List<TransportEngine> clients = new ArrayList<>();
+    private ScheduledExecutorService senders;
+    // Answers to messages sent before this are not measured
+    private volatile long measureStartNanos = Long.MAX_VALUE;
+    private volatile boolean stopping = false;
+
+    LoadGenerator(LoadOptions options) {
+        this.options = options;
+        this.peers = new SimulatedPeer[options.peers];
+        this.ready = new CountDownLatch(options.peers);
+        for (int i = 0; i < latencyByType.length; i++) {
+            latencyByType[i] = new LatencySamples();
+        }
+        // Text-like filler so compression has the kind of input it gets from JSON
+        padding = new byte[options.messageSize];
+        Random random = new Random(7);
+        for (int i = 0; i < padding.length; i++) {
+            padding[i] = (byte) ('a' + random.nextInt(26));
+        }
+    }
+
+    public static void main(String[] args) {
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        int status;
+        try {
+            status = new LoadGenerator(options).run();
+        } catch (Exception e) {
+            System.err.println("Load test failed: " + e);
+            e.printStackTrace();
+            status = 2;
+        }
+        System.exit(status);
+    }
+
+    int run() throws Exception {
+        try {
+            long connectMs = setUp();
+            if (connectMs < 0) {
+                System.err.println("Only " + (options.peers - ready.getCount()) + " of " + options.peers
+                    + " peers finished the handshake within " + READY_TIMEOUT_MS + " ms");
+                return 2;
+            }
+            return measure(connectMs);
+        } finally {
+            tearDown();
+        }
+    }
+
+    // Returns how long it took every peer to connect and handshake, or -1 if they didn't
+    private long setUp() throws IOException, InterruptedException {
+        int capabilities = Handshake.CAP_HEARTBEAT | (options.compression ? Handshake.CAP_DEFLATE : 0);
+        Handshake handshake = Handshake.empty().withCapabilities(capabilities);
+
+        server = new TransportEngine(new ServerListener());
+        server.setLocalHandshake(handshake);
+        if (options.encryption) {
+            server.setIdentity(Identity.generate(new SecureRandom()), true);
+        }
+        server.start();
+        server.listen(0);
+        int port = awaitPort(server);
+
+        for (int i = 0; i < Math.min(options.clientEngines, options.peers); i++) {
+            TransportEngine client = new TransportEngine(new ClientListener());
+            client.setLocalHandshake(handshake);
+            if (options.encryption) {
+                client.setIdentity(Identity.generate(new SecureRandom()), true);
+            }
+            client.start();
+            clients.add(client);
+        }
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new SimulatedPeer(i);
+            peersById.put(peers[i].id, peers[i]);
+            clients.get(i % clients.size()).connect(peers[i].id, "127.0.0.1", port, CONNECT_TIMEOUT_MS);
+        }
+        if (!ready.await(READY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            return -1;
+        }
+        return (System.nanoTime() - startNanos) / 1_000_000L;
+    }
+
+    private int measure(long connectMs) throws InterruptedException {
+        senders = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "load-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        senders.scheduleAtFixedRate(this::sampleHeap, 0, HEAP_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        long periodNanos = (long) (1_000_000_000L / options.rate);
+        List<ScheduledFuture<?>> schedules = new ArrayList<>();
+        Random jitter = new Random(11);
+        for (SimulatedPeer peer : peers) {
+            // Spread the first sends over one period so peers don't fire in lockstep
+            long initialDelay = (long) (jitter.nextDouble() * periodNanos);
+            schedules.add(senders.scheduleAtFixedRate(peer::sendNext, initialDelay, periodNanos, TimeUnit.NANOSECONDS));
+        }
+
+        Thread.sleep(options.warmupSeconds * 1000L);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        heapPeakBytes.set(0);
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTimeMs();
+        long sentBefore = sent.sum();
+        long receivedBytesBefore = receivedBytes.sum();
+        measureStartNanos = System.nanoTime();
+
+        Thread.sleep(options.durationSeconds * 1000L);
+        long measureEndNanos = System.nanoTime();
+        for (ScheduledFuture<?> schedule : schedules) {
+            schedule.cancel(false);
+        }
+        long measuredSent = sent.sum() - sentBefore;
+        int threadCount = threads.getThreadCount();
+        int threadPeak = threads.getPeakThreadCount();
+        long gcCount = gcCount() - gcCountBefore;
+        long gcTimeMs = gcTimeMs() - gcTimeBefore;
+        long measuredBytes = receivedBytes.sum() - receivedBytesBefore;
+
+        long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT_MS * 1_000_000L;
+        while (inFlightCount() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        long lost = inFlightCount();
+
+        double seconds = (measureEndNanos - measureStartNanos) / 1e9;
+        LatencySamples.Snapshot snapshot = latency.snapshot();
+        double throughput = snapshot.getCount() / seconds;
+        long errors = sendErrors.sum() + queueFull.sum() + lost + connectFailures.sum()
+            + droppedConnections.sum() + serverErrors.sum();
+        long heapPeakMb = heapPeakBytes.get() / (1024 * 1024);
+
+        System.out.println("Kavach p2p loopback load test");
+        System.out.println(String.format(Locale.US, "  %d peers over %d client engines, %.1f msg/s each, %d B messages, mix %s, compression %s, encryption %s",
+            options.peers, clients.size(), options.rate, options.messageSize, options.describeMix(),
+            options.compression ? "on" : "off", options.encryption ? "on" : "off"));
+        System.out.println(String.format(Locale.US, "  connected in %d ms, measured %.1f s after %d s warmup",
+            connectMs, seconds, options.warmupSeconds));
+        System.out.println(String.format(Locale.US, "Throughput  %.1f msg/s answered, %d sent, %.2f MB/s in",
+            throughput, measuredSent, measuredBytes / seconds / (1024 * 1024)));
+        System.out.println(String.format(Locale.US, "Latency     p50 %.3f ms  p99 %.3f ms  p999 %.3f ms  max %.3f ms  mean %.3f ms",
+            snapshot.getPercentileMs(0.5), snapshot.getPercentileMs(0.99), snapshot.getPercentileMs(0.999),
+            snapshot.getMaxMs(), snapshot.getMeanMs()));
+        for (int i = 0; i < latencyByType.length; i++) {
+            LatencySamples.Snapshot byType = latencyByType[i].snapshot();
+            if (byType.getCount() > 0) {
+                System.out.println(String.format(Locale.US, "  %-12s %8d  p50 %.3f ms  p99 %.3f ms  p999 %.3f ms",
+                    LoadOptions.MESSAGE_TYPES[i], byType.getCount(), byType.getPercentileMs(0.5),
+                    byType.getPercentileMs(0.99), byType.getPercentileMs(0.999)));
+            }
+        }
+        System.out.println(String.format(Locale.US, "Errors      %d (send %d, queue full %d, unanswered %d, connect %d, dropped %d, server %d)",
+            errors, sendErrors.sum(), queueFull.sum(), lost, connectFailures.sum(), droppedConnections.sum(),
+            serverErrors.sum()));
+        System.out.println(String.format(Locale.US, "Server      %d connections, send queue high water %d",
+            server.getOpenConnectionCount(), serverQueueHighWater()));
+        System.out.println(String.format(Locale.US, "JVM         threads %d (peak %d), heap peak %d MB, %d GCs taking %d ms",
+            threadCount, threadPeak, heapPeakMb, gcCount, gcTimeMs));
+
+        List<String> failures = new ArrayList<>();
+        checkMax(failures, "p50 latency ms", snapshot.getPercentileMs(0.5), options.maxP50Ms);
+        checkMax(failures, "p99 latency ms", snapshot.getPercentileMs(0.99), options.maxP99Ms);
+        checkMax(failures, "p999 latency ms", snapshot.getPercentileMs(0.999), options.maxP999Ms);
+        if (!Double.isNaN(options.minThroughput) && throughput < options.minThroughput) {
+            failures.add(String.format(Locale.US, "throughput %.1f msg/s below %.1f", throughput, options.minThroughput));
+        }
+        if (errors > options.maxErrors) {
+            failures.add("errors " + errors + " above " + options.maxErrors);
+        }
+        if (options.maxHeapMb >= 0 && heapPeakMb > options.maxHeapMb) {
+            failures.add("heap peak " + heapPeakMb + " MB above " + options.maxHeapMb);
+        }
+        if (options.maxThreads >= 0 && threadPeak > options.maxThreads) {
+            failures.add("thread peak " + threadPeak + " above " + options.maxThreads);
+        }
+
+        for (String failure : failures) {
+            System.out.println("FAIL " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "PASS" : "FAIL");
+        return failures.isEmpty() ? 0 : 1;
+    }
+
+    private void tearDown() {
+        stopping = true;
+        if (senders != null) {
+            senders.shutdownNow();
+        }
+        for (TransportEngine client : clients) {
+            client.shutdown();
+        }
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+
+    private static void checkMax(List<String> failures, String name, double value, double max) {
+        if (!Double.isNaN(max) && value > max) {
+            failures.add(String.format(Locale.US, "%s %.3f above %.3f", name, value, max));
+        }
+    }
+
+    private long inFlightCount() {
+        long count = 0;
+        for (SimulatedPeer peer : peers) {
+            count += peer.inFlight.size();
+        }
+        return count;
+    }
+
+    private int serverQueueHighWater() {
+        int highWater = 0;
+        for (PeerConnection connection : serverConnections) {
+            highWater = Math.max(highWater, connection.getQueueHighWater());
+        }
+        return highWater;
+    }
+
+    private void sampleHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        heapPeakBytes.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTimeMs() {
+        long timeMs = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            timeMs += Math.max(0, gc.getCollectionTime());
+        }
+        return timeMs;
+    }
+
+    // The type is the last field of every message this tool builds: ...,"type":"chat"}
+    private static String messageType(byte[] payload) {
+        // Index of the closing quote
+        int end = payload.length - 2;
+        if (end < 0) {
+            return null;
+        }
+        int start = end;
+        while (start > 0 && payload[start - 1] != '"') {
+            start--;
+        }
+        return new String(payload, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static int awaitPort(TransportEngine engine) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            int port = engine.getLocalPort();
+            if (port > 0) {
+                return port;
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("Server did not start listening");
+    }
+
+    private static final class InFlight {
+        final long sentAtNanos;
+        final int type;
+
+        InFlight(long sentAtNanos, int type) {
+            this.sentAtNanos = sentAtNanos;
+            this.type = type;
+        }
+    }
+
+    /**
+     * One client device. Messages carry "<peer id>-<sequence>" as their id, which is how an answer
+     * is matched back to its send time.
+     */
+    private final class SimulatedPeer {
+        final String id;
+        final byte[] idPrefix;
+        final Map<Long, InFlight> inFlight = new ConcurrentHashMap<>();
+        // Only touched from the sender task, which never runs concurrently with itself
+        final Random random;
+        long sequence = 0;
+        volatile PeerConnection connection;
+
+        SimulatedPeer(int index) {
+            id = "peer-" + index;
+            idPrefix = ("{\"id\":\"" + id + "-").getBytes(StandardCharsets.UTF_8);
+            random = new Random(index);
+        }
+
+        void sendNext() {
+            PeerConnection current = connection;
+            if (current == null || !current.isOpen()) {
+                return;
+            }
+            int type = pickType();
+            long seq = ++sequence;
+            Frame frame = new Frame(Frame.TYPE_MESSAGE, (byte) 0, buildMessage(seq, type));
+            inFlight.put(seq, new InFlight(System.nanoTime(), type));
+            sent.increment();
+            try {
+                current.send(frame, Lane.forMessageType(LoadOptions.MESSAGE_TYPES[type]), new SendCallback() {
+                    @Override
+                    public void onSent() {
+                    }
+
+                    @Override
+                    public void onFailed(Exception cause) {
+                        if (inFlight.remove(seq) != null) {
+                            sendErrors.increment();
+                        }
+                    }
+                });
+            } catch (SendQueueFullException e) {
+                inFlight.remove(seq);
+                queueFull.increment();
+            } catch (IOException e) {
+                inFlight.remove(seq);
+                sendErrors.increment();
+            }
+        }
+
+        void onAnswer(Frame frame) {
+            long seq = parseSequence(frame.getPayload());
+            InFlight pending = seq >= 0 ? inFlight.remove(seq) : null;
+            if (pending == null) {
+                return;
+            }
+            if (pending.sentAtNanos >= measureStartNanos) {
+                long nanos = System.nanoTime() - pending.sentAtNanos;
+                latency.recordNanos(nanos);
+                latencyByType[pending.type].recordNanos(nanos);
+                receivedBytes.add(frame.getPayload().length);
+            }
+        }
+
+        private int pickType() {
+            int total = 0;
+            for (int weight : options.mix) {
+                total += weight;
+            }
+            int pick = random.nextInt(total);
+            for (int i = 0; i < options.mix.length; i++) {
+                pick -= options.mix[i];
+                if (pick < 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        // Same shape as the P2PMessage JSON the app sends, padded out to the configured size
+        private byte[] buildMessage(long seq, int type) {
+            String head = seq + "\",\"fromDevice\":\"" + id + "\",\"toDevice\":\"broadcast\",\"message\":\"";
+            String tail = "\",\"timestamp\":" + System.currentTimeMillis()
+                + ",\"type\":\"" + LoadOptions.MESSAGE_TYPES[type] + "\"}";
+            byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+            byte[] tailBytes = tail.getBytes(StandardCharsets.UTF_8);
+            int fill = Math.max(0, options.messageSize - idPrefix.length - headBytes.length - tailBytes.length);
+            byte[] message = new byte[idPrefix.length + headBytes.length + fill + tailBytes.length];
+            int offset = 0;
+            System.arraycopy(idPrefix, 0, message, offset, idPrefix.length);
+            offset += idPrefix.length;
+            System.arraycopy(headBytes, 0, message, offset, headBytes.length);
+            offset += headBytes.length;
+            System.arraycopy(padding, 0, message, offset, fill);
+            offset += fill;
+            System.arraycopy(tailBytes, 0, message, offset, tailBytes.length);
+            return message;
+        }
+
+        private long parseSequence(byte[] payload) {
+            if (payload.length < idPrefix.length) {
+                return -1;
+            }
+            long seq = 0;
+            int i = idPrefix.length;
+            for (; i < payload.length && payload[i] >= '0' && payload[i] <= '9'; i++) {
+                seq = seq * 10 + (payload[i] - '0');
+            }
+            return i > idPrefix.length ? seq : -1;
+        }
+    }
+
+    private class ServerListener extends BaseListener {
+        @Override
+        public void onHandshake(PeerConnection connection, Handshake handshake) {
+            serverConnections.add(connection);
+        }
+
+        @Override
+        public void onFrame(PeerConnection connection, Frame frame) {
+            if (frame.getType() != Frame.TYPE_MESSAGE) {
+                return;
+            }
+            try {
+                connection.send(frame, Lane.forMessageType(messageType(frame.getPayload())), null);
+            } catch (IOException e) {
+                serverErrors.increment();
+            }
+        }
+
+        @Override
+        public void onServerError(Exception cause) {
+            serverErrors.increment();
+            System.err.println("Server error: " + cause);
+        }
+    }
+
+    private class ClientListener extends BaseListener {
+        @Override
+        public void onConnectFailed(String peerId, Exception cause) {
+            connectFailures.increment();
+            System.err.println("Connect for " + peerId + " failed: " + cause);
+            ready.countDown();
+        }
+
+        @Override
+        public void onHandshake(PeerConnection connection, Handshake handshake) {
+            SimulatedPeer peer = peersById.get(connection.getPeerId());
+            if (peer != null) {
+                peer.connection = connection;
+                ready.countDown();
+            }
+        }
+
+        @Override
+        public void onFrame(PeerConnection connection, Frame frame) {
+            SimulatedPeer peer = peersById.get(connection.getPeerId());
+            if (peer != null && frame.getType() == Frame.TYPE_MESSAGE) {
+                peer.onAnswer(frame);
+            }
+        }
+
+        @Override
+        public void onClosed(PeerConnection connection, Exception cause) {
+            if (!stopping) {
+                droppedConnections.increment();
+                System.err.println("Connection for " + connection.getPeerId() + " closed"
+                    + (cause != null ? ": " + cause : ""));
+            }
+        }
+    }
+
+    private static class BaseListener implements TransportEngine.Listener {
+        @Override
+        public void onConnected(PeerConnection connection, boolean accepted) {
+        }
+
+        @Override
+        public void onConnectFailed(String peerId, Exception cause) {
+        }
+
+        @Override
+        public void onHandshake(PeerConnection connection, Handshake handshake) {
+        }
+
+        @Override
+        public void onFrame(PeerConnection connection, Frame frame) {
+        }
+
+        @Override
+        public void onClosed(PeerConnection connection, Exception cause) {
+        }
+
+        @Override
+        public void onServerError(Exception cause) {
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.kavach.p2p.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command line for {@link LoadGenerator}. Every option has a default, so a bare run is a quick
+ * smoke test; thresholds left unset are not checked.
+ */
+final class LoadOptions {
+    static final String[] MESSAGE_TYPES = {"verification", "chat", "consent", "system"};
+
+    int peers = 10;
+    // Messages per second from each peer
+    double rate = 10;
+    int messageSize = 512;
+    int durationSeconds = 20;
+    int warmupSeconds = 3;
+    // Client engines the simulated peers are spread over; each one is an I/O thread
+    int clientEngines = 4;
+    boolean compression = true;
+    boolean encryption = false;
+    // Relative weights, in MESSAGE_TYPES order
+    final int[] mix = {2, 5, 1, 1};
+
+    double maxP50Ms = Double.NaN;
+    double maxP99Ms = Double.NaN;
+    double maxP999Ms = Double.NaN;
+    double minThroughput = Double.NaN;
+    long maxErrors = 0;
+    long maxHeapMb = -1;
+    int maxThreads = -1;
+
+    static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.isEmpty()) {
+                continue;
+            }
+            if (arg.equals("--help") || arg.equals("-h")) {
+                throw new IllegalArgumentException(usage());
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--peers": options.peers = positive(arg, Integer.parseInt(value)); break;
+                    case "--rate": options.rate = positive(arg, Double.parseDouble(value)); break;
+                    case "--size": options.messageSize = positive(arg, Integer.parseInt(value)); break;
+                    case "--duration": options.durationSeconds = positive(arg, Integer.parseInt(value)); break;
+                    case "--warmup": options.warmupSeconds = Math.max(0, Integer.parseInt(value)); break;
+                    case "--client-engines": options.clientEngines = positive(arg, Integer.parseInt(value)); break;
+                    case "--compression": options.compression = Boolean.parseBoolean(value); break;
+                    case "--encryption": options.encryption = Boolean.parseBoolean(value); break;
+                    case "--mix": options.parseMix(value); break;
+                    case "--max-p50-ms": options.maxP50Ms = Double.parseDouble(value); break;
+                    case "--max-p99-ms": options.maxP99Ms = Double.parseDouble(value); break;
+                    case "--max-p999-ms": options.maxP999Ms = Double.parseDouble(value); break;
+                    case "--min-throughput": options.minThroughput = Double.parseDouble(value); break;
+                    case "--max-errors": options.maxErrors = Long.parseLong(value); break;
+                    case "--max-heap-mb": options.maxHeapMb = Long.parseLong(value); break;
+                    case "--max-threads": options.maxThreads = Integer.parseInt(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + arg + "\n" + usage());
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + arg + ": " + value);
+            }
+        }
+        return options;
+    }
+
+    // "verification=2,chat=5"; types left out get a weight of 0
+    private void parseMix(String value) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : value.split(",")) {
+            String[] pair = part.split("=", 2);
+            weights.put(pair[0].trim(), pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1);
+        }
+        int total = 0;
+        for (int i = 0; i < MESSAGE_TYPES.length; i++) {
+            Integer weight = weights.remove(MESSAGE_TYPES[i]);
+            mix[i] = weight != null ? Math.max(0, weight) : 0;
+            total += mix[i];
+        }
+        if (!weights.isEmpty()) {
+            throw new IllegalArgumentException("Unknown message types in --mix: " + weights.keySet());
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("--mix needs at least one type with a positive weight");
+        }
+    }
+
+    String describeMix() {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < MESSAGE_TYPES.length; i++) {
+            if (mix[i] > 0) {
+                if (description.length() > 0) {
+                    description.append(',');
+                }
+                description.append(MESSAGE_TYPES[i]).append('=').append(mix[i]);
+            }
+        }
+        return description.toString();
+    }
+
+    private static int positive(String arg, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(arg + " must be positive");
+        }
+        return value;
+    }
+
+    private static double positive(String arg, double value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(arg + " must be positive");
+        }
+        return value;
+    }
+
+    static String usage() {
+        return "Usage: LoadGenerator [options]\n"
+            + "  --peers N             simulated client peers (10)\n"
+            + "  --rate R              messages per second per peer (10)\n"
+            + "  --size BYTES          message payload size (512)\n"
+            + "  --duration SECONDS    measured run length (20)\n"
+            + "  --warmup SECONDS      unmeasured lead-in (3)\n"
+            + "  --mix TYPE=W,...      weights for verification/chat/consent/system (verification=2,chat=5,consent=1,system=1)\n"
+            + "  --client-engines N    client I/O threads the peers share (4)\n"
+            + "  --compression BOOL    advertise DEFLATE on both sides (true)\n"
+            + "  --encryption BOOL     authenticated, encrypted sessions on both sides (false)\n"
+            + "Thresholds, exit status 1 when exceeded:\n"
+            + "  --max-p50-ms MS  --max-p99-ms MS  --max-p999-ms MS\n"
+            + "  --min-throughput MSGS_PER_SEC  --max-errors N (0)\n"
+            + "  --max-heap-mb MB  --max-threads N";
+    }
+}
@@ -0,0 +1,45 @@
+package com.kavach.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads MSB-first bit fields written by {@link BitWriter} (or by Encoder in JS).
+ */
+public final class BitReader {
+    private final ByteBuffer data;
+    private final int bitLength;
+    private int position = 0;
+
+    public BitReader(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    public BitReader(ByteBuffer data) {
+        this.data = data.slice();
+        this.bitLength = this.data.remaining() * 8;
+    }
+
+    public long readBits(int count) {
+        if (count < 0 || count > 64) {
+            throw new IllegalArgumentException("Bit count out of range: " + count);
+        }
+        if (count > remaining()) {
+            throw new IllegalStateException("Not enough data: need " + count + " bits, have " + remaining());
+        }
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            int bit = (data.get(position >>> 3) >>> (7 - (position & 7))) & 1;
+            value = (value << 1) | bit;
+            position++;
+        }
+        return value;
+    }
+
+    public int remaining() {
+        return bitLength - position;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+}
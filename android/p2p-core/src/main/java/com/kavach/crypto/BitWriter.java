@@ -0,0 +1,57 @@
+package com.kavach.crypto;
+
+import java.util.Arrays;
+
+/**
+ * Packs values MSB-first into a byte array, the same bit order Encoder uses when it turns its
+ * '0'/'1' strings into a Uint8Array.
+ */
+public final class BitWriter {
+    private byte[] buffer;
+    private int bitLength = 0;
+
+    public BitWriter() {
+        this(32);
+    }
+
+    public BitWriter(int initialCapacityBytes) {
+        buffer = new byte[Math.max(1, initialCapacityBytes)];
+    }
+
+    public BitWriter writeBits(long value, int count) {
+        if (count < 0 || count > 64) {
+            throw new IllegalArgumentException("Bit count out of range: " + count);
+        }
+        if (count < 64 && (value >>> count) != 0) {
+            throw new IllegalArgumentException("Value " + value + " does not fit in " + count + " bits");
+        }
+        ensureCapacity(bitLength + count);
+        for (int i = count - 1; i >= 0; i--) {
+            if (((value >>> i) & 1L) != 0) {
+                buffer[bitLength >>> 3] |= (byte) (0x80 >>> (bitLength & 7));
+            }
+            bitLength++;
+        }
+        return this;
+    }
+
+    public int getBitLength() {
+        return bitLength;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, (bitLength + 7) >>> 3);
+    }
+
+    public void reset() {
+        Arrays.fill(buffer, 0, (bitLength + 7) >>> 3, (byte) 0);
+        bitLength = 0;
+    }
+
+    private void ensureCapacity(int bits) {
+        int bytesNeeded = (bits + 7) >>> 3;
+        if (bytesNeeded > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(bytesNeeded, buffer.length * 2));
+        }
+    }
+}
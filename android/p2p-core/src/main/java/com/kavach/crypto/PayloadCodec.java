@@ -0,0 +1,204 @@
+package com.kavach.crypto;
+
+import java.util.Locale;
+
+/**
+ * Packed binary form of the Aadhaar and PAN payloads, bit-for-bit compatible with Encoder in
+ * src/utils/crypto/encoder.ts and the Charset table in mappings.ts.
+ *
+ * <pre>
+ *   Aadhaar: version(3) type=00(2) gender(2) aadhaar(40) dob(18) name(5 per char, null terminated)
+ *   PAN:     version(3) type=01(2) dob(18) pan(44) name(...) fathersName(...)
+ *   dob:     day(5) month(4) year-1900(9)
+ * </pre>
+ */
+public final class PayloadCodec {
+    public static final int TYPE_AADHAAR = 0;
+    public static final int TYPE_PAN = 1;
+
+    private static final int MAX_STRING_LENGTH = 19;
+    private static final int CHAR_SPACE = 26;
+    private static final int CHAR_NULL = 27;
+    private static final String[] GENDERS = {"Male", "Female", "Other", "Unknown"};
+
+    private PayloadCodec() {
+    }
+
+    public static final class Dob {
+        public final int day;
+        public final int month;
+        public final int year;
+
+        public Dob(int day, int month, int year) {
+            this.day = day;
+            this.month = month;
+            this.year = year;
+        }
+    }
+
+    public static final class AadhaarData {
+        public final int version;
+        public final String gender;
+        public final long aadhaar;
+        public final Dob dob;
+        public final String name;
+
+        public AadhaarData(int version, String gender, long aadhaar, Dob dob, String name) {
+            this.version = version;
+            this.gender = gender;
+            this.aadhaar = aadhaar;
+            this.dob = dob;
+            this.name = name;
+        }
+    }
+
+    public static final class PanData {
+        public final int version;
+        public final String name;
+        public final Dob dob;
+        public final String pan;
+        public final String fathersName;
+
+        public PanData(int version, String name, Dob dob, String pan, String fathersName) {
+            this.version = version;
+            this.name = name;
+            this.dob = dob;
+            this.pan = pan;
+            this.fathersName = fathersName;
+        }
+    }
+
+    public static byte[] encodeAadhaar(AadhaarData data) {
+        BitWriter writer = new BitWriter(16);
+        writer.writeBits(data.version, 3);
+        writer.writeBits(TYPE_AADHAAR, 2);
+        writer.writeBits(encodeGender(data.gender), 2);
+        writer.writeBits(data.aadhaar, 40);
+        writeDob(writer, data.dob);
+        writeString(writer, data.name);
+        return writer.toByteArray();
+    }
+
+    public static AadhaarData decodeAadhaar(byte[] payload) {
+        BitReader reader = new BitReader(payload);
+        int version = (int) reader.readBits(3);
+        reader.readBits(2); // payload type
+        String gender = GENDERS[(int) reader.readBits(2)];
+        long aadhaar = reader.readBits(40);
+        Dob dob = readDob(reader);
+        String name = readString(reader);
+        return new AadhaarData(version, gender, aadhaar, dob, name);
+    }
+
+    public static byte[] encodePan(PanData data) {
+        BitWriter writer = new BitWriter(24);
+        writer.writeBits(data.version, 3);
+        writer.writeBits(TYPE_PAN, 2);
+        writeDob(writer, data.dob);
+        writePan(writer, data.pan);
+        writeString(writer, data.name);
+        writeString(writer, data.fathersName);
+        return writer.toByteArray();
+    }
+
+    public static PanData decodePan(byte[] payload) {
+        BitReader reader = new BitReader(payload);
+        int version = (int) reader.readBits(3);
+        reader.readBits(2); // payload type
+        Dob dob = readDob(reader);
+        String pan = readPan(reader);
+        String name = readString(reader);
+        String fathersName = readString(reader);
+        return new PanData(version, name, dob, pan, fathersName);
+    }
+
+    public static int readPayloadType(byte[] payload) {
+        BitReader reader = new BitReader(payload);
+        reader.readBits(3);
+        return (int) reader.readBits(2);
+    }
+
+    static int encodeGender(String gender) {
+        for (int i = 0; i < GENDERS.length; i++) {
+            if (GENDERS[i].equals(gender)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown gender: " + gender);
+    }
+
+    private static void writeDob(BitWriter writer, Dob dob) {
+        writer.writeBits(dob.day, 5);
+        writer.writeBits(dob.month, 4);
+        writer.writeBits(dob.year - 1900, 9);
+    }
+
+    private static Dob readDob(BitReader reader) {
+        int day = (int) reader.readBits(5);
+        int month = (int) reader.readBits(4);
+        int year = (int) reader.readBits(9) + 1900;
+        return new Dob(day, month, year);
+    }
+
+    // Same rules as Encoder.encodeString: first 19 chars, upper-cased, unmapped chars dropped
+    private static void writeString(BitWriter writer, String input) {
+        String value = input.length() > MAX_STRING_LENGTH ? input.substring(0, MAX_STRING_LENGTH) : input;
+        value = value.toUpperCase(Locale.ROOT);
+        for (int i = 0; i < value.length(); i++) {
+            int code = charCode(value.charAt(i));
+            if (code >= 0) {
+                writer.writeBits(code, 5);
+            }
+        }
+        writer.writeBits(CHAR_NULL, 5);
+    }
+
+    private static String readString(BitReader reader) {
+        StringBuilder out = new StringBuilder(MAX_STRING_LENGTH);
+        while (reader.remaining() >= 5) {
+            int code = (int) reader.readBits(5);
+            if (code == CHAR_NULL) {
+                break;
+            }
+            if (code < 26) {
+                out.append((char) ('A' + code));
+            } else if (code == CHAR_SPACE) {
+                out.append(' ');
+            }
+            // 28-31 are reserved and skipped
+        }
+        return out.toString();
+    }
+
+    private static void writePan(BitWriter writer, String input) {
+        String pan = input.toUpperCase(Locale.ROOT);
+        if (!pan.matches("^[A-Z]{5}[0-9]{4}[A-Z]$")) {
+            throw new IllegalArgumentException("Invalid PAN format");
+        }
+        for (int i = 0; i < 5; i++) {
+            writer.writeBits(pan.charAt(i) - 'A', 5);
+        }
+        writer.writeBits(Integer.parseInt(pan.substring(5, 9)), 14);
+        writer.writeBits(pan.charAt(9) - 'A', 5);
+    }
+
+    private static String readPan(BitReader reader) {
+        StringBuilder pan = new StringBuilder(10);
+        for (int i = 0; i < 5; i++) {
+            pan.append((char) ('A' + reader.readBits(5)));
+        }
+        pan.append(String.format(Locale.ROOT, "%04d", reader.readBits(14)));
+        pan.append((char) ('A' + reader.readBits(5)));
+        return pan.toString();
+    }
+
+    private static int charCode(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        if (c == ' ') {
+            return CHAR_SPACE;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,38 @@
+package com.kavach.p2p.transport;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with "equal jitter": each delay is half the current step plus a random share
+ * of the other half, so retries from several devices that failed together spread out instead of
+ * hitting the group owner in lockstep. Not thread-safe.
+ */
+public class Backoff {
+    private final long initialMs;
+    private final long maxMs;
+    private int attempts = 0;
+
+    public Backoff(long initialMs, long maxMs) {
+        if (initialMs <= 0 || maxMs < initialMs) {
+            throw new IllegalArgumentException("Invalid backoff range " + initialMs + ".." + maxMs);
+        }
+        this.initialMs = initialMs;
+        this.maxMs = maxMs;
+    }
+
+    public long nextDelayMs() {
+        // Cap the shift so the step can't overflow after many attempts
+        long step = Math.min(maxMs, initialMs << Math.min(attempts, 20));
+        attempts++;
+        long half = step / 2;
+        return half + ThreadLocalRandom.current().nextLong(step - half + 1);
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void reset() {
+        attempts = 0;
+    }
+}
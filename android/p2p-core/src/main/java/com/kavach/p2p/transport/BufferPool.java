@@ -0,0 +1,166 @@
+package com.kavach.p2p.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct buffers for the socket path, recycled by size class so a connection in steady state
+ * encodes, seals and assembles frames without allocating. Sizes are powers of four from 256 bytes
+ * to 64 KB; a buffer is taken with {@link #acquire(int)} and must be handed back with
+ * {@link #release(ByteBuffer)} once the bytes are no longer needed. Anything larger than the top
+ * class is allocated on the heap and simply dropped on release.
+ *
+ * <p>Only bytes that die on the socket path come from here. A received plaintext payload, and the
+ * inflated output of a compressed one, is the message body the app keeps, so it is still allocated
+ * once per message; steady-state frames are allocation-free on the send side and for encrypted
+ * frames on the way in.
+ *
+ * <p>Hits, misses and oversize requests are counted on the metrics it is given. With a
+ * {@link LeakListener} set (debug builds) every acquire records where it happened, and
+ * {@link #checkLeaks()} reports buffers held for longer than {@link #LEAK_AGE_MS}, once each; a
+ * buffer released twice throws. Thread safe; in practice only the I/O thread uses it.
+ */
+public class BufferPool {
+    public static final int MIN_CLASS_SIZE = 256;
+    public static final int MAX_CLASS_SIZE = 64 * 1024;
+    public static final long LEAK_AGE_MS = 60_000;
+
+    // How many free buffers each class keeps: plenty of small ones, a few large ones
+    private static final int[] CLASS_SIZES = {256, 1024, 4 * 1024, 16 * 1024, 64 * 1024};
+    private static final int[] CLASS_LIMITS = {256, 128, 64, 32, 8};
+
+    public interface LeakListener {
+        void onLeak(int capacity, long heldMs, Throwable acquiredAt);
+    }
+
+    private static final class Acquisition {
+        final int capacity;
+        final long atMs = System.currentTimeMillis();
+        final Throwable stack = new Throwable("Buffer acquired here");
+        boolean reported = false;
+
+        Acquisition(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] free = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[CLASS_SIZES.length];
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder oversize;
+    private final LongAdder leaks;
+    private volatile LeakListener leakListener;
+    // Buffers out of the pool while leak detection is on
+    private final Map<ByteBuffer, Acquisition> outstanding = new IdentityHashMap<>();
+
+    public BufferPool(TransportMetrics metrics) {
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<>();
+        }
+        hits = metrics.counter("bufferPoolHits");
+        misses = metrics.counter("bufferPoolMisses");
+        oversize = metrics.counter("bufferPoolOversize");
+        leaks = metrics.counter("bufferLeaks");
+    }
+
+    // Set before the engine starts, or buffers already out count as released twice. Null turns leak
+    // detection off and forgets what was being tracked.
+    public synchronized void setLeakDetection(LeakListener listener) {
+        leakListener = listener;
+        outstanding.clear();
+    }
+
+    /**
+     * A cleared buffer with at least {@code size} bytes of capacity and its limit at {@code size}.
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = classFor(size);
+        ByteBuffer buffer;
+        if (sizeClass < 0) {
+            oversize.increment();
+            buffer = ByteBuffer.allocate(size);
+        } else {
+            synchronized (this) {
+                buffer = free[sizeClass].poll();
+            }
+            if (buffer != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                buffer = ByteBuffer.allocateDirect(CLASS_SIZES[sizeClass]);
+            }
+        }
+        buffer.clear().limit(size);
+        if (leakListener != null) {
+            synchronized (this) {
+                outstanding.put(buffer, new Acquisition(buffer.capacity()));
+            }
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (this) {
+            if (leakListener != null && outstanding.remove(buffer) == null) {
+                throw new IllegalStateException("Buffer released twice or not from this pool");
+            }
+            int sizeClass = buffer.isDirect() ? classFor(buffer.capacity()) : -1;
+            if (sizeClass >= 0 && CLASS_SIZES[sizeClass] == buffer.capacity()
+                    && free[sizeClass].size() < CLASS_LIMITS[sizeClass]) {
+                free[sizeClass].push(buffer);
+            }
+        }
+    }
+
+    // Reports buffers held too long; called periodically by the engine
+    public void checkLeaks() {
+        LeakListener listener = leakListener;
+        if (listener == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Acquisition> found = new ArrayList<>();
+        synchronized (this) {
+            for (Acquisition acquisition : outstanding.values()) {
+                if (!acquisition.reported && now - acquisition.atMs > LEAK_AGE_MS) {
+                    acquisition.reported = true;
+                    found.add(acquisition);
+                }
+            }
+        }
+        for (Acquisition leak : found) {
+            leaks.increment();
+            listener.onLeak(leak.capacity, now - leak.atMs, leak.stack);
+        }
+    }
+
+    public synchronized int getFreeCount() {
+        int count = 0;
+        for (ArrayDeque<ByteBuffer> buffers : free) {
+            count += buffers.size();
+        }
+        return count;
+    }
+
+    public synchronized int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    private static int classFor(int size) {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            if (size <= CLASS_SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,5 @@
+package com.kavach.p2p.transport;
+
+public interface Cancellable {
+    void cancel();
+}
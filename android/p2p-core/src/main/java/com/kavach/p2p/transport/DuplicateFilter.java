@@ -0,0 +1,62 @@
+package com.kavach.p2p.transport;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers recently received message ids so a copy delivered twice (a JS retry, an outbox replay
+ * after a lost ack) is dropped before it reaches the app. Ids are only unique per sender, so each is
+ * kept together with the device it came from. Memory is fixed: at most maxEntries ids, each
+ * forgotten after windowMs or when newer ones push it out, whichever comes first.
+ */
+public class DuplicateFilter {
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+    public static final long DEFAULT_WINDOW_MS = 10 * 60 * 1000L;
+
+    private final int maxEntries;
+    private final long windowMs;
+    // Origin and id to when they were first seen, oldest first; a repeat doesn't move them
+    private final Map<String, Long> seen = new LinkedHashMap<>();
+
+    public DuplicateFilter() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_WINDOW_MS);
+    }
+
+    public DuplicateFilter(int maxEntries, long windowMs) {
+        this.maxEntries = maxEntries;
+        this.windowMs = windowMs;
+    }
+
+    // True if this origin already sent the id within the window; otherwise remembers it
+    public synchronized boolean isDuplicate(String origin, String id) {
+        long now = System.currentTimeMillis();
+        evict(now);
+        String key = origin + '\u0000' + id;
+        if (seen.containsKey(key)) {
+            return true;
+        }
+        seen.put(key, now);
+        if (seen.size() > maxEntries) {
+            Iterator<String> oldest = seen.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return seen.size();
+    }
+
+    public synchronized void clear() {
+        seen.clear();
+    }
+
+    private void evict(long nowMs) {
+        Iterator<Long> iterator = seen.values().iterator();
+        while (iterator.hasNext() && iterator.next() <= nowMs - windowMs) {
+            iterator.remove();
+        }
+    }
+}
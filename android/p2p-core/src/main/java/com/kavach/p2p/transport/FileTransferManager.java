@@ -0,0 +1,430 @@
+package com.kavach.p2p.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams files between peers in fixed-size chunks without ever holding the whole file in memory.
+ *
+ * <p>The sender offers a file, the receiver answers with the offset it already has on disk, and the
+ * sender streams chunks from there. A chunk is one frame, so it carries the frame's CRC32. Only a
+ * few chunks are in flight at a time; the next one is read from the {@link FileChannel} once an
+ * earlier one has been written to the socket. A partial file survives a dropped connection, and
+ * offering the same transfer id again resumes where it stopped.
+ *
+ * <p>All methods except {@link #sendFile} run on the transport I/O thread.
+ */
+public class FileTransferManager {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNKS_IN_FLIGHT = 4;
+    private static final String PART_SUFFIX = ".part";
+
+    public interface Listener {
+        void onOffered(String peerId, String transferId, String name, long size, long resumeOffset);
+
+        void onProgress(String peerId, String transferId, boolean sending, long bytesTransferred, long totalBytes);
+
+        void onSendComplete(String transferId, long size);
+
+        void onReceiveComplete(String peerId, String transferId, String name, File file, long size);
+
+        void onFailed(String transferId, boolean sending, Exception cause);
+    }
+
+    private final File receiveDirectory;
+    private final Listener listener;
+    private final Map<String, OutgoingTransfer> outgoing = new ConcurrentHashMap<>();
+    private final Map<String, IncomingTransfer> incoming = new ConcurrentHashMap<>();
+
+    public FileTransferManager(File receiveDirectory, Listener listener) {
+        this.receiveDirectory = receiveDirectory;
+        this.listener = listener;
+    }
+
+    public static boolean isFileFrame(byte type) {
+        return type >= Frame.TYPE_FILE_OFFER && type <= Frame.TYPE_FILE_ERROR;
+    }
+
+    /**
+     * Offers the file to the peer. The channel is owned by the manager from here on and closed once
+     * the transfer finishes or fails.
+     */
+    public void sendFile(PeerConnection connection, String transferId, String name, FileChannel source, long size)
+            throws IOException {
+        OutgoingTransfer transfer = new OutgoingTransfer(connection, transferId, source, size);
+        OutgoingTransfer previous = outgoing.put(transferId, transfer);
+        if (previous != null) {
+            previous.fail(new IOException("Transfer " + transferId + " restarted"));
+        }
+
+        ByteBuffer offer = allocate(transferId, sizeOf(name) + 12);
+        putString(offer, name);
+        offer.putLong(size);
+        offer.putInt(CHUNK_SIZE);
+        try {
+            connection.send(new Frame(Frame.TYPE_FILE_OFFER, (byte) 0, offer.array()));
+        } catch (IOException e) {
+            outgoing.remove(transferId, transfer);
+            transfer.closeSource();
+            throw e;
+        }
+    }
+
+    public boolean isComplete(String transferId) {
+        return findCompletedFile(transferId) != null;
+    }
+
+    public File findCompletedFile(String transferId) {
+        File[] matches = receiveDirectory.listFiles((dir, fileName) ->
+            fileName.startsWith(safeName(transferId) + "-") && !fileName.endsWith(PART_SUFFIX));
+        return matches != null && matches.length > 0 ? matches[0] : null;
+    }
+
+    public void onFrame(PeerConnection connection, Frame frame) {
+        ByteBuffer payload = ByteBuffer.wrap(frame.getPayload());
+        String transferId = getString(payload);
+        try {
+            switch (frame.getType()) {
+                case Frame.TYPE_FILE_OFFER:
+                    onOffer(connection, transferId, payload);
+                    break;
+                case Frame.TYPE_FILE_RESUME:
+                    onResume(transferId, payload.getLong());
+                    break;
+                case Frame.TYPE_FILE_CHUNK:
+                    onChunk(connection, transferId, payload);
+                    break;
+                case Frame.TYPE_FILE_DONE:
+                    onDone(transferId);
+                    break;
+                case Frame.TYPE_FILE_ERROR:
+                    onRemoteError(transferId, getString(payload));
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            failIncoming(transferId, e);
+            sendError(connection, transferId, e.getMessage());
+        }
+    }
+
+    public void onConnectionClosed(PeerConnection connection) {
+        IOException cause = new IOException("Connection to " + connection.getPeerId() + " lost");
+        for (OutgoingTransfer transfer : outgoing.values()) {
+            if (transfer.connection == connection) {
+                transfer.fail(cause);
+            }
+        }
+        for (IncomingTransfer transfer : incoming.values()) {
+            if (transfer.connection == connection) {
+                // Keep the .part file so the next offer resumes from it
+                incoming.remove(transfer.transferId, transfer);
+                transfer.closeTarget();
+                listener.onFailed(transfer.transferId, false, cause);
+            }
+        }
+    }
+
+    public void shutdown() {
+        IOException cause = new IOException("File transfer stopped");
+        for (OutgoingTransfer transfer : outgoing.values()) {
+            transfer.fail(cause);
+        }
+        for (IncomingTransfer transfer : incoming.values()) {
+            transfer.closeTarget();
+        }
+        incoming.clear();
+    }
+
+    // Receiver side
+
+    private void onOffer(PeerConnection connection, String transferId, ByteBuffer payload) throws IOException {
+        String name = getString(payload);
+        long size = payload.getLong();
+
+        IncomingTransfer previous = incoming.remove(transferId);
+        if (previous != null) {
+            previous.closeTarget();
+        }
+
+        if (!receiveDirectory.isDirectory() && !receiveDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + receiveDirectory);
+        }
+
+        File finalFile = completedFile(transferId, name);
+        if (finalFile.isFile() && finalFile.length() == size) {
+            // Already have all of it, e.g. the sender retried after missing our DONE
+            sendDone(connection, transferId, size);
+            return;
+        }
+        File partFile = new File(receiveDirectory, safeName(transferId) + PART_SUFFIX);
+        RandomAccessFile target = new RandomAccessFile(partFile, "rw");
+        long resumeOffset = Math.min(target.length(), size);
+        target.setLength(resumeOffset);
+
+        IncomingTransfer transfer = new IncomingTransfer(connection, transferId, name, size, partFile, target);
+        transfer.offset = resumeOffset;
+        incoming.put(transferId, transfer);
+        listener.onOffered(connection.getPeerId(), transferId, name, size, resumeOffset);
+
+        ByteBuffer resume = allocate(transferId, 8);
+        resume.putLong(resumeOffset);
+        connection.send(new Frame(Frame.TYPE_FILE_RESUME, (byte) 0, resume.array()));
+
+        if (resumeOffset == size) {
+            completeIncoming(transfer);
+        }
+    }
+
+    private void onChunk(PeerConnection connection, String transferId, ByteBuffer payload) throws IOException {
+        IncomingTransfer transfer = incoming.get(transferId);
+        if (transfer == null) {
+            throw new IOException("Chunk for unknown transfer " + transferId);
+        }
+        long offset = payload.getLong();
+        if (offset != transfer.offset) {
+            throw new IOException("Out of order chunk at " + offset + ", expected " + transfer.offset);
+        }
+        // Checked before writing, so a bad chunk can't grow the .part file past the offered size
+        if (payload.remaining() > transfer.size - offset) {
+            throw new IOException("Chunk at " + offset + " runs past the end of the " + transfer.size + " byte file");
+        }
+
+        FileChannel channel = transfer.target.getChannel();
+        while (payload.hasRemaining()) {
+            transfer.offset += channel.write(payload, transfer.offset);
+        }
+        if (transfer.progress.shouldReport(transfer.offset, transfer.size)) {
+            listener.onProgress(connection.getPeerId(), transferId, false, transfer.offset, transfer.size);
+        }
+
+        if (transfer.offset >= transfer.size) {
+            completeIncoming(transfer);
+        }
+    }
+
+    private void completeIncoming(IncomingTransfer transfer) throws IOException {
+        incoming.remove(transfer.transferId, transfer);
+        transfer.closeTarget();
+
+        File finalFile = completedFile(transfer.transferId, transfer.name);
+        if (finalFile.exists() && !finalFile.delete()) {
+            throw new IOException("Cannot replace " + finalFile);
+        }
+        if (!transfer.partFile.renameTo(finalFile)) {
+            throw new IOException("Cannot move " + transfer.partFile + " to " + finalFile);
+        }
+
+        sendDone(transfer.connection, transfer.transferId, transfer.size);
+        listener.onReceiveComplete(transfer.connection.getPeerId(), transfer.transferId, transfer.name, finalFile, transfer.size);
+    }
+
+    private void sendDone(PeerConnection connection, String transferId, long size) throws IOException {
+        ByteBuffer done = allocate(transferId, 8);
+        done.putLong(size);
+        connection.send(new Frame(Frame.TYPE_FILE_DONE, (byte) 0, done.array()));
+    }
+
+    private File completedFile(String transferId, String name) {
+        return new File(receiveDirectory, safeName(transferId) + "-" + safeName(name));
+    }
+
+    private void failIncoming(String transferId, Exception cause) {
+        IncomingTransfer transfer = incoming.remove(transferId);
+        if (transfer != null) {
+            transfer.closeTarget();
+            listener.onFailed(transferId, false, cause);
+        }
+    }
+
+    // Sender side
+
+    private void onResume(String transferId, long offset) {
+        OutgoingTransfer transfer = outgoing.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+        transfer.nextOffset = Math.max(0, Math.min(offset, transfer.size));
+        transfer.acknowledged = transfer.nextOffset;
+        pump(transfer);
+    }
+
+    private void onDone(String transferId) {
+        OutgoingTransfer transfer = outgoing.remove(transferId);
+        if (transfer == null) {
+            return;
+        }
+        transfer.closeSource();
+        listener.onSendComplete(transferId, transfer.size);
+    }
+
+    private void onRemoteError(String transferId, String reason) {
+        IOException cause = new IOException("Peer rejected transfer: " + reason);
+        OutgoingTransfer transfer = outgoing.get(transferId);
+        if (transfer != null) {
+            transfer.fail(cause);
+        }
+        failIncoming(transferId, cause);
+    }
+
+    private void pump(OutgoingTransfer transfer) {
+        try {
+            while (!transfer.failed && transfer.inFlight < MAX_CHUNKS_IN_FLIGHT && transfer.nextOffset < transfer.size) {
+                long offset = transfer.nextOffset;
+                int length = (int) Math.min(CHUNK_SIZE, transfer.size - offset);
+
+                ByteBuffer chunk = allocate(transfer.transferId, 8 + length);
+                chunk.putLong(offset);
+                long position = offset;
+                while (chunk.hasRemaining()) {
+                    int read = transfer.source.read(chunk, position);
+                    if (read < 0) {
+                        throw new IOException("File ended early at " + position);
+                    }
+                    position += read;
+                }
+
+                transfer.nextOffset += length;
+                transfer.inFlight++;
+                transfer.connection.send(new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, chunk.array()), new SendCallback() {
+                    @Override
+                    public void onSent() {
+                        transfer.inFlight--;
+                        transfer.acknowledged += length;
+                        if (transfer.progress.shouldReport(transfer.acknowledged, transfer.size)) {
+                            listener.onProgress(transfer.connection.getPeerId(), transfer.transferId, true,
+                                transfer.acknowledged, transfer.size);
+                        }
+                        pump(transfer);
+                    }
+
+                    @Override
+                    public void onFailed(Exception cause) {
+                        transfer.fail(cause);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            transfer.fail(e);
+        }
+    }
+
+    private void sendError(PeerConnection connection, String transferId, String reason) {
+        String message = reason != null ? reason : "error";
+        ByteBuffer error = allocate(transferId, sizeOf(message));
+        putString(error, message);
+        try {
+            connection.send(new Frame(Frame.TYPE_FILE_ERROR, (byte) 0, error.array()));
+        } catch (IOException e) {
+            // Connection is already gone; the peer will notice that on its own
+        }
+    }
+
+    // Wire helpers: strings are a 2 byte length followed by UTF-8
+
+    private static ByteBuffer allocate(String transferId, int extra) {
+        ByteBuffer buffer = ByteBuffer.allocate(sizeOf(transferId) + extra);
+        putString(buffer, transferId);
+        return buffer;
+    }
+
+    private static int sizeOf(String value) {
+        return 2 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String safeName(String value) {
+        return value.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private final class OutgoingTransfer {
+        final PeerConnection connection;
+        final String transferId;
+        final FileChannel source;
+        final long size;
+        long nextOffset = 0;
+        long acknowledged = 0;
+        int inFlight = 0;
+        volatile boolean failed = false;
+        final ProgressThrottle progress = new ProgressThrottle();
+
+        OutgoingTransfer(PeerConnection connection, String transferId, FileChannel source, long size) {
+            this.connection = connection;
+            this.transferId = transferId;
+            this.source = source;
+            this.size = size;
+        }
+
+        void fail(Exception cause) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            outgoing.remove(transferId, this);
+            closeSource();
+            listener.onFailed(transferId, true, cause);
+        }
+
+        void closeSource() {
+            TransportEngine.closeQuietly(source);
+        }
+    }
+
+    private static final class IncomingTransfer {
+        final PeerConnection connection;
+        final String transferId;
+        final String name;
+        final long size;
+        final File partFile;
+        final RandomAccessFile target;
+        long offset = 0;
+        final ProgressThrottle progress = new ProgressThrottle();
+
+        IncomingTransfer(PeerConnection connection, String transferId, String name, long size, File partFile,
+                         RandomAccessFile target) {
+            this.connection = connection;
+            this.transferId = transferId;
+            this.name = name;
+            this.size = size;
+            this.partFile = partFile;
+            this.target = target;
+        }
+
+        void closeTarget() {
+            TransportEngine.closeQuietly(target);
+        }
+    }
+
+    // Reports progress roughly every 2% instead of on every chunk
+    private static final class ProgressThrottle {
+        private static final int STEPS = 50;
+        private long lastReported = -1;
+
+        boolean shouldReport(long done, long total) {
+            if (done >= total || lastReported < 0 || done - lastReported >= Math.max(CHUNK_SIZE, total / STEPS)) {
+                lastReported = done;
+                return true;
+            }
+            return false;
+        }
+    }
+}
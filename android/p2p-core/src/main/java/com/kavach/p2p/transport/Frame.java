@@ -0,0 +1,145 @@
+package com.kavach.p2p.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * A single unit on the P2P socket. Every frame is written as
+ *
+ * <pre>
+ *   magic    2 bytes  'K' 'V'
+ *   version  1 byte
+ *   type     1 byte
+ *   flags    1 byte
+ *   length   4 bytes  payload length, big endian
+ *   crc32    4 bytes  CRC32 of the payload
+ *   payload  length bytes
+ * </pre>
+ *
+ * so the reader never has to guess where one message ends and the next begins.
+ */
+public final class Frame {
+    public static final byte MAGIC_0 = 'K';
+    public static final byte MAGIC_1 = 'V';
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 13;
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    public static final byte TYPE_MESSAGE = 1;
+    public static final byte TYPE_HELLO = 2;
+    public static final byte TYPE_PING = 3;
+    public static final byte TYPE_PONG = 4;
+    // Resumption ticket from the accepting side of an encrypted session (see SessionHandshake)
+    public static final byte TYPE_SESSION_TICKET = 5;
+    // Signature over both HELLOs, sent by each side of an encrypted session (see SessionHandshake)
+    public static final byte TYPE_SESSION_CONFIRM = 6;
+    public static final byte TYPE_FILE_OFFER = 10;
+    public static final byte TYPE_FILE_RESUME = 11;
+    public static final byte TYPE_FILE_CHUNK = 12;
+    public static final byte TYPE_FILE_DONE = 13;
+    public static final byte TYPE_FILE_ERROR = 14;
+    // Payloads start with a 4 byte id, see RequestManager
+    public static final byte TYPE_REQUEST = 20;
+    public static final byte TYPE_RESPONSE = 21;
+    public static final byte TYPE_ACK = 22;
+
+    // Payload is a 4 byte original length followed by zlib data (see FrameCompressor)
+    public static final byte FLAG_COMPRESSED = 0x01;
+    // A TYPE_MESSAGE whose payload starts with a 4 byte id the receiver answers with a TYPE_ACK
+    public static final byte FLAG_ACK_REQUESTED = 0x02;
+    // Payload is AES-GCM ciphertext plus tag; applied after compression (see SecureSession)
+    public static final byte FLAG_ENCRYPTED = 0x04;
+    // A TYPE_MESSAGE whose body is opaque bytes for the app rather than UTF-8 text
+    public static final byte FLAG_BINARY = 0x08;
+    // A TYPE_MESSAGE whose body (after any ack id) starts with its MessageId
+    public static final byte FLAG_MESSAGE_ID = 0x10;
+    // A TYPE_MESSAGE for another group member, relayed by the group owner (see RoutingTable)
+    public static final byte FLAG_ROUTED = 0x20;
+
+    private final byte type;
+    private final byte flags;
+    private final byte[] payload;
+
+    public Frame(byte type, byte flags, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.payload = payload;
+    }
+
+    public static Frame message(String message) {
+        return new Frame(TYPE_MESSAGE, (byte) 0, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public String getPayloadAsString() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    public int getEncodedSize() {
+        return HEADER_SIZE + payload.length;
+    }
+
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+        encodeTo(buffer);
+        return buffer.array();
+    }
+
+    public void encodeTo(ByteBuffer buffer) {
+        if (payload.length > MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Frame payload too large: " + payload.length);
+        }
+        buffer.put(MAGIC_0);
+        buffer.put(MAGIC_1);
+        buffer.put(VERSION);
+        buffer.put(type);
+        buffer.put(flags);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) checksum(payload, 0, payload.length));
+        buffer.put(payload);
+    }
+
+    /**
+     * Fills in the header of a frame whose payload has already been written to {@code buffer} from
+     * {@code HEADER_SIZE} up to its limit, and rewinds it for writing.
+     */
+    static void writeHeader(ByteBuffer buffer, byte type, byte flags, CRC32 crc) {
+        int length = buffer.limit() - HEADER_SIZE;
+        if (length > MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Frame payload too large: " + length);
+        }
+        crc.reset();
+        buffer.position(HEADER_SIZE);
+        crc.update(buffer);
+        buffer.put(0, MAGIC_0);
+        buffer.put(1, MAGIC_1);
+        buffer.put(2, VERSION);
+        buffer.put(3, type);
+        buffer.put(4, flags);
+        buffer.putInt(5, length);
+        buffer.putInt(9, (int) crc.getValue());
+        buffer.position(0);
+    }
+
+    static long checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+}
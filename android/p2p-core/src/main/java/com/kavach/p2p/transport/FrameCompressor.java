@@ -0,0 +1,139 @@
+package com.kavach.p2p.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection zlib compression of frame payloads. Every frame is compressed on its own, primed
+ * with a preset dictionary of the keys and values that show up in every P2PMessage and certificate,
+ * so even a few hundred bytes of JSON shrink well. The Deflater and Inflater live as long as the
+ * connection and are reset between frames, and so does the scratch buffer frames are deflated into.
+ */
+final class FrameCompressor {
+    // Frames smaller than this are not worth the CPU
+    static final int MIN_COMPRESS_SIZE = 256;
+
+    // zlib favours matches near the end of the dictionary, so the most common strings go last
+    static final byte[] DICTIONARY = (
+        "\\\"signature\\\":\\\"\\\"publicKey\\\":\\\"\\\"validTo\\\":\\\"\\\"validFrom\\\":\\\"\\\"issuer\\\":\\\""
+            + "\\\"serial\\\":\\\"\\\"lastFourAadhaar\\\":\\\"\\\"name\\\":\\\"\\\"pemCertificate\\\":\\\""
+            + "-----BEGIN AADHAAR CERTIFICATE-----\\n-----END AADHAAR CERTIFICATE-----"
+            + "\"signature\":\"\"publicKey\":\"\"validTo\":\"\"validFrom\":\"\"issuer\":\"\"serial\":\""
+            + "\"lastFourAadhaar\":\"\"name\":\"true,false,null,"
+            + "\"type\":\"system\"}\"type\":\"consent\"}\"type\":\"chat\"}\"type\":\"verification\"}"
+            + "{\"id\":\"\",\"fromDevice\":\"Kavach-Device-\",\"toDevice\":\"broadcast\",\"message\":\"{\\\"\","
+            + "\"timestamp\":17"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    // Larger frames deflate into a one-off buffer rather than pinning a big scratch array
+    static final int MAX_SCRATCH_SIZE = 64 * 1024;
+
+    private final Object deflateLock = new Object();
+    private Deflater deflater;
+    private byte[] deflateScratch;
+    private Inflater inflater;
+
+    static boolean isCompressible(Frame frame) {
+        byte type = frame.getType();
+        return (type == Frame.TYPE_MESSAGE || type == Frame.TYPE_REQUEST || type == Frame.TYPE_RESPONSE)
+            && !frame.hasFlag(Frame.FLAG_COMPRESSED)
+            && frame.getPayload().length >= MIN_COMPRESS_SIZE;
+    }
+
+    /**
+     * Returns the compressed frame, or the original when compressing would not make it smaller.
+     * Safe to call from any thread.
+     */
+    Frame compress(Frame frame) {
+        byte[] payload = frame.getPayload();
+        // Anything that doesn't fit in one byte less than the original isn't worth sending compressed
+        int limit = payload.length - 1;
+        byte[] compressed;
+        synchronized (deflateLock) {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            }
+            byte[] output = scratchFor(limit);
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(payload);
+            deflater.finish();
+            int length = deflater.deflate(output, 0, limit);
+            if (!deflater.finished()) {
+                return frame;
+            }
+            compressed = new byte[4 + length];
+            ByteBuffer.wrap(compressed).putInt(payload.length);
+            System.arraycopy(output, 0, compressed, 4, length);
+        }
+        return new Frame(frame.getType(), (byte) (frame.getFlags() | Frame.FLAG_COMPRESSED), compressed);
+    }
+
+    // Caller holds deflateLock
+    private byte[] scratchFor(int size) {
+        if (size > MAX_SCRATCH_SIZE) {
+            return new byte[size];
+        }
+        if (deflateScratch == null || deflateScratch.length < size) {
+            deflateScratch = new byte[Math.max(size, MIN_COMPRESS_SIZE * 4)];
+        }
+        return deflateScratch;
+    }
+
+    /**
+     * Inflates a frame that carries {@link Frame#FLAG_COMPRESSED}. Only called on the I/O thread.
+     */
+    Frame decompress(Frame frame) throws FrameFormatException {
+        byte[] payload = frame.getPayload();
+        if (payload.length < 4) {
+            throw new FrameFormatException("Compressed frame too short");
+        }
+        int originalLength = ByteBuffer.wrap(payload).getInt();
+        if (originalLength < 0 || originalLength > Frame.MAX_PAYLOAD_SIZE) {
+            throw new FrameFormatException("Invalid compressed length: " + originalLength);
+        }
+
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        byte[] output = new byte[originalLength];
+        try {
+            inflater.reset();
+            inflater.setInput(payload, 4, payload.length - 4);
+            int filled = inflater.inflate(output);
+            if (filled == 0 && inflater.needsDictionary()) {
+                inflater.setDictionary(DICTIONARY);
+            }
+            while (filled < originalLength && !inflater.finished()) {
+                int inflated = inflater.inflate(output, filled, originalLength - filled);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                filled += inflated;
+            }
+            if (filled != originalLength) {
+                throw new FrameFormatException("Compressed frame inflated to " + filled + " of " + originalLength + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new FrameFormatException("Corrupt compressed frame: " + e.getMessage());
+        }
+        return new Frame(frame.getType(), (byte) (frame.getFlags() & ~Frame.FLAG_COMPRESSED), output);
+    }
+
+    void close() {
+        synchronized (deflateLock) {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+            deflateScratch = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
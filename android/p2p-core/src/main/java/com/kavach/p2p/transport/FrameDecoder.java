@@ -0,0 +1,161 @@
+package com.kavach.p2p.transport;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental parser for {@link Frame}s. Feed it whatever the socket returned; it keeps partial
+ * headers and payloads between calls and hands every complete frame to the listener.
+ *
+ * <p>Given a {@link BufferPool}, encrypted payloads are assembled in a pooled buffer and handed over
+ * with {@link Listener#onSealedFrame}, since they only live until they are decrypted.
+ */
+public class FrameDecoder {
+    public interface Listener {
+        void onFrame(Frame frame) throws FrameFormatException;
+
+        // The payload is only valid during the call; the decoder releases it afterwards
+        default void onSealedFrame(byte type, byte flags, ByteBuffer payload) throws FrameFormatException {
+            byte[] copy = new byte[payload.remaining()];
+            payload.get(copy);
+            onFrame(new Frame(type, flags, copy));
+        }
+    }
+
+    private final Listener listener;
+    private final BufferPool pool;
+    private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private byte type;
+    private byte flags;
+    private int expectedCrc;
+    private boolean inPayload = false;
+    // One or the other, depending on whether the payload goes to the pool
+    private byte[] payload;
+    private ByteBuffer pooled;
+    private int payloadLength;
+    private int payloadFilled;
+
+    public FrameDecoder(Listener listener) {
+        this(listener, null);
+    }
+
+    public FrameDecoder(Listener listener, BufferPool pool) {
+        this.listener = listener;
+        this.pool = pool;
+    }
+
+    public void feed(byte[] data, int offset, int length) throws FrameFormatException {
+        feed(ByteBuffer.wrap(data, offset, length));
+    }
+
+    public void feed(ByteBuffer data) throws FrameFormatException {
+        while (data.hasRemaining()) {
+            if (!inPayload) {
+                while (header.hasRemaining() && data.hasRemaining()) {
+                    header.put(data.get());
+                }
+                if (header.hasRemaining()) {
+                    return;
+                }
+                parseHeader();
+            }
+
+            int toCopy = Math.min(payloadLength - payloadFilled, data.remaining());
+            if (pooled != null) {
+                int limit = data.limit();
+                data.limit(data.position() + toCopy);
+                pooled.put(data);
+                data.limit(limit);
+            } else {
+                data.get(payload, payloadFilled, toCopy);
+            }
+            payloadFilled += toCopy;
+
+            if (payloadFilled == payloadLength) {
+                completeFrame();
+            }
+        }
+    }
+
+    // Drops any partial frame; call it when the connection goes away so a pooled buffer goes back
+    public void reset() {
+        header.clear();
+        inPayload = false;
+        payload = null;
+        payloadFilled = 0;
+        if (pooled != null) {
+            pool.release(pooled);
+            pooled = null;
+        }
+    }
+
+    private void parseHeader() throws FrameFormatException {
+        header.flip();
+        byte magic0 = header.get();
+        byte magic1 = header.get();
+        if (magic0 != Frame.MAGIC_0 || magic1 != Frame.MAGIC_1) {
+            throw new FrameFormatException("Bad frame magic");
+        }
+        byte version = header.get();
+        if (version != Frame.VERSION) {
+            throw new FrameFormatException("Unsupported frame version: " + version);
+        }
+        type = header.get();
+        flags = header.get();
+        int length = header.getInt();
+        if (length < 0 || length > Frame.MAX_PAYLOAD_SIZE) {
+            throw new FrameFormatException("Invalid frame length: " + length);
+        }
+        expectedCrc = header.getInt();
+        header.clear();
+
+        inPayload = true;
+        payloadLength = length;
+        payloadFilled = 0;
+        if (pool != null && (flags & Frame.FLAG_ENCRYPTED) != 0) {
+            pooled = pool.acquire(length);
+        } else {
+            payload = new byte[length];
+        }
+    }
+
+    private void completeFrame() throws FrameFormatException {
+        if (pooled != null) {
+            completePooledFrame();
+            return;
+        }
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        if ((int) crc.getValue() != expectedCrc) {
+            reset();
+            throw new FrameFormatException("Frame checksum mismatch");
+        }
+
+        Frame frame = new Frame(type, flags, payload);
+        inPayload = false;
+        payload = null;
+        payloadFilled = 0;
+        listener.onFrame(frame);
+    }
+
+    private void completePooledFrame() throws FrameFormatException {
+        ByteBuffer sealed = pooled;
+        pooled = null;
+        inPayload = false;
+        payloadFilled = 0;
+        try {
+            sealed.flip();
+            crc.reset();
+            crc.update(sealed);
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new FrameFormatException("Frame checksum mismatch");
+            }
+            sealed.position(0);
+            listener.onSealedFrame(type, flags, sealed);
+        } finally {
+            pool.release(sealed);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.kavach.p2p.transport;
+
+import java.io.IOException;
+
+public class FrameFormatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public FrameFormatException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,115 @@
+package com.kavach.p2p.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * First frame each side sends on a new connection: a capability bitmask plus a few string
+ * attributes. Features such as compression are only used when both sides advertise them.
+ */
+public final class Handshake {
+    public static final int CAP_DEFLATE = 1;
+    public static final int CAP_HEARTBEAT = 2;
+    // Understands requests, responses and acknowledged messages (RequestManager)
+    public static final int CAP_REQUESTS = 4;
+    // Signs both HELLOs with its Identity and encrypts everything after the handshake
+    public static final int CAP_SECURE = 8;
+    // Understands FLAG_BINARY messages; older builds would read them as text
+    public static final int CAP_BINARY = 16;
+    // Understands FLAG_MESSAGE_ID and drops repeats of a message it has already had
+    public static final int CAP_MESSAGE_ID = 32;
+    // Understands FLAG_ROUTED; as group owner, relays messages between its clients
+    public static final int CAP_RELAY = 64;
+
+    private final int capabilities;
+    private final Map<String, String> attributes;
+
+    public Handshake(int capabilities, Map<String, String> attributes) {
+        this.capabilities = capabilities;
+        this.attributes = Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+    }
+
+    public static Handshake empty() {
+        return new Handshake(0, Collections.emptyMap());
+    }
+
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    public boolean has(int capability) {
+        return (capabilities & capability) == capability;
+    }
+
+    public String get(String key) {
+        return attributes.get(key);
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public Handshake withCapabilities(int capabilities) {
+        return new Handshake(capabilities, attributes);
+    }
+
+    public Handshake withAttribute(String key, String value) {
+        Map<String, String> copy = new LinkedHashMap<>(attributes);
+        if (value == null) {
+            copy.remove(key);
+        } else {
+            copy.put(key, value);
+        }
+        return new Handshake(capabilities, copy);
+    }
+
+    // capabilities(4) count(1) then count x (key, value) as 2 byte length + UTF-8
+    public Frame toFrame() {
+        int size = 5;
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            size += 4 + utf8(entry.getKey()).length + utf8(entry.getValue()).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(capabilities);
+        buffer.put((byte) attributes.size());
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            putString(buffer, entry.getKey());
+            putString(buffer, entry.getValue());
+        }
+        return new Frame(Frame.TYPE_HELLO, (byte) 0, buffer.array());
+    }
+
+    public static Handshake fromFrame(Frame frame) throws FrameFormatException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(frame.getPayload());
+            int capabilities = buffer.getInt();
+            int count = buffer.get() & 0xFF;
+            Map<String, String> attributes = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                attributes.put(getString(buffer), getString(buffer));
+            }
+            return new Handshake(capabilities, attributes);
+        } catch (RuntimeException e) {
+            throw new FrameFormatException("Malformed handshake");
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = utf8(value);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
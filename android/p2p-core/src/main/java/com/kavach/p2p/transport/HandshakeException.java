@@ -0,0 +1,13 @@
+package com.kavach.p2p.transport;
+
+/**
+ * Closes a connection whose secure handshake failed: a bad signature, an unknown or mismatched
+ * session ticket, or a peer that won't encrypt when this side requires it.
+ */
+public class HandshakeException extends FrameFormatException {
+    private static final long serialVersionUID = 1L;
+
+    public HandshakeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,78 @@
+package com.kavach.p2p.transport;
+
+import java.util.Locale;
+
+/**
+ * Outbound priority class of a frame. Every connection keeps a bounded queue per lane. The strict
+ * lanes are always drained first, in declaration order, so a consent prompt never waits behind
+ * chat or a file; the remaining lanes share what is left by weighted round robin, a turn being up
+ * to {@code weight} frames, so a file transfer slows chat down without starving it.
+ */
+public enum Lane {
+    // Handshakes, session tickets, heartbeats and acks
+    CONTROL(true, 0, 64),
+    CONSENT(true, 0, 64),
+    VERIFICATION(true, 0, 256),
+    SYSTEM(false, 4, 128),
+    CHAT(false, 2, 512),
+    // File transfer; only a few chunks are ever queued at once
+    BULK(false, 1, 32);
+
+    final boolean strict;
+    final int weight;
+    final int capacity;
+
+    Lane(boolean strict, int weight, int capacity) {
+        this.strict = strict;
+        this.weight = weight;
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public String label() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Lane for a P2PMessage type ("verification", "consent", "system", "chat"); anything else is
+     * treated as chat.
+     */
+    public static Lane forMessageType(String type) {
+        if (type == null) {
+            return CHAT;
+        }
+        switch (type) {
+            case "consent":
+                return CONSENT;
+            case "verification":
+                return VERIFICATION;
+            case "system":
+                return SYSTEM;
+            default:
+                return CHAT;
+        }
+    }
+
+    // Used when the sender didn't pick a lane
+    static Lane forFrame(Frame frame) {
+        switch (frame.getType()) {
+            case Frame.TYPE_HELLO:
+            case Frame.TYPE_PING:
+            case Frame.TYPE_PONG:
+            case Frame.TYPE_ACK:
+            case Frame.TYPE_SESSION_TICKET:
+            case Frame.TYPE_SESSION_CONFIRM:
+                return CONTROL;
+            case Frame.TYPE_REQUEST:
+            case Frame.TYPE_RESPONSE:
+                return VERIFICATION;
+            case Frame.TYPE_MESSAGE:
+                return CHAT;
+            default:
+                return FileTransferManager.isFileFrame(frame.getType()) ? BULK : SYSTEM;
+        }
+    }
+}
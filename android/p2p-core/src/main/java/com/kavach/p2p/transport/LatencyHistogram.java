@@ -0,0 +1,100 @@
+package com.kavach.p2p.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram over a fixed set of roughly logarithmic buckets from 50 us to 10 s, plus an
+ * overflow bucket. Recording is a couple of atomic adds, cheap enough for the write path;
+ * percentiles are read back as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+    // Upper bounds in microseconds
+    private static final long[] BOUNDS_US = {
+        50, 100, 250, 500,
+        1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+        1_000_000, 2_500_000, 5_000_000, 10_000_000
+    };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_US.length + 1);
+    private final LongAdder sumMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, nanos / 1_000L);
+        buckets.incrementAndGet(bucketFor(micros));
+        sumMicros.add(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public void recordMillis(long millis) {
+        recordNanos(millis * 1_000_000L);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, sumMicros.sum(), maxMicros.get());
+    }
+
+    private static int bucketFor(long micros) {
+        for (int i = 0; i < BOUNDS_US.length; i++) {
+            if (micros <= BOUNDS_US[i]) {
+                return i;
+            }
+        }
+        return BOUNDS_US.length;
+    }
+
+    /**
+     * Counts read bucket by bucket while other threads keep recording, so the total can be off by
+     * the few samples that landed in between. Good enough for dashboards.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sumMicros;
+        private final long maxMicros;
+
+        Snapshot(long[] counts, long count, long sumMicros, long maxMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMs() {
+            return count == 0 ? 0 : sumMicros / (double) count / 1000.0;
+        }
+
+        public double getMaxMs() {
+            return maxMicros / 1000.0;
+        }
+
+        // Upper bound of the bucket holding the given quantile (0..1); the overflow bucket reports the max
+        public double getPercentileMs(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long bound = i < BOUNDS_US.length ? BOUNDS_US[i] : maxMicros;
+                    return Math.min(bound, maxMicros) / 1000.0;
+                }
+            }
+            return getMaxMs();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.kavach.p2p.transport;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+/**
+ * The id a {@link Frame#FLAG_MESSAGE_ID} message carries ahead of its body: one length byte and
+ * that many bytes of UTF-8. Receivers use it to drop copies they have already seen (see
+ * {@link DuplicateFilter}); it is the P2PMessage id when JS supplies one.
+ */
+public final class MessageId {
+    public static final int MAX_LENGTH = 64;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private MessageId() {
+    }
+
+    // 16 random hex characters, for messages JS didn't give an id
+    public static String generate() {
+        byte[] bytes = new byte[8];
+        RANDOM.nextBytes(bytes);
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    public static byte[] prefix(String id, byte[] body) {
+        byte[] encoded = id.getBytes(StandardCharsets.UTF_8);
+        if (encoded.length == 0 || encoded.length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Message id must be 1 to " + MAX_LENGTH + " bytes");
+        }
+        byte[] result = new byte[1 + encoded.length + body.length];
+        result[0] = (byte) encoded.length;
+        System.arraycopy(encoded, 0, result, 1, encoded.length);
+        System.arraycopy(body, 0, result, 1 + encoded.length, body.length);
+        return result;
+    }
+
+    public static String read(byte[] prefixed) throws FrameFormatException {
+        return new String(prefixed, 1, checkedLength(prefixed), StandardCharsets.UTF_8);
+    }
+
+    public static byte[] strip(byte[] prefixed) throws FrameFormatException {
+        int start = 1 + checkedLength(prefixed);
+        byte[] body = new byte[prefixed.length - start];
+        System.arraycopy(prefixed, start, body, 0, body.length);
+        return body;
+    }
+
+    private static int checkedLength(byte[] prefixed) throws FrameFormatException {
+        int length = prefixed.length > 0 ? prefixed[0] & 0xFF : 0;
+        if (length == 0 || length > MAX_LENGTH || 1 + length > prefixed.length) {
+            throw new FrameFormatException("Bad message id");
+        }
+        return length;
+    }
+}
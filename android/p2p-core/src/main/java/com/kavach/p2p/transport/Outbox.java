@@ -0,0 +1,515 @@
+package com.kavach.p2p.transport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Durable store-and-forward queue for outgoing messages. Every message is appended to a log
+ * before it is sent and stays there until the peer acknowledges it, so a dropped group or a
+ * restart loses nothing; when the peer is back its entries are replayed, oldest first, straight
+ * from the log without going back through JS.
+ *
+ * <p>The log is a series of segment files, each written through a {@link MappedByteBuffer}, so an
+ * append is a memory copy rather than a write() call and survives the process being killed (the
+ * kernel owns the dirty pages). Segments are only flushed to the device when they fill up and on
+ * {@link #close()}. A record is
+ *
+ * <pre>
+ *   length  4 bytes  of everything after the crc
+ *   crc32   4 bytes
+ *   kind    1 byte   entry or ack
+ *   seq     8 bytes
+ *   entry only: lane(1) flags(1) createdAtMs(8) keyLength(2) key body
+ * </pre>
+ *
+ * and the length is written last, so a record torn by a crash reads as the end of the log.
+ *
+ * <p>Delivery is tracked per entry rather than with a single cursor per peer, because entries in
+ * different lanes are acknowledged out of order; each peer's cursor is simply its oldest pending
+ * entry. Acknowledging appends an ack record. Once every entry in the oldest segment is
+ * acknowledged or expired the segment file is deleted, which is all the compaction the log needs.
+ *
+ * <p>Entries addressed to {@link #ANY_PEER} go to whichever peer connects next, but only to callers
+ * that ask for them by passing that key; the peer is whoever it turns out to be. Not thread safe
+ * beyond the synchronized methods; bodies are copied out on {@link #read(Entry)}.
+ */
+public class Outbox implements Closeable {
+    public static final String ANY_PEER = "*";
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MS = 3 * 24 * 60 * 60 * 1000L;
+
+    private static final int SEGMENT_MAGIC = 0x4B564F42;
+    private static final byte SEGMENT_VERSION = 1;
+    // magic(4) version(1) reserved(3) baseSeq(8)
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final byte KIND_ENTRY = 1;
+    private static final byte KIND_ACK = 2;
+    // length(4) crc(4) kind(1) seq(8)
+    private static final int RECORD_HEADER_SIZE = 17;
+    // lane(1) flags(1) createdAtMs(8) keyLength(2)
+    private static final int ENTRY_HEADER_SIZE = 12;
+    private static final Lane[] LANES = Lane.values();
+
+    public static final class Entry {
+        final long seq;
+        final String peerKey;
+        final Lane lane;
+        final byte flags;
+        final long createdAtMs;
+        final Segment segment;
+        final int bodyOffset;
+        final int bodyLength;
+
+        Entry(long seq, String peerKey, Lane lane, byte flags, long createdAtMs, Segment segment, int bodyOffset,
+                int bodyLength) {
+            this.seq = seq;
+            this.peerKey = peerKey;
+            this.lane = lane;
+            this.flags = flags;
+            this.createdAtMs = createdAtMs;
+            this.segment = segment;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+        }
+
+        public long getSequence() {
+            return seq;
+        }
+
+        public String getPeerKey() {
+            return peerKey;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        public byte getFlags() {
+            return flags;
+        }
+
+        public long getCreatedAtMs() {
+            return createdAtMs;
+        }
+
+        public int getSize() {
+            return bodyLength;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long maxAgeMs;
+    // Oldest first; the last one is the one being appended to
+    private final List<Segment> segments = new ArrayList<>();
+    private final NavigableMap<Long, Entry> pending = new TreeMap<>();
+    private final Map<String, NavigableMap<Long, Entry>> pendingByPeer = new LinkedHashMap<>();
+    private final CRC32 crc = new CRC32();
+    private long nextSeq = 1;
+    private long mappedBytes = 0;
+    private long expiredCount = 0;
+    private boolean closed = false;
+
+    public Outbox(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MS);
+    }
+
+    /**
+     * Opens (or creates) the log in {@code directory} and rebuilds the pending entries from it.
+     * Entries older than {@code maxAgeMs} are dropped undelivered.
+     */
+    public Outbox(File directory, int segmentSize, long maxBytes, long maxAgeMs) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        recover();
+        compact();
+    }
+
+    /**
+     * Appends a message for {@code peerKey} (or {@link #ANY_PEER}) and returns its entry. The entry
+     * is durable once this returns.
+     */
+    public synchronized Entry append(String peerKey, Lane lane, byte flags, byte[] body) throws IOException {
+        ensureOpen();
+        byte[] key = peerKey.getBytes(StandardCharsets.UTF_8);
+        if (key.length > 0xFFFF) {
+            throw new IllegalArgumentException("Peer key too long");
+        }
+        int length = RECORD_HEADER_SIZE - 8 + ENTRY_HEADER_SIZE + key.length + body.length;
+        Segment segment = segmentFor(length);
+        long seq = nextSeq++;
+        long now = System.currentTimeMillis();
+        int start = segment.position;
+        ByteBuffer buffer = segment.buffer;
+        buffer.position(start + 8);
+        buffer.put(KIND_ENTRY);
+        buffer.putLong(seq);
+        buffer.put((byte) lane.ordinal());
+        buffer.put(flags);
+        buffer.putLong(now);
+        buffer.putShort((short) key.length);
+        buffer.put(key);
+        int bodyOffset = buffer.position();
+        buffer.put(body);
+        seal(segment, start, length);
+        Entry entry = new Entry(seq, peerKey, lane, flags, now, segment, bodyOffset, body.length);
+        index(entry);
+        return entry;
+    }
+
+    /**
+     * Marks the entry delivered. Returns false if it already was, or was cleared or expired.
+     */
+    public synchronized boolean acknowledge(long seq) throws IOException {
+        ensureOpen();
+        Entry entry = unindex(seq);
+        if (entry == null) {
+            return false;
+        }
+        writeAck(seq);
+        compact();
+        return true;
+    }
+
+    // Copy of the entry's body; the entry must still be pending
+    public synchronized byte[] read(Entry entry) {
+        byte[] body = new byte[entry.bodyLength];
+        ByteBuffer view = entry.segment.buffer.duplicate();
+        view.position(entry.bodyOffset);
+        view.get(body);
+        return body;
+    }
+
+    /**
+     * Pending entries for any of {@code peerKeys} (a peer can be known by more than one), oldest
+     * first. Entries for {@link #ANY_PEER} are only included when it is one of them. Null keys are
+     * ignored.
+     */
+    public synchronized List<Entry> pendingFor(String... peerKeys) {
+        expire();
+        Set<String> keys = new LinkedHashSet<>();
+        for (String peerKey : peerKeys) {
+            if (peerKey != null) {
+                keys.add(peerKey);
+            }
+        }
+        List<Entry> result = new ArrayList<>();
+        for (String key : keys) {
+            NavigableMap<Long, Entry> forPeer = pendingByPeer.get(key);
+            if (forPeer != null) {
+                result.addAll(forPeer.values());
+            }
+        }
+        result.sort(Comparator.comparingLong(Entry::getSequence));
+        return result;
+    }
+
+    public synchronized boolean isPending(long seq) {
+        return pending.containsKey(seq);
+    }
+
+    // Drops every pending entry for peerKey, or every entry at all when it is null
+    public synchronized int clear(String peerKey) throws IOException {
+        ensureOpen();
+        List<Long> seqs = new ArrayList<>();
+        for (Entry entry : pending.values()) {
+            if (peerKey == null || peerKey.equals(entry.peerKey)) {
+                seqs.add(entry.seq);
+            }
+        }
+        for (long seq : seqs) {
+            unindex(seq);
+            writeAck(seq);
+        }
+        compact();
+        return seqs.size();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized Map<String, Integer> getPendingCountByPeer() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (Map.Entry<String, NavigableMap<Long, Entry>> peer : pendingByPeer.entrySet()) {
+            counts.put(peer.getKey(), peer.getValue().size());
+        }
+        return counts;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Size of every segment file, mapped or not yet filled
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        pending.clear();
+        pendingByPeer.clear();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Outbox is closed");
+        }
+    }
+
+    private void index(Entry entry) {
+        pending.put(entry.seq, entry);
+        pendingByPeer.computeIfAbsent(entry.peerKey, key -> new TreeMap<>()).put(entry.seq, entry);
+        entry.segment.live++;
+    }
+
+    private Entry unindex(long seq) {
+        Entry entry = pending.remove(seq);
+        if (entry == null) {
+            return null;
+        }
+        NavigableMap<Long, Entry> forPeer = pendingByPeer.get(entry.peerKey);
+        forPeer.remove(seq);
+        if (forPeer.isEmpty()) {
+            pendingByPeer.remove(entry.peerKey);
+        }
+        entry.segment.live--;
+        return entry;
+    }
+
+    private void writeAck(long seq) throws IOException {
+        int length = RECORD_HEADER_SIZE - 8;
+        Segment segment = segmentFor(length);
+        int start = segment.position;
+        segment.buffer.position(start + 8);
+        segment.buffer.put(KIND_ACK);
+        segment.buffer.putLong(seq);
+        seal(segment, start, length);
+    }
+
+    // Checksums the record body written at start + 8, then publishes it by writing its length
+    private void seal(Segment segment, int start, int length) {
+        ByteBuffer buffer = segment.buffer;
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + 8);
+        body.limit(start + 8 + length);
+        crc.reset();
+        crc.update(body);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, length);
+        segment.position = start + 8 + length;
+    }
+
+    // The active segment if the record fits, otherwise a new one
+    private Segment segmentFor(int length) throws IOException {
+        int recordSize = 8 + length;
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        // Keep 4 bytes free so a zero length always marks the end
+        if (active != null && active.position + recordSize + 4 <= active.capacity) {
+            return active;
+        }
+        int capacity = Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize + 4);
+        if (mappedBytes + capacity > maxBytes) {
+            compact();
+            if (mappedBytes + capacity > maxBytes) {
+                throw new OutboxFullException("Outbox is full (" + mappedBytes + " bytes in "
+                    + segments.size() + " segments)");
+            }
+        }
+        if (active != null) {
+            active.buffer.force();
+        }
+        Segment segment = Segment.create(new File(directory, segmentName(nextSeq)), nextSeq, capacity);
+        segments.add(segment);
+        mappedBytes += capacity;
+        return segment;
+    }
+
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        List<Long> expired = new ArrayList<>();
+        for (Entry entry : pending.values()) {
+            if (entry.createdAtMs < cutoff) {
+                expired.add(entry.seq);
+            }
+        }
+        // Age is stored with the entry, so nothing needs writing; it expires again on recovery
+        for (long seq : expired) {
+            unindex(seq);
+            expiredCount++;
+        }
+    }
+
+    // Drops expired entries, then deletes segments from the front that hold nothing pending
+    private void compact() {
+        expire();
+        while (segments.size() > 1 && segments.get(0).live == 0) {
+            Segment oldest = segments.remove(0);
+            mappedBytes -= oldest.capacity;
+            if (!oldest.file.delete()) {
+                oldest.file.deleteOnExit();
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        for (File file : files) {
+            Segment segment = Segment.open(file);
+            if (segment == null) {
+                // Not one of ours, or its header never made it to disk
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+                continue;
+            }
+            segments.add(segment);
+            mappedBytes += segment.capacity;
+            scan(segment);
+        }
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + 8 <= segment.capacity) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < RECORD_HEADER_SIZE - 8 || position + 8 + length > segment.capacity
+                    || checksum(buffer, position + 8, length) != buffer.getInt(position + 4)) {
+                // Torn by a crash; clear the tail so later appends start from a clean end
+                for (int i = position; i < segment.capacity; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                break;
+            }
+            byte kind = buffer.get(position + 8);
+            long seq = buffer.getLong(position + 9);
+            nextSeq = Math.max(nextSeq, seq + 1);
+            if (kind == KIND_ENTRY) {
+                index(parseEntry(segment, position + RECORD_HEADER_SIZE, seq, position + 8 + length));
+            } else if (kind == KIND_ACK) {
+                unindex(seq);
+            }
+            position += 8 + length;
+        }
+        segment.position = position;
+    }
+
+    private Entry parseEntry(Segment segment, int offset, long seq, int end) {
+        ByteBuffer buffer = segment.buffer;
+        Lane lane = LANES[Math.min(buffer.get(offset) & 0xFF, LANES.length - 1)];
+        byte flags = buffer.get(offset + 1);
+        long createdAtMs = buffer.getLong(offset + 2);
+        int keyLength = buffer.getShort(offset + 10) & 0xFFFF;
+        byte[] key = new byte[keyLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + ENTRY_HEADER_SIZE);
+        view.get(key);
+        int bodyOffset = offset + ENTRY_HEADER_SIZE + keyLength;
+        return new Entry(seq, new String(key, StandardCharsets.UTF_8), lane, flags, createdAtMs, segment, bodyOffset,
+            end - bodyOffset);
+    }
+
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        crc.reset();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    private static String segmentName(long baseSeq) {
+        return String.format(Locale.ROOT, "%020d%s", baseSeq, SEGMENT_SUFFIX);
+    }
+
+    static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        // Where the next record goes; entries in this segment not yet acknowledged or expired
+        int position = SEGMENT_HEADER_SIZE;
+        int live = 0;
+
+        private Segment(File file, MappedByteBuffer buffer, int capacity) {
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+
+        static Segment create(File file, long baseSeq, int capacity) throws IOException {
+            MappedByteBuffer buffer = map(file, capacity);
+            buffer.putInt(0, SEGMENT_MAGIC);
+            buffer.put(4, SEGMENT_VERSION);
+            buffer.putLong(8, baseSeq);
+            return new Segment(file, buffer, capacity);
+        }
+
+        // Null if the file isn't a readable segment
+        static Segment open(File file) throws IOException {
+            long length = file.length();
+            if (length < SEGMENT_HEADER_SIZE || length > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = map(file, (int) length);
+            if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.get(4) != SEGMENT_VERSION) {
+                return null;
+            }
+            return new Segment(file, buffer, (int) length);
+        }
+
+        private static MappedByteBuffer map(File file, int capacity) throws IOException {
+            // The mapping stays valid after the channel is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(capacity);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.kavach.p2p.transport;
+
+import java.io.IOException;
+
+/**
+ * The outbox has reached its size limit; nothing more is accepted until entries are delivered,
+ * cleared or expire.
+ */
+public class OutboxFullException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public OutboxFullException(String message) {
+        super(message);
+    }
+}
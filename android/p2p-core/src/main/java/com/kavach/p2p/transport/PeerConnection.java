@@ -0,0 +1,718 @@
+package com.kavach.p2p.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.CRC32;
+
+/**
+ * One non-blocking socket to one remote device. Reads and writes happen on the
+ * {@link TransportEngine} I/O thread; {@link #send(Frame, SendCallback)} can be called from any
+ * thread and only queues the frame.
+ *
+ * <p>Outgoing frames are queued per {@link Lane}, each lane bounded on its own, and only the I/O
+ * thread drains them. Each time the socket is writable it takes up to {@code MAX_WRITE_BATCH}
+ * frames (and no more than {@code MAX_BATCH_BYTES}) in lane priority order and hands them to the
+ * kernel in one gathering write, so bursts cost a few syscalls instead of one per message. Frames
+ * in the same lane leave in the order they were queued. Keeping batches small bounds how long a
+ * consent or verification frame can sit behind bulk data that has already been taken off its queue.
+ *
+ * <p>A full lane rejects sends with {@link SendQueueFullException}. A lane that fills past three
+ * quarters is reported to the engine as congested, and as clear again once it has drained to a
+ * quarter, so callers can slow down before sends start failing.
+ *
+ * <p>Both sides open with a {@link Handshake}; once the peer has advertised
+ * {@link Handshake#CAP_DEFLATE} (and we have too) larger message frames are compressed.
+ *
+ * <p>Peers that advertise {@link Handshake#CAP_HEARTBEAT} are pinged by the engine; the pong echoes
+ * the ping's timestamp, which gives a round-trip time without needing synchronized clocks.
+ *
+ * <p>When the engine has an {@link Identity} the HELLOs also carry a {@link SessionHandshake} and
+ * everything after them is encrypted by a {@link SecureSession}. Frames are encoded and sealed only
+ * when the I/O thread takes them into a write batch, which is what keeps the nonce counter in wire
+ * order; until the peer's HELLO has said how to encrypt, everything but our own HELLO stays queued.
+ *
+ * <p>Frames are encoded (and sealed) into buffers from the engine's {@link BufferPool}, which go
+ * back to it once written, and encrypted frames are assembled in one on the way in.
+ */
+public class PeerConnection {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_WRITE_BATCH = 64;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final Lane[] LANES = Lane.values();
+
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_CLOSED = 2;
+
+    private final TransportEngine engine;
+    private final String peerId;
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final FrameDecoder decoder;
+    private final BufferPool pool;
+    // Checksums outgoing frames; I/O thread only
+    private final CRC32 writeCrc = new CRC32();
+    private final FrameCompressor compressor = new FrameCompressor();
+    private final BlockingQueue<PendingWrite>[] lanes = newLaneQueues();
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    // 1 while a lane is congested; reportedCongested is what the engine was last told (I/O thread only)
+    private final AtomicIntegerArray congested = new AtomicIntegerArray(LANES.length);
+    private final boolean[] reportedCongested = new boolean[LANES.length];
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    // Secure session state; the handshake and the two write fields are I/O thread only
+    private final boolean initiator;
+    private SessionHandshake sessionHandshake;
+    private volatile SecureSession session;
+    private volatile byte[] remoteIdentity;
+    private PendingWrite helloWrite;
+    private boolean holdingWrites = false;
+    // Set from the peer's HELLO until its TYPE_SESSION_CONFIRM checks out; I/O thread only
+    private boolean confirmPending = false;
+
+    // Weighted round robin over the non-strict lanes; I/O thread only
+    private int turn = firstWeighted();
+    private int turnCredit = LANES[turn].weight;
+
+    // Frames taken off the queue and currently being written; I/O thread only
+    private final PendingWrite[] batch = new PendingWrite[MAX_WRITE_BATCH];
+    private final ByteBuffer[] batchBuffers = new ByteBuffer[MAX_WRITE_BATCH];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+
+    private volatile int state = STATE_CONNECTING;
+    private volatile Handshake remoteHandshake;
+    private volatile boolean compressionEnabled = false;
+
+    // Heartbeat state, written on the I/O thread
+    private int missedHeartbeats = 0;
+    private volatile long lastRttNanos = -1;
+    private volatile long smoothedRttNanos = -1;
+    
+    private final TransportMetrics metrics = new TransportMetrics();
+    private final AtomicInteger queueHighWater = new AtomicInteger();
+    private SelectionKey key;
+    Cancellable connectTimeout;
+
+    PeerConnection(TransportEngine engine, String peerId, SocketChannel channel, boolean initiator) {
+        this.engine = engine;
+        this.peerId = peerId;
+        this.channel = channel;
+        this.initiator = initiator;
+        this.pool = engine.getBufferPool();
+        this.decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(Frame frame) throws FrameFormatException {
+                onFrameDecoded(frame);
+            }
+
+            @Override
+            public void onSealedFrame(byte type, byte flags, ByteBuffer payload) throws FrameFormatException {
+                onSealedFrameDecoded(type, flags, payload);
+            }
+        }, pool);
+    }
+
+    public String getPeerId() {
+        return peerId;
+    }
+
+    public String getRemoteAddress() {
+        return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    public boolean isOpen() {
+        return state == STATE_OPEN;
+    }
+
+    /**
+     * The peer's handshake, or null until it has arrived.
+     */
+    public Handshake getRemoteHandshake() {
+        return remoteHandshake;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    // True once frames to this peer are encrypted; from the start when resuming with a ticket
+    public boolean isSecure() {
+        return session != null;
+    }
+
+    public boolean isResumed() {
+        SecureSession current = session;
+        return current != null && current.isResumed();
+    }
+
+    /**
+     * The Ed25519 public key the peer authenticated with, or null until its handshake has been
+     * confirmed (or when the connection isn't encrypted). The listener's onHandshake sees it set.
+     */
+    public byte[] getRemoteIdentity() {
+        byte[] identity = remoteIdentity;
+        return identity != null ? identity.clone() : null;
+    }
+
+    /**
+     * Latest heartbeat round trip in milliseconds, or -1 before the first pong.
+     */
+    public double getLastRttMs() {
+        return lastRttNanos < 0 ? -1 : lastRttNanos / 1_000_000.0;
+    }
+
+    /**
+     * Exponentially smoothed round trip (1/8 weight per sample, like TCP's SRTT), or -1.
+     */
+    public double getSmoothedRttMs() {
+        return smoothedRttNanos < 0 ? -1 : smoothedRttNanos / 1_000_000.0;
+    }
+
+    boolean supportsHeartbeat() {
+        Handshake handshake = remoteHandshake;
+        return handshake != null && handshake.has(Handshake.CAP_HEARTBEAT);
+    }
+
+    // Called by the engine every heartbeat interval; returns false once the peer counts as lost
+    boolean heartbeat(int maxMissed) {
+        if (missedHeartbeats >= maxMissed) {
+            return false;
+        }
+        missedHeartbeats++;
+        try {
+            send(new Frame(Frame.TYPE_PING, (byte) 0, longBytes(System.nanoTime())));
+        } catch (IOException e) {
+            // The queue is full or the socket is closing; either way it counts as a miss
+        }
+        return true;
+    }
+
+    boolean isConnecting() {
+        return state == STATE_CONNECTING;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    public int getQueuedFrameCount() {
+        return queuedFrames.get();
+    }
+
+    public int getQueuedFrameCount(Lane lane) {
+        return lanes[lane.ordinal()].size();
+    }
+
+    public boolean isCongested(Lane lane) {
+        return congested.get(lane.ordinal()) == 1;
+    }
+
+    // Deepest the send queue has been since the connection opened
+    public int getQueueHighWater() {
+        return queueHighWater.get();
+    }
+
+    /**
+     * This connection's own counters; the engine's {@link TransportEngine#getMetrics()} adds up all
+     * of them.
+     */
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void send(Frame frame) throws IOException {
+        send(frame, Lane.forFrame(frame), null);
+    }
+
+    public void send(Frame frame, SendCallback callback) throws IOException {
+        send(frame, Lane.forFrame(frame), callback);
+    }
+
+    public void send(Frame frame, Lane lane, SendCallback callback) throws IOException {
+        if (state == STATE_CLOSED) {
+            throw new IOException("Connection to " + peerId + " is closed");
+        }
+        if (compressionEnabled && FrameCompressor.isCompressible(frame)) {
+            frame = compressor.compress(frame);
+        }
+        BlockingQueue<PendingWrite> queue = lanes[lane.ordinal()];
+        if (!queue.offer(new PendingWrite(frame, lane, callback))) {
+            engine.getMetrics().increment("sendQueueFull");
+            engine.getMetrics().increment("sendQueueFull." + lane.label());
+            throw new SendQueueFullException("Send queue for " + lane.label() + " to " + peerId + " is full");
+        }
+        queueHighWater.accumulateAndGet(queuedFrames.incrementAndGet(), Math::max);
+        if (queue.size() >= lane.capacity * 3 / 4 && congested.compareAndSet(lane.ordinal(), 0, 1)) {
+            engine.execute(this::reportBackpressure);
+        }
+        if (state == STATE_CLOSED) {
+            // Lost a race with close; make sure nothing is left waiting on a dead socket
+            engine.execute(this::failPendingWrites);
+            return;
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            engine.execute(this::flushFromIoThread);
+        }
+    }
+
+    public void close() {
+        if (engine.inIoThread()) {
+            closeWith(null);
+        } else {
+            engine.execute(() -> closeWith(null));
+        }
+    }
+
+    void onConnected() throws HandshakeException {
+        Handshake hello = engine.getLocalHandshake();
+        Identity identity = engine.getIdentity();
+        if (identity != null) {
+            SessionTicketCache.Ticket ticket = initiator ? engine.getHeldTickets().take(peerId) : null;
+            sessionHandshake = new SessionHandshake(identity, initiator, ticket, engine.getRandom());
+            hello = sessionHandshake.decorate(hello);
+            session = sessionHandshake.getSession();
+            holdingWrites = session == null;
+        }
+        state = STATE_OPEN;
+        engine.onConnectionOpened(this);
+        key.interestOps(SelectionKey.OP_READ);
+        // Nobody else has seen this connection yet, so the handshake is the first frame out
+        helloWrite = new PendingWrite(hello.toFrame(), Lane.CONTROL, null);
+        flushFromIoThread();
+    }
+
+    private void onSealedFrameDecoded(byte type, byte flags, ByteBuffer payload) throws FrameFormatException {
+        metrics.framesIn.increment();
+        engine.getMetrics().framesIn.increment();
+        dispatch(open(type, flags, payload));
+    }
+
+    private void onFrameDecoded(Frame frame) throws FrameFormatException {
+        metrics.framesIn.increment();
+        engine.getMetrics().framesIn.increment();
+        if (frame.hasFlag(Frame.FLAG_ENCRYPTED)) {
+            frame = open(frame.getType(), frame.getFlags(), ByteBuffer.wrap(frame.getPayload()));
+        } else if (frame.getType() != Frame.TYPE_HELLO
+                && (session != null || (sessionHandshake != null && remoteHandshake == null))) {
+            throw new FrameFormatException("Unencrypted frame of type " + frame.getType() + " on a secure connection");
+        }
+        dispatch(frame);
+    }
+
+    // A frame that is no longer encrypted
+    private void dispatch(Frame frame) throws FrameFormatException {
+        if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            frame = compressor.decompress(frame);
+        }
+        if (frame.getType() == Frame.TYPE_HELLO) {
+            onHello(Handshake.fromFrame(frame));
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_SESSION_CONFIRM) {
+            onConfirm(frame);
+            return;
+        }
+        if (confirmPending && !session.isResumed() && frame.getType() != Frame.TYPE_PING
+                && frame.getType() != Frame.TYPE_PONG) {
+            throw new FrameFormatException("Frame of type " + frame.getType() + " before the handshake was confirmed");
+        }
+        if (frame.getType() == Frame.TYPE_SESSION_TICKET) {
+            if (session == null) {
+                throw new FrameFormatException("Session ticket without a session");
+            }
+            sessionHandshake.onTicket(frame, engine.getHeldTickets(), peerId);
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_PING) {
+            sendPong(frame.getPayload());
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_PONG) {
+            onPong(frame.getPayload());
+            return;
+        }
+        engine.onFrame(this, frame);
+    }
+
+    private void onHello(Handshake handshake) throws FrameFormatException {
+        if (remoteHandshake != null) {
+            throw new FrameFormatException("Second handshake from " + peerId);
+        }
+        if (sessionHandshake != null && handshake.has(Handshake.CAP_SECURE)) {
+            try {
+                session = sessionHandshake.accept(handshake, engine.getIssuedTickets());
+            } catch (HandshakeException e) {
+                engine.getMetrics().increment("handshakeRejected");
+                throw e;
+            }
+            engine.getMetrics().increment(session.isResumed() ? "handshakeResumed" : "handshakeFull");
+            confirmPending = true;
+            try {
+                send(sessionHandshake.confirm(), Lane.CONTROL, null);
+            } catch (IOException e) {
+                // Closing anyway; the confirm can't matter any more
+            }
+        } else if (engine.isSecureRequired()) {
+            engine.getMetrics().increment("handshakeRejected");
+            throw new HandshakeException(peerId + " does not support encrypted sessions");
+        }
+        remoteHandshake = handshake;
+        compressionEnabled = handshake.has(Handshake.CAP_DEFLATE)
+            && engine.getLocalHandshake().has(Handshake.CAP_DEFLATE);
+        if (holdingWrites) {
+            holdingWrites = false;
+            scheduleFlush();
+        }
+        if (session == null || session.isResumed()) {
+            // A ticket only exists for an identity that was confirmed before, and the peer's 0-RTT
+            // frames may already follow; its confirm is still checked when it arrives
+            remoteIdentity = sessionHandshake != null ? sessionHandshake.getRemoteIdentity() : null;
+            report();
+        }
+    }
+
+    private void onConfirm(Frame frame) throws FrameFormatException {
+        if (!confirmPending) {
+            throw new FrameFormatException("Unexpected session confirm from " + peerId);
+        }
+        try {
+            sessionHandshake.verifyConfirm(frame);
+        } catch (HandshakeException e) {
+            engine.getMetrics().increment("handshakeRejected");
+            throw e;
+        }
+        confirmPending = false;
+        if (!session.isResumed()) {
+            remoteIdentity = sessionHandshake.getRemoteIdentity();
+            report();
+        }
+        if (!initiator) {
+            try {
+                send(sessionHandshake.issueTicket(engine.getIssuedTickets()), Lane.CONTROL, null);
+            } catch (IOException e) {
+                // The peer just does a full handshake next time
+            }
+        }
+    }
+
+    // Lets the engine's IdentityVerifier turn the peer away before anyone hears of it
+    private void report() throws HandshakeException {
+        if (!engine.isTrusted(this, remoteHandshake, remoteIdentity)) {
+            engine.getMetrics().increment("handshakeRejected");
+            throw new HandshakeException("Identity of " + peerId + " was rejected");
+        }
+        engine.onHandshake(this, remoteHandshake);
+    }
+
+    private Frame open(byte type, byte flags, ByteBuffer payload) throws FrameFormatException {
+        if (session == null) {
+            throw new FrameFormatException("Encrypted frame before the session was set up");
+        }
+        try {
+            return session.open(type, flags, payload);
+        } catch (FrameFormatException e) {
+            engine.getMetrics().increment("decryptFailed");
+            throw e;
+        }
+    }
+
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            closeWith(null);
+            return;
+        }
+        // Any traffic proves the peer is alive, so a pong stuck behind a big transfer doesn't count as a miss
+        missedHeartbeats = 0;
+        metrics.bytesIn.add(read);
+        engine.getMetrics().bytesIn.add(read);
+        readBuffer.flip();
+        try {
+            decoder.feed(readBuffer);
+        } finally {
+            readBuffer.clear();
+            if (state == STATE_CLOSED) {
+                // Closed by one of the frames just read; let go of anything assembled after it
+                decoder.reset();
+            }
+        }
+    }
+
+    private void sendPong(byte[] pingPayload) {
+        try {
+            send(new Frame(Frame.TYPE_PONG, (byte) 0, pingPayload));
+        } catch (IOException e) {
+            // Peer will count a missed heartbeat, nothing else to do
+        }
+    }
+
+    private void onPong(byte[] payload) {
+        if (payload.length != 8) {
+            return;
+        }
+        long rtt = System.nanoTime() - ByteBuffer.wrap(payload).getLong();
+        if (rtt < 0) {
+            return;
+        }
+        lastRttNanos = rtt;
+        metrics.rtt.recordNanos(rtt);
+        engine.getMetrics().rtt.recordNanos(rtt);
+        smoothedRttNanos = smoothedRttNanos < 0 ? rtt : smoothedRttNanos + (rtt - smoothedRttNanos) / 8;
+    }
+
+    private static byte[] longBytes(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    void onWritable() throws IOException {
+        writeScheduled.set(false);
+        while (true) {
+            if (batchStart == batchEnd && !fillBatch()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+
+            long written = channel.write(batchBuffers, batchStart, batchEnd - batchStart);
+            TransportMetrics totals = engine.getMetrics();
+            metrics.bytesOut.add(written);
+            totals.bytesOut.add(written);
+
+            long now = System.nanoTime();
+            while (batchStart < batchEnd && !batchBuffers[batchStart].hasRemaining()) {
+                PendingWrite done = batch[batchStart];
+                pool.release(batchBuffers[batchStart]);
+                done.buffer = null;
+                batch[batchStart] = null;
+                batchBuffers[batchStart] = null;
+                batchStart++;
+                // Time from send() to the last byte reaching the kernel
+                metrics.framesOut.increment();
+                totals.framesOut.increment();
+                metrics.sendLatency.recordNanos(now - done.queuedAtNanos);
+                totals.sendLatency.recordNanos(now - done.queuedAtNanos);
+                totals.histogram("sendLatency." + done.lane.label()).recordNanos(now - done.queuedAtNanos);
+                done.succeed();
+            }
+
+            if (batchStart < batchEnd) {
+                // Socket buffer is full, wait for the next writable event
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    private boolean fillBatch() throws FrameFormatException {
+        batchStart = 0;
+        batchEnd = 0;
+        int bytes = 0;
+        if (helloWrite != null) {
+            // Always in clear, even when resuming
+            helloWrite.buffer = encode(helloWrite.frame, null);
+            addToBatch(helloWrite);
+            bytes += helloWrite.buffer.remaining();
+            helloWrite = null;
+        }
+        PendingWrite next;
+        while (!holdingWrites && batchEnd < MAX_WRITE_BATCH && bytes < MAX_BATCH_BYTES && (next = pollNext()) != null) {
+            // In the batch before sealing, so a failure still reaches its callback through close
+            addToBatch(next);
+            next.buffer = encode(next.frame, session);
+            batchBuffers[batchEnd - 1] = next.buffer;
+            bytes += next.buffer.remaining();
+        }
+        return batchEnd > 0;
+    }
+
+    // The frame, sealed when there is a session, in a pooled buffer ready to write
+    private ByteBuffer encode(Frame frame, SecureSession sealWith) throws FrameFormatException {
+        int payloadLength = frame.getPayload().length + (sealWith != null ? SecureSession.TAG_SIZE : 0);
+        ByteBuffer buffer = pool.acquire(Frame.HEADER_SIZE + payloadLength);
+        buffer.position(Frame.HEADER_SIZE);
+        byte flags = frame.getFlags();
+        try {
+            if (sealWith != null) {
+                flags = sealWith.sealInto(frame, buffer);
+            } else {
+                buffer.put(frame.getPayload());
+            }
+        } catch (FrameFormatException | RuntimeException e) {
+            pool.release(buffer);
+            throw e;
+        }
+        Frame.writeHeader(buffer, frame.getType(), flags, writeCrc);
+        return buffer;
+    }
+
+    private void addToBatch(PendingWrite write) {
+        batch[batchEnd] = write;
+        batchBuffers[batchEnd] = write.buffer;
+        batchEnd++;
+    }
+
+    private PendingWrite pollNext() {
+        for (Lane lane : LANES) {
+            if (lane.strict) {
+                PendingWrite next = take(lane);
+                if (next != null) {
+                    return next;
+                }
+            }
+        }
+        // One full cycle over the weighted lanes, plus the turn we are part way through
+        for (int i = 0; i <= LANES.length; i++) {
+            if (turnCredit > 0) {
+                PendingWrite next = take(LANES[turn]);
+                if (next != null) {
+                    turnCredit--;
+                    return next;
+                }
+            }
+            do {
+                turn = (turn + 1) % LANES.length;
+            } while (LANES[turn].strict);
+            turnCredit = LANES[turn].weight;
+        }
+        return null;
+    }
+
+    private PendingWrite take(Lane lane) {
+        BlockingQueue<PendingWrite> queue = lanes[lane.ordinal()];
+        PendingWrite next = queue.poll();
+        if (next == null) {
+            return null;
+        }
+        queuedFrames.decrementAndGet();
+        if (queue.size() <= lane.capacity / 4 && congested.compareAndSet(lane.ordinal(), 1, 0)) {
+            engine.execute(this::reportBackpressure);
+        }
+        return next;
+    }
+
+    // Flags flip on whichever thread sends or drains, so only the latest state is reported, in order
+    private void reportBackpressure() {
+        if (state == STATE_CLOSED) {
+            return;
+        }
+        for (Lane lane : LANES) {
+            boolean now = congested.get(lane.ordinal()) == 1;
+            if (now != reportedCongested[lane.ordinal()]) {
+                reportedCongested[lane.ordinal()] = now;
+                engine.onBackpressure(this, lane, now);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BlockingQueue<PendingWrite>[] newLaneQueues() {
+        BlockingQueue<PendingWrite>[] queues = (BlockingQueue<PendingWrite>[]) new BlockingQueue<?>[LANES.length];
+        for (Lane lane : LANES) {
+            queues[lane.ordinal()] = new ArrayBlockingQueue<>(lane.capacity);
+        }
+        return queues;
+    }
+
+    private static int firstWeighted() {
+        for (Lane lane : LANES) {
+            if (!lane.strict) {
+                return lane.ordinal();
+            }
+        }
+        throw new IllegalStateException("No weighted lane");
+    }
+
+    private void failPendingWrites() {
+        helloWrite = null;
+        IOException cause = new IOException("Connection to " + peerId + " closed before the frame was sent");
+        for (int i = batchStart; i < batchEnd; i++) {
+            pool.release(batchBuffers[i]);
+            batch[i].fail(cause);
+            batch[i] = null;
+            batchBuffers[i] = null;
+        }
+        batchStart = 0;
+        batchEnd = 0;
+        for (Lane lane : LANES) {
+            PendingWrite next;
+            while ((next = take(lane)) != null) {
+                next.fail(cause);
+            }
+        }
+    }
+
+    private void flushFromIoThread() {
+        if (state != STATE_OPEN || !key.isValid()) {
+            // Still connecting; onConnected will flush. If closed, the queue is dropped.
+            writeScheduled.set(false);
+            return;
+        }
+        try {
+            onWritable();
+        } catch (IOException e) {
+            closeWith(e);
+        }
+    }
+
+    void closeWith(Exception cause) {
+        int previous = state;
+        if (previous == STATE_CLOSED) {
+            return;
+        }
+        state = STATE_CLOSED;
+        if (connectTimeout != null) {
+            connectTimeout.cancel();
+            connectTimeout = null;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        TransportEngine.closeQuietly(channel);
+        failPendingWrites();
+        decoder.reset();
+        compressor.close();
+        engine.onConnectionClosed(this, cause, previous == STATE_OPEN);
+    }
+
+    private static final class PendingWrite {
+        final Frame frame;
+        final Lane lane;
+        final SendCallback callback;
+        final long queuedAtNanos = System.nanoTime();
+        // Encoded (and sealed) bytes, set once the frame is taken into a write batch
+        ByteBuffer buffer;
+
+        PendingWrite(Frame frame, Lane lane, SendCallback callback) {
+            this.frame = frame;
+            this.lane = lane;
+            this.callback = callback;
+        }
+
+        void succeed() {
+            if (callback != null) {
+                callback.onSent();
+            }
+        }
+
+        void fail(Exception cause) {
+            if (callback != null) {
+                callback.onFailed(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.kavach.p2p.transport;
+
+import java.io.IOException;
+
+/**
+ * Closes a connection whose peer stopped answering heartbeats.
+ */
+public class PeerLostException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public PeerLostException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,415 @@
+package com.kavach.p2p.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Correlated requests and acknowledged messages on top of a connection. A request carries an id
+ * the peer echoes in its response; an acknowledged message carries an id the peer echoes in a
+ * TYPE_ACK as soon as it has read it. Ids are 4 bytes at the front of the payload and only unique
+ * per connection.
+ *
+ * <p>Up to {@link #getWindow()} of these are in flight per connection and {@link Lane} at once, so a
+ * verifier can pipeline many checks over one socket without waiting a round trip for each, and a
+ * backlog of chat never holds up a consent prompt. Anything past the window waits, in order, for
+ * an earlier one in the same lane to finish. Each has its own timeout, counted from
+ * the moment it was submitted, and fails with {@link RequestTimeoutException}.
+ *
+ * <p>The wait holds up to {@link Lane#getCapacity()} entries per connection and lane, the same
+ * bound as the connection's own queues, which acknowledged traffic never fills; past that a send
+ * fails at once with {@link SendQueueFullException}. Like those queues, a wait that reaches three
+ * quarters of its capacity is reported to the engine listener's onBackpressure, and cleared again
+ * at a quarter.
+ *
+ * <p>Only use this with peers whose handshake advertises {@link Handshake#CAP_REQUESTS}; older
+ * builds ignore these frames and every call would time out.
+ */
+public class RequestManager {
+    public static final int DEFAULT_WINDOW = 8;
+    public static final int MAX_WINDOW = 256;
+    private static final int ID_SIZE = 4;
+
+    public interface Listener {
+        // Answer with respond() and the same id; the peer times out if nobody does
+        void onRequest(PeerConnection connection, int requestId, byte[] body);
+    }
+
+    public interface ResponseCallback {
+        // The body is empty for an acknowledged message. Called on the I/O thread.
+        void onResponse(byte[] body, long latencyNanos);
+
+        void onFailed(Exception cause);
+    }
+
+    private final TransportEngine engine;
+    private final Listener listener;
+    private final Map<PeerConnection, PeerState> peers = new HashMap<>();
+    private volatile int window = DEFAULT_WINDOW;
+
+    public RequestManager(TransportEngine engine, Listener listener) {
+        this.engine = engine;
+        this.listener = listener;
+    }
+
+    public static boolean isRequestFrame(byte type) {
+        return type == Frame.TYPE_REQUEST || type == Frame.TYPE_RESPONSE || type == Frame.TYPE_ACK;
+    }
+
+    // Applies to requests submitted from now on; ones already waiting keep their place
+    public void setWindow(int window) {
+        this.window = Math.max(1, Math.min(MAX_WINDOW, window));
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void request(PeerConnection connection, byte[] body, long timeoutMs, ResponseCallback callback) {
+        request(connection, body, Lane.VERIFICATION, timeoutMs, callback);
+    }
+
+    public void request(PeerConnection connection, byte[] body, Lane lane, long timeoutMs, ResponseCallback callback) {
+        submit(connection, Frame.TYPE_REQUEST, (byte) 0, body, lane, timeoutMs, callback);
+    }
+
+    // A TYPE_MESSAGE the peer acknowledges on receipt; the callback fires once the ack is back
+    public void sendAcked(PeerConnection connection, byte[] body, Lane lane, long timeoutMs, ResponseCallback callback) {
+        sendAcked(connection, body, (byte) 0, lane, timeoutMs, callback);
+    }
+
+    // flags are added to FLAG_ACK_REQUESTED, e.g. FLAG_BINARY
+    public void sendAcked(PeerConnection connection, byte[] body, byte flags, Lane lane, long timeoutMs,
+            ResponseCallback callback) {
+        submit(connection, Frame.TYPE_MESSAGE, (byte) (flags | Frame.FLAG_ACK_REQUESTED), body, lane, timeoutMs,
+            callback);
+    }
+
+    public void respond(PeerConnection connection, int requestId, byte[] body) throws IOException {
+        connection.send(new Frame(Frame.TYPE_RESPONSE, (byte) 0, withId(requestId, body)));
+    }
+
+    /**
+     * Returns the body of a TYPE_MESSAGE frame, acknowledging it first if the sender asked for that.
+     */
+    public byte[] acceptMessage(PeerConnection connection, Frame frame) throws FrameFormatException {
+        byte[] payload = frame.getPayload();
+        if (!frame.hasFlag(Frame.FLAG_ACK_REQUESTED)) {
+            return payload;
+        }
+        if (payload.length < ID_SIZE) {
+            throw new FrameFormatException("Acknowledged message without an id");
+        }
+        try {
+            connection.send(new Frame(Frame.TYPE_ACK, (byte) 0, Arrays.copyOf(payload, ID_SIZE)));
+        } catch (IOException e) {
+            // The connection is going away; the sender finds out through its own close or timeout
+        }
+        return Arrays.copyOfRange(payload, ID_SIZE, payload.length);
+    }
+
+    public void onFrame(PeerConnection connection, Frame frame) throws FrameFormatException {
+        byte[] payload = frame.getPayload();
+        if (payload.length < ID_SIZE) {
+            throw new FrameFormatException("Frame of type " + frame.getType() + " without an id");
+        }
+        int id = ByteBuffer.wrap(payload).getInt();
+        byte[] body = Arrays.copyOfRange(payload, ID_SIZE, payload.length);
+        if (frame.getType() == Frame.TYPE_REQUEST) {
+            listener.onRequest(connection, id, body);
+        } else {
+            complete(connection, id, body);
+        }
+    }
+
+    public void onConnectionClosed(PeerConnection connection) {
+        PeerState state;
+        synchronized (this) {
+            state = peers.remove(connection);
+        }
+        if (state != null) {
+            failAll(state, new IOException("Connection to " + connection.getPeerId() + " lost"));
+        }
+    }
+
+    public void shutdown() {
+        List<PeerState> states;
+        synchronized (this) {
+            states = new ArrayList<>(peers.values());
+            peers.clear();
+        }
+        IOException cause = new IOException("Transport stopped");
+        for (PeerState state : states) {
+            failAll(state, cause);
+        }
+    }
+
+    public synchronized int getInFlightCount(PeerConnection connection) {
+        PeerState state = peers.get(connection);
+        return state != null ? state.inFlight.size() : 0;
+    }
+
+    public synchronized int getWaitingCount(PeerConnection connection) {
+        PeerState state = peers.get(connection);
+        if (state == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Deque<Pending> waiting : state.waiting) {
+            count += waiting.size();
+        }
+        return count;
+    }
+
+    private void submit(PeerConnection connection, byte type, byte flags, byte[] body, Lane lane, long timeoutMs,
+            ResponseCallback callback) {
+        if (!connection.isOpen()) {
+            callback.onFailed(new IOException("Connection to " + connection.getPeerId() + " is closed"));
+            return;
+        }
+        PeerState state;
+        Pending pending = null;
+        boolean sendNow;
+        boolean congestionChanged = false;
+        synchronized (this) {
+            state = peers.computeIfAbsent(connection, PeerState::new);
+            Deque<Pending> waiting = state.waiting[lane.ordinal()];
+            sendNow = state.inFlightByLane[lane.ordinal()] < window;
+            if (sendNow || waiting.size() < lane.capacity) {
+                Pending created = new Pending(state.nextId++, type, flags, body, lane, callback);
+                created.timeout = engine.schedule(() -> onTimeout(state, created, timeoutMs), timeoutMs);
+                if (sendNow) {
+                    state.admit(created);
+                } else {
+                    waiting.add(created);
+                    congestionChanged = state.updateCongestion(lane);
+                }
+                pending = created;
+            }
+        }
+        if (pending == null) {
+            engine.getMetrics().increment("sendQueueFull");
+            engine.getMetrics().increment("sendQueueFull." + lane.label());
+            callback.onFailed(new SendQueueFullException(
+                "Send queue for " + lane.label() + " to " + connection.getPeerId() + " is full"));
+            return;
+        }
+        if (congestionChanged) {
+            engine.execute(() -> reportBackpressure(state));
+        }
+        if (sendNow) {
+            transmit(connection, pending);
+        }
+    }
+
+    private void transmit(PeerConnection connection, Pending pending) {
+        pending.sentAtNanos = System.nanoTime();
+        try {
+            Frame frame = new Frame(pending.type, pending.flags, withId(pending.id, pending.body));
+            connection.send(frame, pending.lane, new SendCallback() {
+                @Override
+                public void onSent() {
+                }
+
+                @Override
+                public void onFailed(Exception cause) {
+                    fail(connection, pending, cause);
+                }
+            });
+        } catch (IOException e) {
+            fail(connection, pending, e);
+        }
+    }
+
+    private void complete(PeerConnection connection, int id, byte[] body) {
+        Pending pending;
+        List<Pending> promoted;
+        synchronized (this) {
+            PeerState state = peers.get(connection);
+            pending = state != null ? state.inFlight.get(id) : null;
+            if (pending == null) {
+                // Answer to something that already timed out
+                engine.getMetrics().increment("lateResponse");
+                return;
+            }
+            state.release(pending);
+            promoted = promote(state, pending.lane);
+            if (state.updateCongestion(pending.lane)) {
+                engine.execute(() -> reportBackpressure(state));
+            }
+        }
+        pending.timeout.cancel();
+        long latencyNanos = System.nanoTime() - pending.sentAtNanos;
+        engine.getMetrics().histogram(pending.type == Frame.TYPE_REQUEST ? "requestLatency" : "ackLatency")
+            .recordNanos(latencyNanos);
+        pending.callback.onResponse(body, latencyNanos);
+        for (Pending next : promoted) {
+            transmit(connection, next);
+        }
+    }
+
+    private void onTimeout(PeerState state, Pending pending, long timeoutMs) {
+        if (finish(state, pending)) {
+            engine.getMetrics().increment(pending.type == Frame.TYPE_REQUEST ? "requestTimeout" : "ackTimeout");
+            pending.callback.onFailed(new RequestTimeoutException(
+                "No answer from " + state.connection.getPeerId() + " within " + timeoutMs + "ms"));
+        }
+    }
+
+    private void fail(PeerConnection connection, Pending pending, Exception cause) {
+        PeerState state;
+        synchronized (this) {
+            state = peers.get(connection);
+        }
+        if (state != null && finish(state, pending)) {
+            pending.timeout.cancel();
+            pending.callback.onFailed(cause);
+        }
+    }
+
+    // Takes the entry out of the window or the wait queue; false if something else already did
+    private boolean finish(PeerState state, Pending pending) {
+        List<Pending> promoted;
+        boolean congestionChanged;
+        synchronized (this) {
+            if (state.inFlight.get(pending.id) == pending) {
+                state.release(pending);
+                promoted = promote(state, pending.lane);
+            } else if (state.waiting[pending.lane.ordinal()].remove(pending)) {
+                promoted = new ArrayList<>();
+            } else {
+                return false;
+            }
+            congestionChanged = state.updateCongestion(pending.lane);
+        }
+        if (congestionChanged) {
+            engine.execute(() -> reportBackpressure(state));
+        }
+        for (Pending next : promoted) {
+            transmit(state.connection, next);
+        }
+        return true;
+    }
+
+    // Moves waiting entries into the lane's window while there is room; the caller sends them
+    private List<Pending> promote(PeerState state, Lane lane) {
+        List<Pending> promoted = new ArrayList<>();
+        Deque<Pending> waiting = state.waiting[lane.ordinal()];
+        while (state.inFlightByLane[lane.ordinal()] < window && !waiting.isEmpty()) {
+            Pending next = waiting.poll();
+            state.admit(next);
+            promoted.add(next);
+        }
+        return promoted;
+    }
+
+    // Flags flip on whichever thread submits or completes, so only the latest state is reported, in
+    // order, as PeerConnection does for its own queues. Runs on the I/O thread.
+    private void reportBackpressure(PeerState state) {
+        for (Lane lane : Lane.values()) {
+            boolean now;
+            synchronized (this) {
+                if (peers.get(state.connection) != state) {
+                    return;
+                }
+                now = state.congested[lane.ordinal()];
+            }
+            if (now != state.reportedCongested[lane.ordinal()]) {
+                state.reportedCongested[lane.ordinal()] = now;
+                engine.onBackpressure(state.connection, lane, now);
+            }
+        }
+    }
+
+    private void failAll(PeerState state, Exception cause) {
+        List<Pending> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(state.inFlight.values());
+            state.inFlight.clear();
+            Arrays.fill(state.inFlightByLane, 0);
+            for (Deque<Pending> waiting : state.waiting) {
+                pending.addAll(waiting);
+                waiting.clear();
+            }
+        }
+        for (Pending entry : pending) {
+            entry.timeout.cancel();
+            entry.callback.onFailed(cause);
+        }
+    }
+
+    private static byte[] withId(int id, byte[] body) {
+        return ByteBuffer.allocate(ID_SIZE + body.length).putInt(id).put(body).array();
+    }
+
+    private static final class PeerState {
+        final PeerConnection connection;
+        final Map<Integer, Pending> inFlight = new HashMap<>();
+        final int[] inFlightByLane = new int[Lane.values().length];
+        final Deque<Pending>[] waiting = newWaitingQueues();
+        // Whether each lane's wait counts as congested, and what the engine was last told (I/O thread)
+        final boolean[] congested = new boolean[Lane.values().length];
+        final boolean[] reportedCongested = new boolean[Lane.values().length];
+        int nextId = 0;
+
+        PeerState(PeerConnection connection) {
+            this.connection = connection;
+        }
+
+        void admit(Pending pending) {
+            inFlight.put(pending.id, pending);
+            inFlightByLane[pending.lane.ordinal()]++;
+        }
+
+        void release(Pending pending) {
+            inFlight.remove(pending.id);
+            inFlightByLane[pending.lane.ordinal()]--;
+        }
+
+        // Applies the same thresholds as PeerConnection; true if the lane's state flipped
+        boolean updateCongestion(Lane lane) {
+            int size = waiting[lane.ordinal()].size();
+            boolean now = congested[lane.ordinal()] ? size > lane.capacity / 4 : size >= lane.capacity * 3 / 4;
+            if (now == congested[lane.ordinal()]) {
+                return false;
+            }
+            congested[lane.ordinal()] = now;
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Deque<Pending>[] newWaitingQueues() {
+            Deque<Pending>[] queues = (Deque<Pending>[]) new Deque<?>[Lane.values().length];
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<>();
+            }
+            return queues;
+        }
+    }
+
+    private static final class Pending {
+        final int id;
+        final byte type;
+        final byte flags;
+        final byte[] body;
+        final Lane lane;
+        final ResponseCallback callback;
+        Cancellable timeout;
+        long sentAtNanos;
+
+        Pending(int id, byte type, byte flags, byte[] body, Lane lane, ResponseCallback callback) {
+            this.id = id;
+            this.type = type;
+            this.flags = flags;
+            this.body = body;
+            this.lane = lane;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.kavach.p2p.transport;
+
+import java.io.IOException;
+
+/**
+ * A request or acknowledged message that got no answer in time. The connection stays open.
+ */
+public class RequestTimeoutException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public RequestTimeoutException(String message) {
+        super(message);
+    }
+}
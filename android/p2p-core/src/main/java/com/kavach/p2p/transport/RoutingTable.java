@@ -0,0 +1,162 @@
+package com.kavach.p2p.transport;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which connection reaches which group member, and the route header that lets the group owner
+ * pass a message between two clients that can't reach each other. Members are known by the Wi-Fi
+ * Direct device address they put in their handshake ({@link #ATTRIBUTE_ADDRESS}), the same
+ * address peers see during discovery.
+ *
+ * <p>A {@link Frame#FLAG_ROUTED} message body (after any ack id) starts with
+ *
+ * <pre>
+ *   lane         1 byte
+ *   destination  1 length byte, UTF-8
+ *   origin       1 length byte, UTF-8
+ * </pre>
+ *
+ * The relay reads only this header; everything after it, message id included, is forwarded
+ * as the same bytes. The origin is whatever the sender wrote, so the group owner replaces it with
+ * the address the sending connection is registered under before it forwards or delivers the
+ * message, and one address is never registered to two open connections at once.
+ */
+public class RoutingTable {
+    public static final String ATTRIBUTE_ADDRESS = "dev";
+    public static final int MAX_ADDRESS_LENGTH = 64;
+
+    private static final Lane[] LANES = Lane.values();
+
+    public static final class Route {
+        final Lane lane;
+        final String destination;
+        final String origin;
+        final int headerLength;
+
+        Route(Lane lane, String destination, String origin, int headerLength) {
+            this.lane = lane;
+            this.destination = destination;
+            this.origin = origin;
+            this.headerLength = headerLength;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+    }
+
+    private final Map<String, PeerConnection> members = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the connection under the address in the peer's handshake, if it sent one. Returns
+     * false, leaving the table as it was, when another open connection holds the address; that one
+     * is only replaced by a connection authenticated with the same identity key, which is the
+     * device reconnecting before its old socket noticed.
+     */
+    public boolean register(PeerConnection connection, Handshake remote) {
+        String address = remote != null ? remote.get(ATTRIBUTE_ADDRESS) : null;
+        if (address == null || address.isEmpty()) {
+            return true;
+        }
+        PeerConnection registered = members.compute(address, (key, current) ->
+            current == null || !current.isOpen() || sameIdentity(current, connection) ? connection : current);
+        return registered == connection;
+    }
+
+    public void unregister(PeerConnection connection) {
+        members.values().removeIf(member -> member == connection);
+    }
+
+    // The open connection to the member, or null
+    public PeerConnection lookup(String address) {
+        PeerConnection connection = members.get(address);
+        return connection != null && connection.isOpen() ? connection : null;
+    }
+
+    // The address the connection is registered under, or null
+    public String addressOf(PeerConnection connection) {
+        for (Map.Entry<String, PeerConnection> member : members.entrySet()) {
+            if (member.getValue() == connection) {
+                return member.getKey();
+            }
+        }
+        return null;
+    }
+
+    public List<String> getMembers() {
+        return new ArrayList<>(members.keySet());
+    }
+
+    public void clear() {
+        members.clear();
+    }
+
+    public static byte[] addRoute(Lane lane, String destination, String origin, byte[] body) {
+        byte[] to = encodeAddress(destination);
+        byte[] from = encodeAddress(origin);
+        byte[] result = new byte[3 + to.length + from.length + body.length];
+        result[0] = (byte) lane.ordinal();
+        result[1] = (byte) to.length;
+        System.arraycopy(to, 0, result, 2, to.length);
+        result[2 + to.length] = (byte) from.length;
+        System.arraycopy(from, 0, result, 3 + to.length, from.length);
+        System.arraycopy(body, 0, result, 3 + to.length + from.length, body.length);
+        return result;
+    }
+
+    public static Route readRoute(byte[] routed) throws FrameFormatException {
+        if (routed.length < 3) {
+            throw new FrameFormatException("Truncated route header");
+        }
+        Lane lane = LANES[Math.min(routed[0] & 0xFF, LANES.length - 1)];
+        int toLength = routed[1] & 0xFF;
+        if (2 + toLength + 1 > routed.length) {
+            throw new FrameFormatException("Truncated route header");
+        }
+        int fromLength = routed[2 + toLength] & 0xFF;
+        int headerLength = 3 + toLength + fromLength;
+        if (headerLength > routed.length) {
+            throw new FrameFormatException("Truncated route header");
+        }
+        return new Route(lane, new String(routed, 2, toLength, StandardCharsets.UTF_8),
+            new String(routed, 3 + toLength, fromLength, StandardCharsets.UTF_8), headerLength);
+    }
+
+    // The same routed body with the origin replaced
+    public static byte[] replaceOrigin(byte[] routed, Route route, String origin) {
+        return addRoute(route.lane, route.destination, origin, stripRoute(routed, route));
+    }
+
+    // What follows the route header
+    public static byte[] stripRoute(byte[] routed, Route route) {
+        byte[] body = new byte[routed.length - route.headerLength];
+        System.arraycopy(routed, route.headerLength, body, 0, body.length);
+        return body;
+    }
+
+    private static boolean sameIdentity(PeerConnection a, PeerConnection b) {
+        byte[] identity = a.getRemoteIdentity();
+        return identity != null && Arrays.equals(identity, b.getRemoteIdentity());
+    }
+
+    private static byte[] encodeAddress(String address) {
+        byte[] encoded = address.getBytes(StandardCharsets.UTF_8);
+        if (encoded.length > MAX_ADDRESS_LENGTH) {
+            throw new IllegalArgumentException("Address too long: " + address);
+        }
+        return encoded;
+    }
+}
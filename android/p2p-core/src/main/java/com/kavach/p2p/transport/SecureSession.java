@@ -0,0 +1,141 @@
+package com.kavach.p2p.transport;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-256-GCM for one connection, a key per direction. Nonces are a frame counter, which works
+ * because frames are sealed and opened on the I/O thread in exactly the order they cross the
+ * socket; a dropped, replayed or reordered frame fails authentication and closes the connection.
+ * The frame's type and flags are authenticated along with the payload.
+ *
+ * <p>Both Cipher instances, the keys and the nonce buffers live as long as the connection. Sealing
+ * writes straight into the pooled buffer the frame goes out in and opening reads from the one it
+ * was assembled in, so the only allocations are the plaintext the app gets (and the small
+ * parameter spec JCE insists on).
+ */
+final class SecureSession {
+    static final int SECRET_SIZE = 32;
+    private static final int TAG_BITS = 128;
+    static final int TAG_SIZE = TAG_BITS / 8;
+    private static final int NONCE_SIZE = 12;
+    private static final byte[] FULL_INFO = "kavach-p2p session v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESUMED_INFO = "kavach-p2p resumed v1".getBytes(StandardCharsets.UTF_8);
+
+    private final Cipher sealer;
+    private final Cipher opener;
+    private final SecretKeySpec sendKey;
+    private final SecretKeySpec receiveKey;
+    private final byte[] sendNonce = new byte[NONCE_SIZE];
+    private final byte[] receiveNonce = new byte[NONCE_SIZE];
+    private final byte[] aad = new byte[2];
+    private long sendCounter = 0;
+    private long receiveCounter = 0;
+    // Seeds the ticket for the next session with this peer
+    private final byte[] resumptionSecret;
+    private final boolean resumed;
+
+    private SecureSession(boolean initiator, byte[] keyMaterial, boolean resumed) throws GeneralSecurityException {
+        byte[] initiatorKey = Arrays.copyOfRange(keyMaterial, 0, SECRET_SIZE);
+        byte[] responderKey = Arrays.copyOfRange(keyMaterial, SECRET_SIZE, 2 * SECRET_SIZE);
+        this.sendKey = new SecretKeySpec(initiator ? initiatorKey : responderKey, "AES");
+        this.receiveKey = new SecretKeySpec(initiator ? responderKey : initiatorKey, "AES");
+        this.resumptionSecret = Arrays.copyOfRange(keyMaterial, 2 * SECRET_SIZE, 3 * SECRET_SIZE);
+        this.resumed = resumed;
+        this.sealer = Cipher.getInstance("AES/GCM/NoPadding");
+        this.opener = Cipher.getInstance("AES/GCM/NoPadding");
+        Arrays.fill(keyMaterial, (byte) 0);
+    }
+
+    /**
+     * Session from an X25519 agreement; the salt is both ephemeral keys, the initiator's first.
+     */
+    static SecureSession full(boolean initiator, byte[] sharedSecret, byte[] initiatorEphemeral,
+            byte[] responderEphemeral) throws GeneralSecurityException {
+        byte[] salt = new byte[initiatorEphemeral.length + responderEphemeral.length];
+        System.arraycopy(initiatorEphemeral, 0, salt, 0, initiatorEphemeral.length);
+        System.arraycopy(responderEphemeral, 0, salt, initiatorEphemeral.length, responderEphemeral.length);
+        return new SecureSession(initiator, expand(sharedSecret, salt, FULL_INFO), false);
+    }
+
+    /**
+     * Session from a ticket's resumption secret and the initiator's fresh nonce.
+     */
+    static SecureSession resumed(boolean initiator, byte[] resumptionSecret, byte[] nonce)
+            throws GeneralSecurityException {
+        return new SecureSession(initiator, expand(resumptionSecret, nonce, RESUMED_INFO), true);
+    }
+
+    boolean isResumed() {
+        return resumed;
+    }
+
+    byte[] getResumptionSecret() {
+        return resumptionSecret.clone();
+    }
+
+    /**
+     * Encrypts the frame's payload into {@code out} at its position, {@link #TAG_SIZE} bytes longer
+     * than the payload, and returns the flags to send it with. I/O thread only.
+     */
+    byte sealInto(Frame frame, ByteBuffer out) throws FrameFormatException {
+        byte flags = (byte) (frame.getFlags() | Frame.FLAG_ENCRYPTED);
+        try {
+            setNonce(sendNonce, sendCounter++);
+            sealer.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(TAG_BITS, sendNonce));
+            sealer.updateAAD(aad(frame.getType(), flags));
+            sealer.doFinal(ByteBuffer.wrap(frame.getPayload()), out);
+        } catch (GeneralSecurityException e) {
+            throw new FrameFormatException("Failed to encrypt frame: " + e.getMessage());
+        }
+        return flags;
+    }
+
+    // Decrypts what remains of sealed, which may be a pooled buffer. I/O thread only.
+    Frame open(byte type, byte flags, ByteBuffer sealed) throws FrameFormatException {
+        if (sealed.remaining() < TAG_SIZE) {
+            throw new FrameFormatException("Encrypted frame too short");
+        }
+        byte[] plaintext = new byte[sealed.remaining() - TAG_SIZE];
+        try {
+            setNonce(receiveNonce, receiveCounter++);
+            opener.init(Cipher.DECRYPT_MODE, receiveKey, new GCMParameterSpec(TAG_BITS, receiveNonce));
+            opener.updateAAD(aad(type, flags));
+            opener.doFinal(sealed, ByteBuffer.wrap(plaintext));
+        } catch (GeneralSecurityException e) {
+            throw new FrameFormatException("Frame failed authentication");
+        }
+        return new Frame(type, (byte) (flags & ~Frame.FLAG_ENCRYPTED), plaintext);
+    }
+
+    private byte[] aad(byte type, byte flags) {
+        aad[0] = type;
+        aad[1] = flags;
+        return aad;
+    }
+
+    private static void setNonce(byte[] nonce, long counter) {
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE_SIZE - 1 - i] = (byte) (counter >>> (8 * i));
+        }
+    }
+
+    // initiator key, responder key, next resumption secret
+    private static byte[] expand(byte[] secret, byte[] salt, byte[] info) {
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(new HKDFParameters(secret, salt, info));
+        byte[] output = new byte[3 * SECRET_SIZE];
+        hkdf.generateBytes(output, 0, output.length);
+        return output;
+    }
+}
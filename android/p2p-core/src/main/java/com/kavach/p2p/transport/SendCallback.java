@@ -0,0 +1,11 @@
+package com.kavach.p2p.transport;
+
+/**
+ * Completion of a queued frame. Called on the transport I/O thread once the frame's bytes have been
+ * handed to the socket, or once it is known they never will be.
+ */
+public interface SendCallback {
+    void onSent();
+
+    void onFailed(Exception cause);
+}
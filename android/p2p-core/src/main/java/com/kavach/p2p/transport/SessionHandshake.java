@@ -0,0 +1,228 @@
+package com.kavach.p2p.transport;
+
+import org.bouncycastle.math.ec.rfc7748.X25519;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Sets up the {@link SecureSession} for one connection, carried in the attributes of the HELLO
+ * frames both sides already exchange, so encryption costs no extra round trip.
+ *
+ * <p>A full handshake sends the device's Ed25519 identity key and a fresh X25519 key, and both
+ * sides derive the session keys from the X25519 agreement. Each side then sends a
+ * {@link Frame#TYPE_SESSION_CONFIRM}, encrypted, carrying its signature over both HELLOs as they
+ * were sent: capabilities, both X25519 keys and every other attribute. Until the peer's confirm
+ * checks out against the identity key it claimed, nothing it says is trusted; a man in the middle
+ * can't produce it without that key, and one that edits a HELLO (to drop a capability, say)
+ * breaks both signatures. Whether the key is the one expected is up to the
+ * {@link TransportEngine.IdentityVerifier}.
+ *
+ * <p>The accepting side then hands the connecting side a single-use ticket, sent encrypted. When
+ * the connecting side reconnects to the same peer it sends the ticket id and a nonce instead of a
+ * key, derives the session from the ticket straight away and encrypts its first frames without
+ * waiting for an answer (0-RTT). Those frames are authenticated by the ticket alone; the confirms
+ * that follow still cover the HELLOs. An unknown, expired or already used ticket closes the
+ * connection, and the reconnect that follows does a full handshake.
+ *
+ * <pre>
+ *   ik   identity public key, base64
+ *   ek   X25519 public key, base64 (full handshake only)
+ *   tk   ticket id, base64 (resumption only)
+ *   tn   16 byte nonce, base64 (resumption only)
+ *
+ *   confirm: Ed25519 over "kavach-p2p confirm v1" | role | length(4) | connecting HELLO
+ *            | accepting HELLO, role 1 for the connecting side
+ * </pre>
+ */
+final class SessionHandshake {
+    static final String ATTR_IDENTITY = "ik";
+    static final String ATTR_EPHEMERAL = "ek";
+    static final String ATTR_TICKET = "tk";
+    static final String ATTR_NONCE = "tn";
+    private static final byte[] SIGNATURE_CONTEXT = "kavach-p2p confirm v1".getBytes(StandardCharsets.UTF_8);
+    private static final int NONCE_SIZE = 16;
+    private static final int TICKET_ID_SIZE = 16;
+
+    private final Identity identity;
+    private final boolean initiator;
+    private final SecureRandom random;
+    // Ticket the connecting side is resuming with, or null
+    private final SessionTicketCache.Ticket ticket;
+    private byte[] ephemeralPrivate;
+    private byte[] ephemeralPublic;
+    private byte[] remoteIdentity;
+    private SecureSession session;
+    // Both HELLOs as encoded, connecting side first; set by accept()
+    private byte[] localHello;
+    private byte[] transcript;
+
+    SessionHandshake(Identity identity, boolean initiator, SessionTicketCache.Ticket ticket, SecureRandom random) {
+        this.identity = identity;
+        this.initiator = initiator;
+        this.ticket = initiator ? ticket : null;
+        this.random = random;
+    }
+
+    /**
+     * Adds CAP_SECURE and this side's attributes to the local HELLO. When resuming, the session is
+     * ready as soon as this returns.
+     */
+    Handshake decorate(Handshake local) throws HandshakeException {
+        Handshake hello = local.withCapabilities(local.getCapabilities() | Handshake.CAP_SECURE)
+            .withAttribute(ATTR_IDENTITY, Base64.toBase64String(identity.getPublicKey()));
+        if (ticket != null) {
+            byte[] nonce = new byte[NONCE_SIZE];
+            random.nextBytes(nonce);
+            session = newSession(() -> SecureSession.resumed(true, ticket.secret, nonce));
+            remoteIdentity = ticket.peerIdentity;
+            hello = hello.withAttribute(ATTR_TICKET, Base64.toBase64String(ticket.id))
+                .withAttribute(ATTR_NONCE, Base64.toBase64String(nonce));
+        } else {
+            ephemeralPrivate = new byte[X25519.SCALAR_SIZE];
+            ephemeralPublic = new byte[X25519.POINT_SIZE];
+            X25519.generatePrivateKey(random, ephemeralPrivate);
+            X25519.generatePublicKey(ephemeralPrivate, 0, ephemeralPublic, 0);
+            hello = hello.withAttribute(ATTR_EPHEMERAL, Base64.toBase64String(ephemeralPublic));
+        }
+        localHello = hello.toFrame().getPayload();
+        return hello;
+    }
+
+    // Session established early by decorate(), or null
+    SecureSession getSession() {
+        return session;
+    }
+
+    byte[] getRemoteIdentity() {
+        return remoteIdentity;
+    }
+
+    /**
+     * Checks the peer's HELLO and returns the session. The accepting side looks resumption tickets
+     * up in {@code issued}, which also makes them unusable a second time. After a full handshake
+     * the peer's identity is only a claim until {@link #verifyConfirm(Frame)} passes.
+     */
+    SecureSession accept(Handshake remote, SessionTicketCache issued) throws HandshakeException {
+        byte[] peerIdentity = decode(remote, ATTR_IDENTITY, Identity.PUBLIC_KEY_SIZE);
+        byte[] remoteHello = remote.toFrame().getPayload();
+        transcript = initiator ? transcript(localHello, remoteHello) : transcript(remoteHello, localHello);
+        if (session != null) {
+            // Resuming: the ticket already names the peer, and only it can read what we send
+            if (!Arrays.equals(peerIdentity, ticket.peerIdentity)) {
+                throw new HandshakeException("Peer identity changed since the ticket was issued");
+            }
+            return session;
+        }
+        if (!initiator && remote.get(ATTR_TICKET) != null) {
+            byte[] ticketId = decode(remote, ATTR_TICKET, TICKET_ID_SIZE);
+            byte[] nonce = decode(remote, ATTR_NONCE, NONCE_SIZE);
+            SessionTicketCache.Ticket issuedTicket = issued.take(Base64.toBase64String(ticketId));
+            if (issuedTicket == null) {
+                throw new HandshakeException("Unknown or expired session ticket");
+            }
+            if (!Arrays.equals(issuedTicket.peerIdentity, peerIdentity)) {
+                throw new HandshakeException("Session ticket was issued to a different identity");
+            }
+            session = newSession(() -> SecureSession.resumed(false, issuedTicket.secret, nonce));
+        } else {
+            byte[] peerEphemeral = decode(remote, ATTR_EPHEMERAL, X25519.POINT_SIZE);
+            byte[] shared = new byte[X25519.POINT_SIZE];
+            boolean agreed = X25519.calculateAgreement(ephemeralPrivate, 0, peerEphemeral, 0, shared, 0);
+            Arrays.fill(ephemeralPrivate, (byte) 0);
+            if (!agreed) {
+                throw new HandshakeException("Degenerate X25519 key");
+            }
+            session = newSession(() -> initiator
+                ? SecureSession.full(true, shared, ephemeralPublic, peerEphemeral)
+                : SecureSession.full(false, shared, peerEphemeral, ephemeralPublic));
+            Arrays.fill(shared, (byte) 0);
+        }
+        remoteIdentity = peerIdentity;
+        return session;
+    }
+
+    /**
+     * This side's signature over both HELLOs, to send through the session once accept() returns.
+     */
+    Frame confirm() {
+        return new Frame(Frame.TYPE_SESSION_CONFIRM, (byte) 0, identity.sign(signedBytes(initiator, transcript)));
+    }
+
+    // Checks the peer's confirm against the identity key its HELLO claimed
+    void verifyConfirm(Frame frame) throws HandshakeException {
+        if (transcript == null || !Identity.verify(remoteIdentity, signedBytes(!initiator, transcript),
+                frame.getPayload())) {
+            throw new HandshakeException("Bad handshake signature");
+        }
+    }
+
+    /**
+     * Accepting side, once the session is up: stores a ticket for the next connection from this
+     * peer and returns the frame that hands it over. Send it through the session, never in clear.
+     */
+    Frame issueTicket(SessionTicketCache issued) {
+        byte[] id = new byte[TICKET_ID_SIZE];
+        random.nextBytes(id);
+        long lifetimeMs = issued.getLifetimeMs();
+        issued.put(Base64.toBase64String(id), new SessionTicketCache.Ticket(id, session.getResumptionSecret(),
+            remoteIdentity, System.currentTimeMillis() + lifetimeMs));
+        return new Frame(Frame.TYPE_SESSION_TICKET, (byte) 0,
+            ByteBuffer.allocate(TICKET_ID_SIZE + 8).put(id).putLong(lifetimeMs).array());
+    }
+
+    // Connecting side: keeps the ticket for the next connection to peerId
+    void onTicket(Frame frame, SessionTicketCache held, String peerId) throws FrameFormatException {
+        byte[] payload = frame.getPayload();
+        if (!initiator || payload.length != TICKET_ID_SIZE + 8) {
+            throw new FrameFormatException("Unexpected session ticket");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte[] id = new byte[TICKET_ID_SIZE];
+        buffer.get(id);
+        // Never trust the peer to keep a ticket longer than we would
+        long lifetimeMs = Math.min(buffer.getLong(), held.getLifetimeMs());
+        held.put(peerId, new SessionTicketCache.Ticket(id, session.getResumptionSecret(), remoteIdentity,
+            System.currentTimeMillis() + lifetimeMs));
+    }
+
+    private static byte[] transcript(byte[] connectingHello, byte[] acceptingHello) {
+        return ByteBuffer.allocate(4 + connectingHello.length + acceptingHello.length)
+            .putInt(connectingHello.length).put(connectingHello).put(acceptingHello).array();
+    }
+
+    private static byte[] signedBytes(boolean initiator, byte[] transcript) {
+        return ByteBuffer.allocate(SIGNATURE_CONTEXT.length + 1 + transcript.length)
+            .put(SIGNATURE_CONTEXT).put((byte) (initiator ? 1 : 0)).put(transcript).array();
+    }
+
+    private static byte[] decode(Handshake remote, String attribute, int size) throws HandshakeException {
+        String value = remote.get(attribute);
+        byte[] bytes;
+        try {
+            bytes = value != null ? Base64.decode(value) : null;
+        } catch (RuntimeException e) {
+            bytes = null;
+        }
+        if (bytes == null || bytes.length != size) {
+            throw new HandshakeException("Missing or malformed handshake attribute " + attribute);
+        }
+        return bytes;
+    }
+
+    private interface SessionFactory {
+        SecureSession create() throws GeneralSecurityException;
+    }
+
+    private static SecureSession newSession(SessionFactory factory) throws HandshakeException {
+        try {
+            return factory.create();
+        } catch (GeneralSecurityException e) {
+            throw new HandshakeException("AES-GCM unavailable: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.kavach.p2p.transport;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resumption secrets from earlier encrypted sessions, bounded and expiring. The side that accepted
+ * the connection keys its tickets by ticket id, the side that opened it by the peer it connected
+ * to. Tickets are single use: taking one removes it, and every session, resumed or not, hands out
+ * a fresh one, so a recorded resumption can't be replayed.
+ */
+public class SessionTicketCache {
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+    public static final long DEFAULT_LIFETIME_MS = 60 * 60 * 1000L;
+
+    static final class Ticket {
+        final byte[] id;
+        final byte[] secret;
+        final byte[] peerIdentity;
+        final long expiresAtMs;
+
+        Ticket(byte[] id, byte[] secret, byte[] peerIdentity, long expiresAtMs) {
+            this.id = id;
+            this.secret = secret;
+            this.peerIdentity = peerIdentity;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private final int maxEntries;
+    private final long lifetimeMs;
+    // Insertion order, so the oldest ticket is the first to go
+    private final Map<String, Ticket> tickets = new LinkedHashMap<>();
+
+    public SessionTicketCache(int maxEntries, long lifetimeMs) {
+        this.maxEntries = maxEntries;
+        this.lifetimeMs = lifetimeMs;
+    }
+
+    public long getLifetimeMs() {
+        return lifetimeMs;
+    }
+
+    public synchronized int size() {
+        return tickets.size();
+    }
+
+    public synchronized void clear() {
+        tickets.clear();
+    }
+
+    synchronized void put(String key, Ticket ticket) {
+        tickets.remove(key);
+        tickets.put(key, ticket);
+        evict(System.currentTimeMillis());
+    }
+
+    // Removes and returns the ticket, or null if there is none or it has expired
+    synchronized Ticket take(String key) {
+        Ticket ticket = tickets.remove(key);
+        if (ticket == null || ticket.expiresAtMs <= System.currentTimeMillis()) {
+            return null;
+        }
+        return ticket;
+    }
+
+    private void evict(long nowMs) {
+        Iterator<Ticket> iterator = tickets.values().iterator();
+        while (iterator.hasNext()) {
+            Ticket ticket = iterator.next();
+            if (tickets.size() > maxEntries || ticket.expiresAtMs <= nowMs) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package com.kavach.p2p.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking socket engine. A single I/O thread owns the {@link Selector} and multiplexes accept,
+ * connect, read and write readiness for every {@link PeerConnection}, so the thread count stays at
+ * one no matter how many peers are connected or how many messages are in flight.
+ *
+ * <p>Anything that touches a channel or selection key runs on the I/O thread; other threads hand
+ * work over with {@link #execute(Runnable)} or {@link #schedule(Runnable, long)}.
+ *
+ * <p>The engine also pings every open connection on a fixed interval and closes one with a
+ * {@link PeerLostException} once it has missed too many heartbeats in a row.
+ *
+ * <p>Once {@link #setIdentity(Identity, boolean)} has been called every new connection runs a
+ * {@link SessionHandshake} and encrypts its frames. The engine keeps the session tickets: the ones
+ * it issued to peers that connected to it, and the ones it holds for peers it connected to.
+ */
+public class TransportEngine {
+    // About 4 s of silence before a peer counts as lost. Wi-Fi Direct links stall for a second or
+    // two during scans and channel switches, and a false loss costs a handshake and an outbox replay.
+    public static final int DEFAULT_HEARTBEAT_INTERVAL_MS = 1000;
+    public static final int DEFAULT_MAX_MISSED_HEARTBEATS = 4;
+    // Kept small so the kernel doesn't hold seconds of bulk data ahead of a consent frame; the
+    // priority lanes in PeerConnection only help while frames are still in our own queues
+    private static final int SEND_BUFFER_SIZE = 128 * 1024;
+
+    public interface Listener {
+        void onConnected(PeerConnection connection, boolean accepted);
+
+        void onConnectFailed(String peerId, Exception cause);
+
+        void onHandshake(PeerConnection connection, Handshake handshake);
+
+        void onFrame(PeerConnection connection, Frame frame);
+
+        void onClosed(PeerConnection connection, Exception cause);
+
+        void onServerError(Exception cause);
+
+        // A lane crossed into (or back out of) its congested range; see PeerConnection
+        default void onBackpressure(PeerConnection connection, Lane lane, boolean congested) {
+        }
+    }
+
+    /**
+     * Decides whether a peer is who this side expects, once its handshake has been checked and
+     * before the listener hears of it. {@code identityKey} is the Ed25519 key the peer proved it
+     * holds, or null on a connection that isn't encrypted. Called on the I/O thread.
+     */
+    public interface IdentityVerifier {
+        boolean isTrusted(PeerConnection connection, Handshake handshake, byte[] identityKey);
+    }
+
+    private final Listener listener;
+    private final TransportMetrics metrics = new TransportMetrics();
+    private final BufferPool bufferPool = new BufferPool(metrics);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Only touched from the I/O thread
+    private final PriorityQueue<ScheduledTask> timers = new PriorityQueue<>();
+    private long timerSequence = 0;
+    private final List<PeerConnection> openConnections = new ArrayList<>();
+    private Cancellable heartbeatTimer;
+    private volatile int heartbeatIntervalMs = DEFAULT_HEARTBEAT_INTERVAL_MS;
+    private volatile int maxMissedHeartbeats = DEFAULT_MAX_MISSED_HEARTBEATS;
+    private volatile int openConnectionCount = 0;
+
+    private volatile Selector selector;
+    private volatile Thread ioThread;
+    private volatile boolean running = false;
+    private volatile boolean listening = false;
+    private volatile int localPort = -1;
+    private volatile Handshake localHandshake = Handshake.empty();
+    private volatile Identity identity;
+    private volatile boolean secureRequired = false;
+    private volatile IdentityVerifier identityVerifier;
+    private final SessionTicketCache issuedTickets =
+        new SessionTicketCache(SessionTicketCache.DEFAULT_MAX_ENTRIES, SessionTicketCache.DEFAULT_LIFETIME_MS);
+    private final SessionTicketCache heldTickets =
+        new SessionTicketCache(SessionTicketCache.DEFAULT_MAX_ENTRIES, SessionTicketCache.DEFAULT_LIFETIME_MS);
+    private final SecureRandom random = new SecureRandom();
+    private ServerSocketChannel serverChannel;
+
+    public TransportEngine(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        if (ioThread != null) {
+            throw new IOException("Transport is still shutting down");
+        }
+        selector = Selector.open();
+        running = true;
+        ioThread = new Thread(this::runLoop, "kavach-p2p-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        execute(this::restartHeartbeat);
+    }
+
+    /**
+     * A peer is declared lost after roughly intervalMs * maxMissed without any traffic from it. An
+     * interval of 0 turns heartbeats off.
+     */
+    public void setHeartbeat(int intervalMs, int maxMissed) {
+        heartbeatIntervalMs = Math.max(0, intervalMs);
+        maxMissedHeartbeats = Math.max(1, maxMissed);
+        execute(this::restartHeartbeat);
+    }
+
+    public int getHeartbeatIntervalMs() {
+        return heartbeatIntervalMs;
+    }
+
+    // Totals across every connection this engine has carried
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Shared by every connection's reads and writes
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public int getOpenConnectionCount() {
+        return openConnectionCount;
+    }
+
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isListening() {
+        return listening;
+    }
+
+    // Port the server socket is bound to, or -1; useful after listen(0)
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * What this side advertises to every new connection. Connections that are already open keep
+     * what was negotiated when they were set up.
+     */
+    public void setLocalHandshake(Handshake handshake) {
+        localHandshake = handshake;
+    }
+
+    public Handshake getLocalHandshake() {
+        return localHandshake;
+    }
+
+    /**
+     * Key new connections authenticate with. When {@code required} is set, a peer that doesn't
+     * advertise {@link Handshake#CAP_SECURE} is disconnected instead of talked to in clear. A
+     * different identity invalidates every session ticket. Null turns encryption off again.
+     */
+    public void setIdentity(Identity identity, boolean required) {
+        if (this.identity != identity) {
+            clearSessionTickets();
+        }
+        this.identity = identity;
+        this.secureRequired = identity != null && required;
+    }
+
+    public Identity getIdentity() {
+        return identity;
+    }
+
+    boolean isSecureRequired() {
+        return secureRequired;
+    }
+
+    /**
+     * Checked for every new connection; a peer it turns away is disconnected with a
+     * {@link HandshakeException}. Null (the default) trusts any identity that checks out.
+     */
+    public void setIdentityVerifier(IdentityVerifier verifier) {
+        this.identityVerifier = verifier;
+    }
+
+    boolean isTrusted(PeerConnection connection, Handshake handshake, byte[] identityKey) {
+        IdentityVerifier verifier = identityVerifier;
+        return verifier == null || verifier.isTrusted(connection, handshake, identityKey);
+    }
+
+    // Forgets every issued and held ticket, so the next connection to each peer does a full handshake
+    public void clearSessionTickets() {
+        issuedTickets.clear();
+        heldTickets.clear();
+    }
+
+    SessionTicketCache getIssuedTickets() {
+        return issuedTickets;
+    }
+
+    SessionTicketCache getHeldTickets() {
+        return heldTickets;
+    }
+
+    SecureRandom getRandom() {
+        return random;
+    }
+
+    public boolean inIoThread() {
+        return Thread.currentThread() == ioThread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        Selector current = selector;
+        if (current != null && !inIoThread()) {
+            current.wakeup();
+        }
+    }
+
+    public Cancellable schedule(Runnable task, long delayMs) {
+        ScheduledTask scheduled = new ScheduledTask(task, System.nanoTime() + delayMs * 1_000_000L);
+        if (inIoThread()) {
+            // Going through execute() here would park the timer until the next wakeup
+            addTimer(scheduled);
+        } else {
+            execute(() -> addTimer(scheduled));
+        }
+        return scheduled;
+    }
+
+    private void addTimer(ScheduledTask scheduled) {
+        scheduled.sequence = timerSequence++;
+        timers.add(scheduled);
+    }
+
+    public void listen(int port) {
+        execute(() -> {
+            try {
+                closeServerChannel();
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.socket().setReuseAddress(true);
+                channel.socket().bind(new InetSocketAddress(port));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_ACCEPT);
+                serverChannel = channel;
+                localPort = channel.socket().getLocalPort();
+                listening = true;
+            } catch (IOException e) {
+                closeServerChannel();
+                listener.onServerError(e);
+            }
+        });
+    }
+
+    public void stopListening() {
+        execute(this::closeServerChannel);
+    }
+
+    public void connect(String peerId, String host, int port, int timeoutMs) {
+        execute(() -> {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+
+                PeerConnection connection = new PeerConnection(this, peerId, channel, true);
+                if (channel.connect(new InetSocketAddress(host, port))) {
+                    connection.attach(register(channel, SelectionKey.OP_READ, connection));
+                    connection.onConnected();
+                    listener.onConnected(connection, false);
+                    return;
+                }
+
+                connection.attach(register(channel, SelectionKey.OP_CONNECT, connection));
+                connection.connectTimeout = schedule(() -> {
+                    if (connection.isConnecting()) {
+                        failConnect(connection, new SocketTimeoutException("Connect to " + host + ":" + port + " timed out"));
+                    }
+                }, timeoutMs);
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(channel);
+                metrics.increment("connectFailed." + e.getClass().getSimpleName());
+                listener.onConnectFailed(peerId, e);
+            }
+        });
+    }
+
+    void onConnectionOpened(PeerConnection connection) {
+        openConnections.add(connection);
+        openConnectionCount = openConnections.size();
+        metrics.increment("connectionsOpened");
+    }
+
+    void onConnectionClosed(PeerConnection connection, Exception cause, boolean wasOpen) {
+        openConnections.remove(connection);
+        openConnectionCount = openConnections.size();
+        if (wasOpen) {
+            metrics.increment("connectionsClosed");
+            if (cause != null) {
+                metrics.increment("closeError." + cause.getClass().getSimpleName());
+            }
+        } else {
+            metrics.increment("connectFailed." + (cause != null ? cause.getClass().getSimpleName() : "closed"));
+        }
+        if (wasOpen) {
+            listener.onClosed(connection, cause);
+        } else {
+            listener.onConnectFailed(connection.getPeerId(), cause);
+        }
+    }
+
+    void onHandshake(PeerConnection connection, Handshake handshake) {
+        listener.onHandshake(connection, handshake);
+    }
+
+    void onFrame(PeerConnection connection, Frame frame) {
+        listener.onFrame(connection, frame);
+    }
+
+    void onBackpressure(PeerConnection connection, Lane lane, boolean congested) {
+        if (congested) {
+            metrics.increment("laneCongested." + lane.label());
+        }
+        listener.onBackpressure(connection, lane, congested);
+    }
+
+    private void restartHeartbeat() {
+        if (heartbeatTimer != null) {
+            heartbeatTimer.cancel();
+            heartbeatTimer = null;
+        }
+        if (running && heartbeatIntervalMs > 0) {
+            heartbeatTimer = schedule(this::heartbeatTick, heartbeatIntervalMs);
+        }
+    }
+
+    private void heartbeatTick() {
+        heartbeatTimer = null;
+        int maxMissed = maxMissedHeartbeats;
+        for (PeerConnection connection : new ArrayList<>(openConnections)) {
+            if (connection.supportsHeartbeat() && !connection.heartbeat(maxMissed)) {
+                connection.closeWith(new PeerLostException(
+                    "No heartbeat from " + connection.getPeerId() + " in " + maxMissed + " intervals"));
+            }
+        }
+        bufferPool.checkLeaks();
+        restartHeartbeat();
+    }
+
+    private SelectionKey register(SocketChannel channel, int ops, PeerConnection connection) throws IOException {
+        return channel.register(selector, ops, connection);
+    }
+
+    private void runLoop() {
+        try {
+            while (running) {
+                runTasks();
+                long timeoutMs = runDueTimers();
+                if (tasks.isEmpty()) {
+                    selector.select(timeoutMs);
+                } else {
+                    // A timer queued more work; don't sleep on it
+                    selector.selectNow();
+                }
+                if (!running) {
+                    break;
+                }
+                processSelectedKeys();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            listener.onServerError(e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                listener.onServerError(e);
+            }
+        }
+    }
+
+    // Runs every timer that is due and returns how long the selector may sleep (0 = until woken)
+    private long runDueTimers() {
+        while (!timers.isEmpty()) {
+            ScheduledTask next = timers.peek();
+            if (next.cancelled) {
+                timers.poll();
+                continue;
+            }
+            long remainingNanos = next.deadlineNanos - System.nanoTime();
+            if (remainingNanos > 0) {
+                return Math.max(1, remainingNanos / 1_000_000L);
+            }
+            timers.poll();
+            try {
+                next.task.run();
+            } catch (RuntimeException e) {
+                listener.onServerError(e);
+            }
+        }
+        return 0;
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+
+            if (key.isAcceptable()) {
+                accept();
+                continue;
+            }
+
+            PeerConnection connection = (PeerConnection) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    finishConnect(connection);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (IOException | RuntimeException e) {
+                connection.closeWith(e);
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+
+            String peerId = channel.socket().getInetAddress().getHostAddress();
+            PeerConnection connection = new PeerConnection(this, peerId, channel, false);
+            connection.attach(register(channel, SelectionKey.OP_READ, connection));
+            connection.onConnected();
+            listener.onConnected(connection, true);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            listener.onServerError(e);
+        }
+    }
+
+    private void finishConnect(PeerConnection connection) throws IOException {
+        try {
+            if (!connection.channel().finishConnect()) {
+                return;
+            }
+        } catch (IOException e) {
+            failConnect(connection, e);
+            return;
+        }
+        if (connection.connectTimeout != null) {
+            connection.connectTimeout.cancel();
+            connection.connectTimeout = null;
+        }
+        connection.onConnected();
+        listener.onConnected(connection, false);
+    }
+
+    private void failConnect(PeerConnection connection, Exception cause) {
+        connection.closeWith(cause);
+    }
+
+    private void closeServerChannel() {
+        listening = false;
+        localPort = -1;
+        if (serverChannel != null) {
+            closeQuietly(serverChannel);
+            serverChannel = null;
+        }
+    }
+
+    private void cleanup() {
+        closeServerChannel();
+        List<PeerConnection> open = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof PeerConnection) {
+                open.add((PeerConnection) key.attachment());
+            }
+        }
+        for (PeerConnection connection : open) {
+            connection.closeWith(null);
+        }
+        openConnections.clear();
+        openConnectionCount = 0;
+        heartbeatTimer = null;
+        timers.clear();
+        tasks.clear();
+        closeQuietly(selector);
+        synchronized (this) {
+            selector = null;
+            ioThread = null;
+        }
+    }
+
+    static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing useful to do while tearing down
+        }
+    }
+
+    private static final class ScheduledTask implements Cancellable, Comparable<ScheduledTask> {
+        final Runnable task;
+        final long deadlineNanos;
+        long sequence;
+        volatile boolean cancelled = false;
+
+        ScheduledTask(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            int byDeadline = Long.compare(deadlineNanos, other.deadlineNanos);
+            return byDeadline != 0 ? byDeadline : Long.compare(sequence, other.sequence);
+        }
+    }
+}
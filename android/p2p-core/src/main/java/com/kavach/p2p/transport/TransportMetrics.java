@@ -0,0 +1,55 @@
+package com.kavach.p2p.transport;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters and latency histograms. The engine keeps one for everything it has carried and
+ * each {@link PeerConnection} keeps its own; hot-path counters are held in fields so recording
+ * never touches the map. Anything else (module-level errors, connection phases) can register its
+ * own names on the engine's instance.
+ */
+public class TransportMetrics {
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    final LongAdder bytesIn = counter("bytesIn");
+    final LongAdder bytesOut = counter("bytesOut");
+    final LongAdder framesIn = counter("framesIn");
+    final LongAdder framesOut = counter("framesOut");
+    final LatencyHistogram sendLatency = histogram("sendLatency");
+    final LatencyHistogram rtt = histogram("rtt");
+
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    public void increment(String name) {
+        counter(name).increment();
+    }
+
+    // Sorted by name so successive reports line up
+    public Map<String, Long> getCounters() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    public Map<String, LatencyHistogram.Snapshot> getHistograms() {
+        Map<String, LatencyHistogram.Snapshot> result = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+}
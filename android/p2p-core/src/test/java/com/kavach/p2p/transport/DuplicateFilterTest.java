@@ -0,0 +1,49 @@
+package com.kavach.p2p.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DuplicateFilterTest {
+    private static final String ALICE = "aa:bb:cc:dd:ee:01";
+    private static final String BOB = "aa:bb:cc:dd:ee:02";
+
+    @Test
+    public void dropsRepeatsFromTheSameOrigin() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(ALICE, "1700000000000-abc"));
+        assertTrue(filter.isDuplicate(ALICE, "1700000000000-abc"));
+        assertFalse(filter.isDuplicate(ALICE, "1700000000000-abd"));
+    }
+
+    @Test
+    public void keepsTheSameIdFromDifferentOrigins() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(ALICE, "1700000000000-abc"));
+        assertFalse(filter.isDuplicate(BOB, "1700000000000-abc"));
+        assertEquals(2, filter.size());
+    }
+
+    @Test
+    public void evictsOldestOnceFull() {
+        DuplicateFilter filter = new DuplicateFilter(3, DuplicateFilter.DEFAULT_WINDOW_MS);
+        for (int i = 0; i < 4; i++) {
+            assertFalse(filter.isDuplicate(ALICE, "id-" + i));
+        }
+        assertEquals(3, filter.size());
+        // id-0 was pushed out, so it counts as new again; id-3 is still remembered
+        assertTrue(filter.isDuplicate(ALICE, "id-3"));
+        assertFalse(filter.isDuplicate(ALICE, "id-0"));
+    }
+
+    @Test
+    public void forgetsIdsAfterTheWindow() throws InterruptedException {
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.DEFAULT_MAX_ENTRIES, 50);
+        assertFalse(filter.isDuplicate(ALICE, "id"));
+        Thread.sleep(120);
+        assertFalse(filter.isDuplicate(ALICE, "id"));
+        assertEquals(1, filter.size());
+    }
+}
@@ -0,0 +1,223 @@
+package com.kavach.p2p.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileTransferManagerTest {
+    private static final long WAIT_MS = 5000;
+    // Not a multiple of the chunk size, so the last chunk is a short one
+    private static final int FILE_SIZE = 3 * FileTransferManager.CHUNK_SIZE + 1234;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final BlockingQueue<PeerConnection> clientHandshakes = new LinkedBlockingQueue<>();
+    private File receiveDirectory;
+    private FileTransferManager senderFiles;
+    private FileTransferManager receiverFiles;
+    private TransportEngine server;
+    private TransportEngine client;
+    private PeerConnection toReceiver;
+
+    // Every callback as one line, e.g. "offered t-1 65636" or "received t-1 197842"
+    private FileTransferManager.Listener recording() {
+        return new FileTransferManager.Listener() {
+            @Override
+            public void onOffered(String peerId, String transferId, String name, long size, long resumeOffset) {
+                events.add("offered " + transferId + " " + resumeOffset);
+            }
+
+            @Override
+            public void onProgress(String peerId, String transferId, boolean sending, long bytesTransferred,
+                    long totalBytes) {
+            }
+
+            @Override
+            public void onSendComplete(String transferId, long size) {
+                events.add("sent " + transferId + " " + size);
+            }
+
+            @Override
+            public void onReceiveComplete(String peerId, String transferId, String name, File file, long size) {
+                events.add("received " + transferId + " " + size);
+            }
+
+            @Override
+            public void onFailed(String transferId, boolean sending, Exception cause) {
+                events.add("failed " + transferId + " " + (sending ? "sending" : "receiving") + ": "
+                    + cause.getMessage());
+            }
+        };
+    }
+
+    private static TransportEngine.Listener routing(FileTransferManager files,
+            BlockingQueue<PeerConnection> handshakes) {
+        return new TransportEngine.Listener() {
+            @Override
+            public void onConnected(PeerConnection connection, boolean accepted) {
+            }
+
+            @Override
+            public void onConnectFailed(String peerId, Exception cause) {
+            }
+
+            @Override
+            public void onHandshake(PeerConnection connection, Handshake handshake) {
+                if (handshakes != null) {
+                    handshakes.add(connection);
+                }
+            }
+
+            @Override
+            public void onFrame(PeerConnection connection, Frame frame) {
+                if (FileTransferManager.isFileFrame(frame.getType())) {
+                    files.onFrame(connection, frame);
+                }
+            }
+
+            @Override
+            public void onClosed(PeerConnection connection, Exception cause) {
+                files.onConnectionClosed(connection);
+            }
+
+            @Override
+            public void onServerError(Exception cause) {
+            }
+        };
+    }
+
+    @Before
+    public void start() throws Exception {
+        receiveDirectory = folder.newFolder("received");
+        senderFiles = new FileTransferManager(folder.newFolder("unused"), recording());
+        receiverFiles = new FileTransferManager(receiveDirectory, recording());
+        server = new TransportEngine(routing(receiverFiles, null));
+        client = new TransportEngine(routing(senderFiles, clientHandshakes));
+        server.start();
+        client.start();
+        server.listen(0);
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!server.isListening() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.connect("server", "127.0.0.1", server.getLocalPort(), (int) WAIT_MS);
+        toReceiver = clientHandshakes.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(toReceiver);
+    }
+
+    @After
+    public void shutdown() {
+        senderFiles.shutdown();
+        receiverFiles.shutdown();
+        client.shutdown();
+        server.shutdown();
+    }
+
+    private File sourceFile(byte[] content) throws Exception {
+        File file = folder.newFile("source.bin");
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] content() {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(3).nextBytes(content);
+        return content;
+    }
+
+    private void send(String transferId, File source) throws Exception {
+        senderFiles.sendFile(toReceiver, transferId, "source.bin",
+            new RandomAccessFile(source, "r").getChannel(), source.length());
+    }
+
+    private String nextEvent() throws InterruptedException {
+        String event = events.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Timed out waiting for a transfer event", event);
+        return event;
+    }
+
+    // Both ends report completion, in either order
+    private void awaitCompletion(String transferId) throws InterruptedException {
+        String first = nextEvent();
+        String second = nextEvent();
+        assertTrue(first + ", " + second, (first + second).contains("received " + transferId + " " + FILE_SIZE));
+        assertTrue(first + ", " + second, (first + second).contains("sent " + transferId + " " + FILE_SIZE));
+    }
+
+    @Test
+    public void fileArrivesWhole() throws Exception {
+        byte[] content = content();
+        send("t-1", sourceFile(content));
+
+        assertEquals("offered t-1 0", nextEvent());
+        awaitCompletion("t-1");
+        File received = receiverFiles.findCompletedFile("t-1");
+        assertNotNull(received);
+        assertArrayEquals(content, Files.readAllBytes(received.toPath()));
+    }
+
+    @Test
+    public void partialFileIsResumed() throws Exception {
+        byte[] content = content();
+        // What a dropped connection leaves behind, cut off mid-chunk
+        int kept = FileTransferManager.CHUNK_SIZE + 100;
+        byte[] part = new byte[kept];
+        System.arraycopy(content, 0, part, 0, kept);
+        Files.write(new File(receiveDirectory, "t-2.part").toPath(), part);
+
+        send("t-2", sourceFile(content));
+
+        assertEquals("offered t-2 " + kept, nextEvent());
+        awaitCompletion("t-2");
+        assertArrayEquals(content, Files.readAllBytes(receiverFiles.findCompletedFile("t-2").toPath()));
+    }
+
+    @Test
+    public void chunkPastTheOfferedSizeIsRejected() throws Exception {
+        toReceiver.send(new Frame(Frame.TYPE_FILE_OFFER, (byte) 0,
+            payload("t-3", 2 + 8 + 8 + 4, buffer -> {
+                buffer.putShort((short) 8).put("tiny.bin".getBytes(StandardCharsets.UTF_8));
+                buffer.putLong(10);
+                buffer.putInt(FileTransferManager.CHUNK_SIZE);
+            })));
+        assertEquals("offered t-3 0", nextEvent());
+
+        toReceiver.send(new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0,
+            payload("t-3", 8 + 64, buffer -> buffer.putLong(0).put(new byte[64]))));
+
+        assertEquals("failed t-3 receiving: Chunk at 0 runs past the end of the 10 byte file", nextEvent());
+        assertEquals(0, new File(receiveDirectory, "t-3.part").length());
+    }
+
+    private interface Body {
+        void write(ByteBuffer buffer);
+    }
+
+    // A file frame payload: the transfer id as a 2 byte length and UTF-8, then the body
+    private static byte[] payload(String transferId, int bodyLength, Body body) {
+        byte[] id = transferId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(2 + id.length + bodyLength);
+        buffer.putShort((short) id.length).put(id);
+        body.write(buffer);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,114 @@
+package com.kavach.p2p.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameDecoderTest {
+    private final List<Frame> frames = new ArrayList<>();
+    private final FrameDecoder decoder = new FrameDecoder(frames::add);
+
+    private static byte[] concat(Frame... toEncode) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Frame frame : toEncode) {
+            byte[] encoded = frame.encode();
+            out.write(encoded, 0, encoded.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void decodesFramesSplitAcrossReads() throws FrameFormatException {
+        byte[] wire = Frame.message("split across several reads").encode();
+        // One byte at a time, so the header and the payload both arrive in pieces
+        for (int i = 0; i < wire.length; i++) {
+            decoder.feed(wire, i, 1);
+        }
+        assertEquals(1, frames.size());
+        assertEquals("split across several reads", frames.get(0).getPayloadAsString());
+    }
+
+    @Test
+    public void decodesFramesCoalescedInOneRead() throws FrameFormatException {
+        Frame ping = new Frame(Frame.TYPE_PING, (byte) 0, new byte[8]);
+        Frame empty = new Frame(Frame.TYPE_MESSAGE, (byte) 0, new byte[0]);
+        byte[] wire = concat(Frame.message("first"), ping, empty, Frame.message("last"));
+
+        // Everything but the last 3 bytes, then the rest
+        decoder.feed(ByteBuffer.wrap(wire, 0, wire.length - 3));
+        assertEquals(3, frames.size());
+        decoder.feed(wire, wire.length - 3, 3);
+
+        assertEquals(4, frames.size());
+        assertEquals("first", frames.get(0).getPayloadAsString());
+        assertEquals(Frame.TYPE_PING, frames.get(1).getType());
+        assertEquals(0, frames.get(2).getPayload().length);
+        assertEquals("last", frames.get(3).getPayloadAsString());
+    }
+
+    @Test
+    public void rejectsCorruptedPayload() {
+        byte[] wire = Frame.message("checksummed").encode();
+        wire[wire.length - 1] ^= 0x01;
+        try {
+            decoder.feed(wire, 0, wire.length);
+            fail("Expected a checksum failure");
+        } catch (FrameFormatException e) {
+            assertEquals("Frame checksum mismatch", e.getMessage());
+        }
+        assertEquals(0, frames.size());
+    }
+
+    @Test
+    public void rejectsBadMagic() {
+        byte[] wire = Frame.message("hello").encode();
+        wire[0] = 'X';
+        try {
+            decoder.feed(wire, 0, wire.length);
+            fail("Expected a bad magic failure");
+        } catch (FrameFormatException e) {
+            assertEquals("Bad frame magic", e.getMessage());
+        }
+    }
+
+    @Test
+    public void assemblesEncryptedPayloadsInPooledBuffers() throws FrameFormatException {
+        BufferPool pool = new BufferPool(new TransportMetrics());
+        // Outstanding buffers are only tracked with leak detection on
+        pool.setLeakDetection((capacity, heldMs, acquiredAt) -> fail("Leaked a " + capacity + " byte buffer"));
+        List<byte[]> sealed = new ArrayList<>();
+        FrameDecoder pooled = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(Frame frame) {
+                fail("Encrypted frames should arrive sealed");
+            }
+
+            @Override
+            public void onSealedFrame(byte type, byte flags, ByteBuffer payload) {
+                byte[] copy = new byte[payload.remaining()];
+                payload.get(copy);
+                sealed.add(copy);
+            }
+        }, pool);
+        byte[] body = new byte[300];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        byte[] wire = new Frame(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED, body).encode();
+
+        pooled.feed(wire, 0, 100);
+        assertEquals(1, pool.getOutstandingCount());
+        pooled.feed(wire, 100, wire.length - 100);
+
+        assertEquals(1, sealed.size());
+        assertArrayEquals(body, sealed.get(0));
+        assertEquals(0, pool.getOutstandingCount());
+    }
+}
@@ -0,0 +1,115 @@
+package com.kavach.p2p.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IdentityVerifierTest {
+    private static final long WAIT_MS = 2000;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Identity clientIdentity = Identity.generate(random);
+    private final Identity serverIdentity = Identity.generate(random);
+    private final BlockingQueue<PeerConnection> serverHandshakes = new LinkedBlockingQueue<>();
+    private final BlockingQueue<PeerConnection> clientHandshakes = new LinkedBlockingQueue<>();
+    private final BlockingQueue<PeerConnection> clientClosed = new LinkedBlockingQueue<>();
+    private TransportEngine server;
+    private TransportEngine client;
+
+    private static TransportEngine.Listener recording(BlockingQueue<PeerConnection> handshakes,
+            BlockingQueue<PeerConnection> closed) {
+        return new TransportEngine.Listener() {
+            @Override
+            public void onConnected(PeerConnection connection, boolean accepted) {
+            }
+
+            @Override
+            public void onConnectFailed(String peerId, Exception cause) {
+            }
+
+            @Override
+            public void onHandshake(PeerConnection connection, Handshake handshake) {
+                handshakes.add(connection);
+            }
+
+            @Override
+            public void onFrame(PeerConnection connection, Frame frame) {
+            }
+
+            @Override
+            public void onClosed(PeerConnection connection, Exception cause) {
+                if (closed != null) {
+                    closed.add(connection);
+                }
+            }
+
+            @Override
+            public void onServerError(Exception cause) {
+            }
+        };
+    }
+
+    @Before
+    public void start() throws Exception {
+        server = new TransportEngine(recording(serverHandshakes, null));
+        client = new TransportEngine(recording(clientHandshakes, clientClosed));
+        server.setIdentity(serverIdentity, true);
+        client.setIdentity(clientIdentity, true);
+        server.start();
+        client.start();
+        server.listen(0);
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!server.isListening() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void shutdown() {
+        client.shutdown();
+        server.shutdown();
+    }
+
+    private void connect() {
+        client.connect("server", "127.0.0.1", server.getLocalPort(), (int) WAIT_MS);
+    }
+
+    @Test
+    public void pinnedIdentityIsReportedWithItsKey() throws Exception {
+        byte[] expected = clientIdentity.getPublicKey();
+        server.setIdentityVerifier((connection, handshake, identityKey) -> Arrays.equals(expected, identityKey));
+        connect();
+
+        PeerConnection accepted = serverHandshakes.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(accepted);
+        assertArrayEquals(expected, accepted.getRemoteIdentity());
+        PeerConnection connected = clientHandshakes.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(connected);
+        assertArrayEquals(serverIdentity.getPublicKey(), connected.getRemoteIdentity());
+    }
+
+    @Test
+    public void unexpectedIdentityIsRejected() throws Exception {
+        // Pinned to a device other than the one connecting, which signs correctly with its own key
+        byte[] pinned = Identity.generate(random).getPublicKey();
+        server.setIdentityVerifier((connection, handshake, identityKey) -> Arrays.equals(pinned, identityKey));
+        connect();
+
+        assertNotNull(clientClosed.poll(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertNull(serverHandshakes.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(Long.valueOf(1), server.getMetrics().getCounters().get("handshakeRejected"));
+        // No ticket is issued to a peer that was turned away
+        assertEquals(0, server.getIssuedTickets().size());
+    }
+}
@@ -0,0 +1,136 @@
+package com.kavach.p2p.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboxTest {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final long MAX_AGE_MS = 60_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Outbox open(long maxBytes) throws IOException {
+        return new Outbox(folder.getRoot(), SEGMENT_SIZE, maxBytes, MAX_AGE_MS);
+    }
+
+    private static byte[] body(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void pendingEntriesSurviveReopen() throws IOException {
+        Outbox outbox = open(1 << 20);
+        Outbox.Entry first = outbox.append("peer-a", Lane.CHAT, Frame.FLAG_MESSAGE_ID, body("one"));
+        outbox.append("peer-a", Lane.CHAT, (byte) 0, body("two"));
+        outbox.append("peer-b", Lane.BULK, (byte) 0, body("three"));
+        assertTrue(outbox.acknowledge(first.getSequence()));
+        outbox.close();
+
+        outbox = open(1 << 20);
+        assertEquals(2, outbox.getPendingCount());
+        List<Outbox.Entry> forA = outbox.pendingFor("peer-a");
+        assertEquals(1, forA.size());
+        assertArrayEquals(body("two"), outbox.read(forA.get(0)));
+        List<Outbox.Entry> forB = outbox.pendingFor("peer-b");
+        assertEquals(Lane.BULK, forB.get(0).getLane());
+        assertArrayEquals(body("three"), outbox.read(forB.get(0)));
+        outbox.close();
+    }
+
+    @Test
+    public void tornTailIsDroppedAndAppendsContinue() throws IOException {
+        Outbox outbox = open(1 << 20);
+        Outbox.Entry kept = outbox.append("peer-a", Lane.CHAT, (byte) 0, body("kept"));
+        outbox.append("peer-a", Lane.CHAT, (byte) 0, body("torn"));
+        outbox.close();
+
+        // Flip a byte in the last record's body, as if the crash came mid-write
+        File[] segments = folder.getRoot().listFiles((dir, name) -> name.endsWith(".seg"));
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            int firstLength = readInt(file, 16);
+            long tornBody = 16 + 8 + firstLength + 8 + 9 + 12 + "peer-a".length();
+            file.seek(tornBody);
+            int original = file.read();
+            file.seek(tornBody);
+            file.write(original ^ 0xFF);
+        }
+
+        outbox = open(1 << 20);
+        List<Outbox.Entry> pending = outbox.pendingFor("peer-a");
+        assertEquals(1, pending.size());
+        assertEquals(kept.getSequence(), pending.get(0).getSequence());
+        outbox.append("peer-a", Lane.CHAT, (byte) 0, body("after"));
+        outbox.close();
+
+        outbox = open(1 << 20);
+        pending = outbox.pendingFor("peer-a");
+        assertEquals(2, pending.size());
+        assertArrayEquals(body("kept"), outbox.read(pending.get(0)));
+        assertArrayEquals(body("after"), outbox.read(pending.get(1)));
+        outbox.close();
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreDeleted() throws IOException {
+        // Three 1000 byte entries fill a segment, and there is room for two segments
+        Outbox outbox = open(2 * SEGMENT_SIZE);
+        byte[] padded = new byte[1000];
+        Outbox.Entry first = outbox.append("peer-a", Lane.CHAT, (byte) 0, padded);
+        for (int i = 0; i < 4; i++) {
+            outbox.append("peer-a", Lane.CHAT, (byte) 0, padded);
+        }
+        assertEquals(2, outbox.getSegmentCount());
+        // Segment names are their first sequence number, zero padded
+        File[] files = folder.getRoot().listFiles((dir, name) -> name.endsWith(".seg"));
+        Arrays.sort(files);
+        File oldest = files[0];
+        for (Outbox.Entry entry : outbox.pendingFor("peer-a")) {
+            outbox.acknowledge(entry.getSequence());
+        }
+
+        // The second of these needs a third segment, which only fits once the first is gone
+        outbox.append("peer-a", Lane.CHAT, (byte) 0, padded);
+        outbox.append("peer-a", Lane.CHAT, (byte) 0, padded);
+        assertFalse(outbox.isPending(first.getSequence()));
+        assertEquals(2, outbox.getPendingCount());
+        assertEquals(2, outbox.getSegmentCount());
+        assertFalse(oldest.exists());
+        outbox.close();
+    }
+
+    @Test
+    public void rejectsAppendsOnceFull() throws IOException {
+        Outbox outbox = open(2 * SEGMENT_SIZE);
+        byte[] padded = new byte[1000];
+        try {
+            for (int i = 0; i < 100; i++) {
+                outbox.append("peer-a", Lane.CHAT, (byte) 0, padded);
+            }
+            fail("Expected the outbox to fill up");
+        } catch (OutboxFullException expected) {
+            assertTrue(outbox.getPendingCount() > 0);
+        }
+        outbox.close();
+    }
+
+    private static int readInt(RandomAccessFile file, long position) throws IOException {
+        file.seek(position);
+        return file.readInt();
+    }
+}
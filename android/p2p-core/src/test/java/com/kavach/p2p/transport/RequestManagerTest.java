@@ -0,0 +1,290 @@
+package com.kavach.p2p.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestManagerTest {
+    private static final long WAIT_MS = 2000;
+
+    // What the answering side was asked, in arrival order; the test decides when to respond
+    private static final class Received {
+        final PeerConnection connection;
+        final int id;
+        final byte[] body;
+
+        Received(PeerConnection connection, int id, byte[] body) {
+            this.connection = connection;
+            this.id = id;
+            this.body = body;
+        }
+    }
+
+    // Either a response body or a failure, as handed to the callback
+    private static final class Outcome {
+        final byte[] body;
+        final Exception cause;
+
+        Outcome(byte[] body, Exception cause) {
+            this.body = body;
+            this.cause = cause;
+        }
+    }
+
+    private final BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+    private final BlockingQueue<PeerConnection> connected = new LinkedBlockingQueue<>();
+    // "lane congested" as the client's listener heard it
+    private final BlockingQueue<String> backpressure = new LinkedBlockingQueue<>();
+    private TransportEngine server;
+    private TransportEngine client;
+    private RequestManager serverRequests;
+    private RequestManager clientRequests;
+    private PeerConnection connection;
+
+    private TransportEngine.Listener routeTo(RequestManager[] requests, boolean capture) {
+        return new TransportEngine.Listener() {
+            @Override
+            public void onConnected(PeerConnection connection, boolean accepted) {
+            }
+
+            @Override
+            public void onConnectFailed(String peerId, Exception cause) {
+            }
+
+            @Override
+            public void onHandshake(PeerConnection connection, Handshake handshake) {
+                if (capture) {
+                    connected.add(connection);
+                }
+            }
+
+            @Override
+            public void onFrame(PeerConnection connection, Frame frame) {
+                if (RequestManager.isRequestFrame(frame.getType())) {
+                    try {
+                        requests[0].onFrame(connection, frame);
+                    } catch (FrameFormatException e) {
+                        connection.close();
+                    }
+                }
+            }
+
+            @Override
+            public void onClosed(PeerConnection connection, Exception cause) {
+                requests[0].onConnectionClosed(connection);
+            }
+
+            @Override
+            public void onServerError(Exception cause) {
+            }
+
+            @Override
+            public void onBackpressure(PeerConnection connection, Lane lane, boolean congested) {
+                if (capture) {
+                    backpressure.add(lane.label() + " " + congested);
+                }
+            }
+        };
+    }
+
+    @Before
+    public void connect() throws Exception {
+        RequestManager[] serverHolder = new RequestManager[1];
+        RequestManager[] clientHolder = new RequestManager[1];
+        server = new TransportEngine(routeTo(serverHolder, false));
+        client = new TransportEngine(routeTo(clientHolder, true));
+        serverRequests = new RequestManager(server,
+            (connection, requestId, body) -> received.add(new Received(connection, requestId, body)));
+        clientRequests = new RequestManager(client, (connection, requestId, body) -> {
+        });
+        serverHolder[0] = serverRequests;
+        clientHolder[0] = clientRequests;
+
+        server.start();
+        client.start();
+        server.listen(0);
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!server.isListening() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.connect("server", "127.0.0.1", server.getLocalPort(), (int) WAIT_MS);
+        connection = connected.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Handshake did not complete", connection);
+    }
+
+    @After
+    public void shutdown() {
+        clientRequests.shutdown();
+        client.shutdown();
+        server.shutdown();
+    }
+
+    private static byte[] body(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static RequestManager.ResponseCallback into(BlockingQueue<Outcome> outcomes) {
+        return new RequestManager.ResponseCallback() {
+            @Override
+            public void onResponse(byte[] body, long latencyNanos) {
+                outcomes.add(new Outcome(body, null));
+            }
+
+            @Override
+            public void onFailed(Exception cause) {
+                outcomes.add(new Outcome(null, cause));
+            }
+        };
+    }
+
+    private Received nextRequest() throws InterruptedException {
+        Received request = received.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Request never arrived", request);
+        return request;
+    }
+
+    private void answer(Received request, String text) throws IOException {
+        serverRequests.respond(request.connection, request.id, body(text));
+    }
+
+    @Test
+    public void windowHoldsBackRequestsUntilAnswered() throws Exception {
+        clientRequests.setWindow(2);
+        BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        for (int i = 0; i < 5; i++) {
+            clientRequests.request(connection, body("q" + i), WAIT_MS, into(outcomes));
+        }
+        Received first = nextRequest();
+        Received second = nextRequest();
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, clientRequests.getInFlightCount(connection));
+        assertEquals(3, clientRequests.getWaitingCount(connection));
+
+        // Answering out of order still matches each response to its request
+        answer(second, "a1");
+        Outcome outcome = outcomes.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(outcome);
+        assertArrayEquals(body("a1"), outcome.body);
+        Received third = nextRequest();
+        assertArrayEquals(body("q2"), third.body);
+
+        answer(first, "a0");
+        answer(third, "a2");
+        for (int i = 3; i < 5; i++) {
+            Received next = nextRequest();
+            assertArrayEquals(body("q" + i), next.body);
+            answer(next, "a" + i);
+        }
+        for (int i = 0; i < 4; i++) {
+            outcome = outcomes.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull(outcome);
+            assertNull(outcome.cause);
+        }
+        assertEquals(0, clientRequests.getInFlightCount(connection));
+        assertEquals(0, clientRequests.getWaitingCount(connection));
+    }
+
+    @Test
+    public void lanesHaveTheirOwnWindow() throws Exception {
+        clientRequests.setWindow(1);
+        BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        clientRequests.request(connection, body("chat 1"), Lane.CHAT, WAIT_MS, into(outcomes));
+        clientRequests.request(connection, body("chat 2"), Lane.CHAT, WAIT_MS, into(outcomes));
+        clientRequests.request(connection, body("consent"), Lane.CONSENT, WAIT_MS, into(outcomes));
+
+        // The consent request doesn't wait behind the chat one holding the chat window. Which
+        // arrives first depends on whether chat 1 was written before consent was queued.
+        Received first = nextRequest();
+        Received second = nextRequest();
+        Received chat = Arrays.equals(body("consent"), first.body) ? second : first;
+        assertArrayEquals(body("chat 1"), chat.body);
+        assertArrayEquals(body("consent"), (chat == first ? second : first).body);
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, clientRequests.getWaitingCount(connection));
+
+        answer(chat, "ok");
+        assertArrayEquals(body("chat 2"), nextRequest().body);
+    }
+
+    @Test
+    public void rejectsOnceTheWaitIsFull() throws Exception {
+        clientRequests.setWindow(1);
+        BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        int capacity = Lane.BULK.getCapacity();
+        for (int i = 0; i <= capacity; i++) {
+            clientRequests.request(connection, body("q" + i), Lane.BULK, WAIT_MS, into(outcomes));
+        }
+        assertEquals(capacity, clientRequests.getWaitingCount(connection));
+        assertNull(outcomes.poll());
+
+        clientRequests.request(connection, body("one too many"), Lane.BULK, WAIT_MS, into(outcomes));
+        Outcome rejected = outcomes.poll();
+        assertNotNull(rejected);
+        assertTrue(rejected.cause instanceof SendQueueFullException);
+        assertEquals(Long.valueOf(1), client.getMetrics().getCounters().get("sendQueueFull.bulk"));
+        assertEquals("bulk true", backpressure.poll(WAIT_MS, TimeUnit.MILLISECONDS));
+
+        // Draining the wait clears the congestion again
+        for (int i = 0; i <= capacity; i++) {
+            answer(nextRequest(), "a" + i);
+        }
+        assertEquals("bulk false", backpressure.poll(WAIT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 0; i <= capacity; i++) {
+            Outcome outcome = outcomes.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull(outcome);
+            assertNull(outcome.cause);
+        }
+    }
+
+    @Test
+    public void unansweredRequestTimesOutAndLateAnswerIsDropped() throws Exception {
+        BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        clientRequests.request(connection, body("anyone?"), 150, into(outcomes));
+        Received request = nextRequest();
+
+        Outcome outcome = outcomes.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(outcome);
+        assertTrue(outcome.cause instanceof RequestTimeoutException);
+        assertEquals(0, clientRequests.getInFlightCount(connection));
+
+        answer(request, "too late");
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (client.getMetrics().getCounters().get("lateResponse") == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Long.valueOf(1), client.getMetrics().getCounters().get("lateResponse"));
+        assertNull(outcomes.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void closingFailsInFlightAndWaitingRequests() throws Exception {
+        clientRequests.setWindow(1);
+        BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        clientRequests.request(connection, body("in flight"), WAIT_MS, into(outcomes));
+        clientRequests.request(connection, body("waiting"), WAIT_MS, into(outcomes));
+        nextRequest();
+        assertEquals(1, clientRequests.getWaitingCount(connection));
+
+        connection.close();
+        for (int i = 0; i < 2; i++) {
+            Outcome outcome = outcomes.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull(outcome);
+            assertTrue(outcome.cause instanceof IOException);
+        }
+        assertTrue(received.isEmpty());
+    }
+}
@@ -0,0 +1,166 @@
+package com.kavach.p2p.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RoutingTableTest {
+    private static final long WAIT_MS = 2000;
+    private static final String MEMBER = "aa:bb:cc:dd:ee:02";
+
+    private final BlockingQueue<PeerConnection> accepted = new LinkedBlockingQueue<>();
+    private final List<TransportEngine> engines = new ArrayList<>();
+
+    private TransportEngine engine(BlockingQueue<PeerConnection> handshakes) {
+        TransportEngine engine = new TransportEngine(new TransportEngine.Listener() {
+            @Override
+            public void onConnected(PeerConnection connection, boolean accepted) {
+            }
+
+            @Override
+            public void onConnectFailed(String peerId, Exception cause) {
+            }
+
+            @Override
+            public void onHandshake(PeerConnection connection, Handshake handshake) {
+                if (handshakes != null) {
+                    handshakes.add(connection);
+                }
+            }
+
+            @Override
+            public void onFrame(PeerConnection connection, Frame frame) {
+            }
+
+            @Override
+            public void onClosed(PeerConnection connection, Exception cause) {
+            }
+
+            @Override
+            public void onServerError(Exception cause) {
+            }
+        });
+        engines.add(engine);
+        return engine;
+    }
+
+    @After
+    public void shutdown() {
+        for (TransportEngine engine : engines) {
+            engine.shutdown();
+        }
+    }
+
+    // A server and one client per identity (null for none), every client announcing MEMBER;
+    // returns the server side of each connection in connect order
+    private List<PeerConnection> connectMembers(Identity... identities) throws Exception {
+        TransportEngine server = engine(accepted);
+        if (identities[0] != null) {
+            server.setIdentity(Identity.generate(new SecureRandom()), false);
+        }
+        server.start();
+        server.listen(0);
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!server.isListening() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        List<PeerConnection> members = new ArrayList<>();
+        for (Identity identity : identities) {
+            TransportEngine client = engine(null);
+            client.setLocalHandshake(client.getLocalHandshake().withAttribute(RoutingTable.ATTRIBUTE_ADDRESS, MEMBER));
+            if (identity != null) {
+                client.setIdentity(identity, false);
+            }
+            client.start();
+            client.connect("server", "127.0.0.1", server.getLocalPort(), (int) WAIT_MS);
+            PeerConnection member = accepted.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull(member);
+            members.add(member);
+        }
+        return members;
+    }
+
+    @Test
+    public void addressHeldByAnOpenConnectionIsNotTaken() throws Exception {
+        List<PeerConnection> members = connectMembers(null, null);
+        RoutingTable routes = new RoutingTable();
+
+        assertTrue(routes.register(members.get(0), members.get(0).getRemoteHandshake()));
+        assertFalse(routes.register(members.get(1), members.get(1).getRemoteHandshake()));
+        assertSame(members.get(0), routes.lookup(MEMBER));
+        assertEquals(MEMBER, routes.addressOf(members.get(0)));
+        assertNull(routes.addressOf(members.get(1)));
+    }
+
+    @Test
+    public void sameIdentityTakesOverTheAddress() throws Exception {
+        Identity identity = Identity.generate(new SecureRandom());
+        List<PeerConnection> members = connectMembers(identity, identity);
+        RoutingTable routes = new RoutingTable();
+
+        assertTrue(routes.register(members.get(0), members.get(0).getRemoteHandshake()));
+        assertTrue(routes.register(members.get(1), members.get(1).getRemoteHandshake()));
+        assertSame(members.get(1), routes.lookup(MEMBER));
+    }
+
+    @Test
+    public void replacedOriginKeepsTheBody() throws FrameFormatException {
+        byte[] body = "{\"type\":\"chat\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] routed = RoutingTable.addRoute(Lane.CHAT, MEMBER, "forged", body);
+
+        byte[] replaced = RoutingTable.replaceOrigin(routed, RoutingTable.readRoute(routed), "aa:bb:cc:dd:ee:03");
+        RoutingTable.Route route = RoutingTable.readRoute(replaced);
+        assertEquals(Lane.CHAT, route.getLane());
+        assertEquals(MEMBER, route.getDestination());
+        assertEquals("aa:bb:cc:dd:ee:03", route.getOrigin());
+        assertArrayEquals(body, RoutingTable.stripRoute(replaced, route));
+    }
+    @Test
+    public void routeHeaderRoundTrips() throws FrameFormatException {
+        byte[] body = "{\"type\":\"chat\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] routed = RoutingTable.addRoute(Lane.CONSENT, "aa:bb:cc:dd:ee:02", "aa:bb:cc:dd:ee:01", body);
+
+        RoutingTable.Route route = RoutingTable.readRoute(routed);
+        assertEquals(Lane.CONSENT, route.getLane());
+        assertEquals("aa:bb:cc:dd:ee:02", route.getDestination());
+        assertEquals("aa:bb:cc:dd:ee:01", route.getOrigin());
+        assertArrayEquals(body, RoutingTable.stripRoute(routed, route));
+    }
+
+    @Test
+    public void emptyOriginIsAllowed() throws FrameFormatException {
+        byte[] routed = RoutingTable.addRoute(Lane.CHAT, "aa:bb:cc:dd:ee:02", "", new byte[0]);
+        RoutingTable.Route route = RoutingTable.readRoute(routed);
+        assertEquals("", route.getOrigin());
+        assertEquals(0, RoutingTable.stripRoute(routed, route).length);
+    }
+
+    @Test
+    public void rejectsTruncatedHeader() {
+        byte[] routed = RoutingTable.addRoute(Lane.CHAT, "aa:bb:cc:dd:ee:02", "aa:bb:cc:dd:ee:01", new byte[0]);
+        byte[] truncated = new byte[routed.length - 1];
+        System.arraycopy(routed, 0, truncated, 0, truncated.length);
+        try {
+            RoutingTable.readRoute(truncated);
+            fail("Expected a truncated header");
+        } catch (FrameFormatException e) {
+            assertEquals("Truncated route header", e.getMessage());
+        }
+    }
+}
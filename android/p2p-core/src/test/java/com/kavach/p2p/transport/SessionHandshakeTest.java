@@ -0,0 +1,160 @@
+package com.kavach.p2p.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.Test;
+
+public class SessionHandshakeTest {
+    private static final String SERVER = "192.168.49.1";
+
+    private final SecureRandom random = new SecureRandom();
+    private final Identity clientIdentity = Identity.generate(random);
+    private final Identity serverIdentity = Identity.generate(random);
+    // What the accepting side issued, and what the connecting side holds
+    private final SessionTicketCache issued = new SessionTicketCache(SessionTicketCache.DEFAULT_MAX_ENTRIES,
+        SessionTicketCache.DEFAULT_LIFETIME_MS);
+    private final SessionTicketCache held = new SessionTicketCache(SessionTicketCache.DEFAULT_MAX_ENTRIES,
+        SessionTicketCache.DEFAULT_LIFETIME_MS);
+
+    private static void assertRoundTrip(SecureSession from, SecureSession to, String text) throws FrameFormatException {
+        Frame frame = Frame.message(text);
+        ByteBuffer sealed = ByteBuffer.allocate(frame.getPayload().length + SecureSession.TAG_SIZE);
+        byte flags = from.sealInto(frame, sealed);
+        sealed.flip();
+        assertTrue((flags & Frame.FLAG_ENCRYPTED) != 0);
+        assertEquals(text, to.open(frame.getType(), flags, sealed).getPayloadAsString());
+    }
+
+    private static void exchangeConfirms(SessionHandshake client, SessionHandshake server)
+            throws HandshakeException {
+        server.verifyConfirm(client.confirm());
+        client.verifyConfirm(server.confirm());
+    }
+
+    // Runs a full handshake and hands the ticket over; returns {client, server}
+    private SecureSession[] fullHandshake() throws FrameFormatException {
+        SessionHandshake client = new SessionHandshake(clientIdentity, true, null, random);
+        SessionHandshake server = new SessionHandshake(serverIdentity, false, null, random);
+        Handshake clientHello = client.decorate(Handshake.empty());
+        Handshake serverHello = server.decorate(Handshake.empty());
+        SecureSession serverSession = server.accept(clientHello, issued);
+        SecureSession clientSession = client.accept(serverHello, held);
+        exchangeConfirms(client, server);
+
+        assertArrayEquals(serverIdentity.getPublicKey(), client.getRemoteIdentity());
+        assertArrayEquals(clientIdentity.getPublicKey(), server.getRemoteIdentity());
+        client.onTicket(server.issueTicket(issued), held, SERVER);
+        return new SecureSession[] {clientSession, serverSession};
+    }
+
+    @Test
+    public void fullHandshakeAgreesOnSessionKeys() throws FrameFormatException {
+        SecureSession[] sessions = fullHandshake();
+        assertFalse(sessions[0].isResumed());
+        assertRoundTrip(sessions[0], sessions[1], "client to server");
+        assertRoundTrip(sessions[1], sessions[0], "server to client");
+        assertRoundTrip(sessions[0], sessions[1], "and again, with the next nonce");
+        assertEquals(1, issued.size());
+        assertEquals(1, held.size());
+    }
+
+    @Test
+    public void resumesWithTicketExactlyOnce() throws FrameFormatException {
+        fullHandshake();
+        SessionTicketCache.Ticket ticket = held.take(SERVER);
+        assertNotNull(ticket);
+
+        SessionHandshake client = new SessionHandshake(clientIdentity, true, ticket, random);
+        Handshake clientHello = client.decorate(Handshake.empty());
+        // 0-RTT: the connecting side can encrypt before it hears back
+        assertNotNull(client.getSession());
+        assertNull(clientHello.get(SessionHandshake.ATTR_EPHEMERAL));
+
+        SessionHandshake server = new SessionHandshake(serverIdentity, false, null, random);
+        Handshake serverHello = server.decorate(Handshake.empty());
+        SecureSession serverSession = server.accept(clientHello, issued);
+        SecureSession clientSession = client.accept(serverHello, held);
+        exchangeConfirms(client, server);
+        assertTrue(serverSession.isResumed());
+        assertTrue(clientSession.isResumed());
+        assertRoundTrip(clientSession, serverSession, "resumed");
+        assertRoundTrip(serverSession, clientSession, "resumed reply");
+
+        // Replaying the same resumption HELLO finds the ticket already used
+        SessionHandshake replayed = new SessionHandshake(serverIdentity, false, null, random);
+        replayed.decorate(Handshake.empty());
+        try {
+            replayed.accept(clientHello, issued);
+            fail("Expected the used ticket to be rejected");
+        } catch (HandshakeException e) {
+            assertEquals("Unknown or expired session ticket", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsConfirmFromAnotherIdentity() throws FrameFormatException {
+        SessionHandshake client = new SessionHandshake(clientIdentity, true, null, random);
+        SessionHandshake server = new SessionHandshake(serverIdentity, false, null, random);
+        Handshake forged = client.decorate(Handshake.empty()).withAttribute(SessionHandshake.ATTR_IDENTITY,
+            Base64.toBase64String(Identity.generate(random).getPublicKey()));
+        Handshake serverHello = server.decorate(Handshake.empty());
+        server.accept(forged, issued);
+        client.accept(serverHello, held);
+        try {
+            server.verifyConfirm(client.confirm());
+            fail("Expected a bad signature");
+        } catch (HandshakeException e) {
+            assertEquals("Bad handshake signature", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsHelloEditedInTransit() throws FrameFormatException {
+        SessionHandshake client = new SessionHandshake(clientIdentity, true, null, random);
+        SessionHandshake server = new SessionHandshake(serverIdentity, false, null, random);
+        Handshake clientHello = client.decorate(Handshake.empty().withCapabilities(Handshake.CAP_DEFLATE));
+        Handshake serverHello = server.decorate(Handshake.empty());
+        // Dropping a capability still leaves a HELLO both sides can agree on keys with
+        Handshake stripped = clientHello.withCapabilities(clientHello.getCapabilities() & ~Handshake.CAP_DEFLATE);
+        server.accept(stripped, issued);
+        client.accept(serverHello, held);
+        try {
+            client.verifyConfirm(server.confirm());
+            fail("Expected the edited HELLO to break the server's confirm");
+        } catch (HandshakeException e) {
+            assertEquals("Bad handshake signature", e.getMessage());
+        }
+        try {
+            server.verifyConfirm(client.confirm());
+            fail("Expected the edited HELLO to break the client's confirm");
+        } catch (HandshakeException e) {
+            assertEquals("Bad handshake signature", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsTamperedCiphertext() throws FrameFormatException {
+        SecureSession[] sessions = fullHandshake();
+        Frame frame = Frame.message("do not touch");
+        ByteBuffer sealed = ByteBuffer.allocate(frame.getPayload().length + SecureSession.TAG_SIZE);
+        byte flags = sessions[0].sealInto(frame, sealed);
+        sealed.flip();
+        sealed.put(0, (byte) (sealed.get(0) ^ 0x01));
+        try {
+            sessions[1].open(frame.getType(), flags, sealed);
+            fail("Expected authentication to fail");
+        } catch (FrameFormatException e) {
+            assertEquals("Frame failed authentication", e.getMessage());
+        }
+    }
+}
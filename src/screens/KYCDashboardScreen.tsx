@@ -12,7 +12,7 @@ import {
 } from 'react-native';
 import { useNavigation } from '@react-navigation/native';
 import P2PService from '../utils/p2p/P2PService';
-import type { P2PDevice, P2PMessage } from '../utils/p2p/P2PService';
+import type { P2PDevice, P2PMessage, SendResult } from '../utils/p2p/P2PService';
 
 const KYCDashboardScreen = () => {
   const navigation = useNavigation();
@@ -254,11 +254,11 @@ const KYCDashboardScreen = () => {
       });
 
       // Try sending with retry logic
-      let success = false;
+      let result: SendResult = 'failed';
       let attempts = 0;
       const maxAttempts = 3;
 
-      while (!success && attempts < maxAttempts) {
+      while (result === 'failed' && attempts < maxAttempts) {
         attempts++;
         console.log(`KYCDashboard - Sending attempt ${attempts}/${maxAttempts}`);
 
@@ -269,15 +269,15 @@ const KYCDashboardScreen = () => {
           );
           console.log(`KYCDashboard - Device still connected: ${stillConnected}`);
 
-          success = await P2PService.sendMessage(
+          result = await P2PService.deliverMessage(
             JSON.stringify(consentData),
             undefined, // Let it broadcast to connected devices
             'consent',
           );
 
-          console.log(`KYCDashboard - Send attempt ${attempts} result: ${success}`);
+          console.log(`KYCDashboard - Send attempt ${attempts} result: ${result}`);
 
-          if (!success && attempts < maxAttempts) {
+          if (result === 'failed' && attempts < maxAttempts) {
             console.log(`KYCDashboard - Send failed, waiting before retry ${attempts + 1}...`);
             await new Promise(resolve => setTimeout(resolve, 2000)); // Wait 2 seconds before retry
           }
@@ -289,7 +289,13 @@ const KYCDashboardScreen = () => {
         }
       }
 
-      if (success) {
+      if (result === 'queued') {
+        // Kept natively for this device only; resending would queue a second copy
+        Alert.alert(
+          'Consent Queued',
+          `${device.deviceName} disconnected before confirming. The consent will be sent when it reconnects.`,
+        );
+      } else if (result === 'sent') {
         console.log('KYCDashboard - Consent sent successfully');
         Alert.alert(
           'Consent Sent',
@@ -11,7 +11,7 @@ import {
 } from 'react-native';
 import { useNavigation } from '@react-navigation/native';
 import P2PService from '../utils/p2p/P2PService';
-import type { P2PDevice, P2PMessage } from '../utils/p2p/P2PService';
+import type { P2PDevice, P2PMessage, SendResult } from '../utils/p2p/P2PService';
 // import { Signer } from '@ba3a-g/kavach';
 import AsyncStorage from '@react-native-async-storage/async-storage';
 import QRCode from 'react-native-qrcode-svg';
@@ -335,11 +335,11 @@ const ShowAadhaarDataScreen = () => {
       const cert = aadharData.pemCertificate;
 
       // Retry logic for sending certificate
-      let success = false;
+      let result: SendResult = 'failed';
       let attempts = 0;
       const maxAttempts = 3;
 
-      while (!success && attempts < maxAttempts) {
+      while (result === 'failed' && attempts < maxAttempts) {
         attempts++;
         console.log(`Sending certificate attempt ${attempts}/${maxAttempts}`);
         setConnectionStatus(
@@ -347,13 +347,13 @@ const ShowAadhaarDataScreen = () => {
         );
 
         try {
-          success = await P2PService.sendMessage(
+          result = await P2PService.deliverMessage(
             JSON.stringify({ key: private_key, cert: cert }),
             undefined, // Send to connected device
             'verification',
           );
 
-          if (!success && attempts < maxAttempts) {
+          if (result === 'failed' && attempts < maxAttempts) {
             console.log(`Send failed, waiting before retry ${attempts + 1}...`);
             await new Promise(resolve => setTimeout(resolve, 1000)); // Wait 1 second before retry
           }
@@ -365,7 +365,14 @@ const ShowAadhaarDataScreen = () => {
         }
       }
 
-      if (success) {
+      if (result === 'queued') {
+        // Kept natively for this device only; resending would queue a second copy
+        setConnectionStatus('Certificate queued');
+        Alert.alert(
+          'Certificate Queued',
+          `${senderDevice} disconnected before confirming. The certificate will be sent when it reconnects.`,
+        );
+      } else if (result === 'sent') {
         setConnectionStatus('Certificate sent successfully');
         Alert.alert(
           'Certificate Sent',
@@ -28,6 +28,9 @@ export interface P2PDevice {
   deviceAddress: string;
   isGroupOwner?: boolean;
   status?: 'CONNECTED' | 'INVITED' | 'FAILED' | 'AVAILABLE' | 'UNAVAILABLE';
+  // Filled in from the device's _kavach._tcp advertisement, when service discovery found it
+  role?: 'verifier' | 'holder';
+  fingerprint?: string;
 }
 
 export interface P2PMessage {
@@ -39,18 +42,75 @@ export interface P2PMessage {
   type: 'verification' | 'chat' | 'system' | 'consent';
 }
 
+// 'queued' means the native outbox kept the message because the peer dropped before
+// acknowledging it, or a member isn't connected yet; it goes out when that same device reconnects
+export type SendResult = 'sent' | 'queued' | 'failed';
+
+// A request from a peer, answered with respond()
+export interface P2PRequest {
+  peerId: string;
+  requestId: number;
+  payload: string;
+}
+
+export interface P2PResponse {
+  peerId: string;
+  payload: string;
+  latencyMs: number;
+}
+
+// A connection whose handshake checked out. identityKey is the peer's Ed25519 public key (base64)
+// when the connection is encrypted; pin it with pinPeerIdentity() to reject anyone else later.
+export interface P2PPeerIdentity {
+  peerId: string;
+  deviceAddress: string | null;
+  secure: boolean;
+  resumed: boolean;
+  identityKey: string | null;
+}
+
+// Raw bytes from sendBytes(); nothing is decoded on the way
+export interface P2PBinaryMessage {
+  peerId: string;
+  data: ArrayBuffer;
+}
+
+// Installed on global by WifiP2pModule.installBinaryApi() (JSI, see BinaryBridge.java)
+interface KavachBinaryApi {
+  sendBytes(
+    peerId: string | null,
+    buffer: ArrayBuffer,
+    offset: number,
+    length: number,
+    type: string,
+  ): number;
+  takeBytes(handle: number): ArrayBuffer | undefined;
+}
+
+type BinarySend = {
+  resolve: (delivered: number) => void;
+  reject: (error: Error) => void;
+};
+
 class P2PService {
   private isInitialized = false;
   private discoveredDevices: P2PDevice[] = [];
   private connectedDevices: P2PDevice[] = [];
   private messageListeners: ((message: P2PMessage) => void)[] = [];
+  private requestListeners: ((request: P2PRequest) => void)[] = [];
+  private peerReadyListeners: ((peer: P2PPeerIdentity) => void)[] = [];
+  private binaryListeners: ((message: P2PBinaryMessage) => void)[] = [];
+  private binaryApi: KavachBinaryApi | null = null;
+  // sendBytes() calls waiting for their WIFI_P2P_BINARY_SENT, by send id
+  private pendingBinarySends: Map<number, BinarySend> = new Map();
+  // "peerId:lane" for every outbound lane the native side reports as backed up
+  private congestedLanes: Set<string> = new Set();
   private deviceListeners: ((devices: P2PDevice[]) => void)[] = [];
   private connectionListeners: ((
     device: P2PDevice,
     connected: boolean,
   ) => void)[] = [];
 
-  private connectionTimeouts: Map<string, NodeJS.Timeout> = new Map();
   private isConnecting = false;
 
   constructor() {
@@ -190,37 +250,105 @@ class P2PService {
 
   // Setup event listeners for P2P events
   private setupEventListeners() {
-    // Device discovery events
-    DeviceEventEmitter.addListener('WIFI_P2P_PEERS_CHANGED', event => {
-      this.handlePeersChanged(event.devices);
-    });
-
-    // Connection state changes
-    DeviceEventEmitter.addListener('WIFI_P2P_CONNECTION_CHANGED', event => {
-      this.handleConnectionChanged(event);
+    const eventTypes = [
+      'WIFI_P2P_PEERS_DELTA',
+      'WIFI_P2P_SERVICE_FOUND',
+      'WIFI_P2P_CONNECTION_CHANGED',
+      'WIFI_P2P_MESSAGE_RECEIVED',
+      'WIFI_P2P_REQUEST_RECEIVED',
+      'WIFI_P2P_PEER_READY',
+      'WIFI_P2P_BINARY_MESSAGE',
+      'WIFI_P2P_BINARY_SENT',
+      'WIFI_P2P_BACKPRESSURE',
+      'WIFI_P2P_ERROR',
+      'WIFI_P2P_STATE_CHANGED',
+    ];
+
+    // Events emitted one by one (batching disabled on the native side)
+    eventTypes.forEach(type => {
+      DeviceEventEmitter.addListener(type, event => {
+        this.handleNativeEvent(type, event);
+      });
     });
 
-    // Incoming messages
-    DeviceEventEmitter.addListener('WIFI_P2P_MESSAGE_RECEIVED', event => {
-      this.handleMessageReceived(event);
+    // The native module coalesces events and delivers them in batches
+    DeviceEventEmitter.addListener('WIFI_P2P_EVENT_BATCH', batch => {
+      batch.events.forEach((event: { type: string; payload: any }) => {
+        this.handleNativeEvent(event.type, event.payload);
+      });
     });
+  }
 
-    // Error events
-    DeviceEventEmitter.addListener('WIFI_P2P_ERROR', event => {
-      console.error('WiFi P2P Error:', event);
-      if (event.error === 'PERMISSION_DENIED') {
-        console.error('CRITICAL: Location permission denied at system level!');
-        console.error('Solution: Go to Settings > Apps > Kavach > Permissions');
-        console.error('1. Enable Location permission');
-        console.error('2. Set to "Precise" location (not Approximate)');
-        console.error('3. Ensure Location Services are enabled system-wide');
-      }
-    });
+  private handleNativeEvent(type: string, event: any) {
+    switch (type) {
+      // Device discovery events
+      case 'WIFI_P2P_PEERS_DELTA':
+        this.handlePeersDelta(event);
+        break;
+
+      // A device advertising a Kavach service that matched the discovery filter
+      case 'WIFI_P2P_SERVICE_FOUND':
+        this.handlePeersDelta({ added: [], changed: [event], removed: [] });
+        break;
+
+      // Connection state changes
+      case 'WIFI_P2P_CONNECTION_CHANGED':
+        this.handleConnectionChanged(event);
+        break;
+
+      // Incoming messages
+      case 'WIFI_P2P_MESSAGE_RECEIVED':
+        this.handleMessageReceived(event);
+        break;
+
+      // An outbound lane filled up (or drained again); sends in it may be rejected with QUEUE_FULL
+      case 'WIFI_P2P_BACKPRESSURE':
+        if (event.congested) {
+          this.congestedLanes.add(`${event.peerId}:${event.lane}`);
+        } else {
+          this.congestedLanes.delete(`${event.peerId}:${event.lane}`);
+        }
+        break;
+
+      // Requests waiting for a respond() call
+      case 'WIFI_P2P_REQUEST_RECEIVED':
+        this.requestListeners.forEach(listener => listener(event));
+        break;
+
+      // Handshake done; carries the identity key the peer authenticated with
+      case 'WIFI_P2P_PEER_READY':
+        this.peerReadyListeners.forEach(listener => listener(event));
+        break;
+
+      case 'WIFI_P2P_BINARY_MESSAGE':
+        this.handleBinaryMessage(event);
+        break;
+
+      case 'WIFI_P2P_BINARY_SENT':
+        this.handleBinarySent(event);
+        break;
+
+      // Error events
+      case 'WIFI_P2P_ERROR':
+        console.error('WiFi P2P Error:', event);
+        if (event.error === 'PERMISSION_DENIED') {
+          console.error(
+            'CRITICAL: Location permission denied at system level!',
+          );
+          console.error(
+            'Solution: Go to Settings > Apps > Kavach > Permissions',
+          );
+          console.error('1. Enable Location permission');
+          console.error('2. Set to "Precise" location (not Approximate)');
+          console.error('3. Ensure Location Services are enabled system-wide');
+        }
+        break;
 
-    // Device state changes
-    DeviceEventEmitter.addListener('WIFI_P2P_STATE_CHANGED', event => {
-      console.log('WiFi P2P State Changed:', event.isEnabled);
-    });
+      // Device state changes
+      case 'WIFI_P2P_STATE_CHANGED':
+        console.log('WiFi P2P State Changed:', event.isEnabled);
+        break;
+    }
   }
 
   // Start discovering nearby devices
@@ -243,6 +371,11 @@ class P2PService {
       console.log(
         'Started peer discovery successfully - only Kavach devices will be shown',
       );
+
+      // Deltas only describe changes, so start from the native peer table's current contents
+      const peers = await WifiP2pModule.getPeers();
+      this.discoveredDevices = [];
+      this.handlePeersDelta({ added: peers, changed: [], removed: [] });
     } catch (error) {
       console.error('Failed to start discovery:', error);
 
@@ -257,6 +390,37 @@ class P2PService {
     }
   }
 
+  // Advertise this device as a Kavach verifier or holder over DNS-SD
+  async advertise(
+    role: 'verifier' | 'holder',
+    publicKey?: string,
+  ): Promise<boolean> {
+    try {
+      await WifiP2pModule.advertiseService({ role, publicKey });
+      return true;
+    } catch (error) {
+      console.error('Failed to advertise Kavach service:', error);
+      return false;
+    }
+  }
+
+  // Only reports devices advertising a Kavach service, optionally of a single role
+  async startServiceDiscovery(role?: 'verifier' | 'holder'): Promise<void> {
+    if (!this.isInitialized) {
+      throw new Error('P2P Service not initialized. Please initialize first.');
+    }
+    this.discoveredDevices = [];
+    await WifiP2pModule.startServiceDiscovery({ role: role ?? null });
+  }
+
+  async stopServiceDiscovery(): Promise<void> {
+    try {
+      await WifiP2pModule.stopServiceDiscovery();
+    } catch (error) {
+      console.error('Failed to stop service discovery:', error);
+    }
+  }
+
   // Stop discovering devices
   async stopDiscovery(): Promise<void> {
     try {
@@ -299,11 +463,21 @@ class P2PService {
     }
   }
 
-  // Manually establish socket connection (useful for debugging)
+  // Manually establish socket connection (useful for debugging). Native ignores this while its
+  // state machine already owns the socket to the group owner.
   async establishSocketConnection(): Promise<boolean> {
     try {
       console.log('Manually establishing socket connection...');
-      await this.checkAndEstablishSocketConnection();
+      const connectionInfo = await WifiP2pModule.requestConnectionInfo();
+      if (
+        !connectionInfo.groupFormed ||
+        connectionInfo.isGroupOwner ||
+        !connectionInfo.groupOwnerAddress
+      ) {
+        console.log('No group owner to connect to:', connectionInfo);
+        return false;
+      }
+      await WifiP2pModule.forceClientConnection(connectionInfo.groupOwnerAddress);
       return true;
     } catch (error) {
       console.error('Failed to establish socket connection:', error);
@@ -338,6 +512,19 @@ class P2PService {
     }
   }
 
+  // Discovery, invitation, group formation and the socket handshake in one native call.
+  // Resolves with the time spent in each phase once the channel is usable.
+  async connectAndOpen(device: P2PDevice): Promise<any> {
+    try {
+      const timing = await WifiP2pModule.connectAndOpen(device.deviceAddress);
+      console.log('Channel ready to', device.deviceAddress, timing);
+      return timing;
+    } catch (error) {
+      console.error('connectAndOpen failed:', error);
+      return null;
+    }
+  }
+
   // Comprehensive diagnostic check
   async runDiagnostics(): Promise<any> {
     try {
@@ -430,244 +617,30 @@ class P2PService {
       this.isConnecting = true;
       console.log('Connecting to device:', device.deviceAddress);
 
-      // Clear any existing timeout for this device
-      const existingTimeout = this.connectionTimeouts.get(device.deviceAddress);
-      if (existingTimeout) {
-        clearTimeout(existingTimeout);
-        this.connectionTimeouts.delete(device.deviceAddress);
-      }
-
-      // Create a promise that resolves when the connection is fully established
-      return new Promise<boolean>((resolve, reject) => {
-        let connectionEstablished = false;
-        let timeoutCleared = false;
-
-        // Set connection timeout
-        const timeoutId = setTimeout(async () => {
-          if (connectionEstablished || timeoutCleared) return;
-
-          console.log('Connection timeout for device:', device.deviceAddress);
-          timeoutCleared = true;
-
-          // Check if connection actually succeeded despite timeout
-          console.log('Checking connection status after timeout...');
+      // Native drives discovery, invitation, group formation and the socket handshake, with its
+      // own retries and deadline, and resolves once the channel is ready
+      try {
+        const timing = await WifiP2pModule.connectAndOpen(device.deviceAddress);
+        console.log('Channel ready to', device.deviceAddress, timing);
+        return true;
+      } catch (error) {
+        this.connectionListeners.forEach(listener => {
           try {
-            if (WifiP2pModule.requestConnectionInfo) {
-              const connectionInfo =
-                await WifiP2pModule.requestConnectionInfo();
-              if (connectionInfo && connectionInfo.groupFormed) {
-                console.log(
-                  'Connection actually succeeded, establishing socket connection...',
-                );
-                await this.checkAndEstablishSocketConnection();
-                connectionEstablished = true;
-                this.isConnecting = false;
-                this.connectionTimeouts.delete(device.deviceAddress);
-                resolve(true);
-                return;
-              }
-            }
-          } catch (error) {
-            console.error('Error checking connection after timeout:', error);
+            listener(device, false);
+          } catch (listenerError) {
+            console.error('Error in connection listener:', listenerError);
           }
-
-          this.isConnecting = false;
-          this.connectionTimeouts.delete(device.deviceAddress);
-
-          // Notify listeners of connection failure
-          this.connectionListeners.forEach(listener => {
-            try {
-              listener(device, false);
-            } catch (error) {
-              console.error('Error in connection listener:', error);
-            }
-          });
-
-          reject(new Error('Connection timeout'));
-        }, 30000); // 30 second timeout
-
-        this.connectionTimeouts.set(device.deviceAddress, timeoutId);
-
-        // Start the connection process
-        WifiP2pModule.connect(device.deviceAddress)
-          .then((result: any) => {
-            if (!result) {
-              if (!timeoutCleared) {
-                clearTimeout(timeoutId);
-                this.connectionTimeouts.delete(device.deviceAddress);
-              }
-              this.isConnecting = false;
-              reject(new Error('Failed to initiate connection'));
-              return;
-            }
-
-            console.log(
-              'WiFi Direct connection initiated, waiting for group formation...',
-            );
-
-            // Check connection status with proper promise resolution
-            const checkConnection = async (attempt: number, delay: number) => {
-              if (connectionEstablished || timeoutCleared) return;
-
-              setTimeout(async () => {
-                if (connectionEstablished || timeoutCleared) return;
-
-                try {
-                  console.log(`Connection check attempt ${attempt}...`);
-                  if (WifiP2pModule.requestConnectionInfo) {
-                    const connectionInfo =
-                      await WifiP2pModule.requestConnectionInfo();
-                    console.log(
-                      `Connection info (attempt ${attempt}):`,
-                      connectionInfo,
-                    );
-
-                    if (connectionInfo && connectionInfo.groupFormed) {
-                      connectionEstablished = true;
-                      console.log(
-                        'WiFi Direct connection established successfully!',
-                      );
-
-                      // Clear timeout since connection succeeded
-                      if (!timeoutCleared) {
-                        clearTimeout(timeoutId);
-                        this.connectionTimeouts.delete(device.deviceAddress);
-                        timeoutCleared = true;
-                      }
-
-                      try {
-                        await this.checkAndEstablishSocketConnection();
-                        this.isConnecting = false;
-
-                        // Notify listeners of successful connection
-                        this.connectionListeners.forEach(listener => {
-                          try {
-                            listener(device, true);
-                          } catch (error) {
-                            console.error(
-                              'Error in connection listener:',
-                              error,
-                            );
-                          }
-                        });
-
-                        resolve(true);
-                      } catch (socketError) {
-                        console.error('Socket connection failed:', socketError);
-                        this.isConnecting = false;
-                        reject(new Error('Socket connection failed'));
-                      }
-                    }
-                  }
-                } catch (error) {
-                  console.error(
-                    `Connection check attempt ${attempt} failed:`,
-                    error,
-                  );
-                }
-              }, delay);
-            };
-
-            // Check connection status at intervals: 2s, 5s, 10s, 15s, 20s, 25s
-            checkConnection(1, 2000);
-            checkConnection(2, 5000);
-            checkConnection(3, 10000);
-            checkConnection(4, 15000);
-            checkConnection(5, 20000);
-            checkConnection(6, 25000);
-          })
-          .catch((error: any) => {
-            if (!timeoutCleared) {
-              clearTimeout(timeoutId);
-              this.connectionTimeouts.delete(device.deviceAddress);
-            }
-            this.isConnecting = false;
-            reject(error);
-          });
-      });
+        });
+        throw error;
+      } finally {
+        this.isConnecting = false;
+      }
     } catch (error) {
-      this.isConnecting = false;
       console.error('Failed to connect to device:', error);
-
-      // Clear timeout on error
-      const timeout = this.connectionTimeouts.get(device.deviceAddress);
-      if (timeout) {
-        clearTimeout(timeout);
-        this.connectionTimeouts.delete(device.deviceAddress);
-      }
-
       throw error;
     }
   }
 
-  // Check connection status and establish socket connection if needed
-  private async checkAndEstablishSocketConnection(): Promise<void> {
-    try {
-      console.log(
-        'Checking connection status and establishing socket connection...',
-      );
-
-      if (WifiP2pModule.requestConnectionInfo) {
-        const connectionInfo = await WifiP2pModule.requestConnectionInfo();
-        console.log('Connection info:', connectionInfo);
-
-        if (connectionInfo.groupFormed) {
-          console.log('Group formed successfully');
-
-          if (
-            !connectionInfo.isGroupOwner &&
-            connectionInfo.groupOwnerAddress
-          ) {
-            // We're the client, force connect to server
-            console.log(
-              'Forcing client connection to server:',
-              connectionInfo.groupOwnerAddress,
-            );
-
-            const maxRetries = 3;
-            let retryCount = 0;
-
-            const attemptConnection = async (): Promise<void> => {
-              try {
-                await WifiP2pModule.forceClientConnection(
-                  connectionInfo.groupOwnerAddress,
-                );
-                console.log('Socket connection established successfully');
-              } catch (socketError) {
-                retryCount++;
-                console.error(
-                  `Socket connection attempt ${retryCount} failed:`,
-                  socketError,
-                );
-
-                if (retryCount < maxRetries) {
-                  console.log(
-                    `Retrying socket connection in 2 seconds (attempt ${
-                      retryCount + 1
-                    }/${maxRetries})...`,
-                  );
-                  setTimeout(attemptConnection, 2000);
-                } else {
-                  console.error('All socket connection attempts failed');
-                }
-              }
-            };
-
-            await attemptConnection();
-          } else if (connectionInfo.isGroupOwner) {
-            console.log('We are the group owner, server should be running');
-            console.log('Waiting for client to connect to our server...');
-          }
-        } else {
-          console.log('Group not formed yet, retrying in 2 seconds...');
-          setTimeout(() => this.checkAndEstablishSocketConnection(), 2000);
-        }
-      }
-    } catch (error) {
-      console.error('Error checking connection status:', error);
-    }
-  }
-
   // Disconnect from all devices and reset P2P service
   async disconnect(): Promise<boolean> {
     try {
@@ -701,12 +674,6 @@ class P2PService {
       this.discoveredDevices = [];
       this.isConnecting = false;
 
-      // Clear any pending timeouts
-      this.connectionTimeouts.forEach((timeout, address) => {
-        clearTimeout(timeout);
-      });
-      this.connectionTimeouts.clear();
-
       console.log('P2P service state reset');
       return success;
     } catch (error) {
@@ -745,15 +712,24 @@ class P2PService {
     }
   }
 
-  // Send message to connected device
+  // Send message to connected device. True only once the peer has it; see deliverMessage() to
+  // tell a message kept for later from one that failed.
   async sendMessage(
     message: string,
     targetDevice?: P2PDevice,
     messageType: 'chat' | 'consent' | 'verification' | 'system' = 'chat',
   ): Promise<boolean> {
+    return (await this.deliverMessage(message, targetDevice, messageType)) === 'sent';
+  }
+
+  async deliverMessage(
+    message: string,
+    targetDevice?: P2PDevice,
+    messageType: 'chat' | 'consent' | 'verification' | 'system' = 'chat',
+  ): Promise<SendResult> {
     try {
       const p2pMessage: P2PMessage = {
-        id: Date.now().toString(),
+        id: this.newMessageId(),
         fromDevice: await this.getDeviceName(),
         toDevice: targetDevice?.deviceAddress || 'broadcast',
         message,
@@ -761,13 +737,10 @@ class P2PService {
         type: messageType,
       };
 
-      const success = await WifiP2pModule.sendMessage(
-        JSON.stringify(p2pMessage),
-      );
-      return success;
+      return await this.sendP2PMessage(p2pMessage, targetDevice);
     } catch (error) {
       console.error('Failed to send message:', error);
-      return false;
+      return 'failed';
     }
   }
 
@@ -778,7 +751,7 @@ class P2PService {
   ): Promise<boolean> {
     try {
       const p2pMessage: P2PMessage = {
-        id: Date.now().toString(),
+        id: this.newMessageId(),
         fromDevice: await this.getDeviceName(),
         toDevice: targetDevice?.deviceAddress || 'broadcast',
         message: JSON.stringify(verificationData),
@@ -786,16 +759,197 @@ class P2PService {
         type: 'verification',
       };
 
-      const success = await WifiP2pModule.sendMessage(
-        JSON.stringify(p2pMessage),
-      );
-      return success;
+      return (await this.sendP2PMessage(p2pMessage, targetDevice)) === 'sent';
     } catch (error) {
       console.error('Failed to send verification data:', error);
       return false;
     }
   }
 
+  // Sends a request and resolves with the peer's matching response. Several requests to the same
+  // peer are pipelined natively; rejects with REQUEST_TIMEOUT if no response arrives in time.
+  async request(
+    peerId: string,
+    payload: string,
+    timeoutMs: number = 10000,
+  ): Promise<P2PResponse> {
+    return WifiP2pModule.request(peerId, payload, timeoutMs);
+  }
+
+  async respond(
+    peerId: string,
+    requestId: number,
+    payload: string,
+  ): Promise<boolean> {
+    try {
+      return await WifiP2pModule.respond(peerId, requestId, payload);
+    } catch (error) {
+      console.error('Failed to respond to request:', error);
+      return false;
+    }
+  }
+
+  // True while messages of this type to the peer are backing up; callers sending bulk chat
+  // should wait for it to clear rather than queue more
+  isCongested(
+    peerId: string,
+    messageType: 'chat' | 'consent' | 'verification' | 'system',
+  ): boolean {
+    return this.congestedLanes.has(`${peerId}:${messageType}`);
+  }
+
+  // Sends raw bytes to one peer, or to every connected peer when peerId is omitted, without any
+  // string or base64 conversion. Resolves with the number of peers that got it (0 when the only
+  // peer dropped and it waits in the outbox for that device); rejects with code UNSUPPORTED for peers on older
+  // builds, or the same codes sendMessage() uses.
+  async sendBytes(
+    data: ArrayBuffer | Uint8Array,
+    peerId?: string,
+    messageType: 'chat' | 'consent' | 'verification' | 'system' = 'chat',
+  ): Promise<number> {
+    const api = this.getBinaryApi();
+    if (!api) {
+      throw new Error('Binary P2P API is not available');
+    }
+    const view = data instanceof Uint8Array ? data : new Uint8Array(data);
+    return new Promise<number>((resolve, reject) => {
+      const sendId = api.sendBytes(
+        peerId ?? null,
+        view.buffer as ArrayBuffer,
+        view.byteOffset,
+        view.byteLength,
+        messageType,
+      );
+      this.pendingBinarySends.set(sendId, { resolve, reject });
+    });
+  }
+
+  private getBinaryApi(): KavachBinaryApi | null {
+    if (!this.binaryApi && WifiP2pModule?.installBinaryApi()) {
+      this.binaryApi = (global as any).__kavachP2P ?? null;
+    }
+    return this.binaryApi;
+  }
+
+  // Always takes the bytes, even with no listener, so the native side can let go of them
+  private handleBinaryMessage(event: { peerId: string; handle: number }) {
+    const data = this.getBinaryApi()?.takeBytes(event.handle);
+    if (!data) {
+      return;
+    }
+    const message: P2PBinaryMessage = { peerId: event.peerId, data };
+    this.binaryListeners.forEach(listener => listener(message));
+  }
+
+  private handleBinarySent(event: {
+    sendId: number;
+    ok: boolean;
+    delivered: number;
+    code?: string;
+    error?: string;
+  }) {
+    const pending = this.pendingBinarySends.get(event.sendId);
+    if (!pending) {
+      return;
+    }
+    this.pendingBinarySends.delete(event.sendId);
+    if (event.ok) {
+      pending.resolve(event.delivered);
+    } else {
+      pending.reject(
+        Object.assign(new Error(event.error), { code: event.code }),
+      );
+    }
+  }
+
+  // How many requests and acknowledged messages may be in flight per peer and message type
+  async setRequestWindow(window: number): Promise<number> {
+    return WifiP2pModule.setRequestWindow(window);
+  }
+
+  // Authenticates new connections with this device's Ed25519 key (the PEM Signer takes) and
+  // encrypts them; reconnects to the same peer resume without a full handshake
+  async setIdentityKey(privateKeyPem: string): Promise<boolean> {
+    return WifiP2pModule.setIdentityKey(privateKeyPem);
+  }
+
+  // Only accepts the member with this device address when it authenticates with identityKey
+  // (base64 Ed25519, as P2PPeerIdentity reports it); null removes the pin
+  async pinPeerIdentity(
+    deviceAddress: string,
+    identityKey: string | null,
+  ): Promise<boolean> {
+    return WifiP2pModule.pinPeerIdentity(deviceAddress, identityKey);
+  }
+
+  // When set, devices without a pin are disconnected during the handshake
+  async setRequirePinnedIdentity(required: boolean): Promise<boolean> {
+    return WifiP2pModule.setRequirePinnedIdentity(required);
+  }
+
+  // A peer silent for about intervalMs * maxMissed is reported lost and its socket closed
+  // (native default 1000 ms x 4); an interval of 0 turns heartbeats off
+  async setHeartbeat(intervalMs: number, maxMissed: number): Promise<boolean> {
+    return WifiP2pModule.setHeartbeat(intervalMs, maxMissed);
+  }
+
+  // Messages written to the native outbox and not yet acknowledged by their peer, which are
+  // replayed when it reconnects: {pending, byPeer, segments, bytes, expired}
+  async getOutboxStats(): Promise<any> {
+    try {
+      return await WifiP2pModule.getOutboxStats();
+    } catch (error) {
+      console.error('Failed to get outbox stats:', error);
+      return null;
+    }
+  }
+
+  // Drops undelivered messages for one member, by device address, or all of them
+  async clearOutbox(deviceAddress?: string): Promise<number> {
+    return WifiP2pModule.clearOutbox(deviceAddress ?? null);
+  }
+
+  // Native log level ('verbose' | 'debug' | 'info' | 'warn' | 'error' | 'none'); message bodies
+  // are redacted in the log unless logPayloads is set
+  async setLogLevel(level: string, logPayloads: boolean = false): Promise<boolean> {
+    return WifiP2pModule.setLogLevel(level, logPayloads);
+  }
+
+  // The native module's most recent log lines, oldest first, for attaching to a field report
+  async dumpRecentLogs(maxLines: number = 200): Promise<string[]> {
+    try {
+      return await WifiP2pModule.dumpRecentLogs(maxLines);
+    } catch (error) {
+      console.error('Failed to dump native logs:', error);
+      return [];
+    }
+  }
+
+  // A targeted message goes to that member even when it is another client of the same group;
+  // the group owner relays it natively. The native side resolves true, or {queued: true} when the
+  // message was only kept for later.
+  private async sendP2PMessage(
+    p2pMessage: P2PMessage,
+    targetDevice?: P2PDevice,
+  ): Promise<SendResult> {
+    const json = JSON.stringify(p2pMessage);
+    const result = targetDevice
+      ? await WifiP2pModule.sendToMember(
+          targetDevice.deviceAddress,
+          json,
+          p2pMessage.type,
+          p2pMessage.id,
+        )
+      : await WifiP2pModule.sendMessage(json, p2pMessage.type, p2pMessage.id);
+    return result === true ? 'sent' : result?.queued ? 'queued' : 'failed';
+  }
+
+  // The native side drops a second message with the same id, so two sent in the same
+  // millisecond must still differ
+  private newMessageId(): string {
+    return `${Date.now()}-${Math.random().toString(36).slice(2, 10)}`;
+  }
+
   // Get current device name
   private async getDeviceName(): Promise<string> {
     try {
@@ -815,6 +969,16 @@ class P2PService {
     }
   }
 
+  // Native transport counters and latency histograms (bytes, frames, send latency, RTT, errors)
+  async getTransportMetrics(): Promise<any> {
+    try {
+      return await WifiP2pModule.getTransportMetrics();
+    } catch (error) {
+      console.error('Failed to get transport metrics:', error);
+      return null;
+    }
+  }
+
   // Generate a unique device name for this app instance
   private async generateDeviceName(): Promise<string> {
     try {
@@ -838,12 +1002,28 @@ class P2PService {
   }
 
   // Handle peers changed event
-  private handlePeersChanged(devices: any[]) {
-    this.discoveredDevices = devices.map(device => ({
-      deviceName: device.deviceName || 'Unknown Device',
-      deviceAddress: device.deviceAddress,
-      status: device.status || 'AVAILABLE',
-    }));
+  // The native peer table only sends what was added, changed or expired since the last refresh
+  private handlePeersDelta(delta: {
+    added: any[];
+    changed: any[];
+    removed: string[];
+  }) {
+    const devices = new Map<string, P2PDevice>();
+    this.discoveredDevices.forEach(d => devices.set(d.deviceAddress, d));
+
+    [...delta.added, ...delta.changed].forEach(device => {
+      devices.set(device.deviceAddress, {
+        ...devices.get(device.deviceAddress),
+        deviceName: device.deviceName || 'Unknown Device',
+        deviceAddress: device.deviceAddress,
+        status: device.status || 'AVAILABLE',
+        ...(device.role && { role: device.role }),
+        ...(device.fingerprint && { fingerprint: device.fingerprint }),
+      });
+    });
+    delta.removed.forEach(address => devices.delete(address));
+
+    this.discoveredDevices = Array.from(devices.values());
 
     // Notify listeners
     this.deviceListeners.forEach(listener => listener(this.discoveredDevices));
@@ -870,15 +1050,6 @@ class P2PService {
         }) ${isGroupOwner ? 'as Group Owner' : 'as Client'}`,
       );
 
-      // Clear connection timeout
-      const timeoutId = this.connectionTimeouts.get(
-        connectedDevice.deviceAddress,
-      );
-      if (timeoutId) {
-        clearTimeout(timeoutId);
-        this.connectionTimeouts.delete(connectedDevice.deviceAddress);
-      }
-      this.isConnecting = false;
 
       // Update or add to connected devices (avoid duplicates)
       const existingIndex = this.connectedDevices.findIndex(
@@ -908,13 +1079,7 @@ class P2PService {
         listener(this.discoveredDevices),
       );
 
-      // Automatically establish socket connection
-      console.log(
-        'WiFi Direct connection established, setting up socket connection...',
-      );
-      setTimeout(() => {
-        this.checkAndEstablishSocketConnection();
-      }, 1000); // Wait 1 second for the connection to fully establish
+      // The native state machine opens the socket to the group owner on its own
     } else if (isConnected) {
       // Connection established but no valid device info - just log for debugging
       console.log(
@@ -1010,6 +1175,30 @@ class P2PService {
     this.messageListeners = this.messageListeners.filter(l => l !== listener);
   }
 
+  addRequestListener(listener: (request: P2PRequest) => void) {
+    this.requestListeners.push(listener);
+  }
+
+  removeRequestListener(listener: (request: P2PRequest) => void) {
+    this.requestListeners = this.requestListeners.filter(l => l !== listener);
+  }
+
+  addPeerReadyListener(listener: (peer: P2PPeerIdentity) => void) {
+    this.peerReadyListeners.push(listener);
+  }
+
+  removePeerReadyListener(listener: (peer: P2PPeerIdentity) => void) {
+    this.peerReadyListeners = this.peerReadyListeners.filter(l => l !== listener);
+  }
+
+  addBinaryMessageListener(listener: (message: P2PBinaryMessage) => void) {
+    this.binaryListeners.push(listener);
+  }
+
+  removeBinaryMessageListener(listener: (message: P2PBinaryMessage) => void) {
+    this.binaryListeners = this.binaryListeners.filter(l => l !== listener);
+  }
+
   // Add device discovery listener
   addDeviceListener(listener: (devices: P2PDevice[]) => void) {
     this.deviceListeners.push(listener);
@@ -1055,6 +1244,9 @@ class P2PService {
   cleanup() {
     this.stopDiscovery();
     this.messageListeners = [];
+    this.requestListeners = [];
+    this.peerReadyListeners = [];
+    this.congestedLanes.clear();
     this.deviceListeners = [];
     this.connectionListeners = [];
     this.discoveredDevices = [];